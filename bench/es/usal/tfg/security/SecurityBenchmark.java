@@ -0,0 +1,427 @@
+/*
+ * Archivo: SecurityBenchmark.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import es.usal.tfg.CampaignCredentials;
+
+/**
+ * Benchmarks del paquete de seguridad, pensados para ejecutarse fuera de
+ * Tomcat en cualquier máquina Linux.
+ * <p>
+ * Usan un keystore, un fichero de contraseña y un registro de versiones
+ * desechables en un directorio temporal, configurados con las propiedades
+ * del sistema "es.usal.tfg.keystoreFile", "es.usal.tfg.keystorePassFile" y
+ * "es.usal.tfg.keyMetaFile" antes de cargar {@link SymmetricEncryption}.
+ * Cada benchmark se calienta y despues se mide durante un tiempo fijo,
+ * mostrando operaciones por segundo y tiempo medio por operación.
+ * <p>
+ * Ejecución (con las librerías de WEB-INF/lib y las clases de src en el
+ * classpath):
+ * <pre>
+ * java -cp build/classes:bench-classes:WebContent/WEB-INF/lib/* \
+ *      es.usal.tfg.security.SecurityBenchmark [filtro...]
+ * </pre>
+ * Los argumentos filtran por subcadena del nombre del benchmark. Propiedades:
+ * <ul>
+ * <li>bench.warmupMillis / bench.measureMillis: duración de cada fase
+ * (1000 / 3000)</li>
+ * <li>bench.aliases: número de alias de campaña (1,10,1000,10000)</li>
+ * <li>bench.appendSizes: tamaños iniciales para añadir (65536,1048576,8388608)</li>
+ * <li>bench.imageSizes: tamaños de imagen (2097152,4194304,8388608)</li>
+ * <li>es.usal.tfg.derivedKeys=false: los alias se crean como entradas del
+ * keystore, como antes de las claves derivadas (conviene reducir
+ * bench.aliases porque cada alias reescribe el keystore)</li>
+ * </ul>
+ */
+public class SecurityBenchmark {
+
+	/** The Constant WARMUP_MILLIS. */
+	private static final long WARMUP_MILLIS = Long.getLong("bench.warmupMillis", 1000);
+
+	/** The Constant MEASURE_MILLIS. */
+	private static final long MEASURE_MILLIS = Long.getLong("bench.measureMillis", 3000);
+
+	/** The Constant RECORD, registro que se añade en los benchmarks de añadir. */
+	private static final byte[] RECORD = new byte[512];
+
+	/** Resultado acumulado para que el JIT no elimine el trabajo medido. */
+	private static volatile long sink;
+
+	/** Filtros de nombre recibidos por línea de comandos. */
+	private static String[] filters;
+
+	/**
+	 * Operación a medir.
+	 */
+	private interface Op {
+
+		/**
+		 * Ejecuta una vez la operación.
+		 *
+		 * @param i número de la ejecución
+		 * @throws Exception the exception
+		 */
+		void run(long i) throws Exception;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args filtros de nombre de benchmark
+	 * @throws Exception the exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		filters = args;
+
+		Path dir = Files.createTempDirectory("demos-bench");
+		File passFile = dir.resolve(".DemosKey").toFile();
+		PrintWriter pw = new PrintWriter(passFile, "UTF-8");
+		pw.println(Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime()));
+		pw.close();
+		System.setProperty("es.usal.tfg.keystorePassFile", passFile.getPath());
+		System.setProperty("es.usal.tfg.keystoreFile", dir.resolve(".keystore").toString());
+		System.setProperty("es.usal.tfg.keyMetaFile", dir.resolve(".keymeta").toString());
+
+		System.out.println("[" + new Date().toString() + "] Benchmark: directorio temporal " + dir);
+		try {
+			SymmetricEncryption.configureKeyStore();
+			benchTokens(dir);
+			benchAppend(dir);
+			benchStreams(dir);
+			benchPasswords();
+		} finally {
+			deleteRecursively(dir.toFile());
+		}
+		System.out.println("[" + new Date().toString() + "] Benchmark: " + CryptoPool.getStats());
+	}
+
+	/**
+	 * encryptUsingKey/decryptUsingKey y los tokens de sesión con distintos
+	 * números de alias, recorriéndolos de forma aleatoria.
+	 *
+	 * @param dir el directorio temporal
+	 * @throws Exception the exception
+	 */
+	private static void benchTokens(Path dir) throws Exception {
+
+		//Crear muchos alias es caro, no se hace si se van a saltar
+		if (!matches("token/encryptUsingKey") && !matches("token/decryptUsingKey")
+				&& !matches("session/SessionToken.verify")) {
+			return;
+		}
+		final List<String> aliases = new ArrayList<>();
+		for (long count : parseSizes("bench.aliases", "1,10,1000,10000")) {
+			long start = System.nanoTime();
+			while (aliases.size() < count) {
+				String alias = "bench-" + aliases.size();
+				SymmetricEncryption.createKey(alias);
+				aliases.add(alias);
+			}
+			System.out.println("[" + new Date().toString() + "] Benchmark: " + count + " alias creados en "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+
+			final int n = (int) count;
+			final Random random = new Random(count);
+			final byte[][] tokens = new byte[n][];
+			final String[] sessionTokens = new String[n];
+			for (int i = 0; i < n; i++) {
+				String alias = aliases.get(i);
+				tokens[i] = SymmetricEncryption.encryptUsingKey(alias.getBytes("UTF-8"), alias);
+				sessionTokens[i] = SessionToken.issue(alias, CampaignCredentials.generateRegistrationId());
+			}
+
+			measure("token/encryptUsingKey aliases=" + count, new Op() {
+				@Override
+				public void run(long i) throws Exception {
+					String alias = aliases.get(random.nextInt(n));
+					sink += SymmetricEncryption.encryptUsingKey(alias.getBytes("UTF-8"), alias).length;
+				}
+			});
+			measure("token/decryptUsingKey aliases=" + count, new Op() {
+				@Override
+				public void run(long i) throws Exception {
+					int k = random.nextInt(n);
+					sink += SymmetricEncryption.decryptUsingKey(tokens[k], aliases.get(k)).length;
+				}
+			});
+			measure("session/SessionToken.verify aliases=" + count, new Op() {
+				@Override
+				public void run(long i) throws Exception {
+					sink += SessionToken.verify(sessionTokens[random.nextInt(n)]).getIssuedAt();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Añadir un registro a ficheros que ya tienen distintos tamaños, con
+	 * appendAES (AES/CBC) y con el formato por fragmentos.
+	 *
+	 * @param dir el directorio temporal
+	 * @throws Exception the exception
+	 */
+	@SuppressWarnings("deprecation")
+	private static void benchAppend(Path dir) throws Exception {
+
+		final String alias = "bench-append";
+		SymmetricEncryption.createKey(alias);
+
+		for (long size : parseSizes("bench.appendSizes", "65536,1048576,8388608")) {
+
+			if (matches("append/appendAES size=" + size)) {
+				final File cbc = dir.resolve("append-" + size + ".cbc").toFile();
+				OutputStream os = SymmetricEncryption.encryptFileUsingKey(cbc, alias);
+				writeRandom(os, size);
+				os.close();
+				measure("append/appendAES size=" + size, new Op() {
+					@Override
+					public void run(long i) throws Exception {
+						OutputStream os = SymmetricEncryption.appendAES(cbc, alias);
+						os.write(RECORD);
+						os.close();
+					}
+				});
+				Files.delete(cbc.toPath());
+			}
+
+			if (matches("append/SegmentedEncryption.append size=" + size)) {
+				final File seg = dir.resolve("append-" + size + ".seg").toFile();
+				OutputStream os = SegmentedEncryption.create(seg, alias);
+				writeRandom(os, size);
+				os.close();
+				measure("append/SegmentedEncryption.append size=" + size, new Op() {
+					@Override
+					public void run(long i) throws Exception {
+						OutputStream os = SegmentedEncryption.append(seg, alias);
+						os.write(RECORD);
+						os.close();
+					}
+				});
+				Files.delete(seg.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Encriptado y desencriptado en streaming de imágenes de varios megas,
+	 * con el formato por fragmentos y con el antiguo AES/CBC. Las imágenes son
+	 * bytes aleatorios, que como un JPEG no se pueden comprimir.
+	 *
+	 * @param dir el directorio temporal
+	 * @throws Exception the exception
+	 */
+	private static void benchStreams(Path dir) throws Exception {
+
+		final String alias = "bench-stream";
+		SymmetricEncryption.createKey(alias);
+		final byte[] buffer = new byte[64 * 1024];
+
+		for (final long size : parseSizes("bench.imageSizes", "2097152,4194304,8388608")) {
+
+			final byte[] image = new byte[(int) size];
+			new Random(size).nextBytes(image);
+			final File seg = dir.resolve("image-" + size + ".seg").toFile();
+			final File cbc = dir.resolve("image-" + size + ".cbc").toFile();
+
+			measure("stream/SegmentedEncryption.create size=" + size, new Op() {
+				@Override
+				public void run(long i) throws Exception {
+					OutputStream os = SegmentedEncryption.create(seg, alias, size);
+					os.write(image);
+					os.close();
+				}
+			});
+			if (seg.exists()) {
+				measure("stream/SegmentedEncryption.openInputStream size=" + size, new Op() {
+					@Override
+					public void run(long i) throws Exception {
+						sink += readAll(SegmentedEncryption.openInputStream(seg, alias), buffer);
+					}
+				});
+			}
+			measure("stream/encryptFileUsingKey size=" + size, new Op() {
+				@Override
+				public void run(long i) throws Exception {
+					OutputStream os = SymmetricEncryption.encryptFileUsingKey(cbc, alias);
+					os.write(image);
+					os.close();
+				}
+			});
+			if (cbc.exists()) {
+				measure("stream/decryptFileUsingKey size=" + size, new Op() {
+					@Override
+					public void run(long i) throws Exception {
+						sink += readAll(SymmetricEncryption.decryptFileUsingKey(cbc, alias), buffer);
+					}
+				});
+			}
+			Files.deleteIfExists(seg.toPath());
+			Files.deleteIfExists(cbc.toPath());
+		}
+	}
+
+	/**
+	 * Verificación de contraseñas con el número de iteraciones configurado
+	 * en {@link PasswordStorage}.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchPasswords() throws Exception {
+
+		final String password = "contraseña-de-prueba";
+		final String hash = PasswordStorage.createHash(password);
+		measure("password/verifyPassword", new Op() {
+			@Override
+			public void run(long i) throws Exception {
+				if (PasswordStorage.verifyPassword(password, hash)) {
+					sink++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calienta y mide una operación si su nombre pasa los filtros.
+	 *
+	 * @param name el nombre del benchmark
+	 * @param op la operación
+	 * @throws Exception the exception
+	 */
+	private static void measure(String name, Op op) throws Exception {
+
+		if (!matches(name)) {
+			return;
+		}
+		long i = 0;
+		long end = System.nanoTime() + WARMUP_MILLIS * 1000000;
+		while (System.nanoTime() < end) {
+			op.run(i++);
+		}
+
+		long ops = 0;
+		long start = System.nanoTime();
+		end = start + MEASURE_MILLIS * 1000000;
+		long now;
+		do {
+			op.run(i++);
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+
+		double seconds = (now - start) / 1e9;
+		System.out.println(String.format("%-60s %12.1f ops/s %12.1f us/op", name, ops / seconds,
+				seconds * 1e6 / ops));
+	}
+
+	/**
+	 * Comprueba si un nombre pasa los filtros de la línea de comandos.
+	 *
+	 * @param name el nombre
+	 * @return true, si no hay filtros o alguno es subcadena del nombre
+	 */
+	private static boolean matches(String name) {
+
+		if (filters == null || filters.length == 0) {
+			return true;
+		}
+		for (String filter : filters) {
+			if (name.contains(filter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lee una lista de tamaños separados por comas de una propiedad.
+	 *
+	 * @param property la propiedad del sistema
+	 * @param defaults el valor por defecto
+	 * @return los tamaños
+	 */
+	private static long[] parseSizes(String property, String defaults) {
+
+		String[] values = System.getProperty(property, defaults).split(",");
+		long[] sizes = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			sizes[i] = Long.parseLong(values[i].trim());
+		}
+		return sizes;
+	}
+
+	/**
+	 * Escribe bytes aleatorios en un stream.
+	 *
+	 * @param os el stream
+	 * @param size el número de bytes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeRandom(OutputStream os, long size) throws IOException {
+
+		Random random = new Random(size);
+		byte[] data = new byte[64 * 1024];
+		for (long written = 0; written < size; written += data.length) {
+			random.nextBytes(data);
+			os.write(data, 0, (int) Math.min(data.length, size - written));
+		}
+	}
+
+	/**
+	 * Lee un stream hasta el final y lo cierra.
+	 *
+	 * @param is el stream
+	 * @param buffer buffer de lectura
+	 * @return el número de bytes leídos
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static long readAll(InputStream is, byte[] buffer) throws IOException {
+
+		long total = 0;
+		try {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				total += read;
+			}
+		} finally {
+			is.close();
+		}
+		return total;
+	}
+
+	/**
+	 * Borra un directorio con todo su contenido.
+	 *
+	 * @param file el fichero o directorio
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void deleteRecursively(File file) throws IOException {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+}
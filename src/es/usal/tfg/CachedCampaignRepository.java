@@ -0,0 +1,172 @@
+/*
+ * Archivo: CachedCampaignRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Clase CachedCampaignRepository, mantiene en memoria un índice con las
+ * {@link CampaignCredentials} de otra {@link CampaignRepository}, cargado una
+ * vez al inicializar las campañas.
+ * <p>
+ * Los logins buscan en el índice sin desencriptar ni recorrer la base de
+ * datos y sin tomar ningún lock. Las campañas registradas se añaden al índice
+ * después de guardarlas y las borradas por
+ * {@link CampaignRepository#retain(CampaignRepository.Filter)} se quitan
+ * según las rechaza el filtro.
+ */
+public class CachedCampaignRepository implements CampaignRepository {
+
+	/** La base de datos de campañas. */
+	private final CampaignRepository repository;
+
+	/** El índice, por nombre de campaña. */
+	private final ConcurrentHashMap<String, CampaignCredentials> index = new ConcurrentHashMap<>();
+
+	/** Si el índice ya se ha cargado. */
+	private volatile boolean cargado = false;
+
+	/**
+	 * Instantiates a new cached campaign repository.
+	 *
+	 * @param repository la base de datos de campañas
+	 */
+	CachedCampaignRepository(CampaignRepository repository) {
+		this.repository = repository;
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#add(es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public void add(CampaignCredentials credentials) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		carga();
+		repository.add(credentials);
+		index.put(credentials.getCampaignName(), credentials);
+	}
+
+	/**
+	 * Busca en el índice, solo la primera vez lee la base de datos.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#find(java.lang.String)
+	 */
+	@Override
+	public CampaignCredentials find(String campaignName) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		carga();
+		return index.get(campaignName);
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#findAll()
+	 */
+	@Override
+	public List<CampaignCredentials> findAll() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		carga();
+		return new ArrayList<>(index.values());
+	}
+
+	/**
+	 * Sustituye las credenciales en el índice solo si siguen siendo las
+	 * esperadas, para no devolver una campaña borrada o registrada de nuevo
+	 * mientras tanto.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#update(es.usal.tfg.CampaignCredentials, es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public boolean update(CampaignCredentials expected, CampaignCredentials credentials) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+
+		carga();
+		if (!repository.update(expected, credentials)) {
+			return false;
+		}
+		CampaignCredentials actuales = index.get(credentials.getCampaignName());
+		if (expected.matches(actuales)) {
+			index.replace(credentials.getCampaignName(), actuales, credentials);
+		}
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#retain(es.usal.tfg.CampaignRepository.Filter)
+	 */
+	@Override
+	public boolean retain(final Filter filter) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		carga();
+		return repository.retain(new Filter() {
+
+			@Override
+			public boolean accept(CampaignCredentials credentials) throws IOException {
+
+				if (filter.accept(credentials)) {
+					return true;
+				}
+				index.remove(credentials.getCampaignName());
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Carga el índice con todas las campañas la primera vez que se usa.
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	private void carga() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		if (cargado) {
+			return;
+		}
+		synchronized (this) {
+			if (!cargado) {
+				for (CampaignCredentials c : repository.findAll()) {
+					index.put(c.getCampaignName(), c);
+				}
+				cargado = true;
+				System.out.println("[" + new Date().toString() + "] CachedCampaignRepository: " + index.size()
+						+ " campanias cargadas en memoria");
+			}
+		}
+	}
+}
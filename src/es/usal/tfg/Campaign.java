@@ -11,10 +11,10 @@ package es.usal.tfg;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Date;
-
-import com.google.common.primitives.Longs;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
 
 /**
  * Clase que almacena toda la información necesaria para manejar una campaña
@@ -30,9 +30,31 @@ public class Campaign {
 	/** The campaign name. */
 	private final String campaignName;
 	
-	/** The data base. */
+	/**
+	 * The registration id de sus {@link CampaignCredentials}, cadena vacía si
+	 * la campaña no tiene. Los tokens de sesión solo son válidos si llevan
+	 * este mismo valor.
+	 */
+	private final String registrationId;
+	
+	/**
+	 * The data base, antiguo fichero "signatures.json" que se importa a
+	 * {@link Campaign#signatureStore} al inicializar la campaña.
+	 */
 	private final File dataBase;
 	
+	/**
+	 * The signature store, base de datos de firmas, se abre al usarla con
+	 * {@link Repositories#openSignatureRepository(Campaign)}.
+	 */
+	private volatile SignatureRepository signatureStore;
+	
+	/** The dni index, índice de los DNI que han firmado, se abre al usarlo. */
+	private volatile DniIndex dniIndex;
+	
+	/** The commit queue, cola de escritura de firmas, se crea al usarla. */
+	private volatile SignatureCommitQueue commitQueue;
+	
 	/** The directory. */
 	private final File directory;
 	
@@ -46,53 +68,30 @@ public class Campaign {
 	 */
 	private final File signCtr;
 	
-	/** The numero firmas. */
-	private long numeroFirmas;
+	/**
+	 * The numero firmas, contador en memoria con punto de control en
+	 * {@link Campaign#signCtr}, se comprueba con la base de datos al abrirla.
+	 */
+	private final SignatureCounter numeroFirmas;
 	
 	
 	
 	/**
-	 * Instantiates a new campaign, cargando el número de firmas de disco con
-	 * el método {@link Campaign#loadSignCtr()}
+	 * Instantiates a new campaign, cargando el número de firmas del último
+	 * punto de control con {@link SignatureCounter}
 	 *
 	 * @param campaignName the campaign name
+	 * @param registrationId the registration id, puede ser null
 	 * @param directory the directory
 	 */
-	public Campaign(String campaignName, File directory) {
+	public Campaign(String campaignName, String registrationId, File directory) {
 		
 		this.campaignName = campaignName;
+		this.registrationId = registrationId == null ? "" : registrationId;
 		this.directory = directory;
 		this.dataBase = new File(this.directory.getAbsolutePath()+ "/signatures.json");
 		this.signCtr = new File(this.directory.getAbsolutePath()+ "/.numFirmas");
-		try {
-			this.numeroFirmas = loadSignCtr();
-		} catch (Exception e) {
-			e.printStackTrace();
-			this.numeroFirmas = 0;
-		}
-	}
-
-	/**
-	 * Busca el fichero que almacena el numero de firmas, si existe y tiene 
-	 * contenido lo carga, en caso contrario pone a 0 el campo 
-	 * {@link Campaign#numeroFirmas}
-	 *
-	 * @return the long
-	 * @throws Exception cualquier excepcion que se pueda producir
-	 */
-	private long loadSignCtr () throws Exception{
-		if (signCtr.exists() && signCtr.length()>0) {
-			byte [] bytes= Files.readAllBytes(signCtr.toPath());
-			long numFirmas = Longs.fromByteArray(bytes);
-			
-			System.out.println(campaignName+ " cargando firmas, num: "+numFirmas);
-			return numFirmas;
-		}
-		else {
-			
-			return 0;
-		}
-		
+		this.numeroFirmas = new SignatureCounter(signCtr);
 	}
 	
 	/**
@@ -103,6 +102,15 @@ public class Campaign {
 	public String getCampaignName() {
 		return campaignName;
 	}
+	
+	/**
+	 * Gets the registration id.
+	 *
+	 * @return the registration id, cadena vacía si la campaña no tiene
+	 */
+	public String getRegistrationId() {
+		return registrationId;
+	}
 
 	/**
 	 * Gets the data base.
@@ -113,6 +121,82 @@ public class Campaign {
 		return dataBase;
 	}
 
+	/**
+	 * Gets the signature store, abriéndola la primera vez y comprobando con
+	 * ella el número de firmas. Solo la primera vez se toma el lock de la
+	 * campaña, cada subida lo consulta.
+	 *
+	 * @return the signature store
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SignatureRepository getSignatureStore() throws IOException {
+		
+		SignatureRepository store = signatureStore;
+		if (store == null) {
+			synchronized (this) {
+				store = signatureStore;
+				if (store == null) {
+					store = Repositories.openSignatureRepository(this);
+					numeroFirmas.verify(store.size());
+					signatureStore = store;
+				}
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Gets the dni index, abriéndolo la primera vez.
+	 *
+	 * @return the dni index
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public DniIndex getDniIndex() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+		
+		DniIndex index = dniIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = dniIndex;
+				if (index == null) {
+					index = DniIndex.open(this);
+					dniIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the commit queue, creándola la primera vez.
+	 *
+	 * @return the commit queue
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public SignatureCommitQueue getCommitQueue() throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		
+		SignatureCommitQueue queue = commitQueue;
+		if (queue == null) {
+			synchronized (this) {
+				queue = commitQueue;
+				if (queue == null) {
+					queue = new SignatureCommitQueue(this, getSignatureStore(), getDniIndex());
+					commitQueue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+
 	/**
 	 * Gets the directory.
 	 *
@@ -129,23 +213,17 @@ public class Campaign {
 	 */
 	public long getNumeroFirmas() {
 
-		return numeroFirmas;
+		return numeroFirmas.get();
 	}
 
 	/**
-	 * Sets the numero firmas y lo escribe en el fichero
+	 * Gets the signature counter, que avanza la
+	 * {@link SignatureCommitQueue} al escribir las firmas.
 	 *
-	 * @param numeroFirmas the new numero firmas
+	 * @return the signature counter
 	 */
-	public void setNumeroFirmas(long numeroFirmas) {
-		
-		this.numeroFirmas = numeroFirmas;
-		try {
-			Files.write(signCtr.toPath(), Longs.toByteArray(numeroFirmas));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		System.out.println("["+new Date().toString()+"] "+campaignName + "-Set: numero de firmas: "+this.numeroFirmas);
+	SignatureCounter getSignatureCounter() {
+		return numeroFirmas;
 	}
 
 	/**
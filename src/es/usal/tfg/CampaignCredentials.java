@@ -9,6 +9,10 @@
  */
 package es.usal.tfg;
 
+import java.util.Base64;
+import java.util.Objects;
+
+import es.usal.tfg.security.CryptoPool;
 
 /**
  * The Class CampaignCredentials.
@@ -25,7 +29,15 @@ public class CampaignCredentials {
 	private String deleteDate;
 	
 	/**
-	 * Instantiates a new campaign credentials.
+	 * The registration id, valor aleatorio generado al registrar la campaña
+	 * que llevan sus tokens de sesión, de modo que los de una campaña borrada
+	 * no valen para otra registrada después con el mismo nombre. Null en las
+	 * campañas registradas antes de existir.
+	 */
+	private String registrationId;
+	
+	/**
+	 * Instantiates a new campaign credentials sin registration id.
 	 *
 	 * @param campaignName the campaign name
 	 * @param hashPass the hash pass
@@ -33,9 +45,35 @@ public class CampaignCredentials {
 	 */
 	public CampaignCredentials(String campaignName, String hashPass, String deleteDate) {
 
+		this(campaignName, hashPass, deleteDate, null);
+	}
+	
+	/**
+	 * Instantiates a new campaign credentials.
+	 *
+	 * @param campaignName the campaign name
+	 * @param hashPass the hash pass
+	 * @param deleteDate the delete date
+	 * @param registrationId the registration id
+	 */
+	public CampaignCredentials(String campaignName, String hashPass, String deleteDate, String registrationId) {
+
 		this.campaignName = campaignName;
 		this.hashPass = hashPass;
 		this.deleteDate = deleteDate;
+		this.registrationId = registrationId;
+	}
+	
+	/**
+	 * Genera un registration id nuevo, 16 bytes aleatorios en Base64 URL.
+	 *
+	 * @return the registration id
+	 */
+	public static String generateRegistrationId() {
+
+		byte[] id = new byte[16];
+		CryptoPool.getSecureRandom().nextBytes(id);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
 	}
 
 	/**
@@ -65,6 +103,29 @@ public class CampaignCredentials {
 		return deleteDate;
 	}
 	
+	/**
+	 * Gets the registration id.
+	 *
+	 * @return the registration id, null si la campaña es anterior a ellos
+	 */
+	public String getRegistrationId() {
+		return registrationId;
+	}
+	
+	/**
+	 * Comprueba si otras credenciales son las mismas que estas: mismo nombre,
+	 * mismo registration id y mismo hash. Sirve para sustituir unas
+	 * credenciales solo si no han cambiado desde que se leyeron, ni se ha
+	 * vuelto a registrar la campaña mientras tanto.
+	 *
+	 * @param other las otras credenciales
+	 * @return true, si son las mismas
+	 */
+	public boolean matches(CampaignCredentials other) {
+		return other != null && Objects.equals(campaignName, other.campaignName)
+				&& Objects.equals(registrationId, other.registrationId) && Objects.equals(hashPass, other.hashPass);
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -13,10 +13,10 @@ package es.usal.tfg;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.SimpleFileVisitor;
@@ -26,23 +26,26 @@ import java.nio.file.attribute.PosixFilePermissions;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.function.BiConsumer;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.inject.Singleton;
@@ -50,23 +53,34 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonIOException;
+import com.google.common.primitives.Longs;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import es.usal.tfg.files.ImageStore;
 import es.usal.tfg.files.PDFThread;
+import es.usal.tfg.imageProcessing.Firma;
+import es.usal.tfg.security.CryptoService;
+import es.usal.tfg.security.KeyMetadata;
+import es.usal.tfg.security.PasswordService;
 import es.usal.tfg.security.PasswordStorage;
-import es.usal.tfg.security.PasswordStorage.CannotPerformOperationException;
-import es.usal.tfg.security.PasswordStorage.InvalidHashException;
+import es.usal.tfg.security.SessionToken;
 import es.usal.tfg.security.SymmetricEncryption;
+import es.usal.tfg.security.TokenCache;
 
 /**
  * Clase principal del proyecto, encargada de gestionar las campaas, además 
@@ -121,32 +135,53 @@ public class CampaignManagement implements ServletContextListener {
 	 */
 	public static final int LOGIN_INCORRECTO = 3;
 
+	/**
+	 * The Constant LOGIN_OCUPADO para indicar que no se ha podido comprobar
+	 * la contrasea por estar llena la cola de {@link PasswordService} en
+	 * {@link CampaignManagement#loginInterno(String, String) loginInterno}
+	 */
+	public static final int LOGIN_OCUPADO = 4;
+
+	/**
+	 * The Constant MAX_PAGE_SIZE, nmero mximo de firmas de una pgina de
+	 * {@link CampaignManagement#listSignatures listSignatures}
+	 */
+	public static final int MAX_PAGE_SIZE = 500;
+
+	/** Prefijo del token en la cabecera Authorization. */
+	private static final String BEARER = "Bearer ";
+
 	/** The Constant dateFormat para formatear los tipo {@link Date} */
 	public static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
 	
 	/** 
 	 * Estructura de datos utilizada para asociar instancias de {@link Campaign} 
 	 * con su nombre. Se utiliza desde otras clases para poder buscar y acceder
-	 * a los campos de una campaa conociendo solo su nombre
+	 * a los campos de una campaa conociendo solo su nombre.
+	 * <p>
+	 * Es un {@link ConcurrentHashMap} para que las subidas, los logins y la 
+	 * comprobacin de tokens, que la consultan en cada peticin, no esperen
+	 * unos a otros. El estado de cada campaa (contador, cola de escritura y 
+	 * lock de su base de datos) esta en su {@link Campaign}, por lo que las 
+	 * campaas tampoco esperan unas a otras.
 	 * 
 	 */
-	private static HashMap<String ,Campaign> campaas = new HashMap<>();
+	private static final ConcurrentHashMap<String ,Campaign> campaas = new ConcurrentHashMap<>();
 	
-	/** 
-	 * Estructura de datos utilizada almacenar los tokens de sesion de campaa
-	 * activos, un token está se introduce aqui al generarse en los metodos
-	 * {@link CampaignManagement#register(String, String, String) registro} o
-	 * {@link CampaignManagement#login(String, String) login} y también cuando
-	 * se comprueba un token antiguo pero valido en 
-	 * {@link CampaignManagement#authenticateToken(String, String) autenticateToken}
-	 * <p>
-	 * Esta estructura se usa por razones de eficiencia para no desencriptar los
-	 * tokens cada vez que llegan. Se borra una vez al día.
-	 * 
-	 * @see es.usal.tfg.MaintenanceService MaintenanceService
-	 * 
+	/**
+	 * Nombres de las campaas que se estan registrando, reservados de forma
+	 * atmica en {@link CampaignManagement#register(String, String, String)}
+	 * para que dos registros con el mismo nombre no creen a la vez los 
+	 * ficheros de la campaa.
+	 */
+	private static final Set<String> registrosEnCurso = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Nombres de las campaas cuyo hash de contrasea se est recalculando en
+	 * {@link CampaignManagement#recalculaHash(CampaignCredentials, String)}, 
+	 * para que varios logins simultaneos no lo recalculen a la vez.
 	 */
-	private static HashSet<String> activeTokens = new HashSet<>();
+	private static final Set<String> rehashesEnCurso = ConcurrentHashMap.newKeySet();
 	
 	/** 
 	 * Estructura de datos utilizada para asociar un token de subida con el
@@ -165,21 +200,6 @@ public class CampaignManagement implements ServletContextListener {
 	 */
 	private static final Object lockDownload = new Object();
 	
-	/** 
-	 * The Constant lockCampaas que actua como lock para los bloques syncronized
-	 * en las lecturas o modificaciones de la estructura de datos 
-	 * {@link CampaignManagement#campaas} de forma sincronizada en
-	 * los distintos hilos
-	 */
-	private static final Object lockCampaas = new Object();
-	
-	/** The Constant lockTokens que actua como lock para los bloques syncronized
-	 * en las lecturas o modificaciones de la estructura de datos 
-	 * {@link CampaignManagement#activeTokens} de forma sincronizada en
-	 * los distintos hilos
-	 */
-	private static final Object lockTokens = new Object();
-	
 	/** Archivo que representa a la base de datos de las campaas. */
 	private static final File campaignsFile = new File(WEBSERVICE_ABSOLUTE_ROUTE + "/campaigns.json");
 	
@@ -218,9 +238,7 @@ public class CampaignManagement implements ServletContextListener {
 	 * @return true, si está vacía, false, en caso contrario
 	 */
 	static boolean campaasIsEmpty (){
-		synchronized (lockCampaas) {
-			return campaas.isEmpty();
-		}
+		return campaas.isEmpty();
 	}
 	
 	/**
@@ -232,15 +250,25 @@ public class CampaignManagement implements ServletContextListener {
 	 */
 	public static Campaign getCampaa(String campaignName) {
 		
-		synchronized (lockCampaas) {
-			return campaas.get(campaignName);
-		}	
+		return campaas.get(campaignName);
 	}
 	
 
+	/**
+	 * Obtiene una copia de las campaas de la estructura
+	 * {@link CampaignManagement#campaas}, para recorrerlas.
+	 *
+	 * @return las campaas
+	 */
+	static Collection<Campaign> getCampaas() {
+		
+		return new ArrayList<>(campaas.values());
+	}
+	
 	/**
 	 * Borra la campaa asociada al parametro en la estructura 
-	 * {@link CampaignManagement#campaas}.
+	 * {@link CampaignManagement#campaas} y sus tokens de 
+	 * {@link TokenCache}.
 	 *
 	 *
 	 * @param campaignName nombre de la campaa que se desea borrar
@@ -248,10 +276,8 @@ public class CampaignManagement implements ServletContextListener {
 	 */
 	static Campaign deleteCampaa(String campaignName) {
 		
-		
-		synchronized (lockCampaas) {
-			return campaas.remove(campaignName);
-		}	
+		TokenCache.invalidateCampaign(campaignName);
+		return campaas.remove(campaignName);
 	}
 	
 	/**
@@ -321,14 +347,6 @@ public class CampaignManagement implements ServletContextListener {
 		}
 	}
 	
-	/**
-	 * Limpia la estructura de datos {@link CampaignManagement#activeTokens}.
-	 */
-	static void clearActiveToken(){
-		synchronized (lockTokens) {
-			activeTokens.clear();
-		}
-	}
 
 	
 	/**
@@ -342,10 +360,12 @@ public class CampaignManagement implements ServletContextListener {
 	public CampaignManagement() {
 		
 		if (instance == null) {
+			PasswordService.calibrate();
 			inicializaCampaas();
 			MaintenanceService maintenance = new MaintenanceService();
 			taskExecutor = new MyTaskExecutor(maintenance);
 			taskExecutor.startScheduleExecutionAt(5, 0, 0);
+			KeyRotationService.resume();
 			instance = this;
 		}
 		
@@ -395,17 +415,45 @@ public class CampaignManagement implements ServletContextListener {
 			}
 		}
 		
-		synchronized (lockCampaas) {
-		
-			if (campaas.containsKey(campaignName)) {
-				try {
-					System.err.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+ " Error ya existe una campaa con ese nombre");
-					return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, ya existe una campaa con ese nombre".getBytes("UTF-8"))).build();
-				} catch (UnsupportedEncodingException e) {
-					
-				}
+		//Reserva atmica del nombre, de varios registros simultaneos con el
+		//mismo nombre solo uno la consigue y el resto se rechazan
+		if (!registrosEnCurso.add(campaignName)) {
+			try {
+				System.err.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+ " Error ya se esta registrando una campaa con ese nombre");
+				return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, ya existe una campaa con ese nombre".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e) {
+				return Response.status(500).build();
 			}
+		}
+		
+		try {
+			return registraCampaa(campaignName, password, deleteDateStr, deleteDate);
+		} finally {
+			registrosEnCurso.remove(campaignName);
+		}
+	}
+	
+	/**
+	 * Registra una campaa cuyo nombre ya se ha reservado en 
+	 * {@link CampaignManagement#registrosEnCurso}, por lo que ningn otro 
+	 * registro puede aadir una campaa con ese nombre mientras tanto.
+	 *
+	 * @param campaignName nombre de la campaa
+	 * @param password contrasea de la campaa
+	 * @param deleteDateStr fecha de borrado de la campaa
+	 * @param deleteDate fecha de borrado ya parseada
+	 * @return response con determinado codigo y mensaje en funcion del exito
+	 * o fracaso de la operacin de registro
+	 */
+	private static Response registraCampaa(String campaignName, String password, String deleteDateStr, Date deleteDate) {
 		
+		if (campaas.containsKey(campaignName)) {
+			try {
+				System.err.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+ " Error ya existe una campaa con ese nombre");
+				return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, ya existe una campaa con ese nombre".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e) {
+				
+			}
 		}
 		
 		//Si la fecha de borrado es inferior o igual a la actual entonces rechazamos la peticion de registro
@@ -425,8 +473,12 @@ public class CampaignManagement implements ServletContextListener {
 		String hashPass=null;
 		//Creamos el hash de la contrasea de la campaa
 		try {
-			hashPass = PasswordStorage.createHash(password);
-		} catch (CannotPerformOperationException e) {
+			hashPass = PasswordService.createHash(password).get();
+		} catch (InterruptedException | ExecutionException e) {
+			if (PasswordService.isRejected(e)) {
+				System.err.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+ " Error servidor ocupado calculando hashes de contraseas");
+				return servidorOcupado();
+			}
 			System.err.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+ " Error creando hash de la contrasea");
 			e.printStackTrace();
 			try {
@@ -437,8 +489,8 @@ public class CampaignManagement implements ServletContextListener {
 			}
 		}
 		
-		CampaignCredentials campaignCred = new CampaignCredentials(campaignName, hashPass, deleteDateStr);
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		CampaignCredentials campaignCred = new CampaignCredentials(campaignName, hashPass, deleteDateStr,
+				CampaignCredentials.generateRegistrationId());
 		
 		/**
 		 * @reference https://docs.oracle.com/javase/8/docs/api/java/nio/file/attribute/PosixFileAttributeView.html
@@ -447,10 +499,10 @@ public class CampaignManagement implements ServletContextListener {
 		
 		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
 		
-		//Si no existe la base de datos campaas es que es la primera en ser registrada asi que
-		//configuramos el keystore
+		//Si no existe el keystore es que es la primera campaa en ser registrada asi que
+		//lo configuramos
 		
-		if (!campaignsFile.exists()) {
+		if (!SymmetricEncryption.getKeystorefile().exists()) {
 			
 			try {
 				
@@ -476,26 +528,24 @@ public class CampaignManagement implements ServletContextListener {
 		
 		
 		
-		Campaign campaign = new Campaign(campaignName, new File(WEBSERVICE_ABSOLUTE_ROUTE+ "/campanias/" + campaignName));
+		Campaign campaign = new Campaign(campaignName, campaignCred.getRegistrationId(), new File(WEBSERVICE_ABSOLUTE_ROUTE+ "/campanias/" + campaignName));
 		
 		
-		byte[] token=null;
+		String token=null;
 		try {
 			
 			Files.createDirectories(campaign.getDirectory().toPath(), PosixFilePermissions.asFileAttribute(permsRWX));
 			
 			
 			
-			Files.createFile(campaign.getDataBase().toPath(), PosixFilePermissions.asFileAttribute(permsRW));
-			
 			Files.createFile(campaign.getSignCtr().toPath(), PosixFilePermissions.asFileAttribute(permsRW));
 			
-			SymmetricEncryption.encryptFileSavingKey(campaign.getDataBase(), campaignName);
-			token = SymmetricEncryption.encryptUsingKey(campaignName.getBytes("UTF-8"),campaignName );
+			SymmetricEncryption.createKey(campaignName);
+			campaign.getSignatureStore();
+			token = SessionToken.issue(campaignName, campaignCred.getRegistrationId());
 
 		} catch (InvalidKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException
-				| NoSuchPaddingException | InvalidAlgorithmParameterException | IOException
-				| UnrecoverableEntryException | IllegalBlockSizeException | BadPaddingException e) {
+				| IOException | UnrecoverableEntryException e) {
 
 			e.printStackTrace();
 			try {
@@ -514,105 +564,39 @@ public class CampaignManagement implements ServletContextListener {
 			}
 		}
 		
-		// Si no existe significa que es la primera campaa por lo que habra que
-		// crearlo configurando
-		// un keystore donde se almacenaran las claves de encriptacion de este
-		// fichero y los siguientes
-		// Posteriormente se crea el fichero en sí usando la clave configurada
-		// en el keyStore
-		CipherOutputStream cos = null;
-		synchronized (lockCampaignsFile) {
-
-			if (!campaignsFile.exists()) {
-				try {
-
-					Files.createFile(campaignsFile.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
-					cos = SymmetricEncryption.encryptFileUsingKey(campaignsFile, masterKeyAlias);
-
-				} catch (NoSuchAlgorithmException | KeyStoreException | CertificateException | IOException
-						| InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
-						| UnrecoverableEntryException e) {
-					System.err.println("[" + new Date().toString() + "] Registro: camapaa " + campaignName
-							+ " Error creando la base datos de campaas");
-					e.printStackTrace();
-					try {
-						return Response.status(500)
-								.entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8")))
-								.build();
-					} catch (UnsupportedEncodingException e1) {
-
-					}
-
-				}
-			}
-			// Si el fichero ya existe lo abrimos para aadir esta campaa
-			else {
-				try {
-					cos = SymmetricEncryption.appendAES(campaignsFile, masterKeyAlias);
-				} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
-						| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
-						| NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | IOException e) {
-					System.err.println("[" + new Date().toString() + "] Registro: camapaa " + campaignName
-							+ " Error abriendo para escribir la base de datos campaas");
-					e.printStackTrace();
-					try {
-						return Response.status(500)
-								.entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8")))
-								.build();
-					} catch (UnsupportedEncodingException e1) {
-
-					}
-				}
-			}
-			
-			
-			
-			
-			
-			
+		// Se aade la campaa a la base de datos de campaas, que la crea si
+		// es la primera
+		try {
+			Repositories.getCampaignRepository().add(campaignCred);
 			
-			Writer wr = null;
+		} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
+				| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
+				| NoSuchPaddingException | IOException e) {
+			System.err.println("[" + new Date().toString() + "] Registro: camapaa " + campaignName
+					+ " Error escribiendo en la base de datos de campaas");
+			e.printStackTrace();
 			try {
-				wr = new OutputStreamWriter(cos);
-				gson.toJson(campaignCred, wr);
+				borrarArchivosCampaa(campaign);
+			} catch (IOException e1) {
+				
+				e1.printStackTrace();
+			}
+			try {
+				return Response.status(500).entity(Base64.getUrlEncoder().encode("No se ha podido guardar la campaa".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e1) {
 				
-			
-			} finally {
-				try{
-					if(wr != null) {
-						wr.flush();
-						wr.close();
-					}
-					if (cos!=null) {
-						cos.close();
-						cos =null;
-					}
-				} catch (IOException e){
-					try {
-						borrarArchivosCampaa(campaign);
-					} catch (IOException e1) {
-						
-						e1.printStackTrace();
-					}
-					try {
-						return Response.status(500).entity(Base64.getUrlEncoder().encode("No se ha podido guardar la campaa".getBytes("UTF-8"))).build();
-					} catch (UnsupportedEncodingException e1) {
-						
-					}
-				}
 			}
 		}
-		synchronized (lockCampaas) {
-			campaas.put(campaignName, campaign);
-		}
-		synchronized (lockTokens) {
-			activeTokens.add(new String(Base64.getUrlEncoder().encode(token)));
-		}
+		campaas.put(campaignName, campaign);
 		
 		System.out.println("["+new Date().toString()+"] Registro: camapaa "+campaignName+" registrada correctamente");
 		
 		
-		return Response.status(200).entity(Base64.getUrlEncoder().encode(token)).build();
+		try {
+			return Response.status(200).entity(token.getBytes("UTF-8")).build();
+		} catch (UnsupportedEncodingException e) {
+			return Response.status(500).build();
+		}
 		
 		
 	}
@@ -666,126 +650,91 @@ public class CampaignManagement implements ServletContextListener {
 	
 	/**
 	 * Recorre la base de datos de campaas 
-	 * {@link CampaignManagement#campaignsFile} rellenando la estructura
+	 * ({@link Repositories#getCampaignRepository()}) rellenando la estructura
 	 * {@link CampaignManagement#campaas} con su contenido
 	 */
 	private static void inicializaCampaas (){
 		
 		
-		CipherInputStream cis = null;
-		synchronized (lockCampaignsFile) {
-			if (!campaignsFile.exists()) {
-					return;
+		List<CampaignCredentials> credenciales;
+		try {
+			credenciales = Repositories.getCampaignRepository().findAll();
+		} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
+				| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
+				| NoSuchPaddingException | IOException e) {
+			System.err.println("["+new Date().toString()+"] inicializaCampaas: Error leyendo base de datos de campaas");
+			e.printStackTrace();
+			
+			return;
+		}
+		
+		if (credenciales.isEmpty()) {
+			return;
+		}
+		
+		System.out.println("["+new Date().toString()+"] inicializaCampaas: inicializando");
+		
+		try {
+			System.out.println("["+new Date().toString()+"] inicializaCampaas: Empezando a recorrer la base de datos");
+			Set<PosixFilePermission> permsRWX = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+			Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+			
+			for (CampaignCredentials c : credenciales) {
 				
-			}
-
-			else {
 				
-				System.out.println("["+new Date().toString()+"] inicializaCampaas: inicializando");
 				
+				Campaign campaign = new Campaign(c.getCampaignName(), c.getRegistrationId(), new File(WEBSERVICE_ABSOLUTE_ROUTE+ "/campanias/" + c.getCampaignName()));
+				
+				
+				
+				
+				if (!campaign.getDirectory().exists()) {
+					System.out.println("["+new Date().toString()+"] inicializaCampaas: Creando directorio: "+campaign.getDirectory().getAbsolutePath());
+					Files.createDirectories(campaign.getDirectory().toPath(), PosixFilePermissions.asFileAttribute(permsRWX));
+				}
 				
+				//La antigua base de datos de firmas (signatures.json) se
+				//importa a la SignatureStore de la campaa y se abre (o
+				//construye) su indice de DNI
 				try {
-					cis = SymmetricEncryption.decryptFileUsingKey(campaignsFile, masterKeyAlias);
-				} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
-						| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
-						| NoSuchPaddingException | IOException e) {
-					System.err.println("["+new Date().toString()+"] inicializaCampaas: error abriendo el fichero o este está vacío");
+					if (Repositories.BACKEND == Repositories.Backend.FILE) {
+						SignatureStore.importLegacy(campaign, campaign.getDataBase());
+					}
+					campaign.getSignatureStore();
+					campaign.getDniIndex();
+				} catch (InvalidKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException
+						| UnrecoverableEntryException | NoSuchPaddingException | InvalidAlgorithmParameterException
+						| JsonSyntaxException e) {
+					System.out.println("["+new Date().toString()+"] inicializaCampaas: Error importando fichero: "+campaign.getDataBase().getAbsolutePath());
 					e.printStackTrace();
-					
-					return;
-					
 				}
-			}
-			
-	
-			/**
-			 * @see https://sites.google.com/site/gson/streaming
-			 */
-			Gson gson = new Gson();
-			
-			CampaignCredentials c;
-			
-			JsonReader reader = null;
-			
-			
-			try {
-				reader= new JsonReader(new InputStreamReader(cis, "UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				System.err.println("["+new Date().toString()+"] inicializaCampaas: error abriendo el fichero o este está vacío");
-				e.printStackTrace();
-			
-				return;
-			
-			}
-	
-			reader.setLenient(true);
-			try {
-				System.out.println("["+new Date().toString()+"] inicializaCampaas: Empezando a recorrer la base de datos");
-				Set<PosixFilePermission> permsRWX = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
-				Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
 				
-				while(reader.hasNext()){
-					JsonToken tokenJson =  reader.peek();
-					if (!tokenJson.equals(JsonToken.BEGIN_OBJECT)) {
-						break;
-					}
-					c = gson.fromJson(reader, CampaignCredentials.class);
-					
-					
-					
-					Campaign campaign = new Campaign(c.getCampaignName(), new File(WEBSERVICE_ABSOLUTE_ROUTE+ "/campanias/" + c.getCampaignName()));
-					
-					
-					
-					
-					if (!campaign.getDirectory().exists()) {
-						System.out.println("["+new Date().toString()+"] inicializaCampaas: Creando directorio: "+campaign.getDirectory().getAbsolutePath());
-						Files.createDirectories(campaign.getDirectory().toPath(), PosixFilePermissions.asFileAttribute(permsRWX));
-					}
-					
-					if (!campaign.getDataBase().exists()) {
-						
-						
-						Files.createFile(campaign.getDataBase().toPath(), PosixFilePermissions.asFileAttribute(permsRW));
-						System.out.println("["+new Date().toString()+"] inicializaCampaas: Creando fichero: "+campaign.getDataBase().getAbsolutePath());
-						try {
-							SymmetricEncryption.encryptFileUsingKey(campaign.getDataBase(), campaign.getCampaignName());
-						} catch (InvalidKeyException | NoSuchAlgorithmException | KeyStoreException
-								| CertificateException | NoSuchPaddingException | InvalidAlgorithmParameterException
-								| UnrecoverableEntryException e) {
-							System.out.println("["+new Date().toString()+"] inicializaCampaas: Error creando fichero: "+campaign.getDataBase().getAbsolutePath());
-							e.printStackTrace();
-						}
-						
-					}
-					
-					
-					
-					if (!campaign.getSignCtr().exists()) {
+				
+				
+				//Temporales de subidas y de ordenaciones de firmas interrumpidas 
+				//por una parada del servidor
+				ImageStore.deleteTemporaries(campaign);
+				SignatureSorter.deleteTemporaries(campaign);
+				
+				if (!campaign.getSignCtr().exists()) {
 
-						Files.createFile(campaign.getSignCtr().toPath(), PosixFilePermissions.asFileAttribute(permsRW));
-						System.out.println("["+new Date().toString()+"] inicializaCampaas: Creando fichero: "+campaign.getSignCtr().getAbsolutePath());
-					}
-					
-					synchronized (lockCampaas) {
-						campaas.put(campaign.getCampaignName(), campaign);
-					}
+					Files.createFile(campaign.getSignCtr().toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+					System.out.println("["+new Date().toString()+"] inicializaCampaas: Creando fichero: "+campaign.getSignCtr().getAbsolutePath());
 				}
-			} catch (JsonIOException | JsonSyntaxException | IOException  e) {
-				System.err.println("["+new Date().toString()+"] inicializaCampaas: Error leyendo base de datos de campaas");
-				
-				e.printStackTrace();
-			
-				return ;
 				
-			} finally {
-				try {
-					if (reader!=null) {
-						reader.close();
-					}	
-				} catch (IOException e) {
+				if (SymmetricEncryption.DERIVED_KEYS) {
+					migrarClaveCampaa(campaign);
 				}
+				
+				campaas.put(campaign.getCampaignName(), campaign);
 			}
+		} catch (IOException  e) {
+			System.err.println("["+new Date().toString()+"] inicializaCampaas: Error creando los ficheros de las campaas");
+			
+			e.printStackTrace();
+		
+			return ;
+			
 		}
 		
 		System.out.println("["+new Date().toString()+"] inicializaCampaas: finalizado");
@@ -795,12 +744,103 @@ public class CampaignManagement implements ServletContextListener {
 			
 	}
 	
+	/**
+	 * Migra la clave de una campaa guardada en el keystore a una clave 
+	 * derivada mediante 
+	 * {@link SymmetricEncryption#migrateToDerivedKey(String, Collection)},
+	 * reencriptando las imagenes de los DNI. Su {@link SignatureStore} ya
+	 * tiene el formato por fragmentos, que guarda la versin de la clave, y no
+	 * necesita reencriptarse. Tambien completa una migracin que se hubiese interrumpido.
+	 * <p>
+	 * Se invoca desde {@link CampaignManagement#inicializaCampaas()} antes de
+	 * que la campaa este disponible, por lo que nadie mas accede a sus 
+	 * ficheros. Si falla la campaa sigue usando la clave del keystore. Los
+	 * tokens de sesion emitidos con la clave antigua dejan de ser validos.
+	 *
+	 * @param campaign la campaa
+	 */
+	private static void migrarClaveCampaa(Campaign campaign) {
+		
+		String campaignName = campaign.getCampaignName();
+		ArrayList<File> files = new ArrayList<>();
+		try {
+			
+			if (SymmetricEncryption.getKeyVersion(campaignName) != KeyMetadata.LEGACY_VERSION) {
+				
+				//Solo quedan por renombrar los temporales de una migracin
+				//interrumpida, si los hay
+				File[] pendientes = campaign.getDirectory().listFiles(
+						(dir, name) -> name.endsWith(SymmetricEncryption.MIGRATION_SUFFIX));
+				if (pendientes == null || pendientes.length == 0) {
+					return;
+				}
+				for (File pendiente : pendientes) {
+					String path = pendiente.getPath();
+					files.add(new File(path.substring(0, path.length() - SymmetricEncryption.MIGRATION_SUFFIX.length())));
+				}
+			}
+			else {
+				
+				files.addAll(getImagenesCampaa(campaign));
+			}
+			
+			if (SymmetricEncryption.migrateToDerivedKey(campaignName, files)) {
+				System.out.println("["+new Date().toString()+"] inicializaCampaas: clave de la campaa "+campaignName
+						+" migrada a clave derivada, "+files.size()+" ficheros reencriptados");
+			}
+			
+		} catch (InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException | NoSuchPaddingException | InvalidAlgorithmParameterException
+				| IOException e) {
+			System.err.println("["+new Date().toString()+"] inicializaCampaas: Error migrando la clave de la campaa "+campaignName);
+			e.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Obtiene los ficheros de las imagenes de los DNI de una campaa 
+	 * recorriendo su {@link SignatureRepository}.
+	 *
+	 * @param campaign la campaa
+	 * @return los ficheros de las imagenes, frontal y trasera de cada firma
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	static ArrayList<File> getImagenesCampaa(Campaign campaign) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		
+		ArrayList<File> files = new ArrayList<>();
+		SignatureRepository store = campaign.getSignatureStore();
+		SignatureRepository.Cursor cursor = store.scan(0, store.size());
+		try {
+			while (cursor.hasNext()) {
+				Firma f = cursor.next();
+				files.add(f.getDniFrontal());
+				files.add(f.getDniPosterior());
+			}
+		} finally {
+			cursor.close();
+		}
+		return files;
+	}
 	
 	/**
 	 * Recibe peticiones de login aceptando formularios de tipo 
 	 * application/x-www-form-urlencoded.
 	 * 
 	 * <p>
+	 * Las credenciales se buscan en el ndice en memoria de 
+	 * {@link CachedCampaignRepository}, por lo que solo se comprueba la 
+	 * contrasea, sin leer la base de datos de campaas ni tomar su lock. 
+	 * Esta se comprueba en {@link PasswordService}; si su cola est llena se 
+	 * contesta con un 503 y la cabecera Retry-After.
+	 * 
+	 * <p>
 	 * Todos sus parametros estan encodeados en Base64
 	 *
 	 * @param campaignName64 nombre de la campaa
@@ -822,122 +862,75 @@ public class CampaignManagement implements ServletContextListener {
 		
 		
 		
-		synchronized (lockCampaas) {
-			if (!campaas.containsKey(campaignName)) {
-				System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error no existe campaa con ese nombre");
-				try {
-					
-					return Response.status(400).entity(Base64.getUrlEncoder()
-							.encode("Error, no existe una cuenta con ese nombre".getBytes("UTF-8"))).build();
-				} catch (UnsupportedEncodingException e) {
-				}
+		if (!campaas.containsKey(campaignName)) {
+			System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error no existe campaa con ese nombre");
+			try {
+				
+				return Response.status(400).entity(Base64.getUrlEncoder()
+						.encode("Error, no existe una cuenta con ese nombre".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e) {
 			}
 		}
 		
-		CipherInputStream cis = null;
-		synchronized (lockCampaignsFile) {
-			if (!campaignsFile.exists()) {
-				System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error no existen campaas creadas");
-				try {
-					return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, no existen campaas creadas".getBytes("UTF-8"))).build();
-				} catch (UnsupportedEncodingException e) {}
-				
-				
-			}
-
-			else {
-				try {
-					cis = SymmetricEncryption.decryptFileUsingKey(campaignsFile, masterKeyAlias);
-				} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
-						| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
-						| NoSuchPaddingException | IOException e) {
-					System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error abriendo base de datos de campaas");
-					e.printStackTrace();
-					try {
-						return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
-					} catch (UnsupportedEncodingException e1) {}
-				}
-			}
-			
-	
-			/**
-			 * @see https://sites.google.com/site/gson/streaming
-			 */
-			Gson gson = new Gson();
-			
-			CampaignCredentials c;
-			
-			JsonReader reader = null;
-			
-			
+		CampaignCredentials c;
+		try {
+			c = Repositories.getCampaignRepository().find(campaignName);
+		} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
+				| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
+				| NoSuchPaddingException | IOException e) {
+			System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error leyendo base de datos de campaas");
+			e.printStackTrace();
 			try {
-				reader= new JsonReader(new InputStreamReader(cis, "UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error abriendo base de datos de campaas");
-				e.printStackTrace();
-				try {
-					return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
-				} catch (UnsupportedEncodingException e2) {}
-			}
-	
-			reader.setLenient(true);
+				return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e1) {return Response.status(500).build();}
+		}
+		
+		if (c == null) {
+			System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": no se ha encontrado la campaa buscada en la base de datos");
 			try {
-				System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": Empezando a recorrer campaigns.json");
-				while(reader.hasNext()){
-					JsonToken tokenJson =  reader.peek();
-					if (!tokenJson.equals(JsonToken.BEGIN_OBJECT)) {
-						break;
-					}
-					c = gson.fromJson(reader, CampaignCredentials.class);
-					
-					
-					
-					if (c.getCampaignName().equals(campaignName)) {
-						if(PasswordStorage.verifyPassword(password, c.getHashPass())){
-							byte[] token=null;
-							token = SymmetricEncryption.encryptUsingKey(campaignName.getBytes("UTF-8"),campaignName );
-							
-							synchronized (lockTokens) {
-								activeTokens.add(new String(Base64.getUrlEncoder().encode(token)));
-							}
-							System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": Login correcto");
-							
-							return Response.status(200).entity(Base64.getUrlEncoder().encode(token)).build();
-						}
-						else{
-							System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": Login incorrecto");
-							try {
-								
-								return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, contrasea incorrecta".getBytes("UTF-8"))).build();
-							} catch (UnsupportedEncodingException e) {}
-							
-						}
-						
-					}
-				}
-			} catch (JsonIOException | JsonSyntaxException | InvalidKeyException | NoSuchAlgorithmException
-					| KeyStoreException | CertificateException | NoSuchPaddingException | InvalidAlgorithmParameterException
-					| UnrecoverableEntryException | IllegalBlockSizeException | BadPaddingException | IOException
-					| CannotPerformOperationException | InvalidHashException e) {
-				System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error leyendo base de datos de campaas");
-				e.printStackTrace();
-				try {
-					return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
-				} catch (UnsupportedEncodingException e2) {}
-			} finally {
-				try {
-					if (reader!=null) {
-						reader.close();
-					}	
-				} catch (IOException e) {
-				}
+				return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, no existe una campaa con ese nombre".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e) {return Response.status(500).build();}
+		}
+		
+		//La contrasea se comprueba en el executor acotado de PasswordService,
+		//si su cola esta llena se contesta inmediatamente con un 503
+		boolean correcta;
+		try {
+			correcta = PasswordService.verifyPassword(password, c.getHashPass()).get();
+		} catch (InterruptedException | ExecutionException e) {
+			if (PasswordService.isRejected(e)) {
+				System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error servidor ocupado comprobando contraseas");
+				return servidorOcupado();
 			}
+			System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error comprobando la contrasea");
+			e.printStackTrace();
+			try {
+				return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e2) {return Response.status(500).build();}
 		}
 		
-		System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": se ha recorrido toda la base de datos sin encontrar la campaa buscada");
 		try {
-			return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, no existe una campaa con ese nombre".getBytes("UTF-8"))).build();
-		} catch (UnsupportedEncodingException e) {return Response.status(500).build();}
+			if(correcta){
+				String token = SessionToken.issue(campaignName, c.getRegistrationId());
+				
+				System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": Login correcto");
+				recalculaHash(c, password);
+				
+				return Response.status(200).entity(token.getBytes("UTF-8")).build();
+			}
+			else{
+				System.out.println("["+new Date().toString()+"] login campaa "+campaignName+": Login incorrecto");
+				
+				return Response.status(400).entity(Base64.getUrlEncoder().encode("Error, contrasea incorrecta".getBytes("UTF-8"))).build();
+			}
+		} catch (InvalidKeyException | NoSuchAlgorithmException
+				| KeyStoreException | CertificateException | UnrecoverableEntryException | IOException e) {
+			System.err.println("["+new Date().toString()+"] login campaa "+campaignName+": Error generando el token");
+			e.printStackTrace();
+			try {
+				return Response.status(500).entity(Base64.getUrlEncoder().encode("Error interno del servidor".getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e2) {return Response.status(500).build();}
+		}
 			
 	}
 	
@@ -955,103 +948,120 @@ public class CampaignManagement implements ServletContextListener {
 	public static int loginInterno (String campaignName,String password) {
 
 		
-		synchronized (lockCampaas) {
-			if (!campaas.containsKey(campaignName)) {
-				System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": no existe campaa con ese nombre");
+		if (!campaas.containsKey(campaignName)) {
+			System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": no existe campaa con ese nombre");
+		
+			return LOGIN_NO_EXISTE_CAMPAA;
 			
-				return LOGIN_NO_EXISTE_CAMPAA;
-				
-			}
 		}
 		
-		CipherInputStream cis = null;
-		synchronized (lockCampaignsFile) {
-			if (!campaignsFile.exists()) {
-				System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": no existen campaas");
-				return LOGIN_NO_EXISTE_CAMPAA;
+		CampaignCredentials c;
+		try {
+			c = Repositories.getCampaignRepository().find(campaignName);
+		} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
+				| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
+				| NoSuchPaddingException | IOException e) {
+			System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error leyendo base de datos de campaas");
+			e.printStackTrace();
+			return LOGIN_ERROR_INTERNO;
+		}
+		
+		if (c == null) {
+			System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": no se ha encontrado la campaa buscada en la base de datos");
+			
+			return LOGIN_NO_EXISTE_CAMPAA;
+		}
 		
+		try {
+			if(PasswordService.verifyPassword(password, c.getHashPass()).get()){
+				
+				System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Login correcto");
+				recalculaHash(c, password);
+				
+				return LOGIN_EXITO;
 			}
-
-			else {
-				try {
-					cis = SymmetricEncryption.decryptFileUsingKey(campaignsFile, masterKeyAlias);
-				} catch (InvalidKeyException | IllegalArgumentException | KeyStoreException | NoSuchAlgorithmException
-						| CertificateException | UnrecoverableEntryException | InvalidAlgorithmParameterException
-						| NoSuchPaddingException | IOException e) {
-					System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error abriendo la base de datos de campaas");
-					e.printStackTrace();
-					return LOGIN_ERROR_INTERNO;
-				}
+			else{
+				
+				System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Login incorrecto");
+				
+				return LOGIN_INCORRECTO;
 			}
+		} catch (InterruptedException | ExecutionException e) {
 			
-	
-			/**
-			 * @see https://sites.google.com/site/gson/streaming
-			 */
-			Gson gson = new Gson();
-			
-			CampaignCredentials c;
-			
-			JsonReader reader = null;
-			
-			
-			try {
-				reader= new JsonReader(new InputStreamReader(cis, "UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error abriendo la base de datos de campaas");
-				e.printStackTrace();
-				return LOGIN_ERROR_INTERNO;
+			if (PasswordService.isRejected(e)) {
+				System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error servidor ocupado comprobando contraseas");
+				return LOGIN_OCUPADO;
 			}
+			System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error comprobando la contrasea");
+			return LOGIN_ERROR_INTERNO;
+		}
+			
+	}
 	
-			reader.setLenient(true);
-			try {
-				System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Empezando a recorrer campaigns.json");
-				while(reader.hasNext()){
-					JsonToken tokenJson =  reader.peek();
-					if (!tokenJson.equals(JsonToken.BEGIN_OBJECT)) {
-						break;
+	/**
+	 * Tras un login correcto, si el hash de la contrasea de la campaa no 
+	 * tiene las iteraciones calibradas al arrancar lo recalcula en 
+	 * {@link PasswordService} y sustituye sus credenciales en la base de 
+	 * datos de campaas, sin que el login espere. Solo se sustituyen si 
+	 * siguen siendo las del login, por si mientras tanto la campaa se ha 
+	 * borrado y registrado de nuevo. Si la cola est llena o falla se 
+	 * volver a intentar en el siguiente login.
+	 *
+	 * @param c las credenciales con las que se ha hecho login
+	 * @param password la contrasea ya verificada
+	 */
+	private static void recalculaHash(final CampaignCredentials c, String password) {
+		
+		if (!PasswordService.needsRehash(c.getHashPass()) || !rehashesEnCurso.add(c.getCampaignName())) {
+			return;
+		}
+		
+		PasswordService.createHash(password).whenComplete(new BiConsumer<String, Throwable>() {
+
+			@Override
+			public void accept(String hashPass, Throwable t) {
+				
+				String campaignName = c.getCampaignName();
+				try {
+					if (t != null) {
+						System.err.println("["+new Date().toString()+"] recalculaHash campaa "+campaignName+": Error recalculando el hash, se reintentara en el siguiente login");
+						return;
 					}
-					c = gson.fromJson(reader, CampaignCredentials.class);
-					
-					
-					
-					if (c.getCampaignName().equals(campaignName)) {
-						if(PasswordStorage.verifyPassword(password, c.getHashPass())){
-							
-							System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Login correcto");
-							
-							return LOGIN_EXITO;
-						}
-						else{
-							
-							System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Login incorrecto");
-							
-							return LOGIN_INCORRECTO;
-							
-							
-						}
-						
+					CampaignCredentials nuevas = new CampaignCredentials(campaignName, hashPass, c.getDeleteDate(),
+							c.getRegistrationId());
+					if (Repositories.getCampaignRepository().update(c, nuevas)) {
+						System.out.println("["+new Date().toString()+"] recalculaHash campaa "+campaignName+": hash recalculado con "+PasswordStorage.getIterations()+" iteraciones");
 					}
-				}
-			} catch (JsonIOException | JsonSyntaxException | IOException
-					| CannotPerformOperationException | InvalidHashException e) {
-			
-				System.err.println("["+new Date().toString()+"] login interno campaa "+campaignName+": Error leyendo base de datos de campaas");
-				return LOGIN_ERROR_INTERNO;
-			} finally {
-				try {
-					if (reader!=null) {
-						reader.close();
-					}	
-				} catch (IOException e) {
+					else {
+						System.out.println("["+new Date().toString()+"] recalculaHash campaa "+campaignName+": credenciales cambiadas o base de datos de campaas modificada, se reintentara en el siguiente login");
+					}
+				} catch (InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+						| UnrecoverableEntryException | NoSuchPaddingException | InvalidAlgorithmParameterException
+						| IOException e) {
+					System.err.println("["+new Date().toString()+"] recalculaHash campaa "+campaignName+": Error actualizando la base de datos de campaas");
+					e.printStackTrace();
+				} finally {
+					rehashesEnCurso.remove(campaignName);
 				}
 			}
-		}
-		
-		System.out.println("["+new Date().toString()+"] login interno campaa "+campaignName+": se ha recorrido toda la base de datos sin encontrar la campaa buscada");
+		});
+	}
+	
+	/**
+	 * Respuesta 503 que se enva cuando la cola de {@link PasswordService} 
+	 * est llena, con la cabecera Retry-After para que el cliente reintente 
+	 * pasados {@link PasswordService#RETRY_AFTER_SECONDS} segundos.
+	 *
+	 * @return the response
+	 */
+	private static Response servidorOcupado() {
 		
-		return LOGIN_NO_EXISTE_CAMPAA;
-			
+		try {
+			return Response.status(503).header("Retry-After", PasswordService.RETRY_AFTER_SECONDS)
+					.entity(Base64.getUrlEncoder().encode("Servidor ocupado, vuelva a intentarlo ms tarde".getBytes("UTF-8"))).build();
+		} catch (UnsupportedEncodingException e) {
+			return Response.status(503).header("Retry-After", PasswordService.RETRY_AFTER_SECONDS).build();
+		}
 	}
 	
 	/**
@@ -1070,22 +1080,43 @@ public class CampaignManagement implements ServletContextListener {
 		
 		System.out.println("["+new Date().toString()+"] authenticateToken token: "+token);
 		
-		boolean contains = false;
-		synchronized (lockTokens) {
-			contains = activeTokens.contains(token);
-		}	
+		//Los tokens firmados se verifican sin estado, solo los antiguos
+		//pasan por TokenCache y el desencriptado
+		String campaignName = new String(Base64.getUrlDecoder().decode(campaignName64));
+		if (SessionToken.isSessionToken(token)) {
+			int status = compruebaSessionToken(token, campaignName);
+			String mensaje;
+			switch (status) {
+			case 200:
+				mensaje = "Token valido";
+				break;
+			case 404:
+				mensaje = "Token invalido, no existe una campaa con dicho token";
+				break;
+			case 401:
+				status = 404;
+				mensaje = "Token invalido, no coincide con la campaa enviada";
+				break;
+			default:
+				mensaje = "Error interno del servidor";
+			}
+			try {
+				return Response.status(status).entity(Base64.getUrlEncoder().encode(mensaje.getBytes("UTF-8"))).build();
+			} catch (UnsupportedEncodingException e) {}
+		}
+		
+		boolean contains = TokenCache.contains(token, campaignName);
 		
-		//Si el token esta en el set de tokens activos contestamos afirmativamente
+		//Si el token ya se ha comprobado para esa campaa contestamos afirmativamente
 		if (contains) {
-			System.out.println("["+new Date().toString()+"] authenticateToken: Token en activeTokens");
+			System.out.println("["+new Date().toString()+"] authenticateToken: Token en TokenCache");
 			try {
 				return Response.status(200).entity(Base64.getUrlEncoder().encode("Token valido".getBytes("UTF-8"))).build();
 			} catch (UnsupportedEncodingException e) {}
 		}
 		//Si no pasamos a desencriptar el token
 		else{
-			System.out.println("["+new Date().toString()+"] authenticateToken: Token NO en activeTokens");
-			String campaignName = new String(Base64.getUrlDecoder().decode(campaignName64));
+			System.out.println("["+new Date().toString()+"] authenticateToken: Token NO en TokenCache");
 			byte [] tokenDecrypted = null;
 			try {
 				tokenDecrypted = SymmetricEncryption.decryptUsingKey(Base64.getUrlDecoder().decode(token), campaignName);
@@ -1114,16 +1145,11 @@ public class CampaignManagement implements ServletContextListener {
 			System.out.println("["+new Date().toString()+"] authenticateToken: Campaa: "+campaignName+ " token desencriptado: "+campaignToken);
 			if (campaignToken.equals(campaignName)) {
 				
-				contains = false;
-				synchronized (lockCampaas) {
-					contains = campaas.containsKey(campaignToken);
-				}
+				contains = campaas.containsKey(campaignToken);
 				
 				if(contains){
 				
-					synchronized (lockTokens) {
-						activeTokens.add(token);
-					}
+					TokenCache.put(token, campaignToken);
 					
 					System.out.println("["+new Date().toString()+"] authenticateToken: token aadido a activos");
 					try {
@@ -1166,26 +1192,28 @@ public class CampaignManagement implements ServletContextListener {
 	
 	public static boolean compruebaTokenInterno (String token, String campaignName) {
 		
-		boolean contains = false;
 		System.out.println("["+new Date().toString()+"] authenticateToken interno token: "+token);
-		synchronized (lockTokens) {
-			contains = activeTokens.contains(token);
-		}	
 		
-		//Si el token esta en el set de tokens activos devolvemos true
+		if (SessionToken.isSessionToken(token)) {
+			return compruebaSessionToken(token, campaignName) == 200;
+		}
+		
+		boolean contains = TokenCache.contains(token, campaignName);
+		
+		//Si el token ya se ha comprobado para esa campaa devolvemos true
 		if (contains) {
-			System.out.println("["+new Date().toString()+"] authenticateToken interno: Token en activeTokens");
+			System.out.println("["+new Date().toString()+"] authenticateToken interno: Token en TokenCache");
 			return true;
 		}
 		//Si no pasamos a desencriptar el token
 		else{
-			System.out.println("["+new Date().toString()+"] authenticateToken interno: Token NO en activeTokens");
+			System.out.println("["+new Date().toString()+"] authenticateToken interno: Token NO en TokenCache");
 			byte [] tokenDecrypted = null;
 			try {
 				tokenDecrypted = SymmetricEncryption.decryptUsingKey(Base64.getUrlDecoder().decode(token), campaignName);
 			} catch (InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
 					| UnrecoverableEntryException | NoSuchPaddingException | InvalidAlgorithmParameterException
-					| IllegalBlockSizeException | BadPaddingException | IOException e) {
+					| IllegalBlockSizeException | BadPaddingException | IllegalArgumentException | IOException e) {
 				System.err.println("["+new Date().toString()+"] authenticateToken interno: Error desencriptando token");
 				e.printStackTrace();
 				return false;
@@ -1206,16 +1234,11 @@ public class CampaignManagement implements ServletContextListener {
 			System.out.println("["+new Date().toString()+"] authenticateToken interno: Campaa: "+campaignName+ " token desencriptado: "+campaignToken);
 			if (campaignToken.equals(campaignName)) {
 				
-				contains = false;
-				synchronized (lockCampaas) {
-					contains = campaas.containsKey(campaignToken);
-				}
+				contains = campaas.containsKey(campaignToken);
 				
 				if(contains){
 				
-					synchronized (lockTokens) {
-						activeTokens.add(token);
-					}
+					TokenCache.put(token, campaignToken);
 					
 					System.out.println("["+new Date().toString()+"] authenticateToken interno: token aadido a activos");
 					return true;
@@ -1236,6 +1259,205 @@ public class CampaignManagement implements ServletContextListener {
 		}
 	}
 
+	/**
+	 * Recibe peticiones GET para listar una pgina de las firmas de una
+	 * campaa, sin las imagenes, leyndolas directamente de su
+	 * {@link SignatureStore}.
+	 * <p>
+	 * El token se enva solo en la cabecera "Authorization: Bearer
+	 * &lt;token&gt;", nunca en la URL, para que no quede en los logs de acceso
+	 * ni de los proxies. El cursor es opaco: se obtiene en el
+	 * campo "next_cursor" de la pgina anterior y sin l se empieza por la
+	 * primera firma. Como las firmas solo se aaden al final, un cursor sigue
+	 * siendo vlido aunque lleguen firmas nuevas, y leer una pgina cuesta lo
+	 * mismo sea cual sea el tamao de la campaa. La respuesta es un JSON
+	 * con las firmas de la pgina en "signatures" y "next_cursor", null si
+	 * no quedan ms.
+	 *
+	 * @param campaignName64 nombre de la campaa en base 64
+	 * @param authorization la cabecera Authorization
+	 * @param cursor el cursor de la pgina, o null para la primera
+	 * @param limit el nmero mximo de firmas, 50 por defecto; los mayores
+	 *            que {@link CampaignManagement#MAX_PAGE_SIZE} se reducen a
+	 *            este y los menores que 1 se rechazan con un 400
+	 * @return response con la pgina de firmas, si todo ha ido bien, o con
+	 *         determinado codigo y mensaje de error en caso contrario
+	 */
+	@GET
+	@Path("/{campaign}/signatures")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response listSignatures(@PathParam("campaign") String campaignName64,
+			@HeaderParam("Authorization") String authorization,
+			@QueryParam("cursor") String cursor, @QueryParam("limit") @DefaultValue("50") int limit) {
+		
+		String campaignName = new String(Base64.getUrlDecoder().decode(campaignName64));
+		String token = null;
+		if (authorization != null && authorization.startsWith(BEARER)) {
+			token = authorization.substring(BEARER.length()).trim();
+		}
+		if (token == null || !compruebaTokenInterno(token, campaignName)) {
+			System.err.println("["+new Date().toString()+"] listSignatures "+campaignName+": Error con la sesion, token invalido.");
+			return Response.status(401).entity(Base64.getUrlEncoder().encodeToString(
+					"Error con su sesion, inicie sesion otra vez por favor.".getBytes(StandardCharsets.UTF_8))).build();
+		}
+		
+		final long from;
+		try {
+			from = decodeCursor(cursor);
+		} catch (IllegalArgumentException e) {
+			System.err.println("["+new Date().toString()+"] listSignatures "+campaignName+": Cursor invalido "+cursor);
+			return Response.status(400).entity(Base64.getUrlEncoder().encodeToString(
+					"Cursor invalido".getBytes(StandardCharsets.UTF_8))).build();
+		}
+		if (limit < 1) {
+			System.err.println("["+new Date().toString()+"] listSignatures "+campaignName+": Limite invalido "+limit);
+			return Response.status(400).entity(Base64.getUrlEncoder().encodeToString(
+					"Limite invalido, ha de ser mayor que 0".getBytes(StandardCharsets.UTF_8))).build();
+		}
+		if (limit > MAX_PAGE_SIZE) {
+			limit = MAX_PAGE_SIZE;
+		}
+		
+		Campaign campaign = getCampaa(campaignName);
+		if (campaign == null) {
+			return Response.status(404).entity(Base64.getUrlEncoder().encodeToString(
+					"No existe la campania".getBytes(StandardCharsets.UTF_8))).build();
+		}
+		
+		final SignatureRepository.Cursor firmas;
+		final long to, total;
+		try {
+			SignatureRepository store = campaign.getSignatureStore();
+			total = store.size();
+			to = Math.min(total, Math.max(from, from + limit));
+			firmas = store.scan(Math.min(from, to), to);
+		} catch (IOException e) {
+			System.err.println("["+new Date().toString()+"] listSignatures "+campaignName+": Error abriendo las firmas");
+			e.printStackTrace();
+			return Response.status(500).entity(Base64.getUrlEncoder().encodeToString(
+					"Error interno del servidor".getBytes(StandardCharsets.UTF_8))).build();
+		}
+		
+		//La pgina se escribe mientras se lee, sin cargarla entera
+		StreamingOutput page = new StreamingOutput() {
+			
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				
+				JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+				try {
+					writer.beginObject();
+					writer.name("signatures").beginArray();
+					while (firmas.hasNext()) {
+						long sequence = firmas.getPosition();
+						Firma f = firmas.next();
+						writer.beginObject();
+						writer.name("sequence").value(sequence);
+						writer.name("nombre").value(f.getNombre());
+						writer.name("apellidos").value(f.getApellidos());
+						writer.name("numDni").value(f.getNumDni());
+						writer.name("fecha").value(f.getFecha());
+						writer.name("numHojaFirmas").value(f.getNumHojaFirmas());
+						writer.name("numHojaDNIs").value(f.getNumHojaDNIs());
+						writer.endObject();
+					}
+					writer.endArray();
+					writer.name("next_cursor").value(to < total ? encodeCursor(to) : null);
+					writer.endObject();
+					writer.flush();
+				} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException
+						| UnrecoverableEntryException | IOException e) {
+					System.err.println("["+new Date().toString()+"] listSignatures "+campaignName+": Error leyendo las firmas");
+					e.printStackTrace();
+					throw new WebApplicationException("Error leyendo las firmas");
+				} finally {
+					firmas.close();
+					writer.close();
+				}
+			}
+		};
+		System.out.println("["+new Date().toString()+"] listSignatures "+campaignName+": firmas "+from+" a "+to);
+		return Response.ok(page).build();
+	}
+
+	/**
+	 * Codifica un cursor de {@link CampaignManagement#listSignatures}.
+	 *
+	 * @param sequence el nmero de secuencia de la siguiente firma
+	 * @return el cursor
+	 */
+	private static String encodeCursor(long sequence) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Longs.toByteArray(sequence));
+	}
+
+	/**
+	 * Decodifica un cursor de {@link CampaignManagement#listSignatures}.
+	 *
+	 * @param cursor el cursor, o null o vaco para la primera firma
+	 * @return el nmero de secuencia de la siguiente firma
+	 * @throws IllegalArgumentException si el cursor no es vlido
+	 */
+	private static long decodeCursor(String cursor) {
+		
+		if (cursor == null || cursor.isEmpty()) {
+			return 0;
+		}
+		byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+		if (bytes.length != Long.BYTES) {
+			throw new IllegalArgumentException("Longitud de cursor no valida");
+		}
+		long sequence = Longs.fromByteArray(bytes);
+		if (sequence < 0) {
+			throw new IllegalArgumentException("Cursor negativo");
+		}
+		return sequence;
+	}
+
+	/**
+	 * Comprueba un token de sesin firmado con {@link SessionToken}: que la
+	 * firma sea vlida y no haya caducado, que sea de la campaa indicada,
+	 * que la campaa exista y que el token se emitiera para este registro de
+	 * la campaa, comparando su registration id con el de
+	 * {@link Campaign#getRegistrationId()}. As los tokens de una campaa
+	 * borrada no valen para otra registrada despus con el mismo nombre.
+	 *
+	 * @param token token a comprobar
+	 * @param campaignName nombre de la campaa
+	 * @return 200 si es valido, 401 si no es valido, no coincide con la
+	 *         campaa o es de un registro anterior de la campaa, 404 si la
+	 *         campaa no existe y 500 si hay un error
+	 */
+	private static int compruebaSessionToken(String token, String campaignName) {
+		
+		SessionToken.Claims claims = null;
+		try {
+			claims = SessionToken.verify(token);
+		} catch (InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException | IOException e) {
+			System.err.println("["+new Date().toString()+"] authenticateToken: Error verificando token");
+			e.printStackTrace();
+			return 500;
+		}
+		
+		if (claims == null || !claims.getCampaignName().equals(campaignName)) {
+			System.out.println("["+new Date().toString()+"] authenticateToken: Token no valido, caducado o de otra campaa");
+			return 401;
+		}
+		
+		Campaign campaign = campaas.get(campaignName);
+		if (campaign == null) {
+			System.out.println("["+new Date().toString()+"] authenticateToken: No existe campaa con ese token");
+			return 404;
+		}
+		
+		if (!MessageDigest.isEqual(claims.getRegistrationId().getBytes(StandardCharsets.UTF_8),
+				campaign.getRegistrationId().getBytes(StandardCharsets.UTF_8))) {
+			System.out.println("["+new Date().toString()+"] authenticateToken: Token de un registro anterior de la campaa");
+			return 401;
+		}
+		return 200;
+	}
+
 	/**
 	 * Método invocado al parar el servidor Tomcat, se encarga de parar todos
 	 * los hilos creados, los encargados de generar PDFs y el de mantenimiento
@@ -1245,6 +1467,12 @@ public class CampaignManagement implements ServletContextListener {
 	public void contextDestroyed(ServletContextEvent arg0) {
 		
 		taskExecutor.stop();
+		KeyRotationService.shutdown();
+		SignatureCommitQueue.shutdown();
+		SignatureCounter.shutdown();
+		Repositories.shutdown();
+		CryptoService.shutdown();
+		PasswordService.shutdown();
 		System.out.println(SEPARADOR);
 		System.out.println("["+new Date().toString()+"] Contexto destruido: hilos parados");
 		System.out.println(SEPARADOR);
@@ -0,0 +1,154 @@
+/*
+ * Archivo: CampaignRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.List;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Interfaz CampaignRepository, la base de datos de campañas con las
+ * {@link CampaignCredentials} de cada una.
+ * <p>
+ * Implementaciones:
+ * <ul>
+ * <li>{@link FileCampaignRepository}: el fichero encriptado "campaigns.json"
+ * al que se añaden las campañas</li>
+ * <li>{@link JdbcCampaignRepository}: una tabla de una base de datos embebida
+ * con las credenciales encriptadas</li>
+ * </ul>
+ * {@link Repositories} elige cuál se usa.
+ */
+public interface CampaignRepository {
+
+	/**
+	 * Añade las credenciales de una campaña nueva.
+	 *
+	 * @param credentials las credenciales
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	void add(CampaignCredentials credentials) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException;
+
+	/**
+	 * Busca las credenciales de una campaña.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @return las credenciales, o null si no existe
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	CampaignCredentials find(String campaignName) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException;
+
+	/**
+	 * Obtiene las credenciales de todas las campañas.
+	 *
+	 * @return las credenciales
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	List<CampaignCredentials> findAll() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException;
+
+	/**
+	 * Sustituye las credenciales de una campaña existente, por ejemplo al
+	 * recalcular el hash de su contraseña, solo si las guardadas siguen
+	 * siendo las esperadas según {@link CampaignCredentials#matches}. Así no
+	 * se pisan las de una campaña que se ha vuelto a registrar con el mismo
+	 * nombre ni las que ha cambiado otro hilo.
+	 *
+	 * @param expected las credenciales que se leyeron
+	 * @param credentials las credenciales nuevas
+	 * @return true, si se han sustituido; false, si la campaña no existe, sus
+	 *         credenciales ya no son las esperadas o la base de datos ha
+	 *         cambiado mientras tanto y se ha de volver a intentar
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	boolean update(CampaignCredentials expected, CampaignCredentials credentials) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException;
+
+	/**
+	 * Conserva solo las campañas que acepta un filtro y borra el resto.
+	 *
+	 * @param filter el filtro
+	 * @return true, si se han borrado; false, si la base de datos ha cambiado
+	 *         mientras tanto y se ha de volver a intentar
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	boolean retain(Filter filter) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException;
+
+	/**
+	 * Interfaz Filter, decide qué campañas se conservan en
+	 * {@link CampaignRepository#retain(Filter)}.
+	 */
+	interface Filter {
+
+		/**
+		 * Decide si se conserva una campaña.
+		 *
+		 * @param credentials las credenciales de la campaña
+		 * @return true, si se conserva
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		boolean accept(CampaignCredentials credentials) throws IOException;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Archivo: DniIndex.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import es.usal.tfg.imageProcessing.Firma;
+import es.usal.tfg.security.SegmentedSortedSet;
+
+/**
+ * Clase DniIndex, índice de los números de DNI que ya han firmado una
+ * campaña, para rechazar una firma repetida en cuanto se conoce su número de
+ * DNI, antes de hacer el OCR de la cara posterior y de guardar nada.
+ * <p>
+ * Los DNI se reparten en:
+ * <ul>
+ * <li>un {@link SegmentedSortedSet} encriptado en el fichero
+ * {@link DniIndex#FILE} de la campaña, con los DNI de las firmas anteriores a
+ * su punto de control</li>
+ * <li>los DNI de las firmas añadidas despues, en memoria, que se mezclan con
+ * el fichero al llegar a {@link DniIndex#MERGE_THRESHOLD}</li>
+ * <li>los DNI reservados por subidas que aún no han terminado</li>
+ * </ul>
+ * y un {@link BloomFilter} en memoria con los dos primeros evita leer el
+ * fichero para casi todos los DNI que no están. El fichero no tiene log
+ * propio: el punto de control es el número de firmas que incluye, y al abrir
+ * el índice se añaden las firmas posteriores leyéndolas de la
+ * {@link SignatureRepository}. Si falta el fichero se construye con todas.
+ * <p>
+ * Para que dos subidas simultáneas del mismo DNI no pasen las dos, la
+ * comprobación y la reserva son una única operación
+ * ({@link DniIndex#reserve(String)}), y la reserva se confirma con
+ * {@link DniIndex#commit(String, long)} al guardar la firma o se libera con
+ * {@link DniIndex#release(String)} si la subida falla.
+ */
+public class DniIndex {
+
+	/** The Constant FILE, nombre del fichero del índice en la campaña. */
+	public static final String FILE = "dni.idx";
+
+	/**
+	 * The Constant MERGE_THRESHOLD, número de DNI en memoria a partir del
+	 * cual se mezclan con el fichero. Se puede cambiar con la propiedad del
+	 * sistema "es.usal.tfg.dniMergeThreshold".
+	 */
+	public static final int MERGE_THRESHOLD = Integer.getInteger("es.usal.tfg.dniMergeThreshold", 1024);
+
+	/** Longitud de un número de DNI. */
+	private static final int DNI_LENGTH = 9;
+
+	/** Probabilidad de falso positivo del filtro. */
+	private static final double FPP = 0.001;
+
+	/** Capacidad mínima del filtro. */
+	private static final int MIN_CAPACITY = 4096;
+
+	/** Nombre de la campaña. */
+	private final String campaignName;
+
+	/** El conjunto del fichero. */
+	private final SegmentedSortedSet set;
+
+	/** DNI de las firmas posteriores al punto de control del fichero. */
+	private final TreeSet<String> recientes = new TreeSet<>();
+
+	/** DNI reservados por subidas en curso. */
+	private final HashSet<String> reservados = new HashSet<>();
+
+	/** El filtro con los DNI del fichero y los recientes. */
+	private BloomFilter<CharSequence> filtro;
+
+	/** Número de DNI para el que se dimensionó el filtro. */
+	private int capacidad;
+
+	/** Número de firmas incluidas en el fichero y en los recientes. */
+	private long firmas;
+
+	/**
+	 * Instantiates a new dni index.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @param set el conjunto del fichero
+	 */
+	private DniIndex(String campaignName, SegmentedSortedSet set) {
+		this.campaignName = campaignName;
+		this.set = set;
+	}
+
+	/**
+	 * Abre el índice de una campaña, añadiendo las firmas de su
+	 * {@link SignatureRepository} posteriores al punto de control del fichero.
+	 *
+	 * @param campaign la campaña
+	 * @return el índice
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	static DniIndex open(Campaign campaign) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		File file = new File(campaign.getDirectory(), FILE);
+		DniIndex index = new DniIndex(campaign.getCampaignName(),
+				SegmentedSortedSet.open(file, campaign.getCampaignName(), DNI_LENGTH));
+
+		synchronized (index) {
+			SignatureRepository store = campaign.getSignatureStore();
+			index.firmas = index.set.getCheckpoint();
+			SignatureRepository.Cursor cursor = store.scan(index.firmas, store.size());
+			try {
+				while (cursor.hasNext()) {
+					Firma f = cursor.next();
+					if (isValido(f.getNumDni())) {
+						index.recientes.add(f.getNumDni());
+					}
+					index.firmas++;
+				}
+			} finally {
+				cursor.close();
+			}
+			index.creaFiltro();
+			if (index.recientes.size() >= MERGE_THRESHOLD || !file.exists()) {
+				index.merge();
+			}
+		}
+		System.out.println("[" + new Date().toString() + "] DniIndex " + campaign.getCampaignName() + ": "
+				+ index.size() + " DNI de " + index.firmas + " firmas");
+		return index;
+	}
+
+	/**
+	 * Comprueba si un DNI ya ha firmado o está firmando la campaña y, si no,
+	 * lo reserva. La reserva se ha de confirmar con
+	 * {@link DniIndex#commit(String, long)} o liberar con
+	 * {@link DniIndex#release(String)}.
+	 *
+	 * @param numDni el número de DNI
+	 * @return true, si se ha reservado; false, si está repetido
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public synchronized boolean reserve(String numDni) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		if (reservados.contains(numDni) || recientes.contains(numDni)) {
+			return false;
+		}
+		if (filtro.mightContain(numDni) && set.contains(numDni.getBytes(StandardCharsets.US_ASCII))) {
+			return false;
+		}
+		reservados.add(numDni);
+		return true;
+	}
+
+	/**
+	 * Libera la reserva de un DNI cuya subida ha fallado.
+	 *
+	 * @param numDni el número de DNI
+	 */
+	public synchronized void release(String numDni) {
+		reservados.remove(numDni);
+	}
+
+	/**
+	 * Confirma la reserva de un DNI cuya firma se ha guardado. Se ha de llamar
+	 * en el orden de las firmas, con el lock de la base de datos de la
+	 * campaña, para que el punto de control no deje ninguna atrás. Si toca
+	 * mezclar con el fichero y falla, los DNI siguen en memoria y se vuelve a
+	 * intentar en la siguiente firma.
+	 *
+	 * @param numDni el número de DNI
+	 * @param sequence el número de secuencia de la firma
+	 */
+	public synchronized void commit(String numDni, long sequence) {
+
+		reservados.remove(numDni);
+		if (isValido(numDni) && recientes.add(numDni)) {
+			filtro.put(numDni);
+		}
+		firmas = sequence + 1;
+
+		if (recientes.size() >= MERGE_THRESHOLD) {
+			try {
+				merge();
+			} catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException
+					| UnrecoverableEntryException e) {
+				System.err.println("[" + new Date().toString() + "] DniIndex " + campaignName
+						+ ": Error mezclando los DNI recientes");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Gets the size, el número de DNI distintos guardados.
+	 *
+	 * @return the size
+	 */
+	public synchronized long size() {
+		return set.size() + recientes.size();
+	}
+
+	/**
+	 * Gets the sorted set, para reencriptar su fichero.
+	 *
+	 * @return the sorted set
+	 */
+	SegmentedSortedSet getSortedSet() {
+		return set;
+	}
+
+	/**
+	 * Mezcla los DNI recientes con el fichero y, si el filtro se ha quedado
+	 * pequeño, lo vuelve a crear. Se ha de llamar con el lock.
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private void merge() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException {
+
+		final Iterator<String> it = recientes.iterator();
+		set.merge(new Iterator<byte[]>() {
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public byte[] next() {
+				return it.next().getBytes(StandardCharsets.US_ASCII);
+			}
+		}, firmas);
+		recientes.clear();
+
+		if (set.size() > capacidad) {
+			creaFiltro();
+		}
+	}
+
+	/**
+	 * Crea el filtro con el doble de capacidad que DNI hay y añade los del
+	 * fichero y los recientes. Se ha de llamar con el lock.
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private void creaFiltro() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		capacidad = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(MIN_CAPACITY, size())) * 2;
+		filtro = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.US_ASCII), capacidad, FPP);
+
+		SegmentedSortedSet.Cursor cursor = set.scan();
+		try {
+			while (cursor.hasNext()) {
+				filtro.put(new String(cursor.next(), StandardCharsets.US_ASCII));
+			}
+		} finally {
+			cursor.close();
+		}
+		for (String numDni : recientes) {
+			filtro.put(numDni);
+		}
+	}
+
+	/**
+	 * Comprueba si un número de DNI se puede guardar en el índice.
+	 *
+	 * @param numDni el número de DNI
+	 * @return true, si tiene el formato de un DNI
+	 */
+	private static boolean isValido(String numDni) {
+		return numDni != null && numDni.length() == DNI_LENGTH
+				&& StandardCharsets.US_ASCII.newEncoder().canEncode(numDni);
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Archivo: FileCampaignRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.NoSuchPaddingException;
+
+import es.usal.tfg.security.Compaction;
+import es.usal.tfg.security.SegmentedEncryption;
+
+/**
+ * Clase FileCampaignRepository, la base de datos de campañas en un fichero
+ * encriptado con {@link SegmentedEncryption} con las credenciales de cada
+ * campaña en el formato de {@link RecordCodec} (o en el JSON antiguo).
+ * <p>
+ * Las campañas nuevas se añaden al final del fichero y las borradas se quitan
+ * compactándolo en línea con {@link Compaction}. Todos los accesos al fichero
+ * se hacen con su lock, que también usan la rotación de claves y el
+ * compactado. Como {@link Compaction} solo toma ese lock al principio y al
+ * final, los compactados de {@link FileCampaignRepository#update} y
+ * {@link FileCampaignRepository#retain} se serializan además con un lock
+ * propio.
+ */
+public class FileCampaignRepository implements CampaignRepository {
+
+	/** El fichero. */
+	private final File file;
+
+	/** El alias de la clave. */
+	private final String keyAlias;
+
+	/** El lock que protege el fichero. */
+	private final Object lock;
+
+	/** El lock que impide que se compacte el fichero dos veces a la vez. */
+	private final Object lockCompaction = new Object();
+
+	/** Las actualizaciones que esperan al siguiente compactado. */
+	private final List<Actualizacion> pendientes = new ArrayList<>();
+
+	/**
+	 * Instantiates a new file campaign repository, borrando los temporales de
+	 * los compactados que quedaron a medias.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param lock el lock que protege el fichero
+	 * @throws IOException si no se pueden borrar los temporales
+	 */
+	FileCampaignRepository(File file, String keyAlias, Object lock) throws IOException {
+		this.file = file;
+		this.keyAlias = keyAlias;
+		this.lock = lock;
+		Compaction.deleteTemporaries(file);
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#add(es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public void add(CampaignCredentials credentials) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		synchronized (lock) {
+			OutputStream cos;
+			// Si no existe significa que es la primera campaña por lo que se
+			// crea, en caso contrario se abre para añadir esta campaña
+			if (!file.exists()) {
+				Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(
+						EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+				cos = SegmentedEncryption.create(file, keyAlias);
+			} else {
+				cos = SegmentedEncryption.append(file, keyAlias);
+			}
+
+			RecordCodec.CredentialsWriter wr = new RecordCodec.CredentialsWriter(cos);
+			try {
+				wr.write(credentials);
+			} finally {
+				wr.close();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#find(java.lang.String)
+	 */
+	@Override
+	public CampaignCredentials find(String campaignName) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		synchronized (lock) {
+			if (!file.exists()) {
+				return null;
+			}
+			RecordCodec.CredentialsReader reader = new RecordCodec.CredentialsReader(
+					SegmentedEncryption.openInputStream(file, keyAlias));
+			try {
+				CampaignCredentials c;
+				while ((c = reader.next()) != null) {
+					if (c.getCampaignName().equals(campaignName)) {
+						return c;
+					}
+				}
+				return null;
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#findAll()
+	 */
+	@Override
+	public List<CampaignCredentials> findAll() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		List<CampaignCredentials> campañas = new ArrayList<>();
+		synchronized (lock) {
+			if (!file.exists()) {
+				return campañas;
+			}
+			RecordCodec.CredentialsReader reader = new RecordCodec.CredentialsReader(
+					SegmentedEncryption.openInputStream(file, keyAlias));
+			try {
+				CampaignCredentials c;
+				while ((c = reader.next()) != null) {
+					campañas.add(c);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return campañas;
+	}
+
+	/**
+	 * Reescribe el fichero con {@link Compaction} sustituyendo el registro de
+	 * la campaña si sigue siendo el esperado. Solo se usa al recalcular el
+	 * hash de una contraseña, una vez por campaña cada vez que cambian las
+	 * iteraciones.
+	 * <p>
+	 * Las actualizaciones se agrupan como en {@link SignatureCommitQueue}:
+	 * cada una se añade a {@link FileCampaignRepository#pendientes} y espera
+	 * el lock de compactado; la primera que lo consigue aplica todas las
+	 * pendientes en una sola pasada. Así los recálculos que llegan mientras se
+	 * compacta el fichero se escriben juntos en el siguiente compactado en
+	 * lugar de reescribir el fichero una vez cada uno.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#update(es.usal.tfg.CampaignCredentials, es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public boolean update(CampaignCredentials expected, CampaignCredentials credentials) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+
+		Actualizacion actualizacion = new Actualizacion(expected, credentials);
+		synchronized (pendientes) {
+			pendientes.add(actualizacion);
+		}
+		synchronized (lockCompaction) {
+			if (!actualizacion.terminada) {
+				List<Actualizacion> lote;
+				synchronized (pendientes) {
+					lote = new ArrayList<>(pendientes);
+					pendientes.clear();
+				}
+				aplica(lote);
+			}
+			return actualizacion.aplicada;
+		}
+	}
+
+		/**
+	 * Compacta el fichero con {@link Compaction}, que solo toma el lock al
+	 * principio y para sustituir el fichero por la copia compactada, y con el
+	 * lock de compactado para no coincidir con otro. Las
+	 * campañas se reescriben en el formato binario de {@link RecordCodec}
+	 * aunque estuvieran en el JSON antiguo.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#retain(es.usal.tfg.CampaignRepository.Filter)
+	 */
+	@Override
+	public boolean retain(final Filter filter) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		synchronized (lockCompaction) {
+			return Compaction.compact(file, keyAlias, lock, new Compaction.Compactor() {
+
+				@Override
+				public void compact(InputStream in, OutputStream out) throws IOException {
+
+					// Ni el lector ni el escritor se cierran, cerrarian los streams
+					RecordCodec.CredentialsReader reader = new RecordCodec.CredentialsReader(in);
+					RecordCodec.CredentialsWriter wr = new RecordCodec.CredentialsWriter(out);
+					CampaignCredentials c;
+					while ((c = reader.next()) != null) {
+						if (filter.accept(c)) {
+							wr.write(c);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Aplica un lote de actualizaciones en un solo compactado, con el lock de
+	 * compactado. Cada una se aplica si el registro de su campaña es el
+	 * esperado; si el compactado falla o no se hace no se aplica ninguna.
+	 *
+	 * @param lote las actualizaciones
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	private void aplica(final List<Actualizacion> lote) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		final Map<String, List<Actualizacion>> porCampaña = new HashMap<>();
+		for (Actualizacion a : lote) {
+			List<Actualizacion> lista = porCampaña.get(a.credentials.getCampaignName());
+			if (lista == null) {
+				lista = new ArrayList<>();
+				porCampaña.put(a.credentials.getCampaignName(), lista);
+			}
+			lista.add(a);
+		}
+
+		boolean compactado = false;
+		try {
+			compactado = Compaction.compact(file, keyAlias, lock, new Compaction.Compactor() {
+
+				@Override
+				public void compact(InputStream in, OutputStream out) throws IOException {
+
+					// Ni el lector ni el escritor se cierran, cerrarian los streams
+					RecordCodec.CredentialsReader reader = new RecordCodec.CredentialsReader(in);
+					RecordCodec.CredentialsWriter wr = new RecordCodec.CredentialsWriter(out);
+					CampaignCredentials c;
+					while ((c = reader.next()) != null) {
+						List<Actualizacion> lista = porCampaña.get(c.getCampaignName());
+						if (lista != null) {
+							for (Actualizacion a : lista) {
+								if (!a.aplicada && a.expected.matches(c)) {
+									a.aplicada = true;
+									c = a.credentials;
+								}
+							}
+						}
+						wr.write(c);
+					}
+				}
+			});
+		} finally {
+			for (Actualizacion a : lote) {
+				if (!compactado) {
+					a.aplicada = false;
+				}
+				a.terminada = true;
+			}
+		}
+	}
+
+	/**
+	 * Una actualización pendiente de
+	 * {@link FileCampaignRepository#update(CampaignCredentials, CampaignCredentials)}.
+	 * Sus campos se leen y escriben con el lock de compactado.
+	 */
+	private static class Actualizacion {
+
+		/** Las credenciales que se leyeron. */
+		private final CampaignCredentials expected;
+
+		/** Las credenciales nuevas. */
+		private final CampaignCredentials credentials;
+
+		/** Si ya se ha intentado aplicar en un compactado. */
+		private boolean terminada = false;
+
+		/** Si se ha aplicado. */
+		private boolean aplicada = false;
+
+		/**
+		 * Instantiates a new actualizacion.
+		 *
+		 * @param expected las credenciales que se leyeron
+		 * @param credentials las credenciales nuevas
+		 */
+		Actualizacion(CampaignCredentials expected, CampaignCredentials credentials) {
+			this.expected = expected;
+			this.credentials = credentials;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Archivo: JdbcCampaignRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import es.usal.tfg.security.ColumnEncryption;
+
+/**
+ * Clase JdbcCampaignRepository, la base de datos de campañas en la tabla
+ * "campanias" de la {@link JdbcDatabase}, con el nombre de la campaña como
+ * clave primaria, por lo que buscar una campaña no recorre las demás.
+ * <p>
+ * Las credenciales se guardan codificadas con {@link RecordCodec} y
+ * encriptadas con {@link ColumnEncryption} con la clave maestra,
+ * autenticando el nombre de la campaña. Al borrar una campaña se borran en la
+ * misma transacción sus firmas de la tabla "firmas".
+ */
+public class JdbcCampaignRepository implements CampaignRepository {
+
+	/** La base de datos. */
+	private final JdbcDatabase database;
+
+	/** El alias de la clave. */
+	private final String keyAlias;
+
+	/**
+	 * Instantiates a new jdbc campaign repository.
+	 *
+	 * @param database la base de datos
+	 * @param keyAlias el alias de la clave
+	 */
+	JdbcCampaignRepository(JdbcDatabase database, String keyAlias) {
+		this.database = database;
+		this.keyAlias = keyAlias;
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#add(es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public void add(CampaignCredentials credentials) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		byte[] registro = ColumnEncryption.encrypt(RecordCodec.encode(credentials), keyAlias,
+				contexto(credentials.getCampaignName()));
+
+		Connection connection = database.acquire();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement("INSERT INTO campanias (nombre, registro) VALUES (?, ?)");
+			try {
+				statement.setString(1, credentials.getCampaignName());
+				statement.setBytes(2, registro);
+				statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error guardando la campania " + credentials.getCampaignName(), e);
+		} finally {
+			database.release(connection);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#find(java.lang.String)
+	 */
+	@Override
+	public CampaignCredentials find(String campaignName) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		byte[] registro = null;
+		Connection connection = database.acquire();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement("SELECT registro FROM campanias WHERE nombre = ?");
+			try {
+				statement.setString(1, campaignName);
+				ResultSet rs = statement.executeQuery();
+				if (rs.next()) {
+					registro = rs.getBytes(1);
+				}
+				rs.close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error buscando la campania " + campaignName, e);
+		} finally {
+			database.release(connection);
+		}
+
+		if (registro == null) {
+			return null;
+		}
+		return decode(campaignName, registro);
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.CampaignRepository#findAll()
+	 */
+	@Override
+	public List<CampaignCredentials> findAll() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		List<String> nombres = new ArrayList<>();
+		List<byte[]> registros = new ArrayList<>();
+		Connection connection = database.acquire();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement("SELECT nombre, registro FROM campanias ORDER BY nombre");
+			try {
+				ResultSet rs = statement.executeQuery();
+				while (rs.next()) {
+					nombres.add(rs.getString(1));
+					registros.add(rs.getBytes(2));
+				}
+				rs.close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error leyendo las campanias", e);
+		} finally {
+			database.release(connection);
+		}
+
+		List<CampaignCredentials> campañas = new ArrayList<>(nombres.size());
+		for (int i = 0; i < nombres.size(); i++) {
+			campañas.add(decode(nombres.get(i), registros.get(i)));
+		}
+		return campañas;
+	}
+
+	/**
+	 * Como el hash y el registration id van encriptados en la columna
+	 * registro, en una transacción se lee y bloquea la fila con
+	 * "SELECT ... FOR UPDATE", se comprueba que sus credenciales sean las
+	 * esperadas y solo entonces se sustituye.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#update(es.usal.tfg.CampaignCredentials, es.usal.tfg.CampaignCredentials)
+	 */
+	@Override
+	public boolean update(CampaignCredentials expected, CampaignCredentials credentials) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		String campaignName = credentials.getCampaignName();
+		byte[] registro = ColumnEncryption.encrypt(RecordCodec.encode(credentials), keyAlias,
+				contexto(campaignName));
+
+		Connection connection = database.acquire();
+		try {
+			connection.setAutoCommit(false);
+			boolean actualizada = false;
+			PreparedStatement select = connection
+					.prepareStatement("SELECT registro FROM campanias WHERE nombre = ? FOR UPDATE");
+			PreparedStatement update = connection
+					.prepareStatement("UPDATE campanias SET registro = ? WHERE nombre = ?");
+			try {
+				select.setString(1, campaignName);
+				ResultSet rs = select.executeQuery();
+				byte[] actual = rs.next() ? rs.getBytes(1) : null;
+				rs.close();
+				if (actual != null && expected.matches(decode(campaignName, actual))) {
+					update.setBytes(1, registro);
+					update.setString(2, campaignName);
+					actualizada = update.executeUpdate() > 0;
+				}
+			} finally {
+				select.close();
+				update.close();
+			}
+			connection.commit();
+			connection.setAutoCommit(true);
+			return actualizada;
+		} catch (SQLException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException e1) {
+			}
+			throw new IOException("Error actualizando la campania " + campaignName, e);
+		} finally {
+			database.release(connection);
+		}
+	}
+
+	/**
+	 * Borra en una transacción las campañas que no acepta el filtro junto con
+	 * sus firmas. Las filas no se bloquean mientras se aplica el filtro.
+	 *
+	 * @see es.usal.tfg.CampaignRepository#retain(es.usal.tfg.CampaignRepository.Filter)
+	 */
+	@Override
+	public boolean retain(Filter filter) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		List<String> borradas = new ArrayList<>();
+		for (CampaignCredentials c : findAll()) {
+			if (!filter.accept(c)) {
+				borradas.add(c.getCampaignName());
+			}
+		}
+		if (borradas.isEmpty()) {
+			return true;
+		}
+
+		Connection connection = database.acquire();
+		try {
+			connection.setAutoCommit(false);
+			PreparedStatement campanias = connection.prepareStatement("DELETE FROM campanias WHERE nombre = ?");
+			PreparedStatement firmas = connection.prepareStatement("DELETE FROM firmas WHERE campania = ?");
+			try {
+				for (String nombre : borradas) {
+					campanias.setString(1, nombre);
+					campanias.executeUpdate();
+					firmas.setString(1, nombre);
+					firmas.executeUpdate();
+				}
+			} finally {
+				campanias.close();
+				firmas.close();
+			}
+			connection.commit();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException e1) {
+			}
+			throw new IOException("Error borrando " + borradas.size() + " campanias", e);
+		} finally {
+			database.release(connection);
+		}
+		return true;
+	}
+
+	/**
+	 * Desencripta y decodifica unas credenciales.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @param registro la columna registro
+	 * @return las credenciales
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no son auténticas o no son válidas
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private CampaignCredentials decode(String campaignName, byte[] registro) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		return RecordCodec.decodeCredentials(ColumnEncryption.decrypt(registro, keyAlias, contexto(campaignName)));
+	}
+
+	/**
+	 * Contexto con el que se encriptan las credenciales de una campaña.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @return el contexto
+	 */
+	private static byte[] contexto(String campaignName) {
+		return ("campanias/" + campaignName).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Archivo: JdbcDatabase.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Clase JdbcDatabase, la base de datos embebida (H2 o SQLite en el propio
+ * proceso, guardada en un fichero) que usan {@link JdbcCampaignRepository} y
+ * {@link JdbcSignatureRepository}. El driver JDBC lo aporta el despliegue.
+ * <p>
+ * Mantiene como mucho {@link JdbcDatabase#MAX_IDLE_CONNECTIONS} conexiones
+ * libres para reutilizarlas, igual que {@link es.usal.tfg.security.CryptoPool}
+ * con los cifradores. Cada operación toma una conexión con
+ * {@link JdbcDatabase#acquire()} y la devuelve con
+ * {@link JdbcDatabase#release(Connection)}, por lo que las transacciones de
+ * distintos hilos no se mezclan.
+ * <p>
+ * Tablas:
+ * <ul>
+ * <li>campanias: nombre (clave primaria) y las credenciales encriptadas con
+ * la clave maestra</li>
+ * <li>firmas: campaña y número de secuencia (clave primaria) y la firma
+ * encriptada con la clave de la campaña</li>
+ * </ul>
+ */
+public class JdbcDatabase {
+
+	/** Número máximo de conexiones libres que se guardan. */
+	private static final int MAX_IDLE_CONNECTIONS = 8;
+
+	/** La URL JDBC. */
+	private final String url;
+
+	/** El usuario, null si no se usa. */
+	private final String user;
+
+	/** La contraseña, null si no se usa. */
+	private final String password;
+
+	/** Las conexiones libres. */
+	private final ArrayBlockingQueue<Connection> idle = new ArrayBlockingQueue<>(MAX_IDLE_CONNECTIONS);
+
+	/**
+	 * Instantiates a new jdbc database, creando las tablas si no existen.
+	 *
+	 * @param url la URL JDBC
+	 * @param user el usuario, o null
+	 * @param password la contraseña, o null
+	 * @throws IOException si no se puede abrir la base de datos
+	 */
+	JdbcDatabase(String url, String user, String password) throws IOException {
+
+		this.url = url;
+		this.user = user;
+		this.password = password;
+
+		Connection connection = acquire();
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS campanias ("
+						+ "nombre VARCHAR(255) NOT NULL PRIMARY KEY, "
+						+ "registro BLOB NOT NULL)");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS firmas ("
+						+ "campania VARCHAR(255) NOT NULL, "
+						+ "secuencia BIGINT NOT NULL, "
+						+ "registro BLOB NOT NULL, "
+						+ "PRIMARY KEY (campania, secuencia))");
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error creando las tablas de " + url, e);
+		} finally {
+			release(connection);
+		}
+		System.out.println("[" + new Date().toString() + "] JdbcDatabase: abierta " + url);
+	}
+
+	/**
+	 * Toma una conexión libre o abre una nueva. Se ha de devolver con
+	 * {@link JdbcDatabase#release(Connection)}.
+	 *
+	 * @return la conexión, en modo auto-commit
+	 * @throws IOException si no se puede abrir
+	 */
+	Connection acquire() throws IOException {
+
+		Connection connection = idle.poll();
+		if (connection != null) {
+			return connection;
+		}
+		try {
+			if (user == null) {
+				return DriverManager.getConnection(url);
+			}
+			return DriverManager.getConnection(url, user, password);
+		} catch (SQLException e) {
+			throw new IOException("Error abriendo una conexion a " + url, e);
+		}
+	}
+
+	/**
+	 * Devuelve una conexión. Si no está en modo auto-commit (una transacción
+	 * que ha fallado) o ya hay bastantes libres se cierra.
+	 *
+	 * @param connection la conexión, puede ser null
+	 */
+	void release(Connection connection) {
+
+		if (connection == null) {
+			return;
+		}
+		try {
+			if (connection.isClosed()) {
+				return;
+			}
+			if (!connection.getAutoCommit() || !idle.offer(connection)) {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			try {
+				connection.close();
+			} catch (SQLException e1) {
+			}
+		}
+	}
+
+	/**
+	 * Cierra las conexiones libres al destruir el contexto.
+	 */
+	void close() {
+
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+}
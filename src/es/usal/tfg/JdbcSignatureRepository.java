@@ -0,0 +1,336 @@
+/*
+ * Archivo: JdbcSignatureRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.usal.tfg.imageProcessing.Firma;
+import es.usal.tfg.security.ColumnEncryption;
+
+/**
+ * Clase JdbcSignatureRepository, la base de datos de firmas de una campaña en
+ * la tabla "firmas" de la {@link JdbcDatabase}. Cada firma es una fila con
+ * la campaña y su número de secuencia como clave primaria, por lo que leer
+ * una firma o un rango es una búsqueda por índice.
+ * <p>
+ * La firma se guarda codificada con {@link RecordCodec} y encriptada con
+ * {@link ColumnEncryption} con la clave de la campaña, autenticando la
+ * campaña y el número de secuencia. Cada lote se inserta en una transacción,
+ * por lo que el número de firmas, que se deriva de las filas, nunca incluye
+ * un lote a medias.
+ */
+public class JdbcSignatureRepository implements SignatureRepository {
+
+	/** Número de filas que se piden de cada vez al recorrer un rango. */
+	private static final int FETCH_SIZE = 256;
+
+	/** La base de datos. */
+	private final JdbcDatabase database;
+
+	/** El nombre de la campaña, que es también el alias de su clave. */
+	private final String campaignName;
+
+	/** El número de firmas. */
+	private final AtomicLong size;
+
+	/**
+	 * Instantiates a new jdbc signature repository, contando sus firmas.
+	 *
+	 * @param database la base de datos
+	 * @param campaignName el nombre de la campaña
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	JdbcSignatureRepository(JdbcDatabase database, String campaignName) throws IOException {
+
+		this.database = database;
+		this.campaignName = campaignName;
+
+		Connection connection = database.acquire();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement("SELECT COALESCE(MAX(secuencia) + 1, 0) FROM firmas WHERE campania = ?");
+			try {
+				statement.setString(1, campaignName);
+				ResultSet rs = statement.executeQuery();
+				rs.next();
+				this.size = new AtomicLong(rs.getLong(1));
+				rs.close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error contando las firmas de " + campaignName, e);
+		} finally {
+			database.release(connection);
+		}
+	}
+
+	/**
+	 * Inserta el lote en una transacción. Como el commit de la base de datos
+	 * ya es durable no se distingue si se ha de forzar a disco.
+	 *
+	 * @see es.usal.tfg.SignatureRepository#appendAll(java.util.List, boolean)
+	 */
+	@Override
+	public long appendAll(List<Firma> firmas, boolean force) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		long first = size.get();
+		List<byte[]> registros = new ArrayList<>(firmas.size());
+		long sequence = first;
+		for (Firma firma : firmas) {
+			registros.add(ColumnEncryption.encrypt(RecordCodec.encode(firma), campaignName, contexto(sequence++)));
+		}
+
+		Connection connection = database.acquire();
+		try {
+			connection.setAutoCommit(false);
+			PreparedStatement statement = connection
+					.prepareStatement("INSERT INTO firmas (campania, secuencia, registro) VALUES (?, ?, ?)");
+			try {
+				sequence = first;
+				for (byte[] registro : registros) {
+					statement.setString(1, campaignName);
+					statement.setLong(2, sequence++);
+					statement.setBytes(3, registro);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			} finally {
+				statement.close();
+			}
+			connection.commit();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException e1) {
+			}
+			throw new IOException("Error guardando " + firmas.size() + " firmas de " + campaignName, e);
+		} finally {
+			database.release(connection);
+		}
+
+		size.addAndGet(firmas.size());
+		return first;
+	}
+
+	/**
+	 * No hace nada, {@link JdbcSignatureRepository#appendAll(List, boolean)}
+	 * ya deja las firmas durables.
+	 *
+	 * @see es.usal.tfg.SignatureRepository#sync()
+	 */
+	@Override
+	public void sync() throws IOException {
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#get(long)
+	 */
+	@Override
+	public Firma get(long sequence) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		byte[] registro = null;
+		Connection connection = database.acquire();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement("SELECT registro FROM firmas WHERE campania = ? AND secuencia = ?");
+			try {
+				statement.setString(1, campaignName);
+				statement.setLong(2, sequence);
+				ResultSet rs = statement.executeQuery();
+				if (rs.next()) {
+					registro = rs.getBytes(1);
+				}
+				rs.close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error leyendo la firma " + sequence + " de " + campaignName, e);
+		} finally {
+			database.release(connection);
+		}
+
+		if (registro == null) {
+			throw new IOException("No existe la firma " + sequence + " de " + campaignName);
+		}
+		return decode(registro, sequence);
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#scan(long, long)
+	 */
+	@Override
+	public Cursor scan(long from, long to) throws IOException {
+		return new JdbcCursor(from, to);
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#size()
+	 */
+	@Override
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * Desencripta y decodifica una firma.
+	 *
+	 * @param registro la columna registro
+	 * @param sequence su número de secuencia
+	 * @return la firma
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no es auténtica o no es una firma válida
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private Firma decode(byte[] registro, long sequence) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		return RecordCodec.decodeFirma(ColumnEncryption.decrypt(registro, campaignName, contexto(sequence)));
+	}
+
+	/**
+	 * Contexto con el que se encripta una firma, su campaña y número de
+	 * secuencia.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return el contexto
+	 */
+	private byte[] contexto(long sequence) {
+		return ("firmas/" + campaignName + "/" + sequence).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Cursor sobre una consulta de un rango de firmas, mantiene su conexión
+	 * hasta cerrarlo.
+	 */
+	private class JdbcCursor implements Cursor {
+
+		/** La conexión. */
+		private final Connection connection;
+
+		/** La consulta. */
+		private final PreparedStatement statement;
+
+		/** Las filas. */
+		private final ResultSet rs;
+
+		/** Si la fila actual del ResultSet está sin leer. */
+		private boolean hay;
+
+		/** El número de secuencia de la siguiente firma. */
+		private long position;
+
+		/**
+		 * Instantiates a new jdbc cursor.
+		 *
+		 * @param from la primera firma
+		 * @param to la firma siguiente a la última
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private JdbcCursor(long from, long to) throws IOException {
+
+			this.position = from;
+			this.connection = database.acquire();
+			PreparedStatement st = null;
+			try {
+				st = connection.prepareStatement("SELECT secuencia, registro FROM firmas "
+						+ "WHERE campania = ? AND secuencia >= ? AND secuencia < ? ORDER BY secuencia");
+				st.setFetchSize(FETCH_SIZE);
+				st.setString(1, campaignName);
+				st.setLong(2, from);
+				st.setLong(3, to);
+				this.rs = st.executeQuery();
+				this.statement = st;
+				this.hay = rs.next();
+			} catch (SQLException e) {
+				try {
+					if (st != null) {
+						st.close();
+					}
+				} catch (SQLException e1) {
+				}
+				database.release(connection);
+				throw new IOException("Error recorriendo las firmas de " + campaignName, e);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return hay;
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#getPosition()
+		 */
+		@Override
+		public long getPosition() {
+			return position;
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#next()
+		 */
+		@Override
+		public Firma next() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+				UnrecoverableEntryException {
+
+			if (!hay) {
+				throw new IOException("No quedan firmas en el cursor");
+			}
+			long sequence;
+			byte[] registro;
+			try {
+				sequence = rs.getLong(1);
+				registro = rs.getBytes(2);
+				hay = rs.next();
+			} catch (SQLException e) {
+				throw new IOException("Error recorriendo las firmas de " + campaignName, e);
+			}
+			position = sequence + 1;
+			return decode(registro, sequence);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				rs.close();
+				statement.close();
+			} catch (SQLException e) {
+				throw new IOException(e);
+			} finally {
+				database.release(connection);
+			}
+		}
+	}
+}
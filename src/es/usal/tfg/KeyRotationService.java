@@ -0,0 +1,292 @@
+/*
+ * Archivo: KeyRotationService.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.NoSuchPaddingException;
+
+import es.usal.tfg.security.KeyMetadata;
+import es.usal.tfg.security.KeyRotation;
+import es.usal.tfg.security.SegmentedRecordStore;
+import es.usal.tfg.security.SegmentedSortedSet;
+import es.usal.tfg.security.SymmetricEncryption;
+
+/**
+ * Clase KeyRotationService que rota las claves de la base de datos de
+ * campañas y de las campañas con {@link KeyRotation} sin parar el servicio.
+ * <p>
+ * Las rotaciones y el reencriptado se ejecutan en un único hilo en segundo
+ * plano. Cada pasada ({@link KeyRotationService#run()}) recorre la base de
+ * datos de campañas y, para cada campaña con algún segmento de su
+ * {@link SignatureStore} en una versión anterior de su clave, reencripta
+ * primero las imagenes de los DNI, despues su {@link DniIndex} y por último
+ * los segmentos. Así unos segmentos en la versión actual indican que la
+ * campaña está terminada, y una pasada interrumpida (por ejemplo al reiniciar
+ * el servidor) se reanuda lanzando otra, cosa que se hace al arrancar con
+ * {@link KeyRotationService#resume()}.
+ * <p>
+ * Si la propiedad del sistema "es.usal.tfg.keyRotationDays" es mayor que 0,
+ * {@link MaintenanceService} rota con
+ * {@link KeyRotationService#rotateExpiredKeys()} las claves que tienen más
+ * días que ese valor.
+ */
+public class KeyRotationService implements Runnable {
+
+	/**
+	 * The Constant ROTATION_DAYS, días tras los que se rota una clave, 0 para
+	 * no rotarlas automáticamente.
+	 */
+	public static final int ROTATION_DAYS = Integer.getInteger("es.usal.tfg.keyRotationDays", 0);
+
+	/** El executor de un solo hilo en el que se ejecutan las rotaciones. */
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "key-rotation");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/** Flag para interrumpir la pasada en curso al destruir el contexto. */
+	private static volatile boolean stopped = false;
+
+	/**
+	 * Lanza en segundo plano una pasada de reencriptado, que termina las
+	 * rotaciones que hubiesen quedado a medias.
+	 */
+	public static void resume() {
+		executor.execute(new KeyRotationService());
+	}
+
+	/**
+	 * Rota en segundo plano la clave de la base de datos de campañas y la de
+	 * cada una de las campañas indicadas, y lanza despues una pasada de
+	 * reencriptado.
+	 *
+	 * @param master si se rota la clave de la base de datos de campañas
+	 * @param campaigns las campañas cuya clave se rota
+	 */
+	public static void rotateKeys(final boolean master, final Collection<Campaign> campaigns) {
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				if (master) {
+					rotaClaveMaestra();
+				}
+				for (Campaign campaign : campaigns) {
+					if (stopped) {
+						return;
+					}
+					rotaClaveCampaña(campaign);
+				}
+			}
+		});
+		resume();
+	}
+
+	/**
+	 * Rota las claves cuya versión actual se registró hace más de
+	 * {@link KeyRotationService#ROTATION_DAYS} días. No hace nada si es 0.
+	 */
+	public static void rotateExpiredKeys() {
+
+		if (ROTATION_DAYS <= 0 || !SymmetricEncryption.DERIVED_KEYS) {
+			return;
+		}
+		long limit = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(ROTATION_DAYS);
+		try {
+			boolean master = KeyMetadata.getVersionDate(CampaignManagement.masterKeyAlias) < limit;
+			ArrayList<Campaign> campaigns = new ArrayList<>();
+			for (Campaign campaign : CampaignManagement.getCampañas()) {
+				if (KeyMetadata.getVersionDate(campaign.getCampaignName()) < limit) {
+					campaigns.add(campaign);
+				}
+			}
+			if (master || !campaigns.isEmpty()) {
+				System.out.println("["+new Date().toString()+"] KeyRotation: rotando "+(master ? "la clave maestra y " : "")
+						+campaigns.size()+" claves de campaña");
+				rotateKeys(master, campaigns);
+			}
+		} catch (IOException e) {
+			System.err.println("["+new Date().toString()+"] KeyRotation: Error leyendo las versiones de las claves");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Para el hilo de rotación al destruir el contexto. La pasada en curso se
+	 * interrumpe entre un fichero y el siguiente y se reanuda al arrancar.
+	 */
+	public static void shutdown() {
+		stopped = true;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Pasada de reencriptado: reencripta con la versión actual de su clave la
+	 * base de datos de campañas y los ficheros de cada campaña que sigan en
+	 * una versión anterior.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+
+		File campaignsFile = CampaignManagement.getCampaignsFile();
+		try {
+			KeyRotation.reencrypt(campaignsFile, CampaignManagement.masterKeyAlias,
+					CampaignManagement.lockCampaignsFile);
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
+				| IOException e) {
+			System.err.println("["+new Date().toString()+"] KeyRotation: Error reencriptando la base de datos de campañas");
+			e.printStackTrace();
+		}
+
+		for (Campaign campaign : CampaignManagement.getCampañas()) {
+			if (stopped) {
+				return;
+			}
+			reencriptaCampaña(campaign);
+		}
+	}
+
+	/**
+	 * Reencripta los ficheros de una campaña si algún segmento de su base de
+	 * datos de firmas no está en la versión actual de la clave: primero las
+	 * imagenes de los DNI, despues el fichero del {@link DniIndex} y por
+	 * último los segmentos, cada fichero con su lock de escritura.
+	 *
+	 * @param campaign la campaña
+	 */
+	private static void reencriptaCampaña(Campaign campaign) {
+
+		String campaignName = campaign.getCampaignName();
+		try {
+			SignatureRepository firmas = campaign.getSignatureStore();
+			if (!(firmas instanceof SignatureStore)) {
+				//Las filas de la base de datos embebida guardan la version de
+				//su clave y se siguen leyendo, no hay segmentos que reencriptar
+				return;
+			}
+			SegmentedRecordStore store = ((SignatureStore) firmas).getRecordStore();
+			List<File> segmentos = store.getSegmentFiles();
+			boolean outdated = false;
+			for (File segmento : segmentos) {
+				outdated |= KeyRotation.isOutdated(segmento, campaignName);
+			}
+			if (!outdated) {
+				return;
+			}
+			System.out.println("["+new Date().toString()+"] KeyRotation: reencriptando la campaña "+campaignName);
+
+			int reencriptados = 0;
+			for (File imagen : CampaignManagement.getImagenesCampaña(campaign)) {
+				if (stopped) {
+					return;
+				}
+				try {
+					if (KeyRotation.reencrypt(imagen, campaignName, campaign.lockDataBase)) {
+						reencriptados++;
+					}
+				} catch (IOException e) {
+					//Una imagen que no se puede reencriptar sigue siendo
+					//legible con su version, no se detiene la campaña
+					System.err.println("["+new Date().toString()+"] KeyRotation: Error reencriptando "+imagen.getAbsolutePath());
+					e.printStackTrace();
+				}
+			}
+			SegmentedSortedSet dnis = campaign.getDniIndex().getSortedSet();
+			if (KeyRotation.reencrypt(dnis.getFile(), campaignName, dnis)) {
+				reencriptados++;
+			}
+			for (File segmento : segmentos) {
+				if (KeyRotation.reencrypt(segmento, campaignName, store)) {
+					reencriptados++;
+				}
+			}
+
+			System.out.println("["+new Date().toString()+"] KeyRotation: campaña "+campaignName+" reencriptada, "
+					+reencriptados+" ficheros");
+
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
+				| IOException e) {
+			System.err.println("["+new Date().toString()+"] KeyRotation: Error reencriptando la campaña "+campaignName);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rota la clave de la base de datos de campañas, convirtiendola antes al
+	 * formato por fragmentos si aún es un fichero antiguo.
+	 */
+	private static void rotaClaveMaestra() {
+
+		try {
+			KeyRotation.prepare(CampaignManagement.getCampaignsFile(), CampaignManagement.masterKeyAlias,
+					CampaignManagement.lockCampaignsFile);
+			int version = KeyRotation.rotate(CampaignManagement.masterKeyAlias);
+			System.out.println("["+new Date().toString()+"] KeyRotation: clave maestra rotada a la version "+version);
+
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
+				| NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalStateException | IOException e) {
+			System.err.println("["+new Date().toString()+"] KeyRotation: Error rotando la clave maestra");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rota la clave de una campaña, convirtiendo antes al formato por
+	 * fragmentos los ficheros antiguos que tenga.
+	 *
+	 * @param campaign la campaña
+	 */
+	private static void rotaClaveCampaña(Campaign campaign) {
+
+		String campaignName = campaign.getCampaignName();
+		try {
+			for (File imagen : CampaignManagement.getImagenesCampaña(campaign)) {
+				KeyRotation.prepare(imagen, campaignName, campaign.lockDataBase);
+			}
+
+			int version = KeyRotation.rotate(campaignName);
+			System.out.println("["+new Date().toString()+"] KeyRotation: clave de la campaña "+campaignName
+					+" rotada a la version "+version);
+
+		} catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
+				| NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalStateException | IOException e) {
+			System.err.println("["+new Date().toString()+"] KeyRotation: Error rotando la clave de la campaña "+campaignName);
+			e.printStackTrace();
+		}
+	}
+}
@@ -11,16 +11,10 @@ package es.usal.tfg;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
@@ -30,33 +24,34 @@ import java.security.cert.CertificateException;
 import java.text.ParseException;
 import java.util.Collection;
 import java.util.Date;
-import java.util.EnumSet;
-import java.util.Set;
 import java.util.concurrent.FutureTask;
 
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 
 import org.apache.commons.io.FilenameUtils;
 
-import com.google.gson.Gson;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
-
-import es.usal.tfg.security.SymmetricEncryption;
+import es.usal.tfg.security.CryptoPool;
+import es.usal.tfg.security.CryptoService;
+import es.usal.tfg.security.KeyRotation;
+import es.usal.tfg.security.PasswordService;
+import es.usal.tfg.security.TokenCache;
 
 /**
  * The Class MaintenanceService que implementa las tareas de mantimiento, es
  * invocada por la clase {@link MyTaskExecutor} diariamente.
  * <p>
- * Se encarga de borrar los tokens activos, los de descarga, los PDFs generados
- * y recorrer la base de datos de campaas comprobando sus fechas de borrado y 
+ * Se encarga de borrar los tokens caducados de {@link TokenCache}, los de
+ * descarga, los PDFs generados y recorrer la base de datos de campaas comprobando sus fechas de borrado y 
  * en caso de estar en dicha fecha borra el directorio de campaa, la campaa
  * de la base de datos y de la estructura de campaas. Para esta comprobación 
- * va leyendo la base de datos de campaas y copiando las campaas correctas a 
- * una base de datos de campaas temporal (todo esto encriptado), al finalizar
- * sustituye la base de datos temporal por la original.
+ * usa {@link CampaignRepository#retain(CampaignRepository.Filter)}, que con
+ * los ficheros encriptados compacta en lnea la base de datos de campaas
+ * mientras se siguen atendiendo registros y logins, y con la base de datos
+ * embebida borra las campaas caducadas en una transaccin. Las bases de
+ * datos de firmas no se compactan, sus registros nunca se borran.
+ * <p>
+ * Por ltimo rota las claves caducadas con
+ * {@link KeyRotationService#rotateExpiredKeys()}.
  */
 public class MaintenanceService implements Runnable {
 
@@ -71,11 +66,22 @@ public class MaintenanceService implements Runnable {
 		
 		System.out.println("["+new Date().toString()+"] Mantenimiento: iniciando");
 		
+		System.out.println("["+new Date().toString()+"] Mantenimiento: "+CryptoPool.getStats());
+		
+		System.out.println("["+new Date().toString()+"] Mantenimiento: "+CryptoService.getStats());
+		
+		System.out.println("["+new Date().toString()+"] Mantenimiento: "+PasswordService.getStats());
 		
-		//Borrado de la estructura de datos activeTokens
-		CampaignManagement.clearActiveToken();
+		System.out.println("["+new Date().toString()+"] Mantenimiento: "+KeyRotation.getStats());
 		
-		System.out.println("["+new Date().toString()+"] Mantenimiento: tokens activos borrados");
+		System.out.println("["+new Date().toString()+"] Mantenimiento: "+TokenCache.getStats());
+		
+		
+		//Los tokens de sesion antiguos caducan solos en TokenCache, solo se
+		//quitan los caducados que no se hayan vuelto a consultar
+		TokenCache.cleanUp();
+		
+		System.out.println("["+new Date().toString()+"] Mantenimiento: tokens caducados borrados");
 				
 		//Se obtienen todos los FutureTask encargados de generar PDFs que haya actualmente para ir
 		//cancelandoloos si no han acabado y posteriormente borrar todos los pdfs así como la 
@@ -124,137 +130,87 @@ public class MaintenanceService implements Runnable {
 		System.out.println("["+new Date().toString()+"] Mantenimiento: tokens de descarga borrados");
 		
 
-		// A continuación se lee el la base de datos de campaas comprobando que
-		// no haya pasado su fecha de borrado de ser así se borra esa campaa de
-		// la base de datos y su contenido, para ello se crea un fichero 
-		// temporal en el que se van escribiendo las campaas validas 
-		// encriptadas y se omiten las que hayan pasado de su fecha. Al finalizar
-		// se copia el fichero temporal sobre el de campaas original
-		
-		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
-		File originalCampaignsFile = CampaignManagement.getCampaignsFile();
-		File newCampaignsFile = new File(originalCampaignsFile.getParentFile(), "campaigns.tmp.json");
-		CipherOutputStream cos = null;
-		CipherInputStream cis = null;
-
-		JsonReader reader = null;
-		Writer wr = null;
-		
+		// A continuación se recorre la base de datos de campaas comprobando
+		// que no haya pasado su fecha de borrado, de ser as se borra esa
+		// campaa de la base de datos y su contenido. Con los ficheros
+		// encriptados las campaas validas se escriben en una copia compactada
+		// sin bloquear los registros ni los logins
 		
-		synchronized (CampaignManagement.lockCampaignsFile) {
+		if (!CampaignManagement.campaasIsEmpty()) {
 			
+			try {
+				if (Repositories.getCampaignRepository().retain(new CampaignsFilter())) {
+				
+					System.out.println("["+new Date().toString()+"] Mantenimiento: Base de datos de campaas actualizada");
+				}
+				else {
+					System.out.println("["+new Date().toString()+"] Mantenimiento: Base de datos de campaas modificada durante el compactado, se compactara en la siguiente pasada");
+				}
 			
-			if (!CampaignManagement.campaasIsEmpty()) {
+			} catch (IOException | InvalidKeyException | NoSuchAlgorithmException | KeyStoreException
+					| CertificateException | NoSuchPaddingException | InvalidAlgorithmParameterException
+					| UnrecoverableEntryException e) {
 				
-				try {
-					Files.createFile(newCampaignsFile.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
-					cos = SymmetricEncryption.encryptFileUsingKey(newCampaignsFile, CampaignManagement.masterKeyAlias);
 				
-					cis = SymmetricEncryption.decryptFileUsingKey(originalCampaignsFile, CampaignManagement.masterKeyAlias);
-					
-	
+				System.err.println("["+new Date().toString()+"] Mantenimiento: Error comprobando fechas de campaas");
+				e.printStackTrace();
+				System.out.println(CampaignManagement.SEPARADOR);
+			}
 				
-					/**
-					 * @see https://sites.google.com/site/gson/streaming
-					 */
-					Gson gson = new Gson();
-					
-					CampaignCredentials c;
-					
-					
-					reader= new JsonReader(new InputStreamReader(cis, "UTF-8"));
-					reader.setLenient(true);
-					
-					wr = new OutputStreamWriter(cos);
-					
+		} else {
+			System.out.println("["+new Date().toString()+"] Mantenimiento: no existe ninguna campaa");
+		}
 		
-					
-					while(reader.hasNext()){
-						JsonToken tokenJson =  reader.peek();
-						if (!tokenJson.equals(JsonToken.BEGIN_OBJECT)) {
-							break;
-						}
-						c = gson.fromJson(reader, CampaignCredentials.class);
-	
-						String deleteDateStr = c.getDeleteDate();
-						
-						Date deleteDate = CampaignManagement.dateFormat.parse(deleteDateStr);
-						
-						Date fechaActual = new Date();
-						
-						// Si la fecha de borrado no es posterior a la actual
-						// entonces se borra la campaa, en caso contrario se 
-						// escribe al fichero temporal
-						
-						if (!deleteDate.after(fechaActual)) {
-							CampaignManagement.borrarArchivosCampaa(CampaignManagement.getCampaa(c.getCampaignName()));
-	
-							CampaignManagement.deleteCampaa(c.getCampaignName());
-							
-							System.out.println("["+new Date().toString()+"] Mantenimiento: borrada campaa "+c.getCampaignName());
-	
-						
-						}
-						else {
-							gson.toJson(c, wr);
-	
-							System.out.println("["+new Date().toString()+"] Mantenimiento: guardada campaa "+c.getCampaignName());
+		// Rotacion de las claves que hayan superado su tiempo de vida, el 
+		// reencriptado se hace en segundo plano en KeyRotationService
+		KeyRotationService.rotateExpiredKeys();
+	}
 	
-							
-						}
-					}
-					
-					
-				
-				} catch (IOException | InvalidKeyException | NoSuchAlgorithmException | KeyStoreException
-						| CertificateException | NoSuchPaddingException | InvalidAlgorithmParameterException
-						| UnrecoverableEntryException | ParseException e) {
-					
-					
-					System.err.println("["+new Date().toString()+"] Mantenimiento: Error comprobando fechas de campaas");
-					e.printStackTrace();
-					System.out.println(CampaignManagement.SEPARADOR);
-				} finally {
-					try {
-						if(reader!= null){
-							reader.close();
-						}
-						if (cis!=null) {
-							cis.close();
-						}
-						
-						if (wr!=null) {
-							wr.flush();
-							wr.close();
-						}
-						
-						if (cos!=null) {
-							cos.flush();
-							cos.close();
-						}
-					} catch (IOException e){}
+	/**
+	 * Clase CampaignsFilter que decide qu campaas se conservan en la base
+	 * de datos de campaas, borrando los archivos de las caducadas.
+	 */
+	private static class CampaignsFilter implements CampaignRepository.Filter {
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.CampaignRepository.Filter#accept(es.usal.tfg.CampaignCredentials)
+		 */
+		@Override
+		public boolean accept(CampaignCredentials c) throws IOException {
+			
+			String deleteDateStr = c.getDeleteDate();
+			
+			Date deleteDate;
+			try {
+				deleteDate = CampaignManagement.dateFormat.parse(deleteDateStr);
+			} catch (ParseException e) {
+				throw new IOException("Fecha de borrado no valida en la campaa "+c.getCampaignName(), e);
+			}
+			
+			Date fechaActual = new Date();
+			
+			// Si la fecha de borrado no es posterior a la actual
+			// entonces se borra la campaa, en caso contrario se 
+			// conserva. Si ya no esta en la estructura de campaas es
+			// que se borro en una pasada que no llego a actualizar la
+			// base de datos
+			
+			if (!deleteDate.after(fechaActual)) {
+				Campaign campaign = CampaignManagement.getCampaa(c.getCampaignName());
+				if (campaign != null) {
+					CampaignManagement.borrarArchivosCampaa(campaign);
+
+					CampaignManagement.deleteCampaa(c.getCampaignName());
 				}
 				
-				
-				try {
-					/**
-					 * @see https://docs.oracle.com/javase/tutorial/essential/io/move.html
-					 */
-					Files.move(newCampaignsFile.toPath(), originalCampaignsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-				
-					System.out.println("["+new Date().toString()+"] Mantenimiento: Base de datos de campaas actualizada");
-					
-				} catch (IOException e) {
-					
-					System.out.println("["+new Date().toString()+"] Mantenimiento: Error sobreescribiendo base de datos de campaas");
-					e.printStackTrace();
-					System.out.println(CampaignManagement.SEPARADOR);
-					
-				}
-					
-			} else {
-				System.out.println("["+new Date().toString()+"] Mantenimiento: no existe ninguna campaa");
+				System.out.println("["+new Date().toString()+"] Mantenimiento: borrada campaa "+c.getCampaignName());
+
+				return false;
 			}
+			
+			System.out.println("["+new Date().toString()+"] Mantenimiento: guardada campaa "+c.getCampaignName());
+
+			return true;
 		}
 	}
 	
@@ -0,0 +1,696 @@
+/*
+ * Archivo: RecordCodec.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import es.usal.tfg.imageProcessing.Firma;
+
+/**
+ * Clase RecordCodec que codifica en binario los registros de las bases de
+ * datos: las {@link Firma} de la {@link SignatureStore} y las
+ * {@link CampaignCredentials} de la base de datos de campañas.
+ * <p>
+ * Cada registro es:
+ * <pre>
+ * MAGIC (1 byte) | tipo (1 byte) | versión (1 byte) | longitud del cuerpo (varint) | cuerpo
+ * </pre>
+ * y el cuerpo es la secuencia de campos del tipo, los textos como un varint
+ * con su longitud en UTF-8 más 1 (0 para null) seguido de los bytes, y los
+ * números como varint en zigzag. Como el cuerpo lleva su longitud, una
+ * versión posterior puede añadir campos al final sin que las anteriores dejen
+ * de leer los que conocen.
+ * <p>
+ * Los registros antiguos son objetos JSON escritos con Gson. Un registro
+ * binario empieza por {@link RecordCodec#MAGIC}, que no puede empezar un JSON,
+ * de modo que los lectores de esta clase distinguen los dos formatos registro
+ * a registro y leen ambos, también mezclados en el mismo fichero. Ni la
+ * decodificación binaria ni la de JSON usan reflexión: los campos se leen uno
+ * a uno por su nombre con un {@link JsonReader}.
+ */
+public class RecordCodec {
+
+	/** The Constant MAGIC, primer byte de un registro binario. */
+	public static final int MAGIC = 0xB1;
+
+	/** The Constant TYPE_FIRMA, tipo de registro de una {@link Firma}. */
+	public static final int TYPE_FIRMA = 'F';
+
+	/**
+	 * The Constant TYPE_CREDENTIALS, tipo de registro de unas
+	 * {@link CampaignCredentials}.
+	 */
+	public static final int TYPE_CREDENTIALS = 'C';
+
+	/** The Constant VERSION, versión del formato que se escribe. */
+	public static final int VERSION = 1;
+
+	/** Tamaño máximo del cuerpo de un registro. */
+	private static final int MAX_BODY = 1 << 20;
+
+	/**
+	 * Codifica una firma.
+	 *
+	 * @param firma la firma
+	 * @return el registro
+	 */
+	public static byte[] encode(Firma firma) {
+
+		Encoder body = new Encoder();
+		body.writeString(firma.getNombre());
+		body.writeString(firma.getApellidos());
+		body.writeString(firma.getNumDni());
+		body.writeString(firma.getFecha());
+		body.writeLong(firma.getNumHojaFirmas());
+		body.writeLong(firma.getNumHojaDNIs());
+		body.writeString(firma.getDniFrontal() == null ? null : firma.getDniFrontal().getPath());
+		body.writeString(firma.getDniPosterior() == null ? null : firma.getDniPosterior().getPath());
+		return body.toRecord(TYPE_FIRMA);
+	}
+
+	/**
+	 * Codifica unas credenciales de campaña.
+	 *
+	 * @param credentials las credenciales
+	 * @return el registro
+	 */
+	public static byte[] encode(CampaignCredentials credentials) {
+
+		Encoder body = new Encoder();
+		body.writeString(credentials.getCampaignName());
+		body.writeString(credentials.getHashPass());
+		body.writeString(credentials.getDeleteDate());
+		body.writeString(credentials.getRegistrationId());
+		return body.toRecord(TYPE_CREDENTIALS);
+	}
+
+	/**
+	 * Decodifica una firma en cualquiera de los dos formatos.
+	 *
+	 * @param record el registro, binario o JSON
+	 * @return la firma
+	 * @throws IOException si el registro no es una firma válida
+	 */
+	public static Firma decodeFirma(byte[] record) throws IOException {
+
+		if (record.length > 0 && (record[0] & 0xFF) == MAGIC) {
+			Decoder header = new Decoder(record, 0, record.length);
+			header.readByte();
+			checkHeader(header.readByte(), header.readByte(), TYPE_FIRMA);
+			int length = (int) header.readVarint();
+			if (length != header.remaining()) {
+				throw new IOException("Registro de firma truncado");
+			}
+			return decodeFirmaBody(new Decoder(record, header.position(), length));
+		}
+		return parseFirma(new String(record, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodifica unas credenciales de campaña en cualquiera de los dos
+	 * formatos.
+	 *
+	 * @param record el registro, binario o JSON
+	 * @return las credenciales
+	 * @throws IOException si el registro no son unas credenciales válidas
+	 */
+	public static CampaignCredentials decodeCredentials(byte[] record) throws IOException {
+
+		CredentialsReader reader = new CredentialsReader(new ByteArrayInputStream(record));
+		CampaignCredentials credentials = reader.next();
+		if (credentials == null || reader.next() != null) {
+			throw new IOException("Registro de campaña no valido");
+		}
+		return credentials;
+	}
+
+	/**
+	 * Decodifica el cuerpo binario de una firma.
+	 *
+	 * @param body el cuerpo
+	 * @return la firma
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Firma decodeFirmaBody(Decoder body) throws IOException {
+
+		String nombre = body.readString();
+		String apellidos = body.readString();
+		String numDni = body.readString();
+		String fecha = body.readString();
+		long numHojaFirmas = body.readLong();
+		long numHojaDNIs = body.readLong();
+		String frontal = body.readString();
+		String posterior = body.readString();
+		return new Firma(frontal == null ? null : new File(frontal), posterior == null ? null : new File(posterior),
+				nombre, apellidos, numDni, fecha, numHojaFirmas, numHojaDNIs);
+	}
+
+	/**
+	 * Decodifica el cuerpo binario de unas credenciales. Los registros
+	 * escritos antes de añadir el registration id terminan tras la fecha de
+	 * borrado y se leen con él a null.
+	 *
+	 * @param body el cuerpo
+	 * @return las credenciales
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static CampaignCredentials decodeCredentialsBody(Decoder body) throws IOException {
+
+		String campaignName = body.readString();
+		String hashPass = body.readString();
+		String deleteDate = body.readString();
+		String registrationId = body.remaining() > 0 ? body.readString() : null;
+		return new CampaignCredentials(campaignName, hashPass, deleteDate, registrationId);
+	}
+
+	/**
+	 * Lee una firma de su JSON antiguo, en el que los ficheros son objetos
+	 * con un campo "path".
+	 *
+	 * @param json el JSON
+	 * @return la firma
+	 * @throws IOException si no es una firma válida
+	 */
+	private static Firma parseFirma(String json) throws IOException {
+
+		String nombre = null, apellidos = null, numDni = null, fecha = null, frontal = null, posterior = null;
+		long numHojaFirmas = 0, numHojaDNIs = 0;
+
+		JsonReader reader = new JsonReader(new StringReader(json));
+		reader.setLenient(true);
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				}
+				switch (name) {
+				case "nombre":
+					nombre = reader.nextString();
+					break;
+				case "apellidos":
+					apellidos = reader.nextString();
+					break;
+				case "numDni":
+					numDni = reader.nextString();
+					break;
+				case "fecha":
+					fecha = reader.nextString();
+					break;
+				case "numHojaFirmas":
+					numHojaFirmas = reader.nextLong();
+					break;
+				case "numHojaDNIs":
+					numHojaDNIs = reader.nextLong();
+					break;
+				case "dniFrontal":
+					frontal = parsePath(reader);
+					break;
+				case "dniPosterior":
+					posterior = parsePath(reader);
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException | NumberFormatException e) {
+			throw new IOException("Registro de firma no valido", e);
+		} finally {
+			reader.close();
+		}
+		return new Firma(frontal == null ? null : new File(frontal), posterior == null ? null : new File(posterior),
+				nombre, apellidos, numDni, fecha, numHojaFirmas, numHojaDNIs);
+	}
+
+	/**
+	 * Lee un {@link File} serializado por Gson, un objeto con el campo
+	 * "path".
+	 *
+	 * @param reader el lector, antes del objeto
+	 * @return la ruta
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String parsePath(JsonReader reader) throws IOException {
+
+		String path = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("path") && reader.peek() == JsonToken.STRING) {
+				path = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return path;
+	}
+
+	/**
+	 * Lee unas credenciales de su JSON antiguo.
+	 *
+	 * @param json el JSON
+	 * @return las credenciales
+	 * @throws IOException si no son unas credenciales válidas
+	 */
+	private static CampaignCredentials parseCredentials(String json) throws IOException {
+
+		String campaignName = null, hashPass = null, deleteDate = null;
+
+		JsonReader reader = new JsonReader(new StringReader(json));
+		reader.setLenient(true);
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (reader.peek() != JsonToken.STRING) {
+					reader.skipValue();
+					continue;
+				}
+				switch (name) {
+				case "campaignName":
+					campaignName = reader.nextString();
+					break;
+				case "hashPass":
+					hashPass = reader.nextString();
+					break;
+				case "deleteDate":
+					deleteDate = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException e) {
+			throw new IOException("Registro de campaña no valido", e);
+		} finally {
+			reader.close();
+		}
+		return new CampaignCredentials(campaignName, hashPass, deleteDate);
+	}
+
+	/**
+	 * Comprueba el tipo y la versión de un registro binario.
+	 *
+	 * @param type el tipo leído
+	 * @param version la versión leída
+	 * @param expected el tipo esperado
+	 * @throws IOException si no coinciden o la versión es desconocida
+	 */
+	private static void checkHeader(int type, int version, int expected) throws IOException {
+
+		if (type != expected) {
+			throw new IOException("Tipo de registro inesperado: " + type);
+		}
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Version de registro no soportada: " + version);
+		}
+	}
+
+	/**
+	 * Escribe registros de credenciales de campaña en un stream.
+	 */
+	public static class CredentialsWriter implements Closeable {
+
+		/** El stream. */
+		private final OutputStream os;
+
+		/**
+		 * Instantiates a new credentials writer.
+		 *
+		 * @param os el stream, que se cierra al cerrar el escritor
+		 */
+		public CredentialsWriter(OutputStream os) {
+			this.os = os;
+		}
+
+		/**
+		 * Escribe unas credenciales en formato binario.
+		 *
+		 * @param credentials las credenciales
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void write(CampaignCredentials credentials) throws IOException {
+			os.write(encode(credentials));
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			os.close();
+		}
+	}
+
+	/**
+	 * Lee uno a uno los registros de credenciales de campaña de un stream con
+	 * registros binarios, objetos JSON antiguos o una mezcla de ambos. No lee
+	 * más allá del registro que devuelve.
+	 */
+	public static class CredentialsReader implements Closeable {
+
+		/** El stream. */
+		private final PushbackInputStream is;
+
+		/**
+		 * Instantiates a new credentials reader.
+		 *
+		 * @param is el stream, que se cierra al cerrar el lector
+		 */
+		public CredentialsReader(InputStream is) {
+			this.is = new PushbackInputStream(is, 1);
+		}
+
+		/**
+		 * Lee las siguientes credenciales.
+		 *
+		 * @return las credenciales, null al final del stream
+		 * @throws IOException si el stream no contiene credenciales válidas
+		 */
+		public CampaignCredentials next() throws IOException {
+
+			int b;
+			do {
+				b = is.read();
+			} while (b == ' ' || b == '\n' || b == '\r' || b == '\t');
+
+			if (b == -1) {
+				return null;
+			}
+			if (b == MAGIC) {
+				checkHeader(readByte(), readByte(), TYPE_CREDENTIALS);
+				long length = readVarint();
+				if (length < 0 || length > MAX_BODY) {
+					throw new IOException("Longitud de registro no valida: " + length);
+				}
+				byte[] body = new byte[(int) length];
+				readFully(body);
+				return decodeCredentialsBody(new Decoder(body, 0, body.length));
+			}
+			if (b == '{') {
+				is.unread(b);
+				return parseCredentials(readJsonObject());
+			}
+			throw new IOException("Registro de campaña no valido, empieza por " + b);
+		}
+
+		/**
+		 * Lee un objeto JSON completo, contando las llaves fuera de las
+		 * cadenas, sin leer nada despues de su llave de cierre.
+		 *
+		 * @return el objeto
+		 * @throws IOException si el stream termina antes
+		 */
+		private String readJsonObject() throws IOException {
+
+			ByteArrayOutputStream object = new ByteArrayOutputStream(128);
+			int depth = 0;
+			boolean string = false, escape = false;
+			do {
+				int b = readByte();
+				object.write(b);
+				if (object.size() > MAX_BODY) {
+					throw new IOException("Registro de campaña demasiado grande");
+				}
+				if (string) {
+					if (escape) {
+						escape = false;
+					} else if (b == '\\') {
+						escape = true;
+					} else if (b == '"') {
+						string = false;
+					}
+				} else if (b == '"') {
+					string = true;
+				} else if (b == '{') {
+					depth++;
+				} else if (b == '}') {
+					depth--;
+				}
+			} while (depth > 0);
+			return new String(object.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Lee un byte.
+		 *
+		 * @return el byte
+		 * @throws IOException si el stream ha terminado
+		 */
+		private int readByte() throws IOException {
+
+			int b = is.read();
+			if (b == -1) {
+				throw new EOFException("Registro de campaña truncado");
+			}
+			return b;
+		}
+
+		/**
+		 * Lee un varint sin signo.
+		 *
+		 * @return el valor
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private long readVarint() throws IOException {
+
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Varint no valido");
+		}
+
+		/**
+		 * Lee bytes hasta llenar un array.
+		 *
+		 * @param data el array
+		 * @throws IOException si el stream termina antes
+		 */
+		private void readFully(byte[] data) throws IOException {
+
+			int off = 0;
+			while (off < data.length) {
+				int read = is.read(data, off, data.length - off);
+				if (read == -1) {
+					throw new EOFException("Registro de campaña truncado");
+				}
+				off += read;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			is.close();
+		}
+	}
+
+	/**
+	 * Escribe los campos del cuerpo de un registro.
+	 */
+	private static class Encoder {
+
+		/** El cuerpo. */
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+
+		/**
+		 * Escribe un texto.
+		 *
+		 * @param value el texto, puede ser null
+		 */
+		void writeString(String value) {
+
+			if (value == null) {
+				writeVarint(body, 0);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(body, bytes.length + 1L);
+			body.write(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Escribe un número en zigzag.
+		 *
+		 * @param value el número
+		 */
+		void writeLong(long value) {
+			writeVarint(body, (value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Construye el registro completo con su cabecera.
+		 *
+		 * @param type el tipo de registro
+		 * @return el registro
+		 */
+		byte[] toRecord(int type) {
+
+			ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 8);
+			record.write(MAGIC);
+			record.write(type);
+			record.write(VERSION);
+			writeVarint(record, body.size());
+			record.write(body.toByteArray(), 0, body.size());
+			return record.toByteArray();
+		}
+
+		/**
+		 * Escribe un varint sin signo.
+		 *
+		 * @param os el destino
+		 * @param value el valor
+		 */
+		private static void writeVarint(ByteArrayOutputStream os, long value) {
+
+			while ((value & ~0x7FL) != 0) {
+				os.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			os.write((int) value);
+		}
+	}
+
+	/**
+	 * Lee los campos de un registro binario en memoria.
+	 */
+	private static class Decoder {
+
+		/** Los datos. */
+		private final byte[] data;
+
+		/** La posición actual. */
+		private int position;
+
+		/** El final de los datos. */
+		private final int end;
+
+		/**
+		 * Instantiates a new decoder.
+		 *
+		 * @param data los datos
+		 * @param offset el inicio
+		 * @param length la longitud
+		 */
+		Decoder(byte[] data, int offset, int length) {
+			this.data = data;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		/**
+		 * Lee un byte.
+		 *
+		 * @return el byte
+		 * @throws IOException si no quedan datos
+		 */
+		int readByte() throws IOException {
+
+			if (position >= end) {
+				throw new EOFException("Registro truncado");
+			}
+			return data[position++] & 0xFF;
+		}
+
+		/**
+		 * Lee un varint sin signo.
+		 *
+		 * @return el valor
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		long readVarint() throws IOException {
+
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Varint no valido");
+		}
+
+		/**
+		 * Lee un número en zigzag.
+		 *
+		 * @return el número
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		long readLong() throws IOException {
+
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Lee un texto.
+		 *
+		 * @return el texto, puede ser null
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		String readString() throws IOException {
+
+			long length = readVarint();
+			if (length == 0) {
+				return null;
+			}
+			length--;
+			if (length > remaining()) {
+				throw new EOFException("Registro truncado");
+			}
+			String value = new String(data, position, (int) length, StandardCharsets.UTF_8);
+			position += (int) length;
+			return value;
+		}
+
+		/**
+		 * Bytes que quedan por leer.
+		 *
+		 * @return los bytes
+		 */
+		int remaining() {
+			return end - position;
+		}
+
+		/**
+		 * Gets the position.
+		 *
+		 * @return the position
+		 */
+		int position() {
+			return position;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Archivo: Repositories.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Clase Repositories, elige las implementaciones de
+ * {@link CampaignRepository} y {@link SignatureRepository} según la propiedad
+ * del sistema "es.usal.tfg.repository":
+ * <ul>
+ * <li>"file" (por defecto): {@link FileCampaignRepository} y
+ * {@link SignatureStore}, los ficheros encriptados de siempre</li>
+ * <li>"jdbc": {@link JdbcCampaignRepository} y
+ * {@link JdbcSignatureRepository} sobre una {@link JdbcDatabase} embebida
+ * con la URL de "es.usal.tfg.jdbcUrl", el usuario de "es.usal.tfg.jdbcUser"
+ * y la contraseña guardada en el fichero "es.usal.tfg.jdbcPassFile"</li>
+ * </ul>
+ * La base de datos de campañas se envuelve en un
+ * {@link CachedCampaignRepository} para que los logins no la lean.
+ * <p>
+ * Las imágenes de los DNI, el {@link DniIndex} y el punto de control del
+ * {@link SignatureCounter} siguen en el directorio de la campaña con
+ * cualquiera de las dos.
+ */
+public class Repositories {
+
+	/**
+	 * Enum Backend, dónde se guardan las campañas y las firmas.
+	 */
+	public enum Backend {
+
+		/** En ficheros encriptados. */
+		FILE,
+
+		/** En una base de datos embebida. */
+		JDBC
+	}
+
+	/** The Constant BACKEND, la implementación que se usa. */
+	public static final Backend BACKEND = Backend.valueOf(
+			System.getProperty("es.usal.tfg.repository", Backend.FILE.name()).toUpperCase(Locale.ROOT));
+
+	/** The Constant JDBC_URL, por defecto una base de datos H2 embebida. */
+	public static final String JDBC_URL = System.getProperty("es.usal.tfg.jdbcUrl",
+			"jdbc:h2:" + CampaignManagement.WEBSERVICE_ABSOLUTE_ROUTE + "/demos");
+
+	/** The Constant JDBC_USER, null si no se usa. */
+	private static final String JDBC_USER = System.getProperty("es.usal.tfg.jdbcUser");
+
+	/** The Constant JDBC_PASS_FILE, null si no se usa contraseña. */
+	private static final String JDBC_PASS_FILE = System.getProperty("es.usal.tfg.jdbcPassFile");
+
+	/** La base de datos embebida, se abre al usarla. */
+	private static JdbcDatabase database = null;
+
+	/** La base de datos de campañas, se crea al usarla. */
+	private static CampaignRepository campaigns = null;
+
+	/**
+	 * Gets the campaign repository, creándola la primera vez.
+	 *
+	 * @return the campaign repository
+	 * @throws IOException si no se puede abrir la base de datos embebida
+	 */
+	public static synchronized CampaignRepository getCampaignRepository() throws IOException {
+
+		if (campaigns == null) {
+			if (BACKEND == Backend.JDBC) {
+				campaigns = new CachedCampaignRepository(
+						new JdbcCampaignRepository(getDatabase(), CampaignManagement.masterKeyAlias));
+			} else {
+				campaigns = new CachedCampaignRepository(new FileCampaignRepository(CampaignManagement.getCampaignsFile(),
+						CampaignManagement.masterKeyAlias, CampaignManagement.lockCampaignsFile));
+			}
+		}
+		return campaigns;
+	}
+
+	/**
+	 * Abre la base de datos de firmas de una campaña, creándola si no existe.
+	 * Se llama desde {@link Campaign#getSignatureStore()}.
+	 *
+	 * @param campaign la campaña
+	 * @return the signature repository
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static SignatureRepository openSignatureRepository(Campaign campaign) throws IOException {
+
+		if (BACKEND == Backend.JDBC) {
+			return new JdbcSignatureRepository(getDatabase(), campaign.getCampaignName());
+		}
+		return SignatureStore.open(campaign);
+	}
+
+	/**
+	 * Cierra las conexiones de la base de datos embebida al destruir el
+	 * contexto.
+	 */
+	public static synchronized void shutdown() {
+
+		if (database != null) {
+			database.close();
+		}
+	}
+
+	/**
+	 * Gets the database, abriéndola la primera vez.
+	 *
+	 * @return the database
+	 * @throws IOException si no se puede abrir
+	 */
+	private static synchronized JdbcDatabase getDatabase() throws IOException {
+
+		if (database == null) {
+			String password = null;
+			if (JDBC_PASS_FILE != null) {
+				password = new String(Files.readAllBytes(new File(JDBC_PASS_FILE).toPath()), StandardCharsets.UTF_8)
+						.trim();
+			}
+			database = new JdbcDatabase(JDBC_URL, JDBC_USER, password);
+		}
+		return database;
+	}
+}
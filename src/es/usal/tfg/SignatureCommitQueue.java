@@ -0,0 +1,332 @@
+/*
+ * Archivo: SignatureCommitQueue.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.NoSuchPaddingException;
+
+import es.usal.tfg.files.PDFThread;
+import es.usal.tfg.imageProcessing.Firma;
+
+/**
+ * Clase SignatureCommitQueue, cola de escritura de las firmas de una campaña
+ * en su {@link SignatureRepository}, que agrupa en un solo lote las firmas que
+ * llegan mientras se está escribiendo otro.
+ * <p>
+ * Cada subida encola su {@link Firma} con
+ * {@link SignatureCommitQueue#submit(Firma)} y toma el lock de la base de
+ * datos de la campaña. La primera que lo consigue escribe todas las que haya
+ * en la cola con {@link SignatureRepository#appendAll(List, boolean)}, y las
+ * que esperaban detrás encuentran su firma ya escrita y solo esperan a que sea
+ * durable. Así con muchas subidas simultáneas cada segmento y el índice se
+ * abren (y se fuerzan a disco) una vez por lote y no una por firma, sin
+ * necesidad de un hilo escritor por campaña.
+ * <p>
+ * Cuándo una firma es durable depende de {@link SignatureCommitQueue#DURABILITY}:
+ * <ul>
+ * <li>{@link Durability#BATCH}: se fuerza a disco cada lote al escribirlo</li>
+ * <li>{@link Durability#INTERVAL}: se fuerza a disco lo escrito cada
+ * {@link SignatureCommitQueue#SYNC_INTERVAL} milisegundos, en un hilo
+ * compartido por todas las campañas</li>
+ * <li>{@link Durability#NONE}: no se fuerza, basta con haberla escrito</li>
+ * </ul>
+ * Al escribir el lote se fija la hoja de DNIs de cada firma a partir de su
+ * número de secuencia y se avanza el {@link SignatureCounter} de la campaña,
+ * por lo que las subidas que fallan no dejan huecos en la cuenta.
+ * <p>
+ * El future de cada firma se completa, con su número de secuencia, cuando es
+ * durable, y solo entonces se confirma su DNI en el {@link DniIndex}, en el
+ * orden de las firmas, para que su punto de control no incluya firmas que se
+ * podrían perder.
+ * <p>
+ * Desde que se encola una firma la reserva de su DNI es responsabilidad de
+ * la cola y no de quien la encola, aunque su espera falle: se libera solo si
+ * la firma no se ha llegado a escribir y se confirma si se ha escrito, también
+ * si después falla forzarla a disco, para que otra subida del mismo DNI no
+ * pueda duplicarla.
+ */
+public class SignatureCommitQueue {
+
+	/**
+	 * Enum Durability, cuándo se considera durable una firma escrita.
+	 */
+	public enum Durability {
+
+		/** Al forzar a disco su lote. */
+		BATCH,
+
+		/** Al forzar a disco periódicamente lo escrito. */
+		INTERVAL,
+
+		/** Al escribirla, sin forzar a disco. */
+		NONE
+	}
+
+	/**
+	 * The Constant DURABILITY, política de durabilidad de las firmas. Se puede
+	 * cambiar con la propiedad del sistema "es.usal.tfg.signatureDurability".
+	 */
+	public static final Durability DURABILITY = Durability.valueOf(
+			System.getProperty("es.usal.tfg.signatureDurability", Durability.BATCH.name()).toUpperCase(Locale.ROOT));
+
+	/**
+	 * The Constant SYNC_INTERVAL, milisegundos entre dos escrituras a disco con
+	 * {@link Durability#INTERVAL}. Se puede cambiar con la propiedad del
+	 * sistema "es.usal.tfg.syncIntervalMs".
+	 */
+	public static final long SYNC_INTERVAL = Long.getLong("es.usal.tfg.syncIntervalMs", 1000L);
+
+	/**
+	 * The Constant MAX_BATCH, número máximo de firmas de un lote. Se puede
+	 * cambiar con la propiedad del sistema "es.usal.tfg.maxSignatureBatch".
+	 */
+	public static final int MAX_BATCH = Integer.getInteger("es.usal.tfg.maxSignatureBatch", 256);
+
+	/** El hilo que fuerza a disco las firmas con {@link Durability#INTERVAL}. */
+	private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "signature-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** La campaña. */
+	private final Campaign campaign;
+
+	/** La base de datos de firmas. */
+	private final SignatureRepository store;
+
+	/** El índice de DNI de la campaña. */
+	private final DniIndex dniIndex;
+
+	/** Firmas encoladas que aún no se han escrito. */
+	private final ConcurrentLinkedQueue<Pendiente> cola = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Firmas escritas que aún no se han forzado a disco, con
+	 * {@link Durability#INTERVAL}. Se usa con el lock de la base de datos.
+	 */
+	private final List<Pendiente> sinForzar = new ArrayList<>();
+
+	/** Si hay una escritura a disco programada. Se usa con el lock. */
+	private boolean programada = false;
+
+	/**
+	 * Instantiates a new signature commit queue.
+	 *
+	 * @param campaign la campaña
+	 * @param store la base de datos de firmas
+	 * @param dniIndex el índice de DNI
+	 */
+	SignatureCommitQueue(Campaign campaign, SignatureRepository store, DniIndex dniIndex) {
+		this.campaign = campaign;
+		this.store = store;
+		this.dniIndex = dniIndex;
+	}
+
+	/**
+	 * Encola una firma y, si nadie lo ha hecho ya, escribe el lote en el que
+	 * va. El DNI de la firma debe estar reservado en el {@link DniIndex} y
+	 * desde ese momento la cola la confirma o la libera, quien la encola no
+	 * la debe liberar aunque el future falle.
+	 *
+	 * @param firma la firma
+	 * @return un future que se completa con el número de secuencia de la firma
+	 *         cuando es durable, o con la excepción si no se ha podido guardar
+	 */
+	public CompletableFuture<Long> submit(Firma firma) {
+
+		Pendiente pendiente = new Pendiente(firma);
+		cola.add(pendiente);
+		synchronized (campaign.lockDataBase) {
+			while (!pendiente.escrita) {
+				escribeLote();
+			}
+		}
+		return pendiente.future;
+	}
+
+	/**
+	 * Para el hilo de escritura a disco al destruir el contexto, forzando
+	 * antes las firmas que estuviesen pendientes.
+	 */
+	public static void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Escribe como un lote las firmas de la cola, hasta
+	 * {@link SignatureCommitQueue#MAX_BATCH}. Se ha de llamar con el lock de
+	 * la base de datos.
+	 */
+	private void escribeLote() {
+
+		List<Pendiente> lote = new ArrayList<>();
+		List<Firma> firmas = new ArrayList<>();
+		long numFirmas = store.size();
+		Pendiente pendiente;
+		while (lote.size() < MAX_BATCH && (pendiente = cola.poll()) != null) {
+			numFirmas++;
+			pendiente.firma.setNumHojaDNIs(numHojaDNIs(numFirmas));
+			lote.add(pendiente);
+			firmas.add(pendiente.firma);
+		}
+		if (lote.isEmpty()) {
+			return;
+		}
+
+		try {
+			long sequence = store.appendAll(firmas, DURABILITY == Durability.BATCH);
+			for (Pendiente p : lote) {
+				p.escrita = true;
+				p.sequence = sequence++;
+			}
+		} catch (IOException | InvalidKeyException | IllegalArgumentException | KeyStoreException
+				| NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
+				| InvalidAlgorithmParameterException | NoSuchPaddingException e) {
+			System.err.println("[" + new Date().toString() + "] SignatureCommitQueue " + campaign.getCampaignName()
+					+ ": Error escribiendo un lote de " + lote.size() + " firmas");
+			e.printStackTrace();
+			//El lote no se ha escrito, sus DNI pueden volver a firmar
+			for (Pendiente p : lote) {
+				p.escrita = true;
+				dniIndex.release(p.firma.getNumDni());
+				p.future.completeExceptionally(e);
+			}
+			return;
+		}
+		campaign.getSignatureCounter().advance(lote.get(lote.size() - 1).sequence + 1);
+
+		if (DURABILITY == Durability.INTERVAL) {
+			sinForzar.addAll(lote);
+			if (!programada) {
+				programada = true;
+				try {
+					scheduler.schedule(new Runnable() {
+
+						@Override
+						public void run() {
+							fuerzaADisco();
+						}
+					}, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					//Contexto destruido, se fuerza ya
+					fuerzaADisco();
+				}
+			}
+		} else {
+			completa(lote);
+		}
+	}
+
+	/**
+	 * Fuerza a disco las firmas escritas con {@link Durability#INTERVAL} y
+	 * completa sus futures.
+	 */
+	private void fuerzaADisco() {
+
+		synchronized (campaign.lockDataBase) {
+			programada = false;
+			try {
+				store.sync();
+				completa(sinForzar);
+			} catch (IOException e) {
+				//Las firmas están escritas pero puede que no en disco, se
+				//notifica el error y al reiniciar se recuperan las que haya.
+				//Sus DNI se confirman igualmente, estan en la base de datos
+				System.err.println("[" + new Date().toString() + "] SignatureCommitQueue "
+						+ campaign.getCampaignName() + ": Error forzando a disco " + sinForzar.size() + " firmas");
+				e.printStackTrace();
+				for (Pendiente p : sinForzar) {
+					dniIndex.commit(p.firma.getNumDni(), p.sequence);
+				}
+				for (Pendiente p : sinForzar) {
+					p.future.completeExceptionally(e);
+				}
+			}
+			sinForzar.clear();
+		}
+	}
+
+	/**
+	 * Confirma en orden los DNI de unas firmas durables y completa sus
+	 * futures. Se ha de llamar con el lock de la base de datos.
+	 *
+	 * @param firmas las firmas
+	 */
+	private void completa(List<Pendiente> firmas) {
+
+		for (Pendiente p : firmas) {
+			dniIndex.commit(p.firma.getNumDni(), p.sequence);
+		}
+		for (Pendiente p : firmas) {
+			p.future.complete(p.sequence);
+		}
+	}
+
+	/**
+	 * Calcula la hoja del PDF de DNIs que ocupará una firma, entrando
+	 * {@link PDFThread#NUMERO_DNI_X_HOJA} firmas por hoja.
+	 *
+	 * @param numFirma el número de la firma, desde 1
+	 * @return la hoja, desde 1
+	 */
+	private static long numHojaDNIs(long numFirma) {
+		return (numFirma + PDFThread.NUMERO_DNI_X_HOJA - 1) / PDFThread.NUMERO_DNI_X_HOJA;
+	}
+
+	/**
+	 * Clase Pendiente, una firma encolada y el future de quien la ha encolado.
+	 */
+	private static class Pendiente {
+
+		/** La firma. */
+		private final Firma firma;
+
+		/** The future. */
+		private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+		/** Si ya se ha escrito o ha fallado. Se usa con el lock. */
+		private boolean escrita = false;
+
+		/** El número de secuencia, al escribirla. */
+		private long sequence;
+
+		/**
+		 * Instantiates a new pendiente.
+		 *
+		 * @param firma la firma
+		 */
+		private Pendiente(Firma firma) {
+			this.firma = firma;
+		}
+	}
+}
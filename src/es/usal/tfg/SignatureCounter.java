@@ -0,0 +1,206 @@
+/*
+ * Archivo: SignatureCounter.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Clase SignatureCounter, el número de firmas de una campaña. Se mantiene en
+ * memoria en un {@link AtomicLong} que actualiza la
+ * {@link SignatureCommitQueue} al escribir cada lote, por lo que se puede leer
+ * y actualizar sin tomar ningún lock ni hacer I/O.
+ * <p>
+ * El valor se guarda en segundo plano, como mucho cada
+ * {@link SignatureCounter#CHECKPOINT_INTERVAL} milisegundos, en el fichero
+ * ".numFirmas" de la campaña (8 bytes big-endian, el mismo formato que antes)
+ * mapeado en memoria. Ese fichero es solo un punto de control: la cuenta
+ * buena es el número de registros de la {@link SignatureRepository}, y al
+ * abrirla se comprueba con {@link SignatureCounter#verify(long)} y se corrige
+ * si un reinicio los ha dejado distintos.
+ */
+public class SignatureCounter {
+
+	/**
+	 * The Constant CHECKPOINT_INTERVAL, milisegundos que se espera antes de
+	 * guardar el valor tras un cambio. Se puede cambiar con la propiedad del
+	 * sistema "es.usal.tfg.counterCheckpointMs".
+	 */
+	public static final long CHECKPOINT_INTERVAL = Long.getLong("es.usal.tfg.counterCheckpointMs", 1000L);
+
+	/** El hilo que guarda los puntos de control de todas las campañas. */
+	private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "signature-counter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** El fichero del punto de control. */
+	private final File file;
+
+	/** El número de firmas. */
+	private final AtomicLong value;
+
+	/** Si hay un punto de control programado. */
+	private final AtomicBoolean programado = new AtomicBoolean(false);
+
+	/** El fichero mapeado, null hasta {@link SignatureCounter#verify(long)}. */
+	private volatile MappedByteBuffer buffer;
+
+	/**
+	 * Instantiates a new signature counter, cargando el último punto de
+	 * control si existe. Si no existe o no se puede leer empieza en 0.
+	 *
+	 * @param file el fichero del punto de control
+	 */
+	SignatureCounter(File file) {
+
+		this.file = file;
+		long checkpoint = 0;
+		try {
+			if (file.exists() && file.length() >= Long.BYTES) {
+				checkpoint = Longs.fromByteArray(Files.readAllBytes(file.toPath()));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.value = new AtomicLong(checkpoint);
+	}
+
+	/**
+	 * Gets the value.
+	 *
+	 * @return el número de firmas
+	 */
+	public long get() {
+		return value.get();
+	}
+
+	/**
+	 * Avanza el contador hasta un número de firmas, si es mayor que el actual,
+	 * y programa un punto de control.
+	 *
+	 * @param numeroFirmas el número de firmas
+	 */
+	public void advance(long numeroFirmas) {
+
+		long actual;
+		do {
+			actual = value.get();
+			if (numeroFirmas <= actual) {
+				return;
+			}
+		} while (!value.compareAndSet(actual, numeroFirmas));
+		programaCheckpoint();
+	}
+
+	/**
+	 * Comprueba el contador con el número de registros de la base de datos
+	 * de firmas al abrirla, corrigiéndolo si no coinciden, y mapea el fichero
+	 * del punto de control.
+	 *
+	 * @param storeSize el número de registros de la base de datos
+	 */
+	void verify(long storeSize) {
+
+		long checkpoint = value.getAndSet(storeSize);
+		if (checkpoint != storeSize) {
+			System.out.println("[" + new Date().toString() + "] SignatureCounter " + file.getParentFile().getName()
+					+ ": el punto de control tenia " + checkpoint + " firmas y la base de datos " + storeSize
+					+ ", se corrige");
+		}
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(),
+					EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+					PosixFilePermissions.asFileAttribute(
+							EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+			try {
+				//El mapeo sigue siendo válido despues de cerrar el canal
+				buffer = channel.map(MapMode.READ_WRITE, 0, Long.BYTES);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			System.err.println("[" + new Date().toString() + "] SignatureCounter " + file.getParentFile().getName()
+					+ ": Error mapeando " + file.getAbsolutePath() + ", no se guardaran puntos de control");
+			e.printStackTrace();
+			return;
+		}
+		if (checkpoint != storeSize) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Para el hilo de los puntos de control al destruir el contexto,
+	 * guardando antes los que estuviesen programados.
+	 */
+	public static void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Programa un punto de control si no hay ya uno pendiente.
+	 */
+	private void programaCheckpoint() {
+
+		if (buffer == null || !programado.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			scheduler.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					programado.set(false);
+					checkpoint();
+				}
+			}, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			//Contexto destruido, se guarda ya
+			programado.set(false);
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Guarda el valor actual en el fichero mapeado y lo fuerza a disco.
+	 */
+	private synchronized void checkpoint() {
+
+		MappedByteBuffer b = buffer;
+		if (b != null) {
+			b.putLong(0, value.get());
+			b.force();
+		}
+	}
+}
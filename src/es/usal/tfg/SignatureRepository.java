@@ -0,0 +1,137 @@
+/*
+ * Archivo: SignatureRepository.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.List;
+
+import javax.crypto.NoSuchPaddingException;
+
+import es.usal.tfg.imageProcessing.Firma;
+
+/**
+ * Interfaz SignatureRepository, la base de datos de firmas de una campaña.
+ * Las firmas se numeran por orden de llegada desde 0 con su número de
+ * secuencia, solo se añaden al final y no se modifican ni se borran, por lo
+ * que el número de firmas es el de registros.
+ * <p>
+ * Implementaciones:
+ * <ul>
+ * <li>{@link SignatureStore}: registros encriptados en ficheros por
+ * segmentos en el directorio de la campaña</li>
+ * <li>{@link JdbcSignatureRepository}: filas de una base de datos embebida
+ * con la firma encriptada</li>
+ * </ul>
+ * {@link Repositories} elige cuál se usa. Las escrituras las hace solo la
+ * {@link SignatureCommitQueue} de la campaña, con su lock de la base de datos.
+ */
+public interface SignatureRepository {
+
+	/**
+	 * Añade un lote de firmas al final de forma atómica: o se guardan todas o
+	 * ninguna.
+	 *
+	 * @param firmas las firmas
+	 * @param force si se ha de forzar a disco antes de volver
+	 * @return el número de secuencia de la primera
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	long appendAll(List<Firma> firmas, boolean force) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException;
+
+	/**
+	 * Fuerza a disco las firmas añadidas sin forzar.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Lee una firma por su número de secuencia.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return la firma
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no existe o no es auténtica
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	Firma get(long sequence) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException;
+
+	/**
+	 * Abre un cursor sobre un rango de firmas.
+	 *
+	 * @param from la primera firma
+	 * @param to la firma siguiente a la última
+	 * @return el cursor, que se ha de cerrar
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	Cursor scan(long from, long to) throws IOException;
+
+	/**
+	 * Gets the size, el número de firmas guardadas.
+	 *
+	 * @return the size
+	 */
+	long size();
+
+	/**
+	 * Cursor sobre un rango de firmas, se ha de cerrar.
+	 */
+	interface Cursor extends Closeable {
+
+		/**
+		 * Checks for next.
+		 *
+		 * @return true, si quedan firmas
+		 */
+		boolean hasNext();
+
+		/**
+		 * Gets the position, el número de secuencia de la siguiente firma.
+		 *
+		 * @return the position
+		 */
+		long getPosition();
+
+		/**
+		 * Lee la siguiente firma.
+		 *
+		 * @return la firma
+		 *
+		 * @throws KeyStoreException the key store exception
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 * @throws NoSuchAlgorithmException the no such algorithm exception
+		 * @throws CertificateException the certificate exception
+		 * @throws UnrecoverableEntryException the unrecoverable entry exception
+		 */
+		Firma next() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+				UnrecoverableEntryException;
+	}
+}
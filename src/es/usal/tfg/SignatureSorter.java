@@ -0,0 +1,516 @@
+/*
+ * Archivo: SignatureSorter.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import es.usal.tfg.imageProcessing.Firma;
+import es.usal.tfg.security.SegmentedEncryption;
+import es.usal.tfg.security.SegmentedReader;
+
+/**
+ * Clase SignatureSorter, ordenación externa de las firmas de una campaña por
+ * su número de hoja de firmas ({@link Firma#compareTo(Firma)}), para montar
+ * el PDF sin tener todas las firmas en memoria.
+ * <p>
+ * {@link SignatureSorter#sort(Campaign)} recorre la {@link SignatureRepository}
+ * con su cursor y va llenando una tanda en memoria. Cuando la tanda supera
+ * {@link SignatureSorter#MEMORY_BUDGET} bytes (estimados) se ordena y se
+ * escribe en un fichero temporal de la campaña, encriptado con su clave como
+ * el resto de sus ficheros. Si todas caben en una tanda no se escribe nada.
+ * Cada {@link SignatureSorter#open()} devuelve un cursor que mezcla las
+ * tandas, por lo que el resultado se puede recorrer varias veces con una
+ * memoria proporcional al número de tandas y no al de firmas.
+ * <p>
+ * La ordenación es estable, igual que {@link Collections#sort(List)}: las
+ * firmas de la misma hoja mantienen el orden en que se guardaron. Los
+ * ficheros temporales se borran con {@link SignatureSorter#close()}, y los
+ * que quedan si se para el servidor mientras se genera un PDF con
+ * {@link SignatureSorter#deleteTemporaries(Campaign)} al arrancar.
+ */
+public class SignatureSorter implements Closeable {
+
+	/**
+	 * The Constant MEMORY_BUDGET, bytes estimados de firmas que se ordenan en
+	 * memoria antes de escribir una tanda a disco. Se puede cambiar con la
+	 * propiedad del sistema "es.usal.tfg.sortMemoryBytes".
+	 */
+	public static final long MEMORY_BUDGET = Long.getLong("es.usal.tfg.sortMemoryBytes", 16L * 1024 * 1024);
+
+	/** Bytes estimados de una firma en memoria ademas de sus cadenas. */
+	private static final int FIRMA_OVERHEAD = 400;
+
+	/** Prefijo de los ficheros temporales. */
+	private static final String RUN_PREFIX = ".firmas-";
+
+	/** Sufijo de los ficheros temporales. */
+	private static final String RUN_SUFFIX = ".run";
+
+	/** La campaña. */
+	private final Campaign campaign;
+
+	/** Las tandas escritas a disco, en orden. */
+	private final List<File> tandas = new ArrayList<>();
+
+	/** La única tanda, si todas las firmas caben en memoria. */
+	private List<Firma> enMemoria;
+
+	/** Número de firmas ordenadas. */
+	private long size;
+
+	/**
+	 * Instantiates a new signature sorter.
+	 *
+	 * @param campaign la campaña
+	 */
+	private SignatureSorter(Campaign campaign) {
+		this.campaign = campaign;
+	}
+
+	/**
+	 * Ordena las firmas de una campaña. El resultado se ha de cerrar para
+	 * borrar los ficheros temporales.
+	 *
+	 * @param campaign la campaña
+	 * @return las firmas ordenadas
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static SignatureSorter sort(Campaign campaign) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		SignatureSorter sorter = new SignatureSorter(campaign);
+		boolean ok = false;
+		try {
+			sorter.creaTandas();
+			ok = true;
+		} finally {
+			if (!ok) {
+				sorter.close();
+			}
+		}
+		return sorter;
+	}
+
+	/**
+	 * Borra los ficheros temporales de las tandas de una campaña que quedaron
+	 * al parar el servidor durante una ordenación. Se llama al inicializar la
+	 * campaña, antes de que se pueda generar un PDF.
+	 *
+	 * @param campaign la campaña
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void deleteTemporaries(Campaign campaign) throws IOException {
+
+		File[] ficheros = campaign.getDirectory().listFiles();
+		if (ficheros == null) {
+			return;
+		}
+		for (File file : ficheros) {
+			String name = file.getName();
+			if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX)) {
+				Files.deleteIfExists(file.toPath());
+				System.out.println("[" + new Date().toString() + "] SignatureSorter " + campaign.getCampaignName()
+						+ ": borrado temporal " + name);
+			}
+		}
+	}
+
+	/**
+	 * Abre un cursor sobre las firmas ordenadas, se ha de cerrar.
+	 *
+	 * @return el cursor
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public Cursor open() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException {
+
+		if (enMemoria != null) {
+			return new MemoryCursor(enMemoria.iterator());
+		}
+		MergeCursor cursor = new MergeCursor();
+		boolean ok = false;
+		try {
+			for (int i = 0; i < tandas.size(); i++) {
+				cursor.abreTanda(tandas.get(i), i);
+			}
+			ok = true;
+		} finally {
+			if (!ok) {
+				cursor.close();
+			}
+		}
+		return cursor;
+	}
+
+	/**
+	 * Gets the size, el número de firmas ordenadas.
+	 *
+	 * @return the size
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Gets the run count, el número de tandas escritas a disco.
+	 *
+	 * @return the run count
+	 */
+	public int getRunCount() {
+		return tandas.size();
+	}
+
+	/**
+	 * Borra los ficheros temporales.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+
+		for (File tanda : tandas) {
+			if (tanda.exists() && !tanda.delete()) {
+				System.err.println("[" + new Date().toString() + "] SignatureSorter " + campaign.getCampaignName()
+						+ ": No se ha podido borrar " + tanda.getAbsolutePath());
+			}
+		}
+		tandas.clear();
+		enMemoria = null;
+	}
+
+	/**
+	 * Recorre la base de datos de firmas creando las tandas ordenadas.
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private void creaTandas() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		SignatureRepository store = campaign.getSignatureStore();
+		ArrayList<Firma> tanda = new ArrayList<>();
+		long bytes = 0;
+
+		SignatureRepository.Cursor cursor = store.scan(0, store.size());
+		try {
+			while (cursor.hasNext()) {
+				Firma f = cursor.next();
+				tanda.add(f);
+				size++;
+				bytes += estimaTamaño(f);
+				if (bytes >= MEMORY_BUDGET) {
+					escribeTanda(tanda);
+					tanda.clear();
+					bytes = 0;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (tandas.isEmpty()) {
+			Collections.sort(tanda);
+			enMemoria = tanda;
+		} else if (!tanda.isEmpty()) {
+			escribeTanda(tanda);
+		}
+		if (!tandas.isEmpty()) {
+			System.out.println("[" + new Date().toString() + "] SignatureSorter " + campaign.getCampaignName() + ": "
+					+ size + " firmas ordenadas en " + tandas.size() + " tandas");
+		}
+	}
+
+	/**
+	 * Ordena una tanda y la escribe en un fichero temporal encriptado, cada
+	 * firma como su longitud y su registro de {@link RecordCodec}.
+	 *
+	 * @param tanda la tanda
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private void escribeTanda(List<Firma> tanda) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		Collections.sort(tanda);
+		File file = Files.createTempFile(campaign.getDirectory().toPath(), RUN_PREFIX, RUN_SUFFIX).toFile();
+		tandas.add(file);
+		Files.setPosixFilePermissions(file.toPath(),
+				EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				SegmentedEncryption.create(file, campaign.getCampaignName()), SegmentedEncryption.DEFAULT_CHUNK_SIZE));
+		try {
+			for (Firma f : tanda) {
+				byte[] record = RecordCodec.encode(f);
+				dos.writeInt(record.length);
+				dos.write(record);
+			}
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Estima los bytes que ocupa una firma en memoria.
+	 *
+	 * @param f la firma
+	 * @return los bytes
+	 */
+	private static long estimaTamaño(Firma f) {
+
+		long chars = longitud(f.getNombre()) + longitud(f.getApellidos()) + longitud(f.getNumDni())
+				+ longitud(f.getFecha());
+		if (f.getDniFrontal() != null) {
+			chars += f.getDniFrontal().getPath().length();
+		}
+		if (f.getDniPosterior() != null) {
+			chars += f.getDniPosterior().getPath().length();
+		}
+		return 2 * chars + FIRMA_OVERHEAD;
+	}
+
+	/**
+	 * Longitud de una cadena que puede ser null.
+	 *
+	 * @param s la cadena
+	 * @return su longitud, 0 si es null
+	 */
+	private static int longitud(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	/**
+	 * Cursor sobre las firmas ordenadas, se ha de cerrar.
+	 */
+	public interface Cursor extends Closeable {
+
+		/**
+		 * Checks for next.
+		 *
+		 * @return true, si quedan firmas
+		 */
+		boolean hasNext();
+
+		/**
+		 * Lee la siguiente firma.
+		 *
+		 * @return la firma
+		 * @throws IOException si no quedan firmas o no se puede leer
+		 */
+		Firma next() throws IOException;
+	}
+
+	/**
+	 * Cursor sobre la tanda en memoria.
+	 */
+	private static class MemoryCursor implements Cursor {
+
+		/** El iterador de la tanda. */
+		private final Iterator<Firma> it;
+
+		/**
+		 * Instantiates a new memory cursor.
+		 *
+		 * @param it el iterador de la tanda
+		 */
+		private MemoryCursor(Iterator<Firma> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public Firma next() throws IOException {
+			if (!it.hasNext()) {
+				throw new IOException("No quedan firmas");
+			}
+			return it.next();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Cursor que mezcla las tandas de disco, tomando en cada paso la menor de
+	 * sus firmas actuales y, a igualdad, la de la tanda anterior.
+	 */
+	private class MergeCursor implements Cursor {
+
+		/** Las tandas abiertas ordenadas por su firma actual. */
+		private final PriorityQueue<Tanda> cola = new PriorityQueue<>();
+
+		/** Todas las tandas abiertas, para cerrarlas. */
+		private final List<Tanda> abiertas = new ArrayList<>();
+
+		/**
+		 * Abre una tanda y la añade a la mezcla si tiene firmas.
+		 *
+		 * @param file el fichero de la tanda
+		 * @param numero el número de la tanda
+		 *
+		 * @throws KeyStoreException the key store exception
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 * @throws NoSuchAlgorithmException the no such algorithm exception
+		 * @throws CertificateException the certificate exception
+		 * @throws UnrecoverableEntryException the unrecoverable entry exception
+		 */
+		private void abreTanda(File file, int numero) throws KeyStoreException, IOException,
+				NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+			SegmentedReader reader = SegmentedEncryption.openReader(file, campaign.getCampaignName());
+			Tanda tanda = new Tanda(numero, reader);
+			abiertas.add(tanda);
+			if (tanda.avanza()) {
+				cola.add(tanda);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !cola.isEmpty();
+		}
+
+		@Override
+		public Firma next() throws IOException {
+
+			Tanda tanda = cola.poll();
+			if (tanda == null) {
+				throw new IOException("No quedan firmas");
+			}
+			Firma f = tanda.actual;
+			if (tanda.avanza()) {
+				cola.add(tanda);
+			}
+			return f;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			IOException error = null;
+			for (Tanda tanda : abiertas) {
+				try {
+					tanda.reader.close();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			abiertas.clear();
+			cola.clear();
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * Una tanda de disco abierta y su firma actual.
+	 */
+	private static class Tanda implements Comparable<Tanda> {
+
+		/** El número de la tanda, para desempatar. */
+		private final int numero;
+
+		/** El lector de la tanda. */
+		private final SegmentedReader reader;
+
+		/** El stream de la tanda. */
+		private final DataInputStream dis;
+
+		/** La firma actual. */
+		private Firma actual;
+
+		/**
+		 * Instantiates a new tanda.
+		 *
+		 * @param numero el número de la tanda
+		 * @param reader el lector de la tanda
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private Tanda(int numero, SegmentedReader reader) throws IOException {
+			this.numero = numero;
+			this.reader = reader;
+			this.dis = new DataInputStream(new BufferedInputStream(reader.openInputStream(0)));
+		}
+
+		/**
+		 * Lee la siguiente firma de la tanda.
+		 *
+		 * @return true, si hay firma; false, si se ha terminado
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean avanza() throws IOException {
+
+			int length;
+			try {
+				length = dis.readInt();
+			} catch (EOFException e) {
+				actual = null;
+				return false;
+			}
+			byte[] record = new byte[length];
+			dis.readFully(record);
+			actual = RecordCodec.decodeFirma(record);
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Tanda o) {
+
+			int c = actual.compareTo(o.actual);
+			return c != 0 ? c : Integer.compare(numero, o.numero);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Archivo: SignatureStore.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import es.usal.tfg.imageProcessing.Firma;
+import es.usal.tfg.security.SegmentedEncryption;
+import es.usal.tfg.security.SegmentedRecordStore;
+
+/**
+ * Clase SignatureStore, la base de datos de firmas de una campaña. Guarda
+ * cada {@link Firma}, codificada con {@link RecordCodec}, como un registro de
+ * un {@link SegmentedRecordStore} en el directorio
+ * {@link SignatureStore#DIRECTORY} de la campaña, numerado por orden de
+ * llegada desde 0. Los registros JSON escritos antes de usar
+ * {@link RecordCodec} se siguen leyendo.
+ * <p>
+ * Sustituye al antiguo fichero "signatures.json", un único stream JSON
+ * encriptado que habia que desencriptar y recorrer entero para leer o contar
+ * las firmas. Al abrir la campaña el fichero antiguo se importa con
+ * {@link SignatureStore#importLegacy(Campaign, File)}.
+ * <p>
+ * Es la implementación por defecto de {@link SignatureRepository}.
+ */
+public class SignatureStore implements SignatureRepository {
+
+	/** The Constant DIRECTORY, nombre del directorio del almacén. */
+	public static final String DIRECTORY = "signatures";
+
+	/** Sufijo del directorio temporal usado al importar. */
+	private static final String IMPORT_SUFFIX = ".import";
+
+	/** Instancia de Gson para importar el fichero antiguo, es thread-safe. */
+	private static final Gson gson = new Gson();
+
+	/** El almacén de registros. */
+	private final SegmentedRecordStore store;
+
+	/**
+	 * Instantiates a new signature store.
+	 *
+	 * @param store el almacén de registros
+	 */
+	private SignatureStore(SegmentedRecordStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Abre la base de datos de firmas de una campaña, creándola si no existe.
+	 *
+	 * @param campaign la campaña
+	 * @return the signature store
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static SignatureStore open(Campaign campaign) throws IOException {
+
+		File directory = new File(campaign.getDirectory(), DIRECTORY);
+		return new SignatureStore(SegmentedRecordStore.open(directory, campaign.getCampaignName()));
+	}
+
+	/**
+	 * Importa el antiguo fichero "signatures.json" de una campaña si existe y
+	 * aún no se ha importado. Las firmas se escriben en un directorio temporal
+	 * que se renombra al terminar, por lo que una importación interrumpida se
+	 * repite entera al volver a abrir la campaña. El fichero antiguo se borra
+	 * despues.
+	 *
+	 * @param campaign la campaña
+	 * @param legacyFile el fichero antiguo
+	 * @return el número de firmas importadas, -1 si no había nada que importar
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	static long importLegacy(Campaign campaign, File legacyFile) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		File directory = new File(campaign.getDirectory(), DIRECTORY);
+		if (!legacyFile.exists()) {
+			return -1;
+		}
+		if (SegmentedRecordStore.exists(directory)) {
+			//Importación terminada, solo faltaba borrar el fichero antiguo
+			Files.delete(legacyFile.toPath());
+			return -1;
+		}
+
+		File tmpDirectory = new File(campaign.getDirectory(), DIRECTORY + IMPORT_SUFFIX);
+		borrarDirectorio(tmpDirectory);
+		SegmentedRecordStore tmpStore = SegmentedRecordStore.open(tmpDirectory, campaign.getCampaignName());
+
+		long importadas = 0;
+		if (legacyFile.length() > 0) {
+			JsonReader reader = null;
+			try {
+				InputStream cis = SegmentedEncryption.openInputStream(legacyFile, campaign.getCampaignName());
+				reader = new JsonReader(new InputStreamReader(cis, StandardCharsets.UTF_8));
+				reader.setLenient(true);
+				while (reader.hasNext()) {
+					if (!reader.peek().equals(JsonToken.BEGIN_OBJECT)) {
+						break;
+					}
+					Firma f = gson.fromJson(reader, Firma.class);
+					tmpStore.append(RecordCodec.encode(f));
+					importadas++;
+				}
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+		}
+
+		Files.move(tmpDirectory.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(legacyFile.toPath());
+
+		System.out.println("[" + new Date().toString() + "] SignatureStore " + campaign.getCampaignName() + ": "
+				+ importadas + " firmas importadas de " + legacyFile.getName());
+		return importadas;
+	}
+
+	/**
+	 * Añade una firma al final.
+	 *
+	 * @param firma la firma
+	 * @return su número de secuencia
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public long append(Firma firma) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		return store.append(RecordCodec.encode(firma));
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#appendAll(java.util.List, boolean)
+	 */
+	@Override
+	public long appendAll(List<Firma> firmas, boolean force) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		List<byte[]> registros = new ArrayList<>(firmas.size());
+		for (Firma firma : firmas) {
+			registros.add(RecordCodec.encode(firma));
+		}
+		return store.appendAll(registros, force);
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#sync()
+	 */
+	@Override
+	public void sync() throws IOException {
+		store.sync();
+	}
+
+	/**
+	 * Lee una firma por su número de secuencia.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return la firma
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no existe o no es auténtica
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	@Override
+	public Firma get(long sequence) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		return decode(store.read(sequence));
+	}
+
+	/**
+	 * Lee un rango de firmas.
+	 *
+	 * @param from la primera firma
+	 * @param to la firma siguiente a la última
+	 * @return las firmas del rango que existen
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public ArrayList<Firma> getRange(long from, long to) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		ArrayList<Firma> firmas = new ArrayList<>();
+		Cursor cursor = scan(from, to);
+		try {
+			while (cursor.hasNext()) {
+				firmas.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+		return firmas;
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#scan(long, long)
+	 */
+	@Override
+	public Cursor scan(long from, long to) throws IOException {
+		return new StoreCursor(store.scan(from, to));
+	}
+
+	/* (non-Javadoc)
+	 * @see es.usal.tfg.SignatureRepository#size()
+	 */
+	@Override
+	public long size() {
+		return store.size();
+	}
+
+	/**
+	 * Gets the record store, para reencriptar sus segmentos.
+	 *
+	 * @return the record store
+	 */
+	SegmentedRecordStore getRecordStore() {
+		return store;
+	}
+
+	/**
+	 * Convierte un registro en una firma, en el formato binario de
+	 * {@link RecordCodec} o en el JSON de los registros antiguos.
+	 *
+	 * @param record el registro
+	 * @return la firma
+	 * @throws IOException si el registro no es una firma válida
+	 */
+	private static Firma decode(byte[] record) throws IOException {
+		return RecordCodec.decodeFirma(record);
+	}
+
+	/**
+	 * Borra un directorio y su contenido si existe.
+	 *
+	 * @param directory el directorio
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void borrarDirectorio(File directory) throws IOException {
+
+		if (!directory.exists()) {
+			return;
+		}
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(java.nio.file.Path dir, IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Cursor sobre un rango de registros del almacén.
+	 */
+	private static class StoreCursor implements Cursor {
+
+		/** El cursor de registros. */
+		private final SegmentedRecordStore.Cursor cursor;
+
+		/**
+		 * Instantiates a new cursor.
+		 *
+		 * @param cursor el cursor de registros
+		 */
+		private StoreCursor(SegmentedRecordStore.Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return cursor.hasNext();
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#getPosition()
+		 */
+		@Override
+		public long getPosition() {
+			return cursor.getPosition();
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.SignatureRepository.Cursor#next()
+		 */
+		@Override
+		public Firma next() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+				UnrecoverableEntryException {
+			return decode(cursor.next());
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			cursor.close();
+		}
+	}
+}
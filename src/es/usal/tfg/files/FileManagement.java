@@ -15,9 +15,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.file.Files;
-import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
@@ -26,8 +27,6 @@ import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.util.Base64;
 import java.util.Date;
-import java.util.EnumSet;
-import java.util.Set;
 import java.util.concurrent.FutureTask;
 
 import javax.crypto.BadPaddingException;
@@ -44,7 +43,6 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
-import org.apache.commons.io.FilenameUtils;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 
@@ -52,6 +50,7 @@ import es.usal.tfg.Campaign;
 import es.usal.tfg.CampaignManagement;
 import es.usal.tfg.MyTaskExecutor;
 import es.usal.tfg.imageProcessing.ImageProcessing;
+import es.usal.tfg.security.PasswordService;
 import es.usal.tfg.security.SymmetricEncryption;
 
 /**
@@ -247,7 +246,7 @@ public class FileManagement {
 		
 		
 		ImageProcessing imgP = new ImageProcessing(c, Long.parseLong(numSignPaper));	
-		int result = imgP.imageProcessingAndOCR(dniFrontal, dniPosterior);
+		int result = imgP.imageProcessingAndOCR(dniFrontal, dniPosterior, front.getDestination(), back.getDestination());
 		
 		if (result == ImageProcessing.ERROR_INTERNO) {
 			System.err.println("["+new Date().toString()+"] Upload "+campaign+": El proceso de reconocimiento ha fallado");
@@ -288,6 +287,19 @@ public class FileManagement {
 			} catch (UnsupportedEncodingException e) {
 			}
 		}
+		else if (result == ImageProcessing.ERROR_DUPLICADO) {
+			System.err.println("["+new Date().toString()+"] Upload "+campaign+": El DNI ya ha firmado la campaa");
+
+			removeUploadedFiles(back.getFile(), front.getFile());
+			tfin = System.currentTimeMillis();	
+			System.out.println("["+new Date().toString()+"] Upload "+campaign+":Tiempo total: " + ((double)(tfin-tIni) / 1000)+ " segundos");
+			try {
+				return Response.status(409).entity(Base64.getUrlEncoder().encode(
+						"Este DNI ya ha firmado, no se puede repetir la firma".getBytes("UTF-8")))
+						.build();
+			} catch (UnsupportedEncodingException e) {
+			}
+		}
 		else if (result == ImageProcessing.ERROR_POSTERIOR) {
 			System.err.println("["+new Date().toString()+"] Upload "+campaign+": El proceso de reconocimiento posterior ha fallado");
 
@@ -304,6 +316,10 @@ public class FileManagement {
 		
 		
 		
+		//Las fotos subidas ya no hacen falta, la firma apunta a sus imagenes
+		//encriptadas de ImageStore
+		removeUploadedFiles(back.getFile(), front.getFile());
+		
 		System.out.println("["+new Date().toString()+"] Upload"+campaign+":  finalizado");
 		
 		tfin = System.currentTimeMillis();	
@@ -322,37 +338,27 @@ public class FileManagement {
 	
 
 	/**
-	 * Guarda un fichero procedente de un {@link InputStream} en una 
-	 * localización pasada por parametro. Para ello crea el fichero con 
-	 * permisos de lectura y escritura para el dueo únicamente, controlando
-	 * que no exista ya un fichero con ese nombre (en cuyo caso le aade un 
-	 * número al final) y va copiando el InputStream a un OutputStream KBi a 
-	 * KBi.
+	 * Guarda un fichero procedente de un {@link InputStream} en un fichero
+	 * ya creado con permisos de lectura y escritura para el dueo únicamente
+	 * por {@link ImageStore}, copiando el InputStream a un OutputStream KBi a 
+	 * KBi. Si falla se borra el fichero.
 	 *
 	 * @param uploadedInputStream the uploaded input stream
-	 * @param serverLocation the server location
+	 * @param file the file, vaco
 	 * @return the file guardado
 	 */
-	File saveFile(InputStream uploadedInputStream, String serverLocation) {
+	File saveFile(InputStream uploadedInputStream, File file) {
 
 		OutputStream outpuStream =null;
 		try {
 			
 			int read = 0;
 			byte[] bytes = new byte[1024];
-			Set<PosixFilePermission> perms = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
-			File file = new File(serverLocation);
-			String extension =FilenameUtils.getExtension(serverLocation);
-			int i=1;
-			
-			while (file.exists()) {
-				file = new File(serverLocation.replace("."+extension, "("+ i +")."+extension));
-				i++;
-			}
-			Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(perms));
 			
 			outpuStream = new FileOutputStream(file);
 			if (uploadedInputStream == null) {
+				outpuStream.close();
+				file.delete();
 				return null;
 			}
 			while ((read = uploadedInputStream.read(bytes)) != -1) {
@@ -373,11 +379,13 @@ public class FileManagement {
 				if (outpuStream !=null) {
 					outpuStream.close();
 				}
-				uploadedInputStream.close();
+				if (uploadedInputStream != null) {
+					uploadedInputStream.close();
+				}
 			} catch (IOException e) {}
 		}
 
-		
+		file.delete();
 		return null;
 	}
 
@@ -486,6 +494,15 @@ public class FileManagement {
 			return Response.status(500).entity(response)
 					.build();
 		
+		case CampaignManagement.LOGIN_OCUPADO:
+			
+			h1 = "Petici&oacute;n de descarga - Error";
+			mensaje = "Servidor ocupado, vuelva a intentarlo m&aacute;s tarde.";
+			response = String.format(webPageMessage, title, h1, mensaje);
+			System.err.println("[" + new Date().toString() + "] Download query "+campaignName+": Servidor ocupado");
+			return Response.status(503).header("Retry-After", PasswordService.RETRY_AFTER_SECONDS).entity(response)
+					.build();
+		
 		default:
 			return Response.status(500).build();
 
@@ -514,10 +531,7 @@ public class FileManagement {
 		
 		Campaign camp = CampaignManagement.getCampaa(campaignName);
 		
-		long numFirmas;
-		synchronized (camp) {
-			numFirmas = camp.getNumeroFirmas();
-		}
+		long numFirmas = camp.getNumeroFirmas();
 		if (numFirmas < 1) {
 			h1 = "Petici&oacute;n de descarga - Error";
 			mensaje = "Esta campa&ntilde;a no contiene ninguna firma.";
@@ -647,11 +661,17 @@ public class FileManagement {
             @Override
             public void write(java.io.OutputStream output) throws IOException, WebApplicationException 
             {
+                FileChannel pdfChannel = null;
                 try
                 {
-                    
-                    byte[] data = Files.readAllBytes(pdfFileFinal.toPath());
-                    output.write(data);
+                    //Se envia el PDF por canales en vez de cargarlo entero
+                    //en memoria
+                    pdfChannel = FileChannel.open(pdfFileFinal.toPath(), StandardOpenOption.READ);
+                    WritableByteChannel outChannel = Channels.newChannel(output);
+                    long position = 0, size = pdfChannel.size();
+                    while (position < size) {
+                        position += pdfChannel.transferTo(position, size - position, outChannel);
+                    }
                     output.flush();
                 } 
                 catch (IOException e) 
@@ -659,6 +679,9 @@ public class FileManagement {
                 	System.err.println("[" + new Date().toString() + "] Download "+campaignName+": Error enviando el PDF");
                     throw new WebApplicationException("Error enviando PDF");
                 } finally {
+                	if (pdfChannel != null) {
+                		pdfChannel.close();
+                	}
 					output.close();
 				}
             }
@@ -0,0 +1,207 @@
+/*
+ * Archivo: ImageStore.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.crypto.Mac;
+
+import com.google.common.io.BaseEncoding;
+
+import es.usal.tfg.Campaign;
+import es.usal.tfg.security.SymmetricEncryption;
+
+/**
+ * Clase ImageStore, organiza las imagenes de los DNI de una campaña por el
+ * contenido de la foto subida.
+ * <p>
+ * Cada foto se recibe en un temporal con nombre único dentro de
+ * {@link ImageStore#DIRECTORY}, calculando su SHA-256 mientras se copia, y su
+ * imagen encriptada se guarda en "imagenes/ab/cd/abcd....jpg", con el
+ * HMAC-SHA256 de ese hash con la clave de
+ * {@link SymmetricEncryption#getImageNameKey(String)}, derivada de la de la
+ * campaña, y dos niveles de subdirectorios con sus primeros caracteres. Sin
+ * la clave el nombre no permite comprobar si se ha subido una foto concreta.
+ * Asignar el nombre no recorre el directorio, ningún directorio crece más
+ * allá de unos pocos ficheros por cada 65536 firmas y dos subidas idénticas
+ * comparten la misma imagen. La ruta se guarda en la
+ * {@link es.usal.tfg.imageProcessing.Firma}, por lo que las imagenes
+ * anteriores siguen en el directorio de la campaña.
+ */
+public class ImageStore {
+
+	/** Directorio de las imagenes dentro del de la campaña. */
+	public static final String DIRECTORY = "imagenes";
+
+	/** Prefijo de los temporales con las fotos subidas. */
+	static final String UPLOAD_PREFIX = "subida";
+
+	/** Sufijo de los temporales. */
+	static final String TMP_SUFFIX = ".tmp";
+
+	/** Extensión de las imagenes guardadas. */
+	private static final String EXTENSION = ".jpg";
+
+	/** Algoritmo de hash del contenido. */
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	/** Algoritmo con el que se nombran las imagenes. */
+	private static final String NAME_ALGORITHM = "HmacSHA256";
+
+	/** Permisos de lectura, escritura y ejecución para el dueño únicamente. */
+	private static final FileAttribute<Set<PosixFilePermission>> PERMS_RWX = PosixFilePermissions.asFileAttribute(
+			EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE));
+
+	/** Permisos de lectura y escritura para el dueño únicamente. */
+	private static final FileAttribute<Set<PosixFilePermission>> PERMS_RW = PosixFilePermissions
+			.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+
+	/**
+	 * Instantiates a new image store, no se instancia.
+	 */
+	private ImageStore() {
+	}
+
+	/**
+	 * Gets the directory de las imagenes de una campaña.
+	 *
+	 * @param campaign la campaña
+	 * @return the directory
+	 */
+	public static File getDirectory(Campaign campaign) {
+		return new File(campaign.getDirectory(), DIRECTORY);
+	}
+
+	/**
+	 * Crea un temporal vacío con nombre único en el que recibir una foto.
+	 *
+	 * @param campaign la campaña
+	 * @return el temporal
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static File createUpload(Campaign campaign) throws IOException {
+
+		File directory = getDirectory(campaign);
+		Files.createDirectories(directory.toPath(), PERMS_RWX);
+		return Files.createTempFile(directory.toPath(), UPLOAD_PREFIX, TMP_SUFFIX, PERMS_RW).toFile();
+	}
+
+	/**
+	 * Nuevo {@link MessageDigest} con el que calcular el hash de una foto.
+	 *
+	 * @return the message digest
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 */
+	static MessageDigest newDigest() throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance(HASH_ALGORITHM);
+	}
+
+	/**
+	 * Fichero en el que se guarda la imagen de una foto con determinado hash,
+	 * no se crea. Su nombre es el HMAC del hash con la clave de imagenes de
+	 * la campaña, nunca el propio hash.
+	 *
+	 * @param campaign la campaña
+	 * @param hash el hash de la foto subida
+	 * @return the file
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	static File locate(Campaign campaign, byte[] hash) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, InvalidKeyException {
+
+		Mac mac = Mac.getInstance(NAME_ALGORITHM);
+		mac.init(SymmetricEncryption.getImageNameKey(campaign.getCampaignName()));
+		String hex = BaseEncoding.base16().lowerCase().encode(mac.doFinal(hash));
+		File directory = new File(new File(getDirectory(campaign), hex.substring(0, 2)), hex.substring(2, 4));
+		return new File(directory, hex + EXTENSION);
+	}
+
+	/**
+	 * Crea un temporal junto al destino de una imagen, creando sus
+	 * subdirectorios si no existen, en el que escribirla antes de publicarla
+	 * con {@link ImageStore#publish(File, File)}.
+	 *
+	 * @param destination el destino de la imagen
+	 * @return el temporal
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static File createTemp(File destination) throws IOException {
+
+		Files.createDirectories(destination.getParentFile().toPath(), PERMS_RWX);
+		return Files.createTempFile(destination.getParentFile().toPath(), destination.getName(), TMP_SUFFIX, PERMS_RW)
+				.toFile();
+	}
+
+	/**
+	 * Renombra de forma atómica el temporal a su destino. Si otra subida
+	 * idéntica lo ha publicado antes se sustituye, ambas son la misma imagen.
+	 *
+	 * @param tmp el temporal
+	 * @param destination el destino
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void publish(File tmp, File destination) throws IOException {
+		Files.move(tmp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Borra los temporales que hubiese dejado una parada del servidor en
+	 * mitad de una subida. Se invoca al inicializar la campaña, antes de que
+	 * reciba subidas.
+	 *
+	 * @param campaign la campaña
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void deleteTemporaries(final Campaign campaign) throws IOException {
+
+		File directory = getDirectory(campaign);
+		if (!directory.isDirectory()) {
+			return;
+		}
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+				if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+					Files.delete(file);
+					System.out.println("[" + new Date().toString() + "] ImageStore " + campaign.getCampaignName()
+							+ ": borrado temporal " + file.getFileName());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
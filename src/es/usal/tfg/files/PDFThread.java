@@ -12,7 +12,7 @@ package es.usal.tfg.files;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
@@ -22,17 +22,16 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
-import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.imageio.ImageIO;
 
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
@@ -42,10 +41,6 @@ import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 
-import com.google.gson.Gson;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
-
 import be.quodlibet.boxable.BaseTable;
 import be.quodlibet.boxable.Cell;
 import be.quodlibet.boxable.HorizontalAlignment;
@@ -53,8 +48,10 @@ import be.quodlibet.boxable.Row;
 import be.quodlibet.boxable.VerticalAlignment;
 import es.usal.tfg.Campaign;
 import es.usal.tfg.CampaignManagement;
+import es.usal.tfg.SignatureRepository;
+import es.usal.tfg.SignatureSorter;
 import es.usal.tfg.imageProcessing.Firma;
-import es.usal.tfg.security.SymmetricEncryption;
+import es.usal.tfg.security.SegmentedEncryption;
 
 /**
  * Clase PDFThread que contiene el metodo necesario para montar un PDF con las
@@ -67,6 +64,13 @@ public class PDFThread implements Callable<File> {
 	 */
 	public static final int NUMERO_DNI_X_HOJA = 5;
 	
+	/**
+	 * PDF_MEMORY, bytes del PDF en construcción que se mantienen en memoria, el
+	 * resto va a un fichero temporal. Se puede cambiar con la propiedad del
+	 * sistema "es.usal.tfg.pdfMemoryBytes".
+	 */
+	public static final long PDF_MEMORY = Long.getLong("es.usal.tfg.pdfMemoryBytes", 32L * 1024 * 1024);
+	
 	/** La campaña de la que se recuperarán los DNI */
 	private Campaign campaign; 
 	
@@ -100,21 +104,20 @@ public class PDFThread implements Callable<File> {
 		
 		System.out.println("[" + new Date().toString() + "] PDFThread "+campaignName+": Iniciado");
 		
-		//Inicialización del documento PDF
-		PDDocument doc = new PDDocument();
+		//Inicialización del documento PDF, las imagenes que no caben en
+		//PDF_MEMORY bytes se guardan en un fichero temporal de la campaña
+		PDDocument doc = new PDDocument(MemoryUsageSetting.setupMixed(PDF_MEMORY).setTempDir(campaign.getDirectory()));
 		PDPageContentStream contents = null;
 		
 				
 		// Calculo del numero de paginas que ocupara el pdf de la peticion en funcion 
 		// del numero de firmas que tiene y el numero de dnis por pagina
-		long numFirmas;
-		synchronized (campaign) {
-			numFirmas = campaign.getNumeroFirmas();
-		}
+		long numFirmas = campaign.getNumeroFirmas();
 		System.out.println("[" + new Date().toString() + "] PDFThread "+campaignName+": numero de firmas: "+numFirmas);
 		
-		//Recuperación del todas las firmas de la peticion
-		ArrayList<Firma> firmas = null;
+		//Recuperación del todas las firmas de la peticion ordenadas por el
+		//numero de la hoja de firmas, sin cargarlas todas en memoria
+		SignatureSorter firmas = null;
 		try {
 			firmas = retrieveFirmas();
 		} catch (InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
@@ -131,10 +134,6 @@ public class PDFThread implements Callable<File> {
 			return null;
 		} 
 		
-		//Se ordenan por el numero de la hoja de firmas
-		Collections.sort(firmas);
-		
-	
 		
 		//Entran 5 firmas por cada hoja
 		long numHojasTotales = numFirmas/ NUMERO_DNI_X_HOJA;
@@ -166,11 +165,20 @@ public class PDFThread implements Callable<File> {
 		String[] pieDePagComponentes = new String[pieDePagComponentesInit.length];
 		
 		
-		CipherInputStream cisFrontal = null, cisTrasero=null;
+		InputStream cisFrontal = null, cisTrasero=null;
+		SignatureSorter.Cursor cursor = null;
+		
+		//Ventana con la firma actual y las siguientes de su pagina, que se
+		//necesitan para el pie de pagina
+		ArrayDeque<Firma> ventana = new ArrayDeque<>(NUMERO_DNI_X_HOJA);
 		try {	
-			for (int i = 0; i < firmas.size(); i++) {
+			cursor = firmas.open();
+			for (int i = 0; cursor.hasNext() || !ventana.isEmpty(); i++) {
 				
-				Firma f = firmas.get(i);
+				while (ventana.size() < NUMERO_DNI_X_HOJA && cursor.hasNext()) {
+					ventana.add(cursor.next());
+				}
+				Firma f = ventana.poll();
 				
 				
 				//Si el modulo es 0 es necesario añadir una nueva pagina al pdf
@@ -200,15 +208,12 @@ public class PDFThread implements Callable<File> {
 					pieDePagHojaFirmas+=numHojaDeFirmas[0];
 					int k=1;
 					
-					for (int j = i+1; j < i+NUMERO_DNI_X_HOJA; j++) {
+					for (Firma temp : ventana) {
 						
-						if (j< firmas.size()) {
-							Firma temp = firmas.get(j);
-							if (numHojaDeFirmas[k-1] != temp.getNumHojaFirmas()) {
-								numHojaDeFirmas[k] = temp.getNumHojaFirmas();	
-								pieDePagHojaFirmas+=", "+numHojaDeFirmas[k];
-								k++;
-							}
+						if (numHojaDeFirmas[k-1] != temp.getNumHojaFirmas()) {
+							numHojaDeFirmas[k] = temp.getNumHojaFirmas();	
+							pieDePagHojaFirmas+=", "+numHojaDeFirmas[k];
+							k++;
 						}
 					}
 					pieDePagComponentes[1] = pieDePagHojaFirmas;
@@ -250,8 +255,8 @@ public class PDFThread implements Callable<File> {
 				}
 					
 				//Creacion de streams para desencriptar las 2 fotos de esta firma y lectura de las imagenes
-				cisFrontal = SymmetricEncryption.decryptFileUsingKey(f.getDniFrontal(), campaignName);
-				cisTrasero = SymmetricEncryption.decryptFileUsingKey(f.getDniPosterior(), campaignName);
+				cisFrontal = SegmentedEncryption.openInputStream(f.getDniFrontal(), campaignName);
+				cisTrasero = SegmentedEncryption.openInputStream(f.getDniPosterior(), campaignName);
 				
 				
 				
@@ -286,10 +291,6 @@ public class PDFThread implements Callable<File> {
 							(pageHeight / NUMERO_DNI_X_HOJA) - 2);
 				}
 				
-				if (f.getNumHojaDNIs() != doc.getDocumentCatalog().getPages().getCount()) {
-					f.setNumHojaDNIs(doc.getDocumentCatalog().getPages().getCount());
-				}	
-			
 			}
 		} catch (IOException | InvalidKeyException | KeyStoreException | NoSuchAlgorithmException | CertificateException
 				| UnrecoverableEntryException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
@@ -304,6 +305,7 @@ public class PDFThread implements Callable<File> {
 					doc.close();
 				}
 			} catch (IOException e1) {}
+			firmas.close();
 			return null;
 		} finally {
 			try {
@@ -311,6 +313,10 @@ public class PDFThread implements Callable<File> {
 					contents.close();
 					contents = null;
 				}				
+				if (cursor != null) {
+					cursor.close();
+					cursor = null;
+				}
 				if (cisFrontal != null) {
 					cisFrontal.close();
 				}
@@ -360,6 +366,7 @@ public class PDFThread implements Callable<File> {
 					doc.close();
 				}
 			} catch (IOException e1) {}
+			firmas.close();
 			return null;
 		}
 		System.out.println("[" + new Date().toString() + "] PDFThread "+campaignName+": Tabla creada, pasando a rellenarla");
@@ -397,33 +404,57 @@ public class PDFThread implements Callable<File> {
 		//Rellenado de la tabla, cuando se haya llenado una pagina la librería se encarga de añadir una nueva
 		//e incluir la cabecera de la tabla en cada página
 		
-		for (int i = 0; i < firmas.size(); i++) {
+		//Las firmas se vuelven a recorrer en el mismo orden, la hoja de DNIs
+		//de cada una es la pagina en la que se ha dibujado
+		try {
+			cursor = firmas.open();
+			for (int i = 0; cursor.hasNext(); i++) {
 			
-			Firma firma = firmas.get(i);
+				Firma firma = cursor.next();
 			
-			Row<PDPage> row = table.createRow(8f);
-			cell = row.createCell((100 / 7f)/2f, Integer.toString(i+1));
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f), firma.getNumDni());
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f) * (3f/2f), firma.getNombre());
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f) * 2f, firma.getApellidos());
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f), firma.getFecha());
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f) /2f, Long.toString(firma.getNumHojaFirmas()));
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
-			cell = row.createCell((100 / 7f) /2f, Long.toString(firma.getNumHojaDNIs()));
-			cell.setFont(PDType1Font.HELVETICA);
-			cell.setFontSize(8);
+				Row<PDPage> row = table.createRow(8f);
+				cell = row.createCell((100 / 7f)/2f, Integer.toString(i+1));
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f), firma.getNumDni());
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f) * (3f/2f), firma.getNombre());
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f) * 2f, firma.getApellidos());
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f), firma.getFecha());
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f) /2f, Long.toString(firma.getNumHojaFirmas()));
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
+				cell = row.createCell((100 / 7f) /2f, Long.toString(i / NUMERO_DNI_X_HOJA + 1));
+				cell.setFont(PDType1Font.HELVETICA);
+				cell.setFontSize(8);
 			
+			}
+		} catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException e) {
+			System.err.println("[" + new Date().toString() + "] PDFThread "+campaignName+": Error recuperando las firmas para la tabla");
+			e.printStackTrace();
+
+			try {
+				if (doc!=null) {
+
+					doc.close();
+				}
+			} catch (IOException e1) {}
+			return null;
+		} finally {
+			try {
+				if (cursor != null) {
+					cursor.close();
+				}
+			} catch (IOException e1) {}
+			firmas.close();
 		}
 	
 		
@@ -480,11 +511,11 @@ public class PDFThread implements Callable<File> {
 	}
 	
 	/**
-	 * Método que recupera todas la firmas de una campaña accediendo para ello
-	 * a la base de datos de firmas de esta, desencriptando elemento a elemento
-	 * y añadiendolo a un {@link ArrayList}.
+	 * Método que recupera todas la firmas de una campaña recorriendo su
+	 * {@link SignatureRepository} y ordenándolas por el número de hoja de firmas
+	 * con {@link SignatureSorter}, en memoria acotada.
 	 *
-	 * @return Arraylist de firmas construido
+	 * @return las firmas ordenadas, que se han de cerrar
 	 * 
 	 * @throws InvalidKeyException the invalid key exception
 	 * @throws KeyStoreException the key store exception
@@ -494,49 +525,12 @@ public class PDFThread implements Callable<File> {
 	 * @throws NoSuchPaddingException the no such padding exception
 	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
 	 * @throws IOException Signals that an I/O exception has occurred.
-	 * 
-	 * @see <a href="https://sites.google.com/site/gson/streaming">Referencia</a>
 	 */
-	public ArrayList<Firma> retrieveFirmas()
+	public SignatureSorter retrieveFirmas()
 			throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException,
 			UnrecoverableEntryException, NoSuchPaddingException, InvalidAlgorithmParameterException, IOException {
 		
-		Gson gson = new Gson();
-
-		ArrayList<Firma> firmas = new ArrayList<>();
-
-		Firma f;
-
-		JsonReader reader = null;
-		CipherInputStream cis = null;
-		synchronized (campaign.lockDataBase) {
-			try {
-				cis = SymmetricEncryption.decryptFileUsingKey(campaign.getDataBase(), campaign.getCampaignName());
-
-				reader = new JsonReader(new InputStreamReader(cis, "UTF-8"));
-
-				reader.setLenient(true);
-				while (reader.hasNext()) {
-					JsonToken token = reader.peek();
-					if (!token.equals(JsonToken.BEGIN_OBJECT)) {
-						break;
-					}
-					f = gson.fromJson(reader, Firma.class);
-					firmas.add(f);
-				}
-
-			} finally {
-				if (reader != null) {
-					reader.close();
-				}
-				if (cis != null) {
-					cis.close();
-				}
-			}
-
-		}
-		return firmas;
-
+		return SignatureSorter.sort(campaign);
 	}
 
 	/**
@@ -10,9 +10,17 @@
 package es.usal.tfg.files;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Date;
 
-import org.glassfish.jersey.media.multipart.ContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 
@@ -22,8 +30,10 @@ import es.usal.tfg.Campaign;
  * Clase UploadThread empleada para guardar las fotografías mandadas el servidor,
  * A partir de formulario que se le envía a 
  * {@link FileManagement#upload(FormDataMultiPart)} extrae la foto concreta para
- * la que haya sido instanciado y la guarda en disco usando el método 
- * {@link FileManagement#saveFile(InputStream, String)}
+ * la que haya sido instanciado y la guarda en un temporal de 
+ * {@link ImageStore} usando el método 
+ * {@link FileManagement#saveFile(InputStream, File)}, calculando a la vez su
+ * hash para saber dónde se guardará su imagen encriptada.
  */
 public class UploadThread implements Runnable {
 
@@ -42,9 +52,12 @@ public class UploadThread implements Runnable {
 	 */
 	private FileManagement fileManagement;
 	
-	/** The file. */
+	/** The file, el temporal con la foto subida. */
 	private File file;
 	
+	/** The destination, donde se guardará la imagen encriptada. */
+	private File destination;
+	
 	/** The campaign. */
 	private Campaign campaign;
 	
@@ -61,6 +74,7 @@ public class UploadThread implements Runnable {
 		this.form = form;
 		this.fileManagement = fileUpload;
 		this.file=null;
+		this.destination=null;
 		this.campaign = campaign;
 	}
 	
@@ -72,18 +86,23 @@ public class UploadThread implements Runnable {
 
 		FormDataBodyPart filePart = form.getField(field);
 
-		ContentDisposition headerOfFilePart = filePart.getContentDisposition();
-
 		InputStream fileInputStream = filePart.getValueAs(InputStream.class);
 
-		String filePath = campaign.getDirectory().getAbsolutePath() + "/"
-				+ headerOfFilePart.getFileName();
-
-		// save the file to the server
-		file = fileManagement.saveFile(fileInputStream, filePath);
-
-		if (file != null) {
-			exito = true;
+		try {
+			// save the file to the server, el nombre del temporal es único
+			// por lo que no hay que buscar uno libre
+			MessageDigest digest = ImageStore.newDigest();
+			file = fileManagement.saveFile(new DigestInputStream(fileInputStream, digest),
+					ImageStore.createUpload(campaign));
+			
+			if (file != null) {
+				destination = ImageStore.locate(campaign, digest.digest());
+				exito = true;
+			}
+		} catch (IOException | NoSuchAlgorithmException | KeyStoreException | CertificateException
+				| UnrecoverableEntryException | InvalidKeyException e) {
+			System.err.println("["+new Date().toString()+"] Upload "+campaign.getCampaignName()+": Error creando el fichero de "+field);
+			e.printStackTrace();
 		}
 	}
 
@@ -104,4 +123,13 @@ public class UploadThread implements Runnable {
 	public File getFile() {
 		return file;
 	}
+	
+	/**
+	 * Gets the destination.
+	 *
+	 * @return the destination
+	 */
+	public File getDestination() {
+		return destination;
+	}
 }
@@ -80,6 +80,32 @@ public class Firma implements Comparable<Firma>{
 
 	}
 
+	/**
+	 * Crea una instancia de firma con una fecha ya conocida, para reconstruir
+	 * una firma guardada.
+	 *
+	 * @param dniFrontal the dni frontal
+	 * @param dniPosterior the dni posterior
+	 * @param nombre the nombre
+	 * @param apellidos the apellidos
+	 * @param numDni the num dni
+	 * @param fecha the fecha
+	 * @param numHojaFirmas the num hoja firmas
+	 * @param numHojaDNIs the num hoja DN is
+	 */
+	public Firma(File dniFrontal, File dniPosterior, String nombre, String apellidos, String numDni, String fecha,
+			long numHojaFirmas, long numHojaDNIs) {
+
+		this.dniFrontal = dniFrontal;
+		this.dniPosterior = dniPosterior;
+		this.nombre = nombre;
+		this.apellidos = apellidos;
+		this.numDni = numDni;
+		this.fecha = fecha;
+		this.numHojaFirmas = numHojaFirmas;
+		this.numHojaDNIs = numHojaDNIs;
+	}
+
 	/**
 	 * Gets the nombre.
 	 *
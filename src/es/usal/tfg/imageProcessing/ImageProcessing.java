@@ -13,10 +13,8 @@ import java.awt.FlowLayout;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
@@ -26,11 +24,10 @@ import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -48,14 +45,12 @@ import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import es.usal.tfg.Campaign;
 import es.usal.tfg.CampaignManagement;
-import es.usal.tfg.files.PDFThread;
+import es.usal.tfg.DniIndex;
+import es.usal.tfg.SignatureCommitQueue;
 import es.usal.tfg.imageProcessing.ImageProcessingThread.CaraDni;
-import es.usal.tfg.security.SymmetricEncryption;
+import es.usal.tfg.security.CryptoService;
 import net.sourceforge.tess4j.ITesseract;
 import net.sourceforge.tess4j.Tesseract;
 import net.sourceforge.tess4j.TesseractException;
@@ -142,6 +137,13 @@ public class ImageProcessing {
 	 */
 	public static final int ERROR_AMBOS = 5;
 	
+	/** 
+	 * Constante ERROR_DUPLICADO usada como valor de retorno para identificar 
+	 * cuando el procesamiento ha finalizado porque el DNI de la cara frontal
+	 * ya ha firmado la campaña (o lo está haciendo en otra subida).
+	 */
+	public static final int ERROR_DUPLICADO = 6;
+	
 
 	/** 
 	 * Constante THRESHOLD_OCR que marca el valor inicial de threshold para
@@ -171,6 +173,12 @@ public class ImageProcessing {
 	/** Número de la hoja de firmas que tiene este DNI. */
 	private long numSignPaper;
 	
+	/**
+	 * Si la firma ya se ha entregado a la {@link SignatureCommitQueue}, que
+	 * desde entonces confirma o libera la reserva de su DNI.
+	 */
+	private boolean firmaEncolada = false;
+	
 	/**
 	 * Bloque estatico (que se ejecuta una única vez independientemente del 
 	 * número de instancias) empleado para cargar la libería nativa 
@@ -199,10 +207,14 @@ public class ImageProcessing {
 	
 	/**
 	 * Método principal de la clase, recibe dos {@link File} que representan 
-	 * las dos fotografías (ambas caras del DNI) sobre las que se trabajara.
+	 * las dos fotografías (ambas caras del DNI) sobre las que se trabajara y
+	 * los dos {@link File} de {@link es.usal.tfg.files.ImageStore} en los que
+	 * se guardarán sus imagenes encriptadas.
 	 * <p>
 	 * Se encarga de crear los {@link ImageProcessingThread} para detectar cara, 
-	 * recoger sus resultados, crear una instancia de {@link Firma} con ellos, 
+	 * recoger sus resultados, comprobar con el {@link DniIndex} de la campaña
+	 * que el DNI no ha firmado ya (en cuanto termina la cara frontal, sin
+	 * esperar a la posterior), crear una instancia de {@link Firma} con ellos, 
 	 * guardar en la base de datos de la campaña dicha firma así como las 
 	 * imagenes de los DNI cortados.
 	 *
@@ -210,12 +222,17 @@ public class ImageProcessing {
 	 *            the dni frontal
 	 * @param dniPosterior
 	 *            the dni posterior
+	 * @param destinoFrontal
+	 *            donde se guarda la imagen frontal encriptada
+	 * @param destinoPosterior
+	 *            donde se guarda la imagen posterior encriptada
 	 *            
 	 * @return {@link ImageProcessing#CORRECTO}, 
 	 * {@link ImageProcessing#ERROR_INTERNO}, 
 	 * {@link ImageProcessing#ERROR_AMBOS},  
 	 * {@link ImageProcessing#ERROR_FRONTAL}, 
-	 * {@link ImageProcessing#ERROR_POSTERIOR} o
+	 * {@link ImageProcessing#ERROR_POSTERIOR}, 
+	 * {@link ImageProcessing#ERROR_DUPLICADO} o
 	 * {@link ImageProcessing#ERROR_TIMEOUT}  
 	 * 
 	 * @see <a href=
@@ -236,11 +253,7 @@ public class ImageProcessing {
 	 */
 	
 	
-	public int imageProcessingAndOCR(File dniFrontal, File dniPosterior) {
-
-		
-	
-		Mat  dniCortadoFrontal = new Mat(), dniCortadoPosterior = new Mat();
+	public int imageProcessingAndOCR(File dniFrontal, File dniPosterior, File destinoFrontal, File destinoPosterior) {
 
 		System.out.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Iniciado");
 		
@@ -258,19 +271,94 @@ public class ImageProcessing {
 		new Thread(hFrontal).start();
 		new Thread(hPosterior).start();
 		
+		long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(DETECTION_TIMEOUT);
+		DniIndex dniIndex = null;
+		String numDni = null;
 		try {
-			if (ImageProcessingThread.getSemaforo().tryAcquire(2, DETECTION_TIMEOUT, TimeUnit.SECONDS)==false) {
+			if (hFrontal.await(DETECTION_TIMEOUT, TimeUnit.SECONDS)==false) {
 				System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Ha pasado el timeout de "+DETECTION_TIMEOUT+
 						" segundos");
-				
+				hPosterior.cancel();
 				return ERROR_TIMEOUT;
 			}
 		} catch (InterruptedException e1) {
 			System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Error esperando el procesamiento");
 			e1.printStackTrace();
-			
+			hPosterior.cancel();
+			return ERROR_INTERNO;
+		}
+		
+		if (hFrontal.isExito()) {
+			//Con el numero de DNI ya se puede saber si esta repetido, antes de
+			//esperar al OCR posterior y de guardar nada
+			numDni = hFrontal.getNumDni();
+			try {
+				dniIndex = campaign.getDniIndex();
+				if (!dniIndex.reserve(numDni)) {
+					System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": El DNI "
+							+ numDni + " ya ha firmado la campaña");
+					hPosterior.cancel();
+					return ERROR_DUPLICADO;
+				}
+			} catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+					| UnrecoverableEntryException e) {
+				System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": "
+						+ "Error comprobando si el DNI esta repetido");
+				e.printStackTrace();
+				hPosterior.cancel();
+				return ERROR_INTERNO;
+			}
+		}
+		
+		int resultado = ERROR_INTERNO;
+		try {
+			resultado = guardaFirma(hFrontal, hPosterior, destinoFrontal, destinoPosterior, dniIndex, limite);
+			return resultado;
+		} finally {
+			//Una vez encolada la firma puede estar escrita aunque la espera
+			//haya fallado, la reserva la confirma o libera la cola
+			if (dniIndex != null && resultado != CORRECTO && !firmaEncolada) {
+				dniIndex.release(numDni);
+			}
+		}
+	}
+	
+	/**
+	 * Espera al procesamiento de la cara posterior y, si ambas caras son
+	 * correctas, guarda las imagenes encriptadas y la firma en la base de
+	 * datos de la campaña, confirmando la reserva de su DNI en el
+	 * {@link DniIndex}.
+	 *
+	 * @param hFrontal el hilo de la cara frontal, ya terminado
+	 * @param hPosterior el hilo de la cara posterior
+	 * @param destinoFrontal donde se guarda la imagen frontal encriptada
+	 * @param destinoPosterior donde se guarda la imagen posterior encriptada
+	 * @param dniIndex el índice con el DNI reservado, null si la cara frontal
+	 *            ha fallado
+	 * @param limite el {@link System#nanoTime()} hasta el que se espera al
+	 *            hilo posterior
+	 * @return el resultado, como en
+	 *         {@link ImageProcessing#imageProcessingAndOCR(File, File, File, File)}
+	 */
+	private int guardaFirma(ImageProcessingThread hFrontal, ImageProcessingThread hPosterior, File destinoFrontal,
+			File destinoPosterior, DniIndex dniIndex, long limite) {
+		
+		Mat  dniCortadoFrontal = new Mat(), dniCortadoPosterior = new Mat();
+		
+		try {
+			if (hPosterior.await(limite - System.nanoTime(), TimeUnit.NANOSECONDS)==false) {
+				System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Ha pasado el timeout de "+DETECTION_TIMEOUT+
+						" segundos");
+				hPosterior.cancel();
+				return ERROR_TIMEOUT;
+			}
+		} catch (InterruptedException e1) {
+			System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Error esperando el procesamiento");
+			e1.printStackTrace();
+			hPosterior.cancel();
 			return ERROR_INTERNO;
 		}
+		
 		if (!hFrontal.isExito() || !hPosterior.isExito()) {
 			//Alguno de los hilos no ha logrado detectar texto
 			
@@ -302,16 +390,16 @@ public class ImageProcessing {
 				+ "falta escribir los resultados en disco");
 		long tIni =0, tfin=0;
 		tIni = System.currentTimeMillis();
-		SaveEncryptedImage sFrontal = new SaveEncryptedImage(dniCortadoFrontal, dniFrontal, campaign), 
-				sPosterior = new SaveEncryptedImage(dniCortadoPosterior, dniPosterior, campaign);
+		SaveEncryptedImage sFrontal = new SaveEncryptedImage(dniCortadoFrontal, destinoFrontal, campaign), 
+				sPosterior = new SaveEncryptedImage(dniCortadoPosterior, destinoPosterior, campaign);
 		
-		Thread tF = new Thread(sFrontal), tP = new Thread(sPosterior);
-		tF.start(); tP.start();
+		//Las imagenes se encriptan en el executor acotado de CryptoService,
+		//si esta saturado la tarea se rechaza y la imagen cuenta como fallida
+		CompletableFuture<Void> fF = CryptoService.run(sFrontal), fP = CryptoService.run(sPosterior);
 		
 		try {
-			tF.join(0);
-			tP.join(0);
-		} catch (InterruptedException e1) {
+			CompletableFuture.allOf(fF, fP).get();
+		} catch (InterruptedException | ExecutionException e1) {
 			System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": Error guardando las imagenes encriptadas");
 			
 			e1.printStackTrace();
@@ -342,60 +430,26 @@ public class ImageProcessing {
 		System.out.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": "
 				+ "Tiempo total guardando encriptado: " + ((double)(tfin-tIni) / 1000)+ " segundos");
 		
-		long numFirmas;
-		synchronized (campaign) {
-			numFirmas = campaign.getNumeroFirmas() + 1;
-			campaign.setNumeroFirmas(numFirmas);
-		}
-		
-		//Entran 5 firmas por cada hoja
-		long numHojaDNI = numFirmas/ PDFThread.NUMERO_DNI_X_HOJA;
-		
-		//Si el modulo es distinto de 0 significa que tenemos que sumar otra hoja
-		if (numFirmas % PDFThread.NUMERO_DNI_X_HOJA > 0) {
-			numHojaDNI++;
-		}
-		
-		Firma firma = new Firma(dniFrontal.getAbsoluteFile(), dniPosterior.getAbsoluteFile(), nombre, apellidos, numDni,
-				numSignPaper, numHojaDNI);
+		//La hoja de DNIs depende del numero de secuencia de la firma, la
+		//fija la cola de escritura al guardarla
+		Firma firma = new Firma(destinoFrontal.getAbsoluteFile(), destinoPosterior.getAbsoluteFile(), nombre, apellidos, numDni,
+				numSignPaper, 0);
 
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-	
-		
-		File signaturesDB = campaign.getDataBase();
-		BufferedWriter wr=null;
-		CipherOutputStream cos = null;
 		try {
 			
-			synchronized (campaign.lockDataBase) {
-				cos = SymmetricEncryption.appendAES(signaturesDB, campaign.getCampaignName());
-				wr = new BufferedWriter(new OutputStreamWriter(cos));
-				gson.toJson(firma, wr);
-				
-				wr.close();
-				wr = null;
-			}
-			
-			
+			//La cola agrupa las firmas que llegan a la vez en un solo lote y
+			//confirma la reserva del DNI cuando la firma es durable
+			SignatureCommitQueue commitQueue = campaign.getCommitQueue();
+			firmaEncolada = true;
+			commitQueue.submit(firma).get();
 			
-		} catch (IOException | InvalidKeyException | IllegalArgumentException | KeyStoreException
-				| NoSuchAlgorithmException | CertificateException | UnrecoverableEntryException
-				| InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException
-				| BadPaddingException e) {
+		} catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException | InterruptedException | ExecutionException e) {
 			System.err.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": "
 					+ "Error escribiendo la firma en la base de datos de la campaña");
 			e.printStackTrace();
 			return ERROR_INTERNO;
 		}
-		finally {
-			try {
-				if (wr != null)
-				{
-					wr.flush();
-					wr.close();
-				}
-			} catch (IOException e) {}
-		}
 		
 		System.out.println("["+new Date().toString()+"] imageProcessingAndOCR "+campaign.getCampaignName()+": "
 				+ "Exito escribiendo los resultados en disco");
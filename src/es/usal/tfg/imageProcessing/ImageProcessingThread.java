@@ -12,7 +12,8 @@ package es.usal.tfg.imageProcessing;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
@@ -36,15 +37,6 @@ public class ImageProcessingThread implements Runnable {
 		/** The posterior. */
 		POSTERIOR};
 
-	/**
-	 * Semaforo usado para controlar cuando han acabado ambos hilos, antes de
-	 * finalizar estos realizan un {@link Semaphore#release()} y la clase
-	 * {@link ImageProcessing} realiza un 
-	 * {@link Semaphore#tryAcquire(int, long, java.util.concurrent.TimeUnit)} 
-	 * de dos unidades.
-	 */
-	private static Semaphore semaforo = new Semaphore(0);
-
 	/**
 	 * The Constant MAX_OCR que controla el número máximo de intentos del
 	 * proceso OCR antes de declarar un OCR como fallido.
@@ -87,7 +79,20 @@ public class ImageProcessingThread implements Runnable {
 	 * Flag usado para determinar si ha finalizado el procesamiento de DNI con
 	 * exito. 
 	 */
-	private boolean exito;
+	private volatile boolean exito;
+	
+	/**
+	 * Latch que se abre al terminar el hilo, con o sin exito. Es de cada
+	 * instancia para que {@link ImageProcessing} pueda esperar a cada cara por
+	 * separado y las subidas simultaneas no se mezclen.
+	 */
+	private final CountDownLatch terminado = new CountDownLatch(1);
+	
+	/**
+	 * Flag para abandonar el procesamiento cuando ya no se necesita su
+	 * resultado, se comprueba entre un intento y el siguiente.
+	 */
+	private volatile boolean cancelado = false;
 	
 	/**
 	 * Crea una nueva instancia de esta clase con los parametros que se le 
@@ -114,6 +119,18 @@ public class ImageProcessingThread implements Runnable {
 	 */
 	@Override
 	public void run() {
+		try {
+			procesa();
+		} finally {
+			terminado.countDown();
+		}
+	}
+
+	/**
+	 * Detecta el DNI y hace el OCR de su cara, dejando el resultado en los
+	 * campos de la instancia.
+	 */
+	private void procesa() {
 		Size s;
 		double aspectRatio = -1;
 		double correccionThresh = 0;
@@ -126,7 +143,8 @@ public class ImageProcessingThread implements Runnable {
 		
 		//Trying to detect the dni until the detected contour has a similar aspect ratio than the original dni
 		do {
-			if ((aspectRatio = imProcessing.detectaDni(dni, s, ImageProcessing.THRESHOLD_THRESH-correccionThresh)) == -1) {
+			if (cancelado || (aspectRatio = imProcessing.detectaDni(dni, s, ImageProcessing.THRESHOLD_THRESH-correccionThresh)) == -1) {
+				exito = false;
 				return;
 			}
 			
@@ -167,7 +185,8 @@ public class ImageProcessingThread implements Runnable {
 				do {
 					dniThresh = imProcessing.imageProcessingPreOCR(dniCortadoOCR,
 							ImageProcessing.THRESHOLD_OCR - correccionThresh);
-					if ((ocr = imProcessing.OCRMat(dniThresh, config)) == null) {
+					if (cancelado || (ocr = imProcessing.OCRMat(dniThresh, config)) == null) {
+						exito = false;
 						return;
 					}
 					if (ImageProcessing.DEBUG) {
@@ -229,7 +248,8 @@ public class ImageProcessingThread implements Runnable {
 				do {
 					dniThresh = imProcessing.imageProcessingPreOCR(dniCortadoOCR,
 							ImageProcessing.THRESHOLD_OCR - correccionThresh);
-					if ((ocr = imProcessing.OCRMat(dniThresh, config)) == null) {
+					if (cancelado || (ocr = imProcessing.OCRMat(dniThresh, config)) == null) {
+						exito = false;
 						return;
 					}
 					if (ImageProcessing.DEBUG) {
@@ -323,9 +343,6 @@ public class ImageProcessingThread implements Runnable {
 				}
 			}
 		}
-		ImageProcessingThread.semaforo.release();
-		
-		
 	}
 
 	/**
@@ -365,12 +382,23 @@ public class ImageProcessingThread implements Runnable {
 	}
 
 	/**
-	 * Gets the semaforo.
+	 * Espera a que termine el hilo.
 	 *
-	 * @return the semaforo
+	 * @param timeout el tiempo mximo de espera
+	 * @param unit la unidad del tiempo
+	 * @return true, si ha terminado; false, si ha pasado el tiempo
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminado.await(timeout, unit);
+	}
+
+	/**
+	 * Pide al hilo que abandone el procesamiento en el siguiente intento
+	 * porque ya no se necesita su resultado.
 	 */
-	public static Semaphore getSemaforo() {
-		return semaforo;
+	public void cancel() {
+		cancelado = true;
 	}
 
 	/**
@@ -12,29 +12,29 @@ package es.usal.tfg.imageProcessing;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 
-import javax.crypto.CipherOutputStream;
-import javax.crypto.NoSuchPaddingException;
 import javax.imageio.ImageIO;
 
 import org.opencv.core.Mat;
 
 import es.usal.tfg.Campaign;
-import es.usal.tfg.security.SymmetricEncryption;
+import es.usal.tfg.files.ImageStore;
+import es.usal.tfg.security.SegmentedEncryption;
+import es.usal.tfg.security.SegmentedOutputStream;
 
 
 /**
  * Clase SaveEncryptedImage usada para poder guardar en paralelo las imagenes 
  * de los DNI recortados encriptados.
  * <p>
- * Simplemente abre el fichero de destino para desencripcion y escribe en él
- * la imagen.
+ * Escribe la imagen encriptada en un temporal junto al destino y lo renombra
+ * al destino con {@link ImageStore#publish(File, File)}. Como el destino se
+ * nombra por el hash de la foto subida, si ya existe es que se subió antes la
+ * misma foto y no se vuelve a escribir.
  */
 public class SaveEncryptedImage implements Runnable {
 
@@ -69,12 +69,19 @@ public class SaveEncryptedImage implements Runnable {
 	@Override
 	public void run() {
 		
+		if (destination.exists()) {
+			exito = true;
+			return;
+		}
+		
 		BufferedImage dniImage = ImageProcessing.Mat2BufferedImage(image);
 		
 		
-		CipherOutputStream cos = null;
+		SegmentedOutputStream cos = null;
+		File tmp = null;
 		try {
-			cos = SymmetricEncryption.encryptFileUsingKey(destination, campaign.getCampaignName());
+			tmp = ImageStore.createTemp(destination);
+			cos = SegmentedEncryption.create(tmp, campaign.getCampaignName());
 			/**
 			 * Para incrementar velocidad con imagenes pequeñas
 			 * @reference http://stackoverflow.com/questions/18522398/fastest-way-to-read-write-images-from-a-file-into-abufferedimage
@@ -83,10 +90,14 @@ public class SaveEncryptedImage implements Runnable {
 			
 			ImageIO.setUseCache(false);
 			ImageIO.write(dniImage, "jpg", cos);
+			cos.close();
+			cos = null;
+			
+			ImageStore.publish(tmp, destination);
+			tmp = null;
 			
 			exito=true;
-		} catch (InvalidKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException
-				| NoSuchPaddingException | InvalidAlgorithmParameterException | UnrecoverableEntryException
+		} catch (NoSuchAlgorithmException | KeyStoreException | CertificateException | UnrecoverableEntryException
 				| IOException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -97,6 +108,9 @@ public class SaveEncryptedImage implements Runnable {
 					cos.close();
 				}
 			} catch (IOException e){}
+			if (tmp != null) {
+				tmp.delete();
+			}
 		}
 		
 		return;
@@ -0,0 +1,196 @@
+/*
+ * Archivo: BoundedExecutor.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clase BoundedExecutor, un executor con un número fijo de hilos y una cola
+ * acotada que usan {@link CryptoService} y {@link PasswordService}.
+ * <p>
+ * Cada tarea devuelve un {@link CompletableFuture}; si la cola está llena la
+ * tarea no se encola y el future se completa con una
+ * {@link RejectedExecutionException}, que el llamante puede traducir a un
+ * error de servidor ocupado. Lleva la cuenta de las tareas aceptadas,
+ * rechazadas y de sus tiempos medios de espera y ejecución.
+ */
+class BoundedExecutor {
+
+	/** El nombre, prefijo de sus hilos. */
+	private final String name;
+
+	/** Número de hilos. */
+	private final int threads;
+
+	/** Número máximo de tareas esperando. */
+	private final int queueCapacity;
+
+	/** El executor. */
+	private final ThreadPoolExecutor executor;
+
+	/** Número de tareas aceptadas. */
+	private final AtomicLong submitted = new AtomicLong();
+
+	/** Número de tareas terminadas correctamente. */
+	private final AtomicLong completed = new AtomicLong();
+
+	/** Número de tareas terminadas con una excepción. */
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Número de tareas rechazadas por estar la cola llena. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Suma en nanosegundos del tiempo que las tareas esperan en la cola. */
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	/** Suma en nanosegundos del tiempo de ejecución de las tareas. */
+	private final AtomicLong totalRunNanos = new AtomicLong();
+
+	/**
+	 * Instantiates a new bounded executor, sus hilos terminan tras un minuto
+	 * sin tareas.
+	 *
+	 * @param name el nombre, prefijo de sus hilos
+	 * @param threads número de hilos
+	 * @param queueCapacity número máximo de tareas esperando
+	 */
+	BoundedExecutor(final String name, int threads, int queueCapacity) {
+
+		this.name = name;
+		this.threads = threads;
+		this.queueCapacity = queueCapacity;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Ejecuta una tarea.
+	 *
+	 * @param <T> el tipo del resultado
+	 * @param task la tarea
+	 * @return el future que se completa con su resultado o su excepción, o
+	 *         con una {@link RejectedExecutionException} si la cola está
+	 *         llena
+	 */
+	<T> CompletableFuture<T> submit(final Callable<T> task) {
+
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		final long enqueued = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+
+					long start = System.nanoTime();
+					totalWaitNanos.addAndGet(start - enqueued);
+					if (future.isDone()) {
+						return;
+					}
+					try {
+						T result = task.call();
+						completed.incrementAndGet();
+						future.complete(result);
+					} catch (Throwable e) {
+						failed.incrementAndGet();
+						future.completeExceptionally(e);
+					} finally {
+						totalRunNanos.addAndGet(System.nanoTime() - start);
+					}
+				}
+			});
+			submitted.incrementAndGet();
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Gets the queue size, número de tareas esperando.
+	 *
+	 * @return the queue size
+	 */
+	int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Gets the active count, número de tareas ejecutándose.
+	 *
+	 * @return the active count
+	 */
+	int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Gets the rejected, número de tareas rechazadas.
+	 *
+	 * @return the rejected
+	 */
+	long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Devuelve una cadena con los contadores del executor para mostrarla por
+	 * pantalla.
+	 *
+	 * @param label el nombre con el que se muestra
+	 * @return the stats
+	 */
+	String getStats(String label) {
+
+		long done = completed.get() + failed.get();
+		double avgWait = done == 0 ? 0 : totalWaitNanos.get() / 1e6 / done;
+		double avgRun = done == 0 ? 0 : totalRunNanos.get() / 1e6 / done;
+
+		return String.format("%s hilos: %d, activas: %d, en cola: %d/%d, aceptadas: %d, completadas: %d, "
+				+ "fallidas: %d, rechazadas: %d, espera media: %.2f ms, ejecucion media: %.2f ms",
+				label, threads, executor.getActiveCount(), executor.getQueue().size(), queueCapacity,
+				submitted.get(), completed.get(), failed.get(), rejected.get(), avgWait, avgRun);
+	}
+
+	/**
+	 * Para el executor dejando terminar las tareas ya aceptadas.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+}
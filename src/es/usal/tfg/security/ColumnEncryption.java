@@ -0,0 +1,126 @@
+/*
+ * Archivo: ColumnEncryption.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Clase ColumnEncryption, encriptado de valores sueltos, como las columnas de
+ * una base de datos, con AES-GCM y la versión actual de la clave de un alias.
+ * <p>
+ * Formato de un valor encriptado:
+ * <pre>
+ * versión de la clave (4) | nonce (12) | texto cifrado | tag (16)
+ * </pre>
+ * Como la versión va en el propio valor, los valores escritos antes de rotar
+ * una clave con {@link KeyRotation} se siguen pudiendo leer. El contexto que
+ * se pasa al encriptar (por ejemplo la tabla y la clave primaria de la fila)
+ * se autentica como AAD, por lo que un valor no se puede mover a otra fila.
+ */
+public class ColumnEncryption {
+
+	/** Bytes que ocupa un valor encriptado además de su texto en claro. */
+	public static final int OVERHEAD = 4 + SegmentedEncryption.NONCE_LENGTH + SegmentedEncryption.TAG_LENGTH;
+
+	/**
+	 * Encripta un valor con la versión actual de la clave de un alias.
+	 *
+	 * @param plain el valor en claro
+	 * @param keyAlias el alias de la clave
+	 * @param context el contexto que se autentica con el valor
+	 * @return el valor encriptado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no se puede encriptar
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static byte[] encrypt(byte[] plain, String keyAlias, byte[] context) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		int version = SymmetricEncryption.getKeyVersion(keyAlias);
+		SecretKey key = SymmetricEncryption.getSecretKey(keyAlias, version);
+
+		byte[] nonce = new byte[SegmentedEncryption.NONCE_LENGTH];
+		CryptoPool.getSecureRandom().nextBytes(nonce);
+
+		ByteBuffer output = ByteBuffer.allocate(plain.length + OVERHEAD);
+		output.putInt(version);
+		output.put(nonce);
+
+		Cipher cipher = null;
+		try {
+			cipher = CryptoPool.acquireCipher(CryptoPool.AES_GCM);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(SegmentedEncryption.TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(context);
+			cipher.doFinal(ByteBuffer.wrap(plain), output);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error encriptando un valor con la clave " + keyAlias, e);
+		} finally {
+			CryptoPool.releaseCipher(CryptoPool.AES_GCM, cipher);
+		}
+		return output.array();
+	}
+
+	/**
+	 * Desencripta un valor con la versión de la clave que indica.
+	 *
+	 * @param value el valor encriptado
+	 * @param keyAlias el alias de la clave
+	 * @param context el contexto con el que se encriptó
+	 * @return el valor en claro
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si el valor no es auténtico
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static byte[] decrypt(byte[] value, String keyAlias, byte[] context) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		if (value.length < OVERHEAD) {
+			throw new IOException("Valor encriptado demasiado corto: " + value.length + " bytes");
+		}
+		ByteBuffer input = ByteBuffer.wrap(value);
+		int version = input.getInt();
+		byte[] nonce = new byte[SegmentedEncryption.NONCE_LENGTH];
+		input.get(nonce);
+		SecretKey key = SymmetricEncryption.getSecretKey(keyAlias, version);
+
+		Cipher cipher = null;
+		try {
+			cipher = CryptoPool.acquireCipher(CryptoPool.AES_GCM);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SegmentedEncryption.TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(context);
+			ByteBuffer plain = ByteBuffer.allocate(value.length - OVERHEAD);
+			cipher.doFinal(input, plain);
+			return plain.array();
+		} catch (AEADBadTagException e) {
+			throw new IOException("Valor encriptado no auténtico con la clave " + keyAlias, e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error desencriptando un valor con la clave " + keyAlias, e);
+		} finally {
+			CryptoPool.releaseCipher(CryptoPool.AES_GCM, cipher);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Archivo: Compaction.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Clase Compaction, compactado en línea de un fichero por fragmentos de
+ * {@link SegmentedEncryption} que solo crece añadiendo registros al final.
+ * <p>
+ * Compactar un fichero consiste en:
+ * <ol>
+ * <li>Con el lock del fichero, tomar el número de fragmentos que tiene. Las
+ * escrituras solo añaden fragmentos nuevos, por lo que esos fragmentos ya no
+ * cambian y terminan en el final de un registro.</li>
+ * <li>Sin el lock, pasar esos fragmentos por un {@link Compactor} que escribe
+ * los registros que se conservan en una foto compactada junto al original,
+ * en un fichero temporal propio de este compactado.</li>
+ * <li>Sin el lock, copiar a la foto los fragmentos añadidos mientras tanto.</li>
+ * <li>Con el lock, copiar los últimos fragmentos añadidos y renombrar la foto
+ * sobre el original.</li>
+ * </ol>
+ * Así los lectores y escritores del fichero solo esperan al cambio final. Los
+ * que ya lo tenían abierto siguen leyendo el fichero antiguo, como con
+ * {@link KeyRotation#reencrypt(File, String, Object)}.
+ * <p>
+ * El lock del fichero no separa dos compactados del mismo fichero: quien los
+ * lance ha de serializarlos, o el segundo perdería los cambios del primero.
+ */
+public class Compaction {
+
+	/**
+	 * Sufijo de los ficheros temporales creados al compactar, que se llaman
+	 * como el fichero, un punto, un número aleatorio y este sufijo.
+	 */
+	public static final String COMPACTION_SUFFIX = ".compact";
+
+	/**
+	 * Interfaz Compactor, lo que decide qué registros se conservan.
+	 */
+	public interface Compactor {
+
+		/**
+		 * Lee los registros de la foto fija del fichero y escribe los que se
+		 * conservan. No debe cerrar ninguno de los dos streams.
+		 *
+		 * @param in el contenido en claro de los fragmentos a compactar
+		 * @param out el contenido en claro de la foto compactada
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void compact(InputStream in, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Compacta un fichero por fragmentos. Los ficheros antiguos AES/CBC se
+	 * convierten antes con {@link KeyRotation#prepare(File, String, Object)}.
+	 * <p>
+	 * Si el fichero se ha borrado o sustituido por otro (por ejemplo al
+	 * reencriptarlo) durante el compactado no se modifica y se devuelve false,
+	 * la siguiente pasada lo volverá a intentar.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param lock el lock que protege las escrituras del fichero
+	 * @param compactor el que decide qué registros se conservan
+	 * @return true, si se ha compactado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static boolean compact(File file, String keyAlias, Object lock, Compactor compactor)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		if (!file.exists() || file.length() == 0) {
+			return false;
+		}
+		KeyRotation.prepare(file, keyAlias, lock);
+		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ,
+				PosixFilePermission.OWNER_WRITE);
+		File tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName() + ".",
+				COMPACTION_SUFFIX, PosixFilePermissions.asFileAttribute(permsRW)).toFile();
+
+		SegmentedReader reader = null;
+		SegmentedOutputStream sos = null;
+		boolean moved = false;
+		try {
+			long snapshot;
+			synchronized (lock) {
+				reader = SegmentedEncryption.openReader(file, keyAlias);
+				snapshot = reader.getChunkCount();
+			}
+
+			sos = SegmentedEncryption.create(tmp, keyAlias);
+
+			InputStream in = reader.openInputStream(0, snapshot);
+			try {
+				compactor.compact(in, sos);
+			} finally {
+				in.close();
+			}
+			sos.endChunk();
+
+			long replayed = 0;
+			long copied = snapshot;
+			long count;
+			while (copied < (count = reader.getChunkCount())) {
+				replayed += copyChunks(reader, sos, copied, count);
+				copied = count;
+			}
+
+			synchronized (lock) {
+				if (!file.exists() || !reader.isSameFile(file)) {
+					return false;
+				}
+				count = reader.getChunkCount();
+				replayed += copyChunks(reader, sos, copied, count);
+				sos.close();
+				sos = null;
+
+				FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+				try {
+					channel.force(true);
+				} finally {
+					channel.close();
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				moved = true;
+			}
+
+			System.out.println("[" + new Date().toString() + "] Compaction: " + file.getName() + " compactado, "
+					+ snapshot + " fragmentos, " + replayed + " bytes escritos durante el compactado");
+			return true;
+
+		} finally {
+			try {
+				if (sos != null) {
+					sos.close();
+				}
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+				if (!moved) {
+					Files.deleteIfExists(tmp.toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Borra los ficheros temporales de compactados de un fichero que quedaron
+	 * a medias al parar el servidor. Solo se ha de llamar cuando no se está
+	 * compactando el fichero, al arrancar.
+	 *
+	 * @param file el fichero
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void deleteTemporaries(File file) throws IOException {
+
+		File[] temporales = file.getAbsoluteFile().getParentFile().listFiles();
+		if (temporales == null) {
+			return;
+		}
+		for (File tmp : temporales) {
+			String name = tmp.getName();
+			if (name.startsWith(file.getName() + ".") && name.endsWith(COMPACTION_SUFFIX)) {
+				Files.deleteIfExists(tmp.toPath());
+				System.out.println("[" + new Date().toString() + "] Compaction: borrado temporal " + name);
+			}
+		}
+	}
+
+	/**
+	 * Copia en claro un rango de fragmentos de un lector a un stream, cada uno
+	 * como un fragmento propio.
+	 *
+	 * @param reader el lector
+	 * @param sos el stream de destino
+	 * @param from el primer fragmento
+	 * @param to el fragmento siguiente al último
+	 * @return los bytes copiados
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static long copyChunks(SegmentedReader reader, SegmentedOutputStream sos, long from, long to)
+			throws IOException {
+
+		long bytes = 0;
+		for (long i = from; i < to; i++) {
+			byte[] plain = reader.readChunk(i);
+			sos.write(plain);
+			sos.endChunk();
+			bytes += plain.length;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * Archivo: CryptoPool.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Clase CryptoPool que centraliza los recursos criptograficos reutilizables
+ * del paquete de seguridad: un pool de instancias de {@link Cipher} por
+ * transformación, un pool de {@link ByteBuffer} directos para los fragmentos
+ * de {@link SegmentedEncryption}, un único {@link SecureRandom} no
+ * bloqueante compartido y el {@link ForkJoinPool} donde se encriptan y
+ * desencriptan en paralelo los fragmentos de los ficheros grandes.
+ * <p>
+ * Obtener un {@link Cipher} con {@link Cipher#getInstance(String)} implica
+ * buscar el proveedor en cada llamada y crear un {@link SecureRandom} nuevo
+ * implica sembrarlo, ambas cosas se hacian en cada encriptación. Con esta
+ * clase los {@link Cipher} se toman del pool, se inicializan de nuevo (lo que
+ * resetea su estado) y se devuelven al terminar, ya sea explicitamente con
+ * {@link CryptoPool#releaseCipher(String, Cipher)} o al cerrar los streams
+ * creados con {@link CryptoPool#newOutputStream(OutputStream, String, Cipher)}
+ * y {@link CryptoPool#newInputStream(InputStream, String, Cipher)}.
+ * <p>
+ * Los buffers directos permiten que {@link Cipher} y {@link java.nio.channels.FileChannel}
+ * trabajen sin copias intermedias a arrays del heap; como reservarlos es caro
+ * se obtienen con {@link CryptoPool#acquireBuffer(int)} y se devuelven con
+ * {@link CryptoPool#releaseBuffer(ByteBuffer)}.
+ * <p>
+ * Los contadores permiten conocer la tasa de reutilización mediante
+ * {@link CryptoPool#getStats()}.
+ */
+public class CryptoPool {
+
+	/** Transformación usada para los ficheros y arrays encriptados con AES. */
+	public static final String AES_CBC = "AES/CBC/PKCS5PADDING";
+
+	/** Transformación usada para los fragmentos de {@link SegmentedEncryption}. */
+	public static final String AES_GCM = "AES/GCM/NoPadding";
+
+	/**
+	 * The Constant MAX_IDLE_CIPHERS que controla el número máximo de
+	 * {@link Cipher} libres que se guardan por cada transformación, los que se
+	 * devuelvan con el pool lleno se descartan.
+	 */
+	private static final int MAX_IDLE_CIPHERS = 64;
+
+	/**
+	 * The Constant BUFFER_SIZE, capacidad de los buffers del pool: un
+	 * fragmento completo de {@link SegmentedEncryption} con su estructura.
+	 */
+	public static final int BUFFER_SIZE = SegmentedEncryption.DEFAULT_CHUNK_SIZE + SegmentedEncryption.CHUNK_OVERHEAD;
+
+	/** The Constant MAX_IDLE_BUFFERS, número máximo de buffers libres. */
+	private static final int MAX_IDLE_BUFFERS = 32;
+
+	/** Pools de {@link Cipher} libres indexados por su transformación. */
+	private static final ConcurrentHashMap<String, ArrayBlockingQueue<Cipher>> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * Generador de números aleatorios compartido por todo el paquete, es
+	 * thread-safe. Se intenta usar un DRBG y si no existe (Java 8) la
+	 * implementación nativa no bloqueante que lee de /dev/urandom.
+	 */
+	private static final SecureRandom secureRandom = createSecureRandom();
+
+	/** Pool de buffers directos libres de capacidad {@link CryptoPool#BUFFER_SIZE}. */
+	private static final ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_IDLE_BUFFERS);
+
+	/**
+	 * Pool de hilos para encriptar y desencriptar fragmentos en paralelo, con
+	 * un hilo por procesador. Es propio de la aplicación para no competir con
+	 * el pool común de la JVM.
+	 */
+	private static final ForkJoinPool parallelPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/** Número de buffers directos reservados. */
+	private static final AtomicLong buffersCreated = new AtomicLong();
+
+	/** Número de buffers obtenidos del pool. */
+	private static final AtomicLong buffersReused = new AtomicLong();
+
+	/** Número de {@link Cipher} creados porque el pool estaba vacío. */
+	private static final AtomicLong ciphersCreated = new AtomicLong();
+
+	/** Número de {@link Cipher} obtenidos del pool. */
+	private static final AtomicLong ciphersReused = new AtomicLong();
+
+	/** Número de {@link Cipher} descartados por estar el pool lleno. */
+	private static final AtomicLong ciphersDiscarded = new AtomicLong();
+
+	/**
+	 * Crea el {@link SecureRandom} compartido.
+	 *
+	 * @return the secure random
+	 */
+	private static SecureRandom createSecureRandom() {
+
+		String[] algorithms = { "DRBG", "NativePRNGNonBlocking" };
+		for (String algorithm : algorithms) {
+			try {
+				return SecureRandom.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+
+			}
+		}
+		return new SecureRandom();
+	}
+
+	/**
+	 * Gets the secure random compartido.
+	 *
+	 * @return the secure random
+	 */
+	public static SecureRandom getSecureRandom() {
+		return secureRandom;
+	}
+
+	/**
+	 * Gets the parallel pool.
+	 *
+	 * @return the parallel pool
+	 */
+	public static ForkJoinPool getParallelPool() {
+		return parallelPool;
+	}
+
+	/**
+	 * Obtiene un {@link Cipher} de la transformación indicada, del pool si
+	 * hay alguno libre o creando uno nuevo en caso contrario. Siempre ha de
+	 * inicializarse con {@link Cipher#init} antes de usarlo.
+	 *
+	 * @param transformation la transformación, p.ej. {@link CryptoPool#AES_CBC}
+	 * @return the cipher
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 */
+	public static Cipher acquireCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+
+		Cipher cipher = getPool(transformation).poll();
+		if (cipher != null) {
+			ciphersReused.incrementAndGet();
+			return cipher;
+		}
+		ciphersCreated.incrementAndGet();
+		return Cipher.getInstance(transformation);
+	}
+
+	/**
+	 * Devuelve un {@link Cipher} al pool. No se debe volver a usar despues de
+	 * devolverlo.
+	 *
+	 * @param transformation la transformación con la que se obtuvo
+	 * @param cipher the cipher
+	 */
+	public static void releaseCipher(String transformation, Cipher cipher) {
+
+		if (cipher == null) {
+			return;
+		}
+		if (!getPool(transformation).offer(cipher)) {
+			ciphersDiscarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Obtiene un {@link ByteBuffer} directo vacío con el límite en la
+	 * capacidad pedida. Si cabe en {@link CryptoPool#BUFFER_SIZE} se toma del
+	 * pool, si no se reserva uno del tamaño exacto que no se reutiliza.
+	 *
+	 * @param capacity la capacidad necesaria en bytes
+	 * @return the byte buffer
+	 */
+	public static ByteBuffer acquireBuffer(int capacity) {
+
+		ByteBuffer buffer = null;
+		if (capacity <= BUFFER_SIZE) {
+			buffer = buffers.poll();
+			if (buffer != null) {
+				buffersReused.incrementAndGet();
+			} else {
+				buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				buffersCreated.incrementAndGet();
+			}
+		} else {
+			buffer = ByteBuffer.allocateDirect(capacity);
+			buffersCreated.incrementAndGet();
+		}
+		buffer.clear();
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Devuelve un buffer al pool. No se debe volver a usar despues de
+	 * devolverlo.
+	 *
+	 * @param buffer the buffer
+	 */
+	public static void releaseBuffer(ByteBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != BUFFER_SIZE) {
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Crea un {@link CipherOutputStream} que devuelve su {@link Cipher} al
+	 * pool cuando se cierra.
+	 *
+	 * @param os el stream de salida
+	 * @param transformation la transformación del cipher
+	 * @param cipher el cipher ya inicializado
+	 * @return the cipher output stream
+	 */
+	public static CipherOutputStream newOutputStream(OutputStream os, String transformation, Cipher cipher) {
+		return new PooledCipherOutputStream(os, transformation, cipher);
+	}
+
+	/**
+	 * Crea un {@link CipherInputStream} que devuelve su {@link Cipher} al
+	 * pool cuando se cierra.
+	 *
+	 * @param is el stream de entrada
+	 * @param transformation la transformación del cipher
+	 * @param cipher el cipher ya inicializado
+	 * @return the cipher input stream
+	 */
+	public static CipherInputStream newInputStream(InputStream is, String transformation, Cipher cipher) {
+		return new PooledCipherInputStream(is, transformation, cipher);
+	}
+
+	/**
+	 * Obtiene (o crea) el pool de una transformación.
+	 *
+	 * @param transformation the transformation
+	 * @return the pool
+	 */
+	private static ArrayBlockingQueue<Cipher> getPool(String transformation) {
+
+		ArrayBlockingQueue<Cipher> pool = pools.get(transformation);
+		if (pool == null) {
+			pools.putIfAbsent(transformation, new ArrayBlockingQueue<Cipher>(MAX_IDLE_CIPHERS));
+			pool = pools.get(transformation);
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the ciphers created.
+	 *
+	 * @return the ciphers created
+	 */
+	public static long getCiphersCreated() {
+		return ciphersCreated.get();
+	}
+
+	/**
+	 * Gets the ciphers reused.
+	 *
+	 * @return the ciphers reused
+	 */
+	public static long getCiphersReused() {
+		return ciphersReused.get();
+	}
+
+	/**
+	 * Gets the ciphers discarded.
+	 *
+	 * @return the ciphers discarded
+	 */
+	public static long getCiphersDiscarded() {
+		return ciphersDiscarded.get();
+	}
+
+	/**
+	 * Devuelve una cadena con los contadores y la tasa de reutilización de
+	 * {@link Cipher} para mostrarla por pantalla.
+	 *
+	 * @return the stats
+	 */
+	public static String getStats() {
+
+		long created = ciphersCreated.get();
+		long reused = ciphersReused.get();
+		long total = created + reused;
+		double reuseRate = total == 0 ? 0 : (100.0 * reused) / total;
+
+		return String.format("Cipher creados: %d, reutilizados: %d, descartados: %d, tasa de reutilizacion: %.2f%%; "
+				+ "buffers creados: %d, reutilizados: %d",
+				created, reused, ciphersDiscarded.get(), reuseRate, buffersCreated.get(), buffersReused.get());
+	}
+
+	/**
+	 * {@link CipherOutputStream} que devuelve su {@link Cipher} al pool una
+	 * única vez al cerrarse.
+	 */
+	private static class PooledCipherOutputStream extends CipherOutputStream {
+
+		/** The transformation. */
+		private final String transformation;
+
+		/** The cipher. */
+		private final Cipher cipher;
+
+		/** Flag para no devolver dos veces el mismo cipher al pool. */
+		private boolean closed = false;
+
+		/**
+		 * Instantiates a new pooled cipher output stream.
+		 *
+		 * @param os the os
+		 * @param transformation the transformation
+		 * @param cipher the cipher
+		 */
+		PooledCipherOutputStream(OutputStream os, String transformation, Cipher cipher) {
+			super(os, cipher);
+			this.transformation = transformation;
+			this.cipher = cipher;
+		}
+
+		/* (non-Javadoc)
+		 * @see javax.crypto.CipherOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				releaseCipher(transformation, cipher);
+			}
+		}
+	}
+
+	/**
+	 * {@link CipherInputStream} que devuelve su {@link Cipher} al pool una
+	 * única vez al cerrarse.
+	 */
+	private static class PooledCipherInputStream extends CipherInputStream {
+
+		/** The transformation. */
+		private final String transformation;
+
+		/** The cipher. */
+		private final Cipher cipher;
+
+		/** Flag para no devolver dos veces el mismo cipher al pool. */
+		private boolean closed = false;
+
+		/**
+		 * Instantiates a new pooled cipher input stream.
+		 *
+		 * @param is the is
+		 * @param transformation the transformation
+		 * @param cipher the cipher
+		 */
+		PooledCipherInputStream(InputStream is, String transformation, Cipher cipher) {
+			super(is, cipher);
+			this.transformation = transformation;
+			this.cipher = cipher;
+		}
+
+		/* (non-Javadoc)
+		 * @see javax.crypto.CipherInputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				releaseCipher(transformation, cipher);
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Archivo: CryptoService.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Clase CryptoService que ejecuta el trabajo criptográfico bloqueante
+ * (cargas del keystore y encriptado de ficheros) en un executor propio y
+ * acotado en lugar de en los hilos de Tomcat que atienden las peticiones. Los
+ * hash PBKDF2 de las contraseñas van aparte, en {@link PasswordService}.
+ * <p>
+ * Cada operación devuelve un {@link CompletableFuture}, de modo que quien la
+ * invoca puede componerlas o esperar solo lo necesario. El executor tiene
+ * {@link CryptoService#THREADS} hilos y una cola de como mucho
+ * {@link CryptoService#QUEUE_CAPACITY} tareas; si la cola está llena la tarea
+ * no se encola y el future se completa con una
+ * {@link RejectedExecutionException}, que el llamante puede traducir a un
+ * error de servidor ocupado.
+ * <p>
+ * Los contadores de {@link CryptoService#getStats()} permiten ver la carga,
+ * los rechazos y los tiempos medios de espera y ejecución.
+ */
+public class CryptoService {
+
+	/**
+	 * The Constant THREADS, número de hilos del executor. Por defecto uno por
+	 * procesador, se puede cambiar con la propiedad del sistema
+	 * "es.usal.tfg.cryptoThreads".
+	 */
+	public static final int THREADS = Integer.getInteger("es.usal.tfg.cryptoThreads",
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The Constant QUEUE_CAPACITY, número máximo de tareas esperando. Se puede
+	 * cambiar con la propiedad del sistema "es.usal.tfg.cryptoQueue".
+	 */
+	public static final int QUEUE_CAPACITY = Integer.getInteger("es.usal.tfg.cryptoQueue", 256);
+
+	/** El executor de las tareas criptográficas. */
+	private static final BoundedExecutor executor = new BoundedExecutor("crypto", THREADS, QUEUE_CAPACITY);
+
+	/**
+	 * Ejecuta una tarea en el executor criptográfico.
+	 *
+	 * @param <T> el tipo del resultado
+	 * @param task la tarea
+	 * @return el future que se completa con su resultado o su excepción, o
+	 *         con una {@link RejectedExecutionException} si la cola está
+	 *         llena
+	 */
+	public static <T> CompletableFuture<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Ejecuta una tarea sin resultado en el executor criptográfico.
+	 *
+	 * @param task la tarea
+	 * @return el future que se completa al terminar
+	 */
+	public static CompletableFuture<Void> run(final Runnable task) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				task.run();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Encripta un array de bytes con
+	 * {@link SymmetricEncryption#encryptUsingKey(byte[], String)}.
+	 *
+	 * @param input el array de entrada
+	 * @param keyAlias el alias de la clave
+	 * @return el future con el array encriptado
+	 */
+	public static CompletableFuture<byte[]> encryptUsingKey(final byte[] input, final String keyAlias) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return SymmetricEncryption.encryptUsingKey(input, keyAlias);
+			}
+		});
+	}
+
+	/**
+	 * Desencripta un array de bytes con
+	 * {@link SymmetricEncryption#decryptUsingKey(byte[], String)}.
+	 *
+	 * @param input el array encriptado
+	 * @param keyAlias el alias de la clave
+	 * @return el future con el array desencriptado
+	 */
+	public static CompletableFuture<byte[]> decryptUsingKey(final byte[] input, final String keyAlias) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return SymmetricEncryption.decryptUsingKey(input, keyAlias);
+			}
+		});
+	}
+
+	/**
+	 * Genera un token de sesión con {@link SessionToken#issue(String, String)}.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @param registrationId el registration id de la campaña
+	 * @return el future con el token
+	 */
+	public static CompletableFuture<String> issueSessionToken(final String campaignName,
+			final String registrationId) {
+		return submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return SessionToken.issue(campaignName, registrationId);
+			}
+		});
+	}
+
+	/**
+	 * Gets the queue size, número de tareas esperando.
+	 *
+	 * @return the queue size
+	 */
+	public static int getQueueSize() {
+		return executor.getQueueSize();
+	}
+
+	/**
+	 * Gets the active count, número de tareas ejecutándose.
+	 *
+	 * @return the active count
+	 */
+	public static int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Gets the rejected, número de tareas rechazadas.
+	 *
+	 * @return the rejected
+	 */
+	public static long getRejected() {
+		return executor.getRejected();
+	}
+
+	/**
+	 * Devuelve una cadena con los contadores del executor para mostrarla por
+	 * pantalla.
+	 *
+	 * @return the stats
+	 */
+	public static String getStats() {
+		return executor.getStats("CryptoService");
+	}
+
+	/**
+	 * Para el executor al destruir el contexto, dejando terminar las tareas
+	 * ya aceptadas.
+	 */
+	public static void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Archivo: KeyDerivation.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Clase KeyDerivation que implementa la derivación de claves HKDF con
+ * HMAC-SHA256 descrita en el
+ * <a href="https://tools.ietf.org/html/rfc5869">RFC 5869</a>.
+ * <p>
+ * Se usa para obtener la clave de datos de cada campaña a partir de la clave
+ * "master_key" del keystore, el nombre de la campaña y una versión, de modo
+ * que registrar una campaña no necesita escribir en el keystore y recuperar
+ * su clave es un cálculo de coste constante. También deriva, con otra sal, la
+ * clave con la que se firman los {@link SessionToken tokens de sesión}.
+ */
+public class KeyDerivation {
+
+	/** The Constant HMAC_ALGORITHM. */
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	/** The Constant HASH_LENGTH, tamaño en bytes de la salida de HMAC-SHA256. */
+	private static final int HASH_LENGTH = 32;
+
+	/**
+	 * The Constant CAMPAIGN_KEY_SALT, sal fija del paso de extracción para las
+	 * claves de campaña. Separa estas claves de cualquier otro uso futuro de
+	 * HKDF con la misma clave maestra.
+	 */
+	private static final byte[] CAMPAIGN_KEY_SALT = { 'D', 'e', 'm', 'o', 's', '_', 'R', 'e', 's', 't', '/', 'c',
+			'a', 'm', 'p', 'a', 'i', 'g', 'n', '-', 'k', 'e', 'y' };
+
+	/**
+	 * The Constant TOKEN_KEY_SALT, sal fija del paso de extracción para las
+	 * claves HMAC de los tokens de sesión.
+	 */
+	private static final byte[] TOKEN_KEY_SALT = { 'D', 'e', 'm', 'o', 's', '_', 'R', 'e', 's', 't', '/', 's', 'e',
+			's', 's', 'i', 'o', 'n', '-', 't', 'o', 'k', 'e', 'n' };
+
+	/**
+	 * The Constant IMAGE_NAME_KEY_SALT, sal fija del paso de extracción para
+	 * las claves HMAC con las que se nombran las imagenes de una campaña.
+	 */
+	private static final byte[] IMAGE_NAME_KEY_SALT = { 'D', 'e', 'm', 'o', 's', '_', 'R', 'e', 's', 't', '/', 'i',
+			'm', 'a', 'g', 'e', '-', 'n', 'a', 'm', 'e' };
+
+	/** The Constant TOKEN_KEY_LENGTH, tamaño en bytes de la clave HMAC de los tokens. */
+	private static final int TOKEN_KEY_LENGTH = 32;
+
+	/**
+	 * Deriva la clave AES de una campaña para una versión concreta.
+	 * <p>
+	 * El campo info de HKDF se forma con el alias en UTF-8, un byte 0 y la
+	 * versión en big-endian, por lo que cada par alias/versión da una clave
+	 * independiente.
+	 *
+	 * @param masterKey la clave maestra
+	 * @param keyAlias el alias (nombre de la campaña)
+	 * @param version la versión de la clave, mayor que 0
+	 * @param keyLength la longitud de la clave en bits
+	 * @return la clave derivada
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	public static SecretKey deriveCampaignKey(SecretKey masterKey, String keyAlias, int version, int keyLength)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+
+		return derive(masterKey, CAMPAIGN_KEY_SALT, keyAlias, version, keyLength / 8, "AES");
+	}
+
+	/**
+	 * Deriva la clave HMAC-SHA256 con la que se firman los tokens de sesión
+	 * para una versión concreta.
+	 *
+	 * @param masterKey la clave maestra
+	 * @param version la versión de la clave, mayor que 0
+	 * @return la clave derivada
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @see SessionToken
+	 */
+	public static SecretKey deriveTokenKey(SecretKey masterKey, int version)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+
+		return derive(masterKey, TOKEN_KEY_SALT, "", version, TOKEN_KEY_LENGTH, HMAC_ALGORITHM);
+	}
+
+	/**
+	 * Deriva de la clave de una campaña la clave HMAC-SHA256 con la que se
+	 * nombran sus imagenes en {@link es.usal.tfg.files.ImageStore}.
+	 *
+	 * @param campaignKey la clave de la campaña
+	 * @return la clave derivada
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	public static SecretKey deriveImageNameKey(SecretKey campaignKey)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+
+		return derive(campaignKey, IMAGE_NAME_KEY_SALT, "", 1, TOKEN_KEY_LENGTH, HMAC_ALGORITHM);
+	}
+
+	/**
+	 * Aplica HKDF sobre la clave maestra con la sal indicada y como info el
+	 * alias en UTF-8, un byte 0 y la versión en big-endian.
+	 *
+	 * @param masterKey la clave maestra
+	 * @param salt la sal que separa el uso de la clave
+	 * @param keyAlias el alias
+	 * @param version la versión, mayor que 0
+	 * @param length la longitud de la clave en bytes
+	 * @param algorithm el algoritmo de la {@link SecretKey} resultante
+	 * @return la clave derivada
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	private static SecretKey derive(SecretKey masterKey, byte[] salt, String keyAlias, int version, int length,
+			String algorithm) throws NoSuchAlgorithmException, InvalidKeyException {
+
+		if (version <= 0) {
+			throw new IllegalArgumentException("Version de clave derivada no valida: " + version);
+		}
+
+		ByteArrayOutputStream info = new ByteArrayOutputStream();
+		try {
+			byte[] alias = keyAlias.getBytes("UTF-8");
+			info.write(alias, 0, alias.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		info.write(0);
+		info.write(version >>> 24);
+		info.write(version >>> 16);
+		info.write(version >>> 8);
+		info.write(version);
+
+		byte[] ikm = masterKey.getEncoded();
+		byte[] prk = null;
+		byte[] okm = null;
+		try {
+			prk = extract(salt, ikm);
+			okm = expand(prk, info.toByteArray(), length);
+			return new SecretKeySpec(okm, algorithm);
+		} finally {
+			Arrays.fill(ikm, (byte) 0);
+			if (prk != null) {
+				Arrays.fill(prk, (byte) 0);
+			}
+			if (okm != null) {
+				Arrays.fill(okm, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Paso de extracción de HKDF: PRK = HMAC-Hash(salt, IKM).
+	 *
+	 * @param salt la sal
+	 * @param ikm el material de clave de entrada
+	 * @return la clave pseudoaleatoria PRK
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	static byte[] extract(byte[] salt, byte[] ikm) throws NoSuchAlgorithmException, InvalidKeyException {
+
+		if (salt == null || salt.length == 0) {
+			salt = new byte[HASH_LENGTH];
+		}
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(new SecretKeySpec(salt, HMAC_ALGORITHM));
+		return mac.doFinal(ikm);
+	}
+
+	/**
+	 * Paso de expansión de HKDF: T(i) = HMAC-Hash(PRK, T(i-1) | info | i).
+	 *
+	 * @param prk la clave pseudoaleatoria obtenida en la extracción
+	 * @param info la información de contexto
+	 * @param length la longitud de la salida en bytes
+	 * @return el material de clave de salida
+	 *
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	static byte[] expand(byte[] prk, byte[] info, int length) throws NoSuchAlgorithmException, InvalidKeyException {
+
+		if (length <= 0 || length > 255 * HASH_LENGTH) {
+			throw new IllegalArgumentException("Longitud de salida HKDF no valida: " + length);
+		}
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(new SecretKeySpec(prk, HMAC_ALGORITHM));
+
+		byte[] result = new byte[length];
+		byte[] t = new byte[0];
+		int offset = 0;
+		for (int i = 1; offset < length; i++) {
+			mac.update(t);
+			mac.update(info);
+			mac.update((byte) i);
+			t = mac.doFinal();
+			int n = Math.min(t.length, length - offset);
+			System.arraycopy(t, 0, result, offset, n);
+			offset += n;
+		}
+		Arrays.fill(t, (byte) 0);
+		return result;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Archivo: KeyMetadata.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import es.usal.tfg.CampaignManagement;
+
+/**
+ * Clase KeyMetadata que mantiene el registro versionado de las claves de
+ * campaña derivadas con {@link KeyDerivation}.
+ * <p>
+ * Para cada alias se guarda la versión actual de su clave:
+ * <ul>
+ * <li>0 o ausente: la clave es una entrada propia del keystore (formato
+ * antiguo)</li>
+ * <li>1 o superior: la clave se deriva de "master_key" con esa versión</li>
+ * </ul>
+ * El registro se persiste en {@link KeyMetadata#KEYMETA_FILE} como un fichero
+ * de solo añadir con una línea por cambio ("alias-en-base64 versión fecha"),
+ * la última línea de cada alias es la que vale. No contiene material de
+ * clave, solo versiones.
+ * <p>
+ * Las versiones nuevas son siempre mayores que la mayor registrada para el
+ * alias, aunque después se volviese a una clave del keystore, de modo que
+ * nunca se deriva dos veces la misma clave.
+ */
+public class KeyMetadata {
+
+	/**
+	 * The Constant KEYMETA_FILE con la ruta del registro de versiones. Se
+	 * puede cambiar con la propiedad del sistema "es.usal.tfg.keyMetaFile".
+	 */
+	private static final String KEYMETA_FILE = System.getProperty("es.usal.tfg.keyMetaFile",
+			CampaignManagement.WEBSERVICE_ABSOLUTE_ROUTE + "/.keymeta");
+
+	/** The Constant LEGACY_VERSION que identifica las claves del keystore. */
+	public static final int LEGACY_VERSION = 0;
+
+	/** Fichero del registro. */
+	private static final File keyMetaFile = new File(KEYMETA_FILE);
+
+	/** Lock para cargar y escribir {@link KeyMetadata#keyMetaFile}. */
+	private static final Object lockKeyMeta = new Object();
+
+	/** Versión actual de cada alias, copia en memoria del registro. */
+	private static final ConcurrentHashMap<String, Integer> versions = new ConcurrentHashMap<>();
+
+	/** Mayor versión registrada nunca para cada alias. */
+	private static final ConcurrentHashMap<String, Integer> highestVersions = new ConcurrentHashMap<>();
+
+	/** Fecha en milisegundos en la que se registró la versión actual de cada alias. */
+	private static final ConcurrentHashMap<String, Long> versionDates = new ConcurrentHashMap<>();
+
+	/** Indica si ya se ha cargado el registro de disco. */
+	private static volatile boolean loaded = false;
+
+	/**
+	 * Gets the key meta file.
+	 *
+	 * @return the key meta file
+	 */
+	public static File getKeyMetaFile() {
+		return keyMetaFile;
+	}
+
+	/**
+	 * Obtiene la versión actual de la clave de un alias.
+	 *
+	 * @param keyAlias the key alias
+	 * @return la versión, {@link KeyMetadata#LEGACY_VERSION} si el alias no
+	 *         tiene clave derivada
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int getCurrentVersion(String keyAlias) throws IOException {
+
+		load();
+		Integer version = versions.get(keyAlias);
+		return version == null ? LEGACY_VERSION : version;
+	}
+
+	/**
+	 * Obtiene la mayor versión que se ha registrado nunca para un alias, que
+	 * puede no ser la actual si se ha vuelto a una clave del keystore.
+	 *
+	 * @param keyAlias the key alias
+	 * @return la versión, {@link KeyMetadata#LEGACY_VERSION} si el alias nunca
+	 *         ha tenido clave derivada
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int getHighestVersion(String keyAlias) throws IOException {
+
+		load();
+		Integer version = highestVersions.get(keyAlias);
+		return version == null ? LEGACY_VERSION : version;
+	}
+
+	/**
+	 * Obtiene la fecha en la que se registró la versión actual de la clave de
+	 * un alias.
+	 *
+	 * @param keyAlias the key alias
+	 * @return la fecha en milisegundos, 0 si el alias no tiene versión
+	 *         registrada
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long getVersionDate(String keyAlias) throws IOException {
+
+		load();
+		Long date = versionDates.get(keyAlias);
+		return date == null ? 0 : date;
+	}
+
+	/**
+	 * Reserva la siguiente versión de clave para un alias y la registra como
+	 * actual. Si el alias ya existía (p.ej. una campaña borrada que se vuelve
+	 * a registrar) la nueva versión es mayor que todas las anteriores, aunque
+	 * la actual sea {@link KeyMetadata#LEGACY_VERSION}, de modo que nunca se
+	 * reutiliza una clave.
+	 *
+	 * @param keyAlias the key alias
+	 * @return la nueva versión
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int nextVersion(String keyAlias) throws IOException {
+
+		load();
+		synchronized (lockKeyMeta) {
+			int version = getHighestVersion(keyAlias) + 1;
+			append(keyAlias, version);
+			return version;
+		}
+	}
+
+	/**
+	 * Registra una versión concreta como actual para un alias.
+	 *
+	 * @param keyAlias the key alias
+	 * @param version la versión
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void setCurrentVersion(String keyAlias, int version) throws IOException {
+
+		load();
+		synchronized (lockKeyMeta) {
+			append(keyAlias, version);
+		}
+	}
+
+	/**
+	 * Añade una línea al registro, forzando su escritura en disco antes de
+	 * actualizar la copia en memoria. Se ha de llamar con
+	 * {@link KeyMetadata#lockKeyMeta}.
+	 *
+	 * @param keyAlias the key alias
+	 * @param version the version
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void append(String keyAlias, int version) throws IOException {
+
+		if (!keyMetaFile.exists()) {
+			Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ,
+					PosixFilePermission.OWNER_WRITE);
+			Files.createFile(keyMetaFile.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+		}
+
+		String alias64 = Base64.getUrlEncoder().encodeToString(keyAlias.getBytes(StandardCharsets.UTF_8));
+		//Cada registro empieza con un salto de linea para que una linea a
+		//medio escribir por una caida quede aislada y se ignore al cargar
+		long date = System.currentTimeMillis();
+		String line = "\n" + alias64 + " " + version + " " + date;
+
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(keyMetaFile, true);
+			fos.write(line.getBytes(StandardCharsets.UTF_8));
+			fos.getChannel().force(true);
+		} finally {
+			if (fos != null) {
+				fos.close();
+			}
+		}
+		versions.put(keyAlias, version);
+		versionDates.put(keyAlias, date);
+		actualizaMayor(keyAlias, version);
+	}
+
+	/**
+	 * Actualiza la mayor versión registrada de un alias.
+	 *
+	 * @param keyAlias the key alias
+	 * @param version la versión registrada
+	 */
+	private static void actualizaMayor(String keyAlias, int version) {
+
+		Integer mayor = highestVersions.get(keyAlias);
+		if (mayor == null || version > mayor) {
+			highestVersions.put(keyAlias, version);
+		}
+	}
+
+	/**
+	 * Carga el registro de disco la primera vez que se necesita. Las líneas
+	 * mal formadas (p.ej. una escritura interrumpida) se ignoran.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void load() throws IOException {
+
+		if (loaded) {
+			return;
+		}
+		synchronized (lockKeyMeta) {
+			if (loaded) {
+				return;
+			}
+			if (keyMetaFile.exists()) {
+				BufferedReader br = null;
+				try {
+					br = new BufferedReader(
+							new InputStreamReader(new FileInputStream(keyMetaFile), StandardCharsets.UTF_8));
+					String line;
+					while ((line = br.readLine()) != null) {
+						String[] fields = line.split(" ");
+						if (fields.length != 3) {
+							continue;
+						}
+						try {
+							String alias = new String(Base64.getUrlDecoder().decode(fields[0]),
+									StandardCharsets.UTF_8);
+							int version = Integer.parseInt(fields[1]);
+							long date = Long.parseLong(fields[2]);
+							versions.put(alias, version);
+							versionDates.put(alias, date);
+							actualizaMayor(alias, version);
+						} catch (IllegalArgumentException e) {
+							System.err.println("[" + new Date().toString() + "] KeyMetadata: linea no valida ignorada");
+						}
+					}
+				} finally {
+					if (br != null) {
+						br.close();
+					}
+				}
+			}
+			loaded = true;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Archivo: KeyRotation.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.NoSuchPaddingException;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Clase KeyRotation con las operaciones para rotar la clave de un alias sin
+ * parar el servicio.
+ * <p>
+ * Rotar una clave consiste en:
+ * <ol>
+ * <li>{@link KeyRotation#prepare(File, String, Object) Convertir} al formato
+ * de {@link SegmentedEncryption} los ficheros antiguos AES/CBC del alias, que
+ * no guardan la versión de su clave y solo se pueden leer con la actual.</li>
+ * <li>{@link KeyRotation#rotate(String) Registrar} una nueva versión en
+ * {@link KeyMetadata}. Desde ese momento todo lo que se escribe usa la clave
+ * nueva y los ficheros existentes se siguen leyendo con la versión que
+ * indica su cabecera.</li>
+ * <li>{@link KeyRotation#reencrypt(File, String, Object) Reencriptar} en
+ * segundo plano cada fichero que siga en una versión anterior.</li>
+ * </ol>
+ * El reencriptado de un fichero copia sus fragmentos a un temporal sin
+ * bloquear a los escritores; solo al final, con el lock del fichero, copia
+ * los fragmentos añadidos mientras tanto y renombra el temporal sobre el
+ * original. Los lectores que ya lo tenían abierto siguen leyendo el fichero
+ * antiguo. Como cada fichero indica su versión en la cabecera, una rotación
+ * interrumpida se reanuda simplemente volviendo a recorrer los ficheros: los
+ * que ya están en la versión actual se omiten.
+ * <p>
+ * Las lecturas de los ficheros a reencriptar se limitan a
+ * {@link KeyRotation#BANDWIDTH} bytes por segundo con un {@link RateLimiter}
+ * compartido, para no competir con las peticiones por el disco.
+ */
+public class KeyRotation {
+
+	/** Sufijo de los ficheros temporales creados al reencriptar. */
+	public static final String ROTATION_SUFFIX = ".rot";
+
+	/**
+	 * The Constant BANDWIDTH, bytes por segundo que puede leer el
+	 * reencriptado. Se puede cambiar con la propiedad del sistema
+	 * "es.usal.tfg.rotationBandwidth".
+	 */
+	public static final long BANDWIDTH = Long.getLong("es.usal.tfg.rotationBandwidth", 4L * 1024 * 1024);
+
+	/** Limitador del ancho de banda del reencriptado. */
+	private static final RateLimiter rateLimiter = RateLimiter.create(BANDWIDTH);
+
+	/** Número de ficheros reencriptados. */
+	private static final AtomicLong filesRotated = new AtomicLong();
+
+	/** Número de bytes en claro reencriptados. */
+	private static final AtomicLong bytesRotated = new AtomicLong();
+
+	/**
+	 * Registra una nueva versión de la clave de un alias. Los ficheros
+	 * antiguos AES/CBC del alias se han de haber convertido antes con
+	 * {@link KeyRotation#prepare(File, String, Object)}.
+	 *
+	 * @param keyAlias the key alias
+	 * @return la nueva versión
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws IllegalStateException si las claves derivadas están desactivadas
+	 */
+	public static int rotate(String keyAlias) throws IOException {
+
+		if (!SymmetricEncryption.DERIVED_KEYS) {
+			throw new IllegalStateException("Las claves derivadas estan desactivadas, no se puede rotar " + keyAlias);
+		}
+		return KeyMetadata.nextVersion(keyAlias);
+	}
+
+	/**
+	 * Convierte un fichero antiguo AES/CBC al formato por fragmentos con la
+	 * versión actual de la clave, para que se pueda seguir leyendo despues de
+	 * rotarla.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param lock el lock que protege las escrituras del fichero
+	 * @return true, si se ha convertido
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static boolean prepare(File file, String keyAlias, Object lock) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		if (!file.exists() || file.length() == 0 || SegmentedEncryption.isSegmented(file)) {
+			return false;
+		}
+		acquire(file.length());
+		synchronized (lock) {
+			if (!file.exists() || file.length() == 0 || SegmentedEncryption.isSegmented(file)) {
+				return false;
+			}
+			SegmentedEncryption.convertLegacyFile(file, keyAlias);
+		}
+		return true;
+	}
+
+	/**
+	 * Comprueba si un fichero está encriptado con una versión de la clave
+	 * distinta de la actual. Solo lee su cabecera.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return true, si es un fichero por fragmentos de otra versión
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static boolean isOutdated(File file, String keyAlias) throws IOException {
+
+		if (!SegmentedEncryption.isSegmented(file)) {
+			return false;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			byte[] header = SegmentedEncryption.readHeader(channel);
+			return SegmentedEncryption.getKeyVersion(header) != SymmetricEncryption.getKeyVersion(keyAlias);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reencripta un fichero por fragmentos con la versión actual de la clave
+	 * si tiene otra. Los fragmentos existentes se copian a un temporal con el
+	 * ancho de banda limitado y sin el lock; con el lock se copian los
+	 * añadidos mientras tanto y se renombra el temporal sobre el original.
+	 * <p>
+	 * Si el fichero se ha borrado o sustituido por otro durante la copia no
+	 * se modifica y se devuelve false, la siguiente pasada lo volverá a
+	 * intentar.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param lock el lock que protege las escrituras del fichero
+	 * @return true, si se ha reencriptado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static boolean reencrypt(File file, String keyAlias, Object lock) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		if (!SegmentedEncryption.isSegmented(file)) {
+			return false;
+		}
+		int targetVersion = SymmetricEncryption.getKeyVersion(keyAlias);
+		File tmp = new File(file.getPath() + ROTATION_SUFFIX);
+
+		SegmentedReader reader = null;
+		SegmentedOutputStream sos = null;
+		boolean moved = false;
+		try {
+			reader = SegmentedEncryption.openReader(file, keyAlias);
+			if (reader.getKeyVersion() == targetVersion) {
+				return false;
+			}
+
+			Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ,
+					PosixFilePermission.OWNER_WRITE);
+			Files.deleteIfExists(tmp.toPath());
+			Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+			sos = SegmentedEncryption.create(tmp, keyAlias, targetVersion);
+
+			long bytes = 0;
+			long copied = 0;
+			long count;
+			while (copied < (count = reader.getChunkCount())) {
+				bytes += copyChunks(reader, sos, copied, count, true);
+				copied = count;
+			}
+
+			synchronized (lock) {
+				if (!file.exists() || !reader.isSameFile(file)) {
+					return false;
+				}
+				bytes += copyChunks(reader, sos, copied, reader.getChunkCount(), false);
+				sos.close();
+				sos = null;
+
+				FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+				try {
+					channel.force(true);
+				} finally {
+					channel.close();
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				moved = true;
+			}
+
+			filesRotated.incrementAndGet();
+			bytesRotated.addAndGet(bytes);
+			System.out.println("[" + new Date().toString() + "] KeyRotation: " + file.getName() + " reencriptado de la version "
+					+ reader.getKeyVersion() + " a la " + targetVersion + ", " + bytes + " bytes");
+			return true;
+
+		} finally {
+			try {
+				if (sos != null) {
+					sos.close();
+				}
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+				if (!moved) {
+					Files.deleteIfExists(tmp.toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copia en claro un rango de fragmentos de un lector a un stream. Cada
+	 * fragmento se escribe como un fragmento propio, de modo que el fichero
+	 * reencriptado conserva los mismos tamaños y posiciones.
+	 *
+	 * @param reader el lector
+	 * @param sos el stream de destino
+	 * @param from el primer fragmento
+	 * @param to el fragmento siguiente al último
+	 * @param throttle si se limita el ancho de banda
+	 * @return los bytes copiados
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static long copyChunks(SegmentedReader reader, SegmentedOutputStream sos, long from, long to,
+			boolean throttle) throws IOException {
+
+		long bytes = 0;
+		for (long i = from; i < to; i++) {
+			byte[] plain = reader.readChunk(i);
+			if (throttle) {
+				acquire(plain.length + SegmentedEncryption.CHUNK_OVERHEAD);
+			}
+			sos.write(plain);
+			sos.endChunk();
+			bytes += plain.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Espera a que el limitador permita leer un número de bytes.
+	 *
+	 * @param bytes los bytes
+	 */
+	private static void acquire(long bytes) {
+		rateLimiter.acquire((int) Math.max(1, Math.min(bytes, Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Devuelve una cadena con los contadores de la rotación para mostrarla
+	 * por pantalla.
+	 *
+	 * @return the stats
+	 */
+	public static String getStats() {
+		return "KeyRotation ficheros reencriptados: " + filesRotated.get() + ", bytes: " + bytesRotated.get()
+				+ ", limite: " + BANDWIDTH + " bytes/s";
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Archivo: PasswordService.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import es.usal.tfg.security.PasswordStorage.CannotPerformOperationException;
+import es.usal.tfg.security.PasswordStorage.InvalidHashException;
+
+/**
+ * Clase PasswordService que calcula y verifica los hash PBKDF2 de
+ * {@link PasswordStorage} de los logins y registros en un executor propio,
+ * separado del de {@link CryptoService} que encripta las imagenes subidas.
+ * <p>
+ * El executor tiene {@link PasswordService#THREADS} hilos, por defecto una
+ * cuarta parte de los procesadores, de modo que una ráfaga de logins no puede
+ * ocupar más que esa parte de la CPU. Su cola admite como mucho
+ * {@link PasswordService#QUEUE_CAPACITY} contraseñas; si está llena la tarea
+ * se rechaza inmediatamente, {@link PasswordService#isRejected(Throwable)}
+ * lo detecta y la petición se contesta con un 503 y la cabecera Retry-After
+ * de {@link PasswordService#RETRY_AFTER_SECONDS} en lugar de esperar.
+ * <p>
+ * Al arrancar {@link PasswordService#calibrate()} elige las iteraciones de
+ * PBKDF2 para que verificar una contraseña tarde
+ * {@link PasswordService#TARGET_MILLIS} en este equipo. Cada hash guarda sus
+ * iteraciones, y los que tienen bastantes menos que las actuales
+ * ({@link PasswordService#needsRehash(String)}) se recalculan tras un login
+ * correcto, sin migrar la base de datos de campañas. Nunca se recalculan a
+ * la baja.
+ */
+public class PasswordService {
+
+	/**
+	 * The Constant THREADS, número de hilos del executor. Por defecto uno por
+	 * cada cuatro procesadores, se puede cambiar con la propiedad del sistema
+	 * "es.usal.tfg.passwordThreads".
+	 */
+	public static final int THREADS = Integer.getInteger("es.usal.tfg.passwordThreads",
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+
+	/**
+	 * The Constant QUEUE_CAPACITY, número máximo de contraseñas esperando. Se
+	 * puede cambiar con la propiedad del sistema "es.usal.tfg.passwordQueue".
+	 */
+	public static final int QUEUE_CAPACITY = Integer.getInteger("es.usal.tfg.passwordQueue", 32);
+
+	/**
+	 * The Constant RETRY_AFTER_SECONDS, segundos que se indican al cliente en
+	 * la cabecera Retry-After si la cola está llena. Se puede cambiar con la
+	 * propiedad del sistema "es.usal.tfg.passwordRetryAfter".
+	 */
+	public static final int RETRY_AFTER_SECONDS = Integer.getInteger("es.usal.tfg.passwordRetryAfter", 5);
+
+	/**
+	 * The Constant TARGET_MILLIS, tiempo objetivo en milisegundos de una
+	 * verificación. Se puede cambiar con la propiedad del sistema
+	 * "es.usal.tfg.passwordTargetMillis".
+	 */
+	public static final long TARGET_MILLIS = Long.getLong("es.usal.tfg.passwordTargetMillis", 250L);
+
+	/**
+	 * The Constant MIN_ITERATIONS, iteraciones mínimas aunque el equipo sea
+	 * lento, por defecto las que se usaban antes de calibrar. Se puede
+	 * cambiar con la propiedad del sistema "es.usal.tfg.passwordMinIterations".
+	 */
+	public static final int MIN_ITERATIONS = Integer.getInteger("es.usal.tfg.passwordMinIterations", 64000);
+
+	/**
+	 * The Constant ITERATIONS, si se indica con la propiedad del sistema
+	 * "es.usal.tfg.passwordIterations" se usan esas iteraciones sin calibrar,
+	 * null en caso contrario.
+	 */
+	public static final Integer ITERATIONS = Integer.getInteger("es.usal.tfg.passwordIterations");
+
+	/** El executor de los hash de las contraseñas. */
+	private static final BoundedExecutor executor = new BoundedExecutor("password", THREADS, QUEUE_CAPACITY);
+
+	/**
+	 * Instantiates a new password service, no se instancia.
+	 */
+	private PasswordService() {
+	}
+
+	/**
+	 * Calcula el hash PBKDF2 de una contraseña con
+	 * {@link PasswordStorage#createHash(String)}.
+	 *
+	 * @param password la contraseña
+	 * @return el future con el hash
+	 */
+	public static CompletableFuture<String> createHash(final String password) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return PasswordStorage.createHash(password);
+			}
+		});
+	}
+
+	/**
+	 * Verifica una contraseña con
+	 * {@link PasswordStorage#verifyPassword(String, String)}.
+	 *
+	 * @param password la contraseña
+	 * @param correctHash el hash guardado
+	 * @return el future con el resultado de la verificación
+	 */
+	public static CompletableFuture<Boolean> verifyPassword(final String password, final String correctHash) {
+		return executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return PasswordStorage.verifyPassword(password, correctHash);
+			}
+		});
+	}
+
+	/**
+	 * Elige las iteraciones de los hash nuevos, las de
+	 * {@link PasswordService#ITERATIONS} si se han indicado o si no las que
+	 * calcula {@link PasswordStorage#calibrate(long, int)}. Se invoca al
+	 * arrancar, antes de atender peticiones; si falla se quedan las de
+	 * siempre.
+	 */
+	public static void calibrate() {
+
+		if (ITERATIONS != null) {
+			PasswordStorage.setIterations(ITERATIONS);
+			System.out.println("[" + new Date().toString() + "] PasswordService: " + ITERATIONS
+					+ " iteraciones fijadas por configuracion");
+			return;
+		}
+		try {
+			long tIni = System.currentTimeMillis();
+			int n = PasswordStorage.calibrate(TARGET_MILLIS, MIN_ITERATIONS);
+			System.out.println("[" + new Date().toString() + "] PasswordService: calibradas " + n
+					+ " iteraciones para " + TARGET_MILLIS + " ms en " + (System.currentTimeMillis() - tIni) + " ms");
+		} catch (CannotPerformOperationException e) {
+			System.err.println("[" + new Date().toString() + "] PasswordService: Error calibrando, se usan "
+					+ PasswordStorage.getIterations() + " iteraciones");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Comprueba si un hash guardado se debe recalcular con las iteraciones
+	 * actuales con {@link PasswordStorage#needsRehash(String)}.
+	 *
+	 * @param correctHash el hash guardado
+	 * @return true, si se debe recalcular; false si no o si no es válido
+	 */
+	public static boolean needsRehash(String correctHash) {
+
+		try {
+			return PasswordStorage.needsRehash(correctHash);
+		} catch (InvalidHashException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Comprueba si una excepción obtenida al esperar uno de estos futures se
+	 * debe a que la cola estaba llena.
+	 *
+	 * @param e la excepción
+	 * @return true, si la tarea se ha rechazado
+	 */
+	public static boolean isRejected(Throwable e) {
+
+		if (e instanceof ExecutionException) {
+			e = e.getCause();
+		}
+		return e instanceof RejectedExecutionException;
+	}
+
+	/**
+	 * Devuelve una cadena con los contadores del executor para mostrarla por
+	 * pantalla.
+	 *
+	 * @return the stats
+	 */
+	public static String getStats() {
+		return executor.getStats("PasswordService") + ", iteraciones: " + PasswordStorage.getIterations();
+	}
+
+	/**
+	 * Para el executor al destruir el contexto, dejando terminar las tareas
+	 * ya aceptadas.
+	 */
+	public static void shutdown() {
+		executor.shutdown();
+	}
+}
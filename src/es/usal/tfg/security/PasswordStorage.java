@@ -13,6 +13,9 @@ package es.usal.tfg.security;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -67,6 +70,24 @@ public class PasswordStorage
     private static final int HASH_BYTE_SIZE = 30;
     private static final int PBKDF2_ITERATIONS = 64000;
 
+    /**
+     * Iteraciones con las que se crean los hash nuevos. Modificación propia:
+     * empiezan en PBKDF2_ITERATIONS y las ajusta
+     * {@link PasswordStorage#calibrate(long, int)} al arrancar. Los hash
+     * guardados llevan sus propias iteraciones, por lo que cambiarlas no
+     * invalida ninguno.
+     */
+    private static volatile int iterations = PBKDF2_ITERATIONS;
+
+    /** Iteraciones de cada medida de {@link PasswordStorage#calibrate(long, int)}. */
+    private static final int CALIBRATION_ITERATIONS = 10000;
+
+    /**
+     * Milisegundos que mide {@link PasswordStorage#calibrate(long, int)}, el
+     * JIT tarda en torno a un segundo en compilar PBKDF2.
+     */
+    private static final long CALIBRATION_MILLIS = 2000;
+
     // These constants define the encoding and may not be changed.
     private static final int HASH_SECTIONS = 5;
     private static final int HASH_ALGORITHM_INDEX = 0;
@@ -84,18 +105,19 @@ public class PasswordStorage
     public static String createHash(char[] password)
         throws CannotPerformOperationException
     {
-        // Generate a random salt
-        SecureRandom random = new SecureRandom();
+        // Generate a random salt with the shared generator of the package
+        SecureRandom random = CryptoPool.getSecureRandom();
         byte[] salt = new byte[SALT_BYTE_SIZE];
         random.nextBytes(salt);
 
         // Hash the password
-        byte[] hash = pbkdf2(password, salt, PBKDF2_ITERATIONS, HASH_BYTE_SIZE);
+        int n = iterations;
+        byte[] hash = pbkdf2(password, salt, n, HASH_BYTE_SIZE);
         int hashSize = hash.length;
 
         // format: algorithm:iterations:hashSize:salt:hash
         String parts = "sha256:" +
-            PBKDF2_ITERATIONS +
+            n +
             ":" + hashSize +
             ":" +
             toBase64(salt) +
@@ -194,6 +216,104 @@ public class PasswordStorage
         return slowEquals(hash, testHash);
     }
 
+    /**
+     * Gets the iterations con las que se crean los hash nuevos.
+     *
+     * @return the iterations
+     */
+    public static int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * Sets the iterations con las que se crean los hash nuevos.
+     *
+     * @param n the new iterations
+     */
+    public static void setIterations(int n)
+    {
+        if (n < 1) {
+            throw new IllegalArgumentException(
+                "Invalid number of iterations. Must be >= 1."
+            );
+        }
+        iterations = n;
+    }
+
+    /**
+     * Mide lo que tarda este equipo en calcular un hash y ajusta las
+     * iteraciones de los hash nuevos para que verificar una contraseña tarde
+     * aproximadamente el tiempo objetivo. Se mide durante
+     * CALIBRATION_MILLIS, se toma la mediana de la segunda mitad de las
+     * medidas, con el JIT ya caliente, y el resultado se redondea a millares.
+     *
+     * @param targetMillis tiempo objetivo de una verificación en milisegundos
+     * @param minIterations iteraciones mínimas aunque el equipo sea lento
+     * @return las iteraciones elegidas
+     * @throws CannotPerformOperationException the cannot perform operation exception
+     */
+    public static int calibrate(long targetMillis, int minIterations)
+        throws CannotPerformOperationException
+    {
+        byte[] salt = new byte[SALT_BYTE_SIZE];
+        CryptoPool.getSecureRandom().nextBytes(salt);
+        char[] password = "calibracion".toCharArray();
+
+        List<Long> times = new ArrayList<>();
+        long end = System.nanoTime() + CALIBRATION_MILLIS * 1000000L;
+        while (times.size() < 2 || System.nanoTime() < end) {
+            long start = System.nanoTime();
+            pbkdf2(password, salt, CALIBRATION_ITERATIONS, HASH_BYTE_SIZE);
+            times.add(System.nanoTime() - start);
+        }
+        List<Long> warm = new ArrayList<>(times.subList(times.size() / 2, times.size()));
+        Collections.sort(warm);
+        long median = warm.get(warm.size() / 2);
+
+        long n = CALIBRATION_ITERATIONS * (targetMillis * 1000000L) / Math.max(1L, median);
+        n = Math.round(n / 1000.0) * 1000;
+        n = Math.min(Integer.MAX_VALUE, Math.max(minIterations, n));
+        setIterations((int) n);
+        return (int) n;
+    }
+
+    /**
+     * Comprueba si un hash guardado se debe recalcular con las iteraciones
+     * actuales, lo que ocurre si tiene más de un 25% menos. Solo se recalcula
+     * al alza: un arranque en un equipo más lento o cargado calibra menos
+     * iteraciones y no debe debilitar los hash ya guardados. El margen evita
+     * recalcular todos los hash por las pequeñas diferencias entre
+     * calibraciones.
+     *
+     * @param correctHash el hash guardado
+     * @return true, si tiene bastantes menos iteraciones que las actuales
+     * @throws InvalidHashException si el hash no es válido
+     */
+    public static boolean needsRehash(String correctHash)
+        throws InvalidHashException
+    {
+        String[] params = correctHash.split(":");
+        if (params.length != HASH_SECTIONS) {
+            throw new InvalidHashException(
+                "Fields are missing from the password hash."
+            );
+        }
+
+        long stored = 0;
+        try {
+            stored = Integer.parseInt(params[ITERATION_INDEX]);
+        } catch (NumberFormatException ex) {
+            throw new InvalidHashException(
+                "Could not parse the iteration count as an integer.",
+                ex
+            );
+        }
+
+        long current = iterations;
+        return stored * 4 < current * 3;
+    }
+
     private static boolean slowEquals(byte[] a, byte[] b)
     {
         int diff = a.length ^ b.length;
@@ -0,0 +1,716 @@
+/*
+ * Archivo: SegmentedEncryption.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Clase SegmentedEncryption que define el formato de fichero encriptado por
+ * fragmentos que sustituye a los ficheros AES/CBC con
+ * {@link SymmetricEncryption#appendAES(File, String)}.
+ * <p>
+ * Un fichero de este formato empieza con una cabecera de
+ * {@link SegmentedEncryption#HEADER_LENGTH} bytes:
+ * <pre>
+ *  0  magic "DSEG"
+ *  4  versión del formato (1)
+ *  5  algoritmo (1 = AES-GCM)
+ *  6  reservado (0, 0)
+ *  8  versión de la clave (int), ver {@link KeyMetadata}
+ * 12  tamaño máximo de fragmento en claro (int)
+ * 16  identificador aleatorio del fichero (16 bytes)
+ * </pre>
+ * seguida de fragmentos independientes, cada uno con su propio nonce:
+ * <pre>
+ * longitud en claro (int) | índice (long) | nonce (12) | texto cifrado + tag (longitud + 16) | longitud total (int)
+ * </pre>
+ * La cabecera y el índice del fragmento se autentican como AAD, por lo que
+ * un fragmento no se puede mover, duplicar ni pasar a otro fichero. La
+ * longitud total al final de cada fragmento permite localizar el último desde
+ * el final del fichero, de modo que añadir no necesita desencriptar nada.
+ * <p>
+ * Los escritores llenan fragmentos de hasta el tamaño máximo y cada apertura
+ * para añadir empieza un fragmento nuevo. Un fragmento final incompleto (una
+ * escritura interrumpida) se ignora al leer y se trunca al volver a añadir;
+ * un fragmento completo cuyo tag no es valido provoca una
+ * {@link IOException}.
+ * <p>
+ * Los ficheros antiguos en AES/CBC se siguen pudiendo leer con
+ * {@link SegmentedEncryption#openInputStream(File, String)} y se convierten a
+ * este formato la primera vez que se añade a ellos.
+ */
+public class SegmentedEncryption {
+
+	/** The Constant MAGIC que identifica los ficheros de este formato. */
+	static final byte[] MAGIC = { 'D', 'S', 'E', 'G' };
+
+	/** The Constant FORMAT_VERSION. */
+	static final byte FORMAT_VERSION = 1;
+
+	/** The Constant ALGORITHM_AES_GCM. */
+	static final byte ALGORITHM_AES_GCM = 1;
+
+	/** The Constant HEADER_LENGTH, tamaño de la cabecera en bytes. */
+	public static final int HEADER_LENGTH = 32;
+
+	/** The Constant DEFAULT_CHUNK_SIZE, tamaño máximo de fragmento en claro. */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	/** The Constant NONCE_LENGTH de AES-GCM. */
+	static final int NONCE_LENGTH = 12;
+
+	/** The Constant TAG_LENGTH de AES-GCM en bytes. */
+	static final int TAG_LENGTH = 16;
+
+	/** Bytes de la parte de un fragmento anterior al texto cifrado. */
+	static final int CHUNK_PREFIX_LENGTH = 4 + 8 + NONCE_LENGTH;
+
+	/** Bytes que ocupa un fragmento además de su texto en claro. */
+	public static final int CHUNK_OVERHEAD = CHUNK_PREFIX_LENGTH + TAG_LENGTH + 4;
+
+	/**
+	 * The Constant PARALLEL_THRESHOLD, tamaño en bytes a partir del cual un
+	 * fichero se encripta o desencripta en paralelo. Se puede cambiar con la
+	 * propiedad del sistema "es.usal.tfg.parallelThreshold".
+	 */
+	public static final long PARALLEL_THRESHOLD = Long.getLong("es.usal.tfg.parallelThreshold", 4L * 1024 * 1024);
+
+	/**
+	 * The Constant PARALLEL_WINDOW, número máximo de fragmentos en vuelo por
+	 * stream en modo paralelo, lo que limita la memoria usada.
+	 */
+	static final int PARALLEL_WINDOW = 2 * CryptoPool.getParallelPool().getParallelism();
+
+	/** Sufijo del temporal usado al convertir un fichero antiguo. */
+	private static final String CONVERSION_SUFFIX = ".seg";
+
+	/**
+	 * Comprueba si un fichero tiene el formato por fragmentos.
+	 *
+	 * @param file the file
+	 * @return true, si empieza con una cabecera válida
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static boolean isSegmented(File file) throws IOException {
+
+		if (!file.exists() || file.length() < HEADER_LENGTH) {
+			return false;
+		}
+		byte[] header = new byte[HEADER_LENGTH];
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			if (fis.read(header) != HEADER_LENGTH) {
+				return false;
+			}
+		} finally {
+			if (fis != null) {
+				fis.close();
+			}
+		}
+		return isValidHeader(header);
+	}
+
+	/**
+	 * Crea (o vacía) un fichero con el formato por fragmentos, encriptado con
+	 * la versión actual de la clave del alias, y devuelve un stream en el que
+	 * escribir su contenido.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return the segmented output stream
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static SegmentedOutputStream create(File file, String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		return create(file, keyAlias, SymmetricEncryption.getKeyVersion(keyAlias));
+	}
+
+	/**
+	 * Crea (o vacía) un fichero con el formato por fragmentos encriptado con
+	 * una versión concreta de la clave del alias.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param keyVersion la versión de la clave
+	 * @return the segmented output stream
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	static SegmentedOutputStream create(File file, String keyAlias, int keyVersion) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		return create(file, keyAlias, keyVersion, false);
+	}
+
+	/**
+	 * Crea (o vacía) un fichero con el formato por fragmentos para escribir
+	 * un contenido de tamaño conocido. Si el tamaño llega a
+	 * {@link SegmentedEncryption#PARALLEL_THRESHOLD} los fragmentos se
+	 * encriptan en paralelo.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param expectedSize el tamaño aproximado del contenido en claro
+	 * @return the segmented output stream
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static SegmentedOutputStream create(File file, String keyAlias, long expectedSize)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException {
+
+		return create(file, keyAlias, SymmetricEncryption.getKeyVersion(keyAlias),
+				expectedSize >= PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Crea (o vacía) un fichero con el formato por fragmentos.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param keyVersion la versión de la clave
+	 * @param parallel si los fragmentos se encriptan en paralelo
+	 * @return the segmented output stream
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	static SegmentedOutputStream create(File file, String keyAlias, int keyVersion, boolean parallel)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException {
+
+		SecretKey key = SymmetricEncryption.getSecretKey(keyAlias, keyVersion);
+		byte[] header = newHeader(keyVersion, DEFAULT_CHUNK_SIZE);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(channel, ByteBuffer.wrap(header));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new SegmentedOutputStream(channel, header, key, 0, parallel);
+	}
+
+	/**
+	 * Abre un fichero para añadir contenido al final. No desencripta nada:
+	 * localiza el último fragmento a partir de la longitud guardada al final
+	 * del fichero y empieza uno nuevo. Si el final del fichero está incompleto
+	 * se trunca hasta el último fragmento completo.
+	 * <p>
+	 * Si el fichero está vacío se inicializa con una cabecera y si es un
+	 * fichero antiguo AES/CBC se convierte antes a este formato.
+	 * <p>
+	 * Quien la invoca ha de garantizar que no hay otro escritor sobre el
+	 * mismo fichero, igual que con
+	 * {@link SymmetricEncryption#appendAES(File, String)}.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return the segmented output stream
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static SegmentedOutputStream append(File file, String keyAlias)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		if (!file.exists() || file.length() == 0) {
+			return create(file, keyAlias);
+		}
+		if (!isSegmented(file)) {
+			convertLegacyFile(file, keyAlias);
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			byte[] header = readHeader(channel);
+			SecretKey key = SymmetricEncryption.getSecretKey(keyAlias, getKeyVersion(header));
+
+			long end = channel.size();
+			long nextIndex = 0;
+
+			// Camino rápido: el último fragmento se localiza con la longitud
+			// guardada en los últimos 4 bytes
+			boolean validTail = false;
+			if (end == HEADER_LENGTH) {
+				validTail = true;
+			} else if (end >= HEADER_LENGTH + CHUNK_OVERHEAD) {
+				ByteBuffer trailer = ByteBuffer.allocate(4);
+				readFully(channel, trailer, end - 4);
+				trailer.flip();
+				long start = end - trailer.getInt();
+				ChunkInfo last = ChunkInfo.read(channel, start, end, getChunkSize(header));
+				if (last != null && start >= HEADER_LENGTH && last.end == end) {
+					nextIndex = last.index + 1;
+					validTail = true;
+				}
+			}
+
+			// Camino lento: final incompleto, se recorren las cabeceras de los
+			// fragmentos hasta el último completo y se trunca ahí
+			if (!validTail) {
+				long position = HEADER_LENGTH;
+				ChunkInfo chunk;
+				while ((chunk = ChunkInfo.read(channel, position, end, getChunkSize(header))) != null
+						&& chunk.index == nextIndex) {
+					position = chunk.end;
+					nextIndex++;
+				}
+				System.err.println("[" + new Date().toString() + "] SegmentedEncryption: " + file.getName()
+						+ " truncado de " + end + " a " + position + " bytes por un fragmento incompleto");
+				channel.truncate(position);
+				end = position;
+			}
+
+			channel.position(end);
+			return new SegmentedOutputStream(channel, header, key, nextIndex, false);
+
+		} catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Abre un fichero con el formato por fragmentos para leerlo con acceso
+	 * aleatorio.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return the segmented reader
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no existe o no tiene este formato
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static SegmentedReader openReader(File file, String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			byte[] header = readHeader(channel);
+			SecretKey key = SymmetricEncryption.getSecretKey(keyAlias, getKeyVersion(header));
+			return new SegmentedReader(channel, header, key);
+		} catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
+				| UnrecoverableEntryException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Abre un fichero encriptado para leerlo secuencialmente, sea del formato
+	 * por fragmentos o un fichero antiguo AES/CBC. Sustituye a
+	 * {@link SymmetricEncryption#decryptFileUsingKey(File, String)}. Los
+	 * ficheros por fragmentos de al menos
+	 * {@link SegmentedEncryption#PARALLEL_THRESHOLD} bytes se desencriptan en
+	 * paralelo.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return el stream con el contenido desencriptado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static InputStream openInputStream(File file, String keyAlias)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		if (isSegmented(file)) {
+			SegmentedReader reader = openReader(file, keyAlias);
+			if (file.length() >= PARALLEL_THRESHOLD) {
+				return reader.openParallelInputStream(0, true);
+			}
+			return reader.openInputStream(0, true);
+		}
+		return SymmetricEncryption.decryptFileUsingKey(file, keyAlias);
+	}
+
+	/**
+	 * Abre un fichero encriptado para leerlo secuencialmente como
+	 * {@link ReadableByteChannel}. Los ficheros del formato por fragmentos se
+	 * leen con buffers directos, los antiguos AES/CBC se adaptan desde
+	 * {@link SymmetricEncryption#decryptFileUsingKey(File, String)}.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @return el canal con el contenido desencriptado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static ReadableByteChannel openChannel(File file, String keyAlias)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		InputStream is = openInputStream(file, keyAlias);
+		if (is instanceof ReadableByteChannel) {
+			return (ReadableByteChannel) is;
+		}
+		return Channels.newChannel(is);
+	}
+
+	/**
+	 * Convierte un fichero antiguo AES/CBC a este formato usando la versión
+	 * actual de la clave. Se escribe en un temporal que se sincroniza en disco
+	 * y se renombra sobre el original, por lo que una interrupción deja el
+	 * fichero original intacto.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	static void convertLegacyFile(File file, String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		File tmp = new File(file.getPath() + CONVERSION_SUFFIX);
+		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+		Files.deleteIfExists(tmp.toPath());
+		Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+
+		InputStream is = null;
+		SegmentedOutputStream sos = null;
+		try {
+			is = SymmetricEncryption.decryptFileUsingKey(file, keyAlias);
+			sos = create(tmp, keyAlias, file.length());
+			copy(is, sos);
+			sos.close();
+			sos = null;
+		} finally {
+			if (sos != null) {
+				sos.close();
+			}
+			if (is != null) {
+				is.close();
+			}
+		}
+
+		FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		System.out.println("[" + new Date().toString() + "] SegmentedEncryption: " + file.getName()
+				+ " convertido al formato por fragmentos");
+	}
+
+	/**
+	 * Construye una cabecera nueva con un identificador de fichero aleatorio.
+	 *
+	 * @param keyVersion la versión de la clave
+	 * @param chunkSize el tamaño máximo de fragmento
+	 * @return la cabecera
+	 */
+	static byte[] newHeader(int keyVersion, int chunkSize) {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC);
+		header.put(FORMAT_VERSION);
+		header.put(ALGORITHM_AES_GCM);
+		header.put((byte) 0);
+		header.put((byte) 0);
+		header.putInt(keyVersion);
+		header.putInt(chunkSize);
+		byte[] fileId = new byte[16];
+		CryptoPool.getSecureRandom().nextBytes(fileId);
+		header.put(fileId);
+		return header.array();
+	}
+
+	/**
+	 * Lee y valida la cabecera de un fichero.
+	 *
+	 * @param channel el canal del fichero
+	 * @return la cabecera
+	 * @throws IOException si la cabecera no es válida
+	 */
+	static byte[] readHeader(FileChannel channel) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(channel, header, 0);
+		if (header.hasRemaining() || !isValidHeader(header.array())) {
+			throw new IOException("El fichero no tiene el formato por fragmentos");
+		}
+		return header.array();
+	}
+
+	/**
+	 * Comprueba la cabecera.
+	 *
+	 * @param header la cabecera
+	 * @return true, si es válida
+	 */
+	static boolean isValidHeader(byte[] header) {
+
+		return header.length == HEADER_LENGTH && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)
+				&& header[4] == FORMAT_VERSION && header[5] == ALGORITHM_AES_GCM && header[6] == 0 && header[7] == 0
+				&& getChunkSize(header) > 0;
+	}
+
+	/**
+	 * Gets the key version de una cabecera.
+	 *
+	 * @param header la cabecera
+	 * @return la versión de la clave
+	 */
+	static int getKeyVersion(byte[] header) {
+		return ByteBuffer.wrap(header, 8, 4).getInt();
+	}
+
+	/**
+	 * Gets the chunk size de una cabecera.
+	 *
+	 * @param header la cabecera
+	 * @return el tamaño máximo de fragmento
+	 */
+	static int getChunkSize(byte[] header) {
+		return ByteBuffer.wrap(header, 12, 4).getInt();
+	}
+
+	/**
+	 * Construye el AAD de un fragmento: la cabecera seguida del índice.
+	 *
+	 * @param header la cabecera
+	 * @param index el índice del fragmento
+	 * @return the aad
+	 */
+	static byte[] chunkAad(byte[] header, long index) {
+
+		ByteBuffer aad = ByteBuffer.allocate(HEADER_LENGTH + 8);
+		aad.put(header);
+		aad.putLong(index);
+		return aad.array();
+	}
+
+	/**
+	 * Obtiene la {@link IOException} original del fallo de una tarea
+	 * paralela. {@link java.util.concurrent.ForkJoinPool} envuelve las
+	 * excepciones comprobadas en una o varias {@link RuntimeException}.
+	 *
+	 * @param message el mensaje si el fallo no fue de entrada/salida
+	 * @param e la excepción de la tarea
+	 * @return la excepción a lanzar
+	 */
+	static IOException parallelFailure(String message, ExecutionException e) {
+
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return (IOException) cause;
+			}
+		}
+		return new IOException(message, e.getCause());
+	}
+
+	/**
+	 * Escribe un buffer completo en la posición actual del canal.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Lee en un buffer desde una posición hasta llenarlo o llegar al final del
+	 * fichero. Usa lecturas posicionales por lo que se puede llamar desde
+	 * varios hilos sobre el mismo canal.
+	 *
+	 * @param channel the channel
+	 * @param buffer the buffer
+	 * @param position la posición de inicio
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return;
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Datos en claro de la estructura de un fragmento, leídos sin
+	 * desencriptar.
+	 */
+	static class ChunkInfo {
+
+		/** Posición de inicio del fragmento. */
+		final long start;
+
+		/** Posición siguiente al final del fragmento. */
+		final long end;
+
+		/** Longitud del texto en claro. */
+		final int plainLength;
+
+		/** Índice del fragmento. */
+		final long index;
+
+		/**
+		 * Instantiates a new chunk info.
+		 *
+		 * @param start the start
+		 * @param plainLength the plain length
+		 * @param index the index
+		 */
+		private ChunkInfo(long start, int plainLength, long index) {
+			this.start = start;
+			this.plainLength = plainLength;
+			this.index = index;
+			this.end = start + plainLength + CHUNK_OVERHEAD;
+		}
+
+		/**
+		 * Lee la estructura del fragmento que empieza en una posición.
+		 *
+		 * @param channel el canal
+		 * @param start la posición de inicio
+		 * @param size el tamaño del fichero
+		 * @param chunkSize el tamaño máximo de fragmento
+		 * @return la información del fragmento o null si no hay un fragmento
+		 *         completo y coherente en esa posición
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		static ChunkInfo read(FileChannel channel, long start, long size, int chunkSize) throws IOException {
+
+			if (start < HEADER_LENGTH || start + CHUNK_OVERHEAD > size) {
+				return null;
+			}
+			ByteBuffer prefix = ByteBuffer.allocate(12);
+			readFully(channel, prefix, start);
+			prefix.flip();
+			int plainLength = prefix.getInt();
+			long index = prefix.getLong();
+			if (plainLength <= 0 || plainLength > chunkSize || index < 0) {
+				return null;
+			}
+			ChunkInfo info = new ChunkInfo(start, plainLength, index);
+			if (info.end > size) {
+				return null;
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			readFully(channel, trailer, info.end - 4);
+			trailer.flip();
+			if (trailer.getInt() != plainLength + CHUNK_OVERHEAD) {
+				return null;
+			}
+			return info;
+		}
+	}
+
+	/**
+	 * Copia todo el contenido de un stream en otro.
+	 *
+	 * @param is the is
+	 * @param os the os
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void copy(InputStream is, OutputStream os) throws IOException {
+
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			os.write(buffer, 0, read);
+		}
+	}
+}
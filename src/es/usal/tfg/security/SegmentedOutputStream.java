@@ -0,0 +1,330 @@
+/*
+ * Archivo: SegmentedOutputStream.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Stream de escritura de un fichero con el formato de
+ * {@link SegmentedEncryption}. Acumula los bytes recibidos y escribe un
+ * fragmento encriptado cada vez que se llena el tamaño máximo de fragmento y
+ * al cerrarse.
+ * <p>
+ * {@link SegmentedOutputStream#flush()} no crea fragmentos, los datos
+ * pendientes solo se escriben al llenarse el fragmento o al cerrar el stream,
+ * de modo que cada fragmento se escribe de una vez. Se obtiene con
+ * {@link SegmentedEncryption#create(java.io.File, String)} o
+ * {@link SegmentedEncryption#append(java.io.File, String)} y no es
+ * thread-safe.
+ * <p>
+ * Se puede usar como stream o como {@link WritableByteChannel}. El texto en
+ * claro y el fragmento encriptado se guardan en buffers directos de
+ * {@link CryptoPool}, el {@link Cipher} encripta de uno a otro y el canal
+ * escribe el segundo sin pasar por arrays del heap. Los buffers se devuelven
+ * al pool al cerrar, por lo que siempre se ha de cerrar.
+ * <p>
+ * En modo paralelo (ficheros grandes, ver
+ * {@link SegmentedEncryption#create(java.io.File, String, long)}) cada
+ * fragmento lleno se encripta como una tarea de
+ * {@link CryptoPool#getParallelPool()} y los resultados se escriben en orden,
+ * con como mucho {@link SegmentedEncryption#PARALLEL_WINDOW} fragmentos en
+ * vuelo. El fichero resultante es idéntico en formato al secuencial.
+ */
+public class SegmentedOutputStream extends OutputStream implements WritableByteChannel {
+
+	/** El canal del fichero, posicionado al final. */
+	private final FileChannel channel;
+
+	/** La cabecera del fichero, parte del AAD de cada fragmento. */
+	private final byte[] header;
+
+	/** La clave. */
+	private final SecretKey key;
+
+	/** Tamaño máximo de fragmento del fichero. */
+	private final int chunkSize;
+
+	/** Buffer con el texto en claro del fragmento en curso. */
+	private final ByteBuffer buffer;
+
+	/** Buffer donde se construye el fragmento encriptado. */
+	private final ByteBuffer record;
+
+	/** Índice del siguiente fragmento. */
+	private long nextIndex;
+
+	/** Flag para no cerrar dos veces. */
+	private boolean closed = false;
+
+	/** Si los fragmentos se encriptan en paralelo. */
+	private final boolean parallel;
+
+	/** Fragmentos encriptándose en paralelo, en orden de escritura. */
+	private final ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+
+	/**
+	 * Instantiates a new segmented output stream.
+	 *
+	 * @param channel el canal posicionado donde empieza el siguiente fragmento
+	 * @param header la cabecera del fichero
+	 * @param key la clave
+	 * @param nextIndex el índice del siguiente fragmento
+	 * @param parallel si los fragmentos se encriptan en paralelo
+	 */
+	SegmentedOutputStream(FileChannel channel, byte[] header, SecretKey key, long nextIndex, boolean parallel) {
+		this.channel = channel;
+		this.header = header;
+		this.key = key;
+		this.nextIndex = nextIndex;
+		this.parallel = parallel;
+		this.chunkSize = SegmentedEncryption.getChunkSize(header);
+		this.buffer = CryptoPool.acquireBuffer(chunkSize);
+		this.record = CryptoPool.acquireBuffer(chunkSize + SegmentedEncryption.CHUNK_OVERHEAD);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+
+		ensureOpen();
+		buffer.put((byte) b);
+		if (!buffer.hasRemaining()) {
+			writeChunk();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!buffer.hasRemaining()) {
+				writeChunk();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+
+		ensureOpen();
+		int written = 0;
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), buffer.remaining());
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			buffer.put(src);
+			src.limit(limit);
+			written += n;
+			if (!buffer.hasRemaining()) {
+				writeChunk();
+			}
+		}
+		return written;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Gets the next index, el número de fragmentos que tendrá el fichero
+	 * despues de escribir el fragmento en curso.
+	 *
+	 * @return the next index
+	 */
+	public long getNextIndex() {
+		return buffer.position() > 0 ? nextIndex + 1 : nextIndex;
+	}
+
+	/**
+	 * Escribe los datos pendientes como un fragmento aunque no se haya
+	 * llenado, para que el siguiente byte empiece uno nuevo. Permite conservar
+	 * los límites de los fragmentos al copiar un fichero (ver
+	 * {@link KeyRotation}) y escribir un registro por fragmento (ver
+	 * {@link SegmentedRecordStore}).
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void endChunk() throws IOException {
+
+		ensureOpen();
+		if (buffer.position() > 0) {
+			writeChunk();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (buffer.position() > 0) {
+				writeChunk();
+			}
+			while (!pending.isEmpty()) {
+				writePending();
+			}
+		} finally {
+			for (Future<ByteBuffer> task : pending) {
+				task.cancel(false);
+			}
+			pending.clear();
+			CryptoPool.releaseBuffer(buffer);
+			CryptoPool.releaseBuffer(record);
+			channel.close();
+		}
+	}
+
+	/**
+	 * Encripta el contenido de {@link SegmentedOutputStream#buffer} como un
+	 * fragmento en {@link SegmentedOutputStream#record} y lo escribe con una
+	 * sola llamada al canal. En modo paralelo lo copia a un buffer propio y
+	 * lo encola como tarea.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeChunk() throws IOException {
+
+		buffer.flip();
+		final long index = nextIndex++;
+		if (parallel) {
+			final ByteBuffer plain = CryptoPool.acquireBuffer(buffer.remaining());
+			plain.put(buffer);
+			plain.flip();
+			pending.add(CryptoPool.getParallelPool().submit(new Callable<ByteBuffer>() {
+				@Override
+				public ByteBuffer call() throws IOException {
+					try {
+						ByteBuffer out = CryptoPool.acquireBuffer(plain.remaining() + SegmentedEncryption.CHUNK_OVERHEAD);
+						encryptChunk(plain, out, index);
+						return out;
+					} finally {
+						CryptoPool.releaseBuffer(plain);
+					}
+				}
+			}));
+			while (pending.size() >= SegmentedEncryption.PARALLEL_WINDOW) {
+				writePending();
+			}
+		} else {
+			encryptChunk(buffer, record, index);
+			SegmentedEncryption.writeFully(channel, record);
+		}
+		buffer.clear();
+		buffer.limit(chunkSize);
+	}
+
+	/**
+	 * Espera al fragmento en vuelo más antiguo y lo escribe.
+	 *
+	 * @throws IOException si falló su encriptación o la escritura
+	 */
+	private void writePending() throws IOException {
+
+		ByteBuffer out;
+		try {
+			out = pending.poll().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrumpido encriptando en paralelo", e);
+		} catch (ExecutionException e) {
+			throw SegmentedEncryption.parallelFailure("Error encriptando en paralelo", e);
+		}
+		try {
+			SegmentedEncryption.writeFully(channel, out);
+		} finally {
+			CryptoPool.releaseBuffer(out);
+		}
+	}
+
+	/**
+	 * Encripta un fragmento. Solo usa sus parámetros y campos inmutables, por
+	 * lo que se puede ejecutar desde varios hilos.
+	 *
+	 * @param plain el texto en claro, se consume entero
+	 * @param out el buffer donde se construye el fragmento, queda listo para
+	 *            escribir
+	 * @param index el índice del fragmento
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void encryptChunk(ByteBuffer plain, ByteBuffer out, long index) throws IOException {
+
+		byte[] nonce = new byte[SegmentedEncryption.NONCE_LENGTH];
+		CryptoPool.getSecureRandom().nextBytes(nonce);
+
+		int recordLength = plain.remaining() + SegmentedEncryption.CHUNK_OVERHEAD;
+		out.clear();
+		out.putInt(plain.remaining());
+		out.putLong(index);
+		out.put(nonce);
+
+		Cipher cipher = null;
+		try {
+			cipher = CryptoPool.acquireCipher(CryptoPool.AES_GCM);
+			cipher.init(Cipher.ENCRYPT_MODE, key,
+					new GCMParameterSpec(SegmentedEncryption.TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(SegmentedEncryption.chunkAad(header, index));
+			cipher.doFinal(plain, out);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error encriptando el fragmento " + index, e);
+		} finally {
+			CryptoPool.releaseCipher(CryptoPool.AES_GCM, cipher);
+		}
+		out.putInt(recordLength);
+		out.flip();
+	}
+
+	/**
+	 * Comprueba que el stream no esté cerrado.
+	 *
+	 * @throws IOException si está cerrado
+	 */
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream cerrado");
+		}
+	}
+}
@@ -0,0 +1,651 @@
+/*
+ * Archivo: SegmentedReader.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import es.usal.tfg.security.SegmentedEncryption.ChunkInfo;
+
+/**
+ * Lector con acceso aleatorio de un fichero con el formato de
+ * {@link SegmentedEncryption}.
+ * <p>
+ * Permite conocer el número de fragmentos, desencriptar cualquiera de ellos
+ * por su índice y abrir streams secuenciales a partir de un fragmento. Las
+ * lecturas son posicionales sobre el canal y cada desencriptado usa su propio
+ * {@link Cipher}, por lo que {@link SegmentedReader#readChunk(long)} se puede
+ * llamar desde varios hilos a la vez para desencriptar en paralelo.
+ * <p>
+ * El índice de posiciones de los fragmentos se construye la primera vez que
+ * se necesita recorriendo solo sus cabeceras, sin desencriptar. Los
+ * fragmentos añadidos despues se incorporan al pedir de nuevo
+ * {@link SegmentedReader#getChunkCount()}.
+ * <p>
+ * Los fragmentos se leen de una vez en un buffer directo de
+ * {@link CryptoPool} y se desencriptan con
+ * {@link Cipher#doFinal(ByteBuffer, ByteBuffer)} a otro buffer directo, sin
+ * copias a arrays del heap. Los streams secuenciales son también
+ * {@link ReadableByteChannel} y reutilizan el mismo par de buffers para todos
+ * los fragmentos que recorren.
+ * <p>
+ * Para ficheros grandes {@link SegmentedReader#openParallelInputStream(long)}
+ * desencripta por adelantado los siguientes fragmentos en
+ * {@link CryptoPool#getParallelPool()} mientras se consume el actual.
+ */
+public class SegmentedReader implements Closeable {
+
+	/** El canal del fichero. */
+	private final FileChannel channel;
+
+	/** La cabecera del fichero. */
+	private final byte[] header;
+
+	/** La clave. */
+	private final SecretKey key;
+
+	/** Tamaño máximo de fragmento del fichero. */
+	private final int chunkSize;
+
+	/** Posiciones de inicio de los fragmentos conocidos, por índice. */
+	private final ArrayList<Long> offsets = new ArrayList<>();
+
+	/** Posición donde termina el último fragmento indexado. */
+	private long indexedEnd = SegmentedEncryption.HEADER_LENGTH;
+
+	/**
+	 * Instantiates a new segmented reader.
+	 *
+	 * @param channel el canal del fichero
+	 * @param header la cabecera ya validada
+	 * @param key la clave
+	 */
+	SegmentedReader(FileChannel channel, byte[] header, SecretKey key) {
+		this.channel = channel;
+		this.header = header;
+		this.key = key;
+		this.chunkSize = SegmentedEncryption.getChunkSize(header);
+	}
+
+	/**
+	 * Gets the key version con la que está encriptado el fichero.
+	 *
+	 * @return the key version
+	 */
+	public int getKeyVersion() {
+		return SegmentedEncryption.getKeyVersion(header);
+	}
+
+	/**
+	 * Comprueba si un fichero es el mismo que se está leyendo, comparando su
+	 * cabecera (que incluye un identificador aleatorio) con la de este lector.
+	 * Sirve para detectar que el fichero se ha sustituido por otro desde que
+	 * se abrió el lector.
+	 *
+	 * @param file el fichero
+	 * @return true, si tiene la misma cabecera
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	boolean isSameFile(File file) throws IOException {
+
+		if (!SegmentedEncryption.isSegmented(file)) {
+			return false;
+		}
+		FileChannel other = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return Arrays.equals(header, SegmentedEncryption.readHeader(other));
+		} finally {
+			other.close();
+		}
+	}
+
+	/**
+	 * Gets the chunk count, el número de fragmentos completos del fichero.
+	 *
+	 * @return the chunk count
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized long getChunkCount() throws IOException {
+
+		long size = channel.size();
+		ChunkInfo chunk;
+		while ((chunk = ChunkInfo.read(channel, indexedEnd, size, chunkSize)) != null
+				&& chunk.index == offsets.size()) {
+			offsets.add(chunk.start);
+			indexedEnd = chunk.end;
+		}
+		return offsets.size();
+	}
+
+	/**
+	 * Desencripta un fragmento por su índice.
+	 *
+	 * @param index el índice del fragmento
+	 * @return el texto en claro del fragmento
+	 * @throws IOException si no existe el fragmento o no es auténtico
+	 */
+	public byte[] readChunk(long index) throws IOException {
+
+		long position;
+		synchronized (this) {
+			if (index >= offsets.size() && index >= getChunkCount()) {
+				throw new IOException("No existe el fragmento " + index);
+			}
+			position = offsets.get((int) index);
+		}
+		return readChunkAt(position, index);
+	}
+
+	/**
+	 * Desencripta el fragmento que empieza en una posición conocida, sin
+	 * recorrer ni indexar los anteriores. Lo usa
+	 * {@link SegmentedRecordStore}, que guarda la posición de cada registro.
+	 *
+	 * @param position la posición del fragmento
+	 * @param index el índice que debe tener
+	 * @return el texto en claro del fragmento
+	 * @throws IOException si en esa posición no está el fragmento o no es
+	 *             auténtico
+	 */
+	byte[] readChunkAt(long position, long index) throws IOException {
+
+		ByteBuffer record = CryptoPool.acquireBuffer(chunkSize + SegmentedEncryption.CHUNK_OVERHEAD);
+		ByteBuffer plain = CryptoPool.acquireBuffer(chunkSize);
+		try {
+			if (decrypt(position, index, record, plain) < 0) {
+				throw new IOException("No existe el fragmento " + index);
+			}
+			byte[] data = new byte[plain.remaining()];
+			plain.get(data);
+			return data;
+		} finally {
+			CryptoPool.releaseBuffer(record);
+			CryptoPool.releaseBuffer(plain);
+		}
+	}
+
+	/**
+	 * Abre un stream secuencial sobre el contenido en claro a partir de un
+	 * fragmento. El stream termina al llegar al primer fragmento incompleto.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public InputStream openInputStream(long fromChunk) throws IOException {
+		return openInputStream(fromChunk, false);
+	}
+
+	/**
+	 * Abre un stream secuencial a partir de un fragmento.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @param closeReader si al cerrar el stream se cierra también este lector
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	InputStream openInputStream(long fromChunk, boolean closeReader) throws IOException {
+		return openInputStream(fromChunk, Long.MAX_VALUE, closeReader);
+	}
+
+	/**
+	 * Abre un stream secuencial sobre el contenido en claro de un rango de
+	 * fragmentos. El stream termina antes del fragmento toChunk aunque se
+	 * hayan añadido más, lo que permite leer una foto fija de un fichero que
+	 * sigue creciendo (ver {@link Compaction}).
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @param toChunk el índice del fragmento siguiente al último
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public InputStream openInputStream(long fromChunk, long toChunk) throws IOException {
+		return openInputStream(fromChunk, toChunk, false);
+	}
+
+	/**
+	 * Abre un stream secuencial sobre un rango de fragmentos.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @param toChunk el índice del fragmento siguiente al último
+	 * @param closeReader si al cerrar el stream se cierra también este lector
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private InputStream openInputStream(long fromChunk, long toChunk, boolean closeReader) throws IOException {
+
+		long position = SegmentedEncryption.HEADER_LENGTH;
+		if (fromChunk > 0) {
+			synchronized (this) {
+				if (fromChunk >= offsets.size() && fromChunk >= getChunkCount()) {
+					position = indexedEnd;
+					fromChunk = offsets.size();
+				} else {
+					position = offsets.get((int) fromChunk);
+				}
+			}
+		}
+		return new ChunkInputStream(position, fromChunk, toChunk, closeReader);
+	}
+
+	/**
+	 * Abre un stream sobre el contenido en claro a partir de un fragmento que
+	 * desencripta en paralelo hasta {@link SegmentedEncryption#PARALLEL_WINDOW}
+	 * fragmentos por delante del que se está leyendo. Recorre los fragmentos
+	 * completos que existen al abrirlo. También es un
+	 * {@link ReadableByteChannel}.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public InputStream openParallelInputStream(long fromChunk) throws IOException {
+		return openParallelInputStream(fromChunk, false);
+	}
+
+	/**
+	 * Abre un stream con desencriptado paralelo a partir de un fragmento.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @param closeReader si al cerrar el stream se cierra también este lector
+	 * @return the input stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	InputStream openParallelInputStream(long fromChunk, boolean closeReader) throws IOException {
+		return new ParallelChunkInputStream(fromChunk, getChunkCount(), closeReader);
+	}
+
+	/**
+	 * Abre un canal secuencial sobre el contenido en claro a partir de un
+	 * fragmento. Es el mismo objeto que devuelve
+	 * {@link SegmentedReader#openInputStream(long)}, por lo que se puede leer
+	 * de ambas formas.
+	 *
+	 * @param fromChunk el índice del primer fragmento
+	 * @return the readable byte channel
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public ReadableByteChannel openChannel(long fromChunk) throws IOException {
+		return (ReadableByteChannel) openInputStream(fromChunk, false);
+	}
+
+	/**
+	 * Lee y desencripta el fragmento que empieza en una posición. El
+	 * fragmento se lee con una sola lectura posicional y se valida su
+	 * estructura antes de desencriptar.
+	 *
+	 * @param position la posición del fragmento
+	 * @param expectedIndex el índice que debe tener
+	 * @param record buffer donde leer el fragmento encriptado
+	 * @param plain buffer donde se deja el texto en claro, listo para leer
+	 * @return la posición siguiente al fragmento, o -1 si en esa posición no
+	 *         hay un fragmento completo con ese índice
+	 * @throws IOException si el fragmento no es auténtico
+	 */
+	private long decrypt(long position, long expectedIndex, ByteBuffer record, ByteBuffer plain)
+			throws IOException {
+
+		long available = channel.size() - position;
+		if (position < SegmentedEncryption.HEADER_LENGTH || available < SegmentedEncryption.CHUNK_OVERHEAD) {
+			return -1;
+		}
+		record.clear();
+		record.limit((int) Math.min(chunkSize + SegmentedEncryption.CHUNK_OVERHEAD, available));
+		SegmentedEncryption.readFully(channel, record, position);
+		record.flip();
+
+		int plainLength = record.getInt(0);
+		long index = record.getLong(4);
+		int recordLength = plainLength + SegmentedEncryption.CHUNK_OVERHEAD;
+		if (plainLength <= 0 || plainLength > chunkSize || index != expectedIndex
+				|| recordLength > record.limit() || record.getInt(recordLength - 4) != recordLength) {
+			return -1;
+		}
+
+		byte[] nonce = new byte[SegmentedEncryption.NONCE_LENGTH];
+		record.position(4 + 8);
+		record.get(nonce);
+		record.limit(recordLength - 4);
+		plain.clear();
+
+		Cipher cipher = null;
+		boolean decrypted = false;
+		try {
+			cipher = CryptoPool.acquireCipher(CryptoPool.AES_GCM);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SegmentedEncryption.TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(SegmentedEncryption.chunkAad(header, index));
+			cipher.doFinal(record, plain);
+			decrypted = true;
+		} catch (AEADBadTagException e) {
+			throw new IOException("El fragmento " + index + " no es auténtico", e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error desencriptando el fragmento " + index, e);
+		} finally {
+			CryptoPool.releaseCipher(CryptoPool.AES_GCM, cipher);
+			if (!decrypted) {
+				//No se deja a la vista texto en claro sin autenticar
+				plain.clear();
+				plain.limit(0);
+			}
+		}
+		plain.flip();
+		return position + recordLength;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Base de los streams de lectura, que son también canales: sirve el texto
+	 * en claro de {@link ChunkStream#current} y pide el siguiente fragmento
+	 * con {@link ChunkStream#advance()} cuando se agota.
+	 */
+	private abstract class ChunkStream extends InputStream implements ReadableByteChannel {
+
+		/** Si al cerrar se cierra el lector. */
+		private final boolean closeReader;
+
+		/** Texto en claro del fragmento actual, pendiente de leer. */
+		protected ByteBuffer current;
+
+		/** Flag de fin de los datos. */
+		private boolean eof = false;
+
+		/** Flag para liberar los recursos una sola vez. */
+		private boolean closed = false;
+
+		/**
+		 * Instantiates a new chunk stream.
+		 *
+		 * @param closeReader the close reader
+		 */
+		ChunkStream(boolean closeReader) {
+			this.closeReader = closeReader;
+		}
+
+		/**
+		 * Deja en {@link ChunkStream#current} el siguiente fragmento.
+		 *
+		 * @return false si no quedan fragmentos
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		protected abstract boolean advance() throws IOException;
+
+		/**
+		 * Libera los recursos propios del stream.
+		 */
+		protected abstract void release();
+
+		/**
+		 * Pasa al siguiente fragmento si el actual se ha consumido.
+		 *
+		 * @return false si no quedan datos
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean fill() throws IOException {
+
+			if (closed) {
+				throw new IOException("Stream cerrado");
+			}
+			while (!current.hasRemaining()) {
+				if (eof) {
+					return false;
+				}
+				if (!advance()) {
+					eof = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+
+			if (!fill()) {
+				return -1;
+			}
+			return current.get() & 0xff;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			return n;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+		 */
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + n);
+			dst.put(current);
+			current.limit(limit);
+			return n;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#available()
+		 */
+		@Override
+		public int available() throws IOException {
+			return closed ? 0 : current.remaining();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.nio.channels.Channel#isOpen()
+		 */
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			eof = true;
+			release();
+			if (closeReader) {
+				SegmentedReader.this.close();
+			}
+		}
+	}
+
+	/**
+	 * Stream y canal secuencial que recorre los fragmentos desde una posición
+	 * sin necesitar el índice completo. Se detiene en el primer fragmento
+	 * incompleto.
+	 */
+	private class ChunkInputStream extends ChunkStream {
+
+		/** Posición del siguiente fragmento. */
+		private long position;
+
+		/** Índice esperado del siguiente fragmento. */
+		private long nextIndex;
+
+		/** Índice del fragmento en el que se detiene. */
+		private final long endIndex;
+
+		/** Buffer donde se lee cada fragmento encriptado. */
+		private ByteBuffer record;
+
+		/**
+		 * Instantiates a new chunk input stream.
+		 *
+		 * @param position the position
+		 * @param nextIndex the next index
+		 * @param endIndex the end index
+		 * @param closeReader the close reader
+		 */
+		ChunkInputStream(long position, long nextIndex, long endIndex, boolean closeReader) {
+			super(closeReader);
+			this.position = position;
+			this.nextIndex = nextIndex;
+			this.endIndex = endIndex;
+			this.record = CryptoPool.acquireBuffer(chunkSize + SegmentedEncryption.CHUNK_OVERHEAD);
+			this.current = CryptoPool.acquireBuffer(chunkSize);
+			this.current.flip();
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.security.SegmentedReader.ChunkStream#advance()
+		 */
+		@Override
+		protected boolean advance() throws IOException {
+
+			long end = nextIndex < endIndex ? decrypt(position, nextIndex, record, current) : -1;
+			if (end < 0) {
+				current.clear();
+				current.flip();
+				return false;
+			}
+			position = end;
+			nextIndex++;
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.security.SegmentedReader.ChunkStream#release()
+		 */
+		@Override
+		protected void release() {
+			CryptoPool.releaseBuffer(record);
+			CryptoPool.releaseBuffer(current);
+			record = null;
+			current = null;
+		}
+	}
+
+	/**
+	 * Stream y canal que desencripta por adelantado y en paralelo los
+	 * siguientes fragmentos con {@link SegmentedReader#readChunk(long)} y los
+	 * sirve en orden.
+	 */
+	private class ParallelChunkInputStream extends ChunkStream {
+
+		/** Índice del siguiente fragmento a encolar. */
+		private long nextToSubmit;
+
+		/** Número de fragmentos a recorrer. */
+		private final long chunkCount;
+
+		/** Fragmentos desencriptándose, en orden de lectura. */
+		private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+		/**
+		 * Instantiates a new parallel chunk input stream.
+		 *
+		 * @param fromChunk the from chunk
+		 * @param chunkCount the chunk count
+		 * @param closeReader the close reader
+		 */
+		ParallelChunkInputStream(long fromChunk, long chunkCount, boolean closeReader) {
+			super(closeReader);
+			this.nextToSubmit = fromChunk;
+			this.chunkCount = chunkCount;
+			this.current = ByteBuffer.allocate(0);
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.security.SegmentedReader.ChunkStream#advance()
+		 */
+		@Override
+		protected boolean advance() throws IOException {
+
+			while (pending.size() < SegmentedEncryption.PARALLEL_WINDOW && nextToSubmit < chunkCount) {
+				final long index = nextToSubmit++;
+				pending.add(CryptoPool.getParallelPool().submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return readChunk(index);
+					}
+				}));
+			}
+			if (pending.isEmpty()) {
+				return false;
+			}
+			try {
+				current = ByteBuffer.wrap(pending.poll().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrumpido desencriptando en paralelo", e);
+			} catch (ExecutionException e) {
+				throw SegmentedEncryption.parallelFailure("Error desencriptando en paralelo", e);
+			}
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see es.usal.tfg.security.SegmentedReader.ChunkStream#release()
+		 */
+		@Override
+		protected void release() {
+			for (Future<byte[]> task : pending) {
+				task.cancel(false);
+			}
+			pending.clear();
+		}
+	}
+}
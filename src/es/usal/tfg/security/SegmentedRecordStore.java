@@ -0,0 +1,592 @@
+/*
+ * Archivo: SegmentedRecordStore.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.crypto.NoSuchPaddingException;
+
+import es.usal.tfg.security.SegmentedEncryption.ChunkInfo;
+
+/**
+ * Almacén encriptado de registros numerados, de solo añadir, con acceso
+ * directo por número de secuencia.
+ * <p>
+ * Los registros se guardan en segmentos de como mucho
+ * {@link SegmentedRecordStore#RECORDS_PER_SEGMENT} registros, cada uno un
+ * fichero con el formato de {@link SegmentedEncryption} en el que cada
+ * registro es un fragmento. El registro n está en el segmento
+ * n / RECORDS_PER_SEGMENT con índice de fragmento n % RECORDS_PER_SEGMENT, y
+ * el fichero {@link SegmentedRecordStore#INDEX_FILE} guarda en la posición
+ * 8·n la posición del registro dentro de su segmento. Así:
+ * <ul>
+ * <li>añadir un registro escribe un fragmento al final del segmento activo y
+ * 8 bytes al final del índice, sin leer nada de lo anterior; un lote de
+ * registros ({@link SegmentedRecordStore#appendAll(List, boolean)}) abre cada
+ * fichero una vez para todo el lote</li>
+ * <li>leer el registro n lee 8 bytes del índice y un fragmento</li>
+ * <li>contar los registros es el tamaño del índice entre 8</li>
+ * </ul>
+ * El índice solo contiene posiciones, no datos. Se escribe despues del
+ * registro, de modo que tras una caída puede faltar la entrada del último
+ * registro pero nunca apunta a uno inexistente; al abrir el almacén se
+ * completa recorriendo las cabeceras de los fragmentos del segmento activo.
+ * <p>
+ * Las escrituras se sincronizan sobre la instancia, que es también el lock
+ * que se ha de pasar a {@link KeyRotation#reencrypt(File, String, Object)}
+ * para reencriptar un segmento. El reencriptado conserva los límites de los
+ * fragmentos, y con ellos las posiciones del índice. Las lecturas no toman
+ * el lock.
+ */
+public class SegmentedRecordStore {
+
+	/**
+	 * The Constant RECORDS_PER_SEGMENT, registros de cada segmento. Se puede
+	 * cambiar con la propiedad del sistema "es.usal.tfg.recordsPerSegment",
+	 * pero no en un almacén que ya tenga registros.
+	 */
+	public static final int RECORDS_PER_SEGMENT = Integer.getInteger("es.usal.tfg.recordsPerSegment", 4096);
+
+	/** The Constant INDEX_FILE, nombre del fichero del índice. */
+	public static final String INDEX_FILE = "index";
+
+	/** Prefijo del nombre de los segmentos. */
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/** Sufijo del nombre de los segmentos. */
+	private static final String SEGMENT_SUFFIX = ".db";
+
+	/** Tamaño de una entrada del índice. */
+	private static final int INDEX_ENTRY = 8;
+
+	/** El directorio del almacén. */
+	private final File directory;
+
+	/** El alias de la clave. */
+	private final String keyAlias;
+
+	/** El fichero del índice. */
+	private final File indexFile;
+
+	/** Número de registros. */
+	private volatile long size;
+
+	/** Segmentos escritos que aún no se han forzado a disco. */
+	private final Set<Integer> dirtySegments = new TreeSet<>();
+
+	/**
+	 * Instantiates a new segmented record store.
+	 *
+	 * @param directory el directorio
+	 * @param keyAlias el alias de la clave
+	 */
+	private SegmentedRecordStore(File directory, String keyAlias) {
+		this.directory = directory;
+		this.keyAlias = keyAlias;
+		this.indexFile = new File(directory, INDEX_FILE);
+	}
+
+	/**
+	 * Abre un almacén, creando su directorio si no existe, y completa el
+	 * índice si una caída dejó registros sin indexar. No necesita la clave.
+	 *
+	 * @param directory el directorio del almacén
+	 * @param keyAlias el alias de la clave con la que se encriptan los
+	 *            registros
+	 * @return el almacén
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static SegmentedRecordStore open(File directory, String keyAlias) throws IOException {
+
+		if (!directory.exists()) {
+			Set<PosixFilePermission> permsRWX = EnumSet.of(PosixFilePermission.OWNER_READ,
+					PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+			Files.createDirectories(directory.toPath(), PosixFilePermissions.asFileAttribute(permsRWX));
+		}
+		SegmentedRecordStore store = new SegmentedRecordStore(directory, keyAlias);
+		synchronized (store) {
+			store.recover();
+		}
+		return store;
+	}
+
+	/**
+	 * Comprueba si existe un almacén en un directorio.
+	 *
+	 * @param directory el directorio
+	 * @return true, si contiene un índice
+	 */
+	public static boolean exists(File directory) {
+		return new File(directory, INDEX_FILE).exists();
+	}
+
+	/**
+	 * Añade un registro al final.
+	 *
+	 * @param record el registro, de como mucho
+	 *            {@link SegmentedEncryption#DEFAULT_CHUNK_SIZE} bytes
+	 * @return su número de secuencia
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public long append(byte[] record) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+
+		return appendAll(Collections.singletonList(record), false);
+	}
+
+	/**
+	 * Añade un lote de registros al final, abriendo cada segmento afectado y
+	 * el índice una sola vez para todo el lote.
+	 *
+	 * @param records los registros, de como mucho
+	 *            {@link SegmentedEncryption#DEFAULT_CHUNK_SIZE} bytes cada uno
+	 * @param force si se fuerza a disco el lote (y todo lo escrito antes)
+	 *            antes de volver, como {@link SegmentedRecordStore#sync()}
+	 * @return el número de secuencia del primero, los demás son consecutivos
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public synchronized long appendAll(List<byte[]> records, boolean force) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException {
+
+		for (byte[] record : records) {
+			if (record.length == 0 || record.length > SegmentedEncryption.DEFAULT_CHUNK_SIZE) {
+				throw new IllegalArgumentException("Tamaño de registro no valido: " + record.length);
+			}
+		}
+		long first = size;
+		long sequence = first;
+		ByteBuffer entries = ByteBuffer.allocate(records.size() * INDEX_ENTRY);
+
+		int i = 0;
+		while (i < records.size()) {
+			int segmentNumber = segmentOf(sequence);
+			File segment = getSegmentFile(segmentNumber);
+			dirtySegments.add(segmentNumber);
+
+			SegmentedOutputStream sos = SegmentedEncryption.append(segment, keyAlias);
+			try {
+				if (sos.getNextIndex() != chunkOf(sequence)) {
+					throw new IOException("El segmento " + segment.getName() + " tiene " + sos.getNextIndex()
+							+ " registros y el indice " + chunkOf(sequence));
+				}
+				//Cada registro es un fragmento, por lo que su posición se
+				//conoce sin esperar a escribirlo
+				long position = segment.length();
+				do {
+					byte[] record = records.get(i++);
+					entries.putLong(position);
+					sos.write(record);
+					sos.endChunk();
+					position += record.length + SegmentedEncryption.CHUNK_OVERHEAD;
+					sequence++;
+				} while (i < records.size() && segmentOf(sequence) == segmentNumber);
+				sos.close();
+				sos = null;
+
+				if (segment.length() != position) {
+					throw new IOException("El segmento " + segment.getName() + " mide " + segment.length()
+							+ " bytes y se esperaban " + position);
+				}
+			} finally {
+				if (sos != null) {
+					sos.close();
+				}
+			}
+		}
+
+		entries.flip();
+		writeIndex(entries);
+		size = sequence;
+		if (force) {
+			sync();
+		}
+		return first;
+	}
+
+	/**
+	 * Fuerza a disco los segmentos escritos desde la última vez y el índice.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void sync() throws IOException {
+
+		for (int segment : dirtySegments) {
+			force(getSegmentFile(segment));
+		}
+		dirtySegments.clear();
+		if (indexFile.exists()) {
+			force(indexFile);
+		}
+	}
+
+	/**
+	 * Lee un registro por su número de secuencia.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return el registro
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si no existe o no es auténtico
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public byte[] read(long sequence) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		Cursor cursor = scan(sequence, sequence + 1);
+		try {
+			if (!cursor.hasNext()) {
+				throw new IOException("No existe el registro " + sequence);
+			}
+			return cursor.next();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Abre un cursor sobre un rango de registros. El rango se recorta a los
+	 * registros que existen al abrirlo.
+	 *
+	 * @param from el primer registro
+	 * @param to el registro siguiente al último
+	 * @return el cursor, que se ha de cerrar
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Cursor scan(long from, long to) throws IOException {
+		return new Cursor(Math.max(0, from), Math.min(to, size));
+	}
+
+	/**
+	 * Gets the size, el número de registros.
+	 *
+	 * @return the size
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Gets the directory.
+	 *
+	 * @return the directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Obtiene los ficheros de los segmentos existentes, en orden.
+	 *
+	 * @return los segmentos
+	 */
+	public List<File> getSegmentFiles() {
+
+		ArrayList<File> segments = new ArrayList<>();
+		for (int i = 0;; i++) {
+			File segment = getSegmentFile(i);
+			if (!segment.exists()) {
+				return segments;
+			}
+			segments.add(segment);
+		}
+	}
+
+	/**
+	 * Completa el índice con los registros del segmento activo que no tengan
+	 * entrada, o lo recorta si apunta más allá del final del segmento. Se ha
+	 * de llamar con el lock.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void recover() throws IOException {
+
+		long indexed = 0;
+		if (indexFile.exists()) {
+			indexed = indexFile.length() / INDEX_ENTRY;
+			if (indexFile.length() % INDEX_ENTRY != 0) {
+				truncateIndex(indexed);
+			}
+		}
+		size = indexed;
+
+		File segment = getSegmentFile(segmentOf(indexed));
+		if (!segment.exists() || !SegmentedEncryption.isSegmented(segment)) {
+			return;
+		}
+		FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+		try {
+			byte[] header = SegmentedEncryption.readHeader(channel);
+			int chunkSize = SegmentedEncryption.getChunkSize(header);
+			long end = channel.size();
+			long position = SegmentedEncryption.HEADER_LENGTH;
+			long index = 0;
+			ArrayList<Long> positions = new ArrayList<>();
+			ChunkInfo chunk;
+			while ((chunk = ChunkInfo.read(channel, position, end, chunkSize)) != null && chunk.index == index) {
+				positions.add(position);
+				position = chunk.end;
+				index++;
+			}
+
+			long first = chunkOf(indexed);
+			if (index < first) {
+				//El segmento perdió registros indexados (escritura no
+				//sincronizada), el índice se recorta a los que existen
+				long valid = indexed - (first - index);
+				System.err.println("[" + new Date().toString() + "] SegmentedRecordStore " + directory.getName()
+						+ ": indice recortado de " + indexed + " a " + valid + " registros");
+				truncateIndex(valid);
+				size = valid;
+			} else if (index > first) {
+				ByteBuffer entries = ByteBuffer.allocate((int) (index - first) * INDEX_ENTRY);
+				for (long i = first; i < index; i++) {
+					entries.putLong(positions.get((int) i));
+				}
+				entries.flip();
+				writeIndex(entries);
+				size = indexed + (index - first);
+				System.out.println("[" + new Date().toString() + "] SegmentedRecordStore " + directory.getName()
+						+ ": " + (index - first) + " registros sin indexar recuperados");
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Añade entradas al final del índice.
+	 *
+	 * @param entries las posiciones de los registros en su segmento
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeIndex(ByteBuffer entries) throws IOException {
+
+		FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try {
+			SegmentedEncryption.writeFully(channel, entries);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Fuerza a disco el contenido de un fichero.
+	 *
+	 * @param file el fichero
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void force(File file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Recorta el índice a un número de entradas.
+	 *
+	 * @param entries las entradas que se conservan
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void truncateIndex(long entries) throws IOException {
+
+		FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.truncate(entries * INDEX_ENTRY);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Gets the segment file.
+	 *
+	 * @param segment el número de segmento
+	 * @return el fichero
+	 */
+	private File getSegmentFile(int segment) {
+		return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Segmento en el que está un registro.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return el segmento
+	 */
+	private static int segmentOf(long sequence) {
+		return (int) (sequence / RECORDS_PER_SEGMENT);
+	}
+
+	/**
+	 * Índice de fragmento de un registro dentro de su segmento.
+	 *
+	 * @param sequence el número de secuencia
+	 * @return el índice
+	 */
+	private static long chunkOf(long sequence) {
+		return sequence % RECORDS_PER_SEGMENT;
+	}
+
+	/**
+	 * Cursor sobre un rango de registros. Mantiene abiertos el índice y el
+	 * segmento que está recorriendo, por lo que se ha de cerrar. No es
+	 * thread-safe.
+	 */
+	public class Cursor implements Closeable {
+
+		/** Siguiente registro. */
+		private long next;
+
+		/** Registro siguiente al último del rango. */
+		private final long end;
+
+		/** Canal del índice. */
+		private final FileChannel index;
+
+		/** Buffer de lectura del índice. */
+		private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+
+		/** Lector del segmento actual. */
+		private SegmentedReader reader;
+
+		/** Número del segmento actual. */
+		private int readerSegment = -1;
+
+		/**
+		 * Instantiates a new cursor.
+		 *
+		 * @param from el primer registro
+		 * @param end el registro siguiente al último
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private Cursor(long from, long end) throws IOException {
+			this.next = from;
+			this.end = end;
+			this.index = from < end ? FileChannel.open(indexFile.toPath(), StandardOpenOption.READ) : null;
+		}
+
+		/**
+		 * Checks for next.
+		 *
+		 * @return true, si quedan registros
+		 */
+		public boolean hasNext() {
+			return next < end;
+		}
+
+		/**
+		 * Gets the position, el número de secuencia del siguiente registro.
+		 *
+		 * @return the position
+		 */
+		public long getPosition() {
+			return next;
+		}
+
+		/**
+		 * Lee el siguiente registro.
+		 *
+		 * @return el registro
+		 *
+		 * @throws KeyStoreException the key store exception
+		 * @throws IOException si no quedan registros o no es auténtico
+		 * @throws NoSuchAlgorithmException the no such algorithm exception
+		 * @throws CertificateException the certificate exception
+		 * @throws UnrecoverableEntryException the unrecoverable entry exception
+		 */
+		public byte[] next() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+				UnrecoverableEntryException {
+
+			if (next >= end) {
+				throw new IOException("No quedan registros");
+			}
+			int segment = segmentOf(next);
+			if (segment != readerSegment) {
+				if (reader != null) {
+					reader.close();
+					reader = null;
+				}
+				reader = SegmentedEncryption.openReader(getSegmentFile(segment), keyAlias);
+				readerSegment = segment;
+			}
+
+			entry.clear();
+			SegmentedEncryption.readFully(index, entry, next * INDEX_ENTRY);
+			entry.flip();
+			byte[] record = reader.readChunkAt(entry.getLong(), chunkOf(next));
+			next++;
+			return record;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				if (reader != null) {
+					reader.close();
+					reader = null;
+				}
+			} finally {
+				if (index != null) {
+					index.close();
+				}
+			}
+		}
+	}
+}
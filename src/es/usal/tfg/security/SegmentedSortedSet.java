@@ -0,0 +1,502 @@
+/*
+ * Archivo: SegmentedSortedSet.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Conjunto ordenado y encriptado de claves de longitud fija, guardado en un
+ * fichero con el formato de {@link SegmentedEncryption}.
+ * <p>
+ * El fragmento 0 contiene un punto de control de 8 bytes que el llamante usa
+ * para saber hasta dónde está al día el conjunto. Los siguientes contienen
+ * las claves ordenadas, {@link SegmentedSortedSet#KEYS_PER_CHUNK} por
+ * fragmento salvo el último. Como todos los fragmentos menos el último
+ * tienen el mismo tamaño, la posición de cada uno y el número de claves se
+ * calculan a partir del tamaño del fichero, y buscar una clave es una
+ * búsqueda binaria sobre la primera clave de cada fragmento (que se guarda en
+ * memoria al leerla) y otra dentro del fragmento que la puede contener.
+ * <p>
+ * El conjunto no se modifica clave a clave: se
+ * {@link SegmentedSortedSet#merge(Iterator, long) mezcla} con un lote de
+ * claves nuevas escribiendo un fichero nuevo que se renombra sobre el
+ * anterior. Las operaciones se sincronizan sobre la instancia, que es
+ * también el lock que se ha de pasar a
+ * {@link KeyRotation#reencrypt(File, String, Object)}. El reencriptado
+ * conserva los límites de los fragmentos y con ellos las posiciones.
+ */
+public class SegmentedSortedSet {
+
+	/** The Constant KEYS_PER_CHUNK, claves de cada fragmento. */
+	public static final int KEYS_PER_CHUNK = 1024;
+
+	/** Sufijo del fichero temporal usado al mezclar. */
+	private static final String MERGE_SUFFIX = ".merge";
+
+	/** Tamaño del fragmento con el punto de control. */
+	private static final int CHECKPOINT_LENGTH = 8;
+
+	/** Orden de las claves. */
+	private static final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+
+	/** El fichero del conjunto. */
+	private final File file;
+
+	/** El alias de la clave. */
+	private final String keyAlias;
+
+	/** La longitud de las claves. */
+	private final int keyLength;
+
+	/** Número de claves. */
+	private long size;
+
+	/** El punto de control. */
+	private long checkpoint;
+
+	/** Primera clave de cada fragmento, null hasta que se lee. */
+	private byte[][] firstKeys;
+
+	/**
+	 * Instantiates a new segmented sorted set.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param keyLength la longitud de las claves
+	 */
+	private SegmentedSortedSet(File file, String keyAlias, int keyLength) {
+		this.file = file;
+		this.keyAlias = keyAlias;
+		this.keyLength = keyLength;
+	}
+
+	/**
+	 * Abre un conjunto. Si el fichero no existe el conjunto está vacío y con
+	 * el punto de control a 0, y no se crea hasta la primera mezcla.
+	 *
+	 * @param file el fichero
+	 * @param keyAlias el alias de la clave
+	 * @param keyLength la longitud de las claves
+	 * @return el conjunto
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException si el fichero no es un conjunto válido
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public static SegmentedSortedSet open(File file, String keyAlias, int keyLength) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		if (keyLength <= 0 || (long) KEYS_PER_CHUNK * keyLength > SegmentedEncryption.DEFAULT_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Longitud de clave no valida: " + keyLength);
+		}
+		SegmentedSortedSet set = new SegmentedSortedSet(file, keyAlias, keyLength);
+		synchronized (set) {
+			set.load();
+		}
+		return set;
+	}
+
+	/**
+	 * Comprueba si el conjunto contiene una clave. Lee como mucho un
+	 * fragmento más las primeras claves de los fragmentos que aún no estén en
+	 * memoria.
+	 *
+	 * @param key la clave
+	 * @return true, si la contiene
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public synchronized boolean contains(byte[] key) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		if (key.length != keyLength || size == 0) {
+			return false;
+		}
+		SegmentedReader reader = SegmentedEncryption.openReader(file, keyAlias);
+		try {
+			//Último fragmento cuya primera clave es menor o igual
+			int low = 0, high = firstKeys.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (comparator.compare(getFirstKey(reader, mid), key) <= 0) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			byte[] chunk = readKeys(reader, low);
+			int keys = chunk.length / keyLength;
+			int lo = 0, hi = keys - 1;
+			byte[] candidate = new byte[keyLength];
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				System.arraycopy(chunk, mid * keyLength, candidate, 0, keyLength);
+				int c = comparator.compare(candidate, key);
+				if (c == 0) {
+					return true;
+				} else if (c < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return false;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Mezcla el conjunto con un lote de claves nuevas y guarda un nuevo punto
+	 * de control. Escribe un fichero nuevo con todas las claves y lo renombra
+	 * sobre el anterior, por lo que una caída deja el conjunto anterior
+	 * intacto.
+	 *
+	 * @param additions las claves nuevas, ordenadas y de longitud
+	 *            {@link SegmentedSortedSet#keyLength}; las que ya estén en el
+	 *            conjunto se ignoran
+	 * @param checkpoint el nuevo punto de control
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public synchronized void merge(Iterator<byte[]> additions, long checkpoint) throws KeyStoreException,
+			IOException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		File tmp = new File(file.getPath() + MERGE_SUFFIX);
+		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ,
+				PosixFilePermission.OWNER_WRITE);
+		Files.deleteIfExists(tmp.toPath());
+		Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+
+		Cursor existing = scan();
+		SegmentedOutputStream sos = null;
+		boolean moved = false;
+		try {
+			sos = SegmentedEncryption.create(tmp, keyAlias);
+			ByteBuffer meta = ByteBuffer.allocate(CHECKPOINT_LENGTH);
+			meta.putLong(checkpoint);
+			sos.write(meta.array());
+			sos.endChunk();
+
+			byte[] chunk = new byte[KEYS_PER_CHUNK * keyLength];
+			int inChunk = 0;
+			long written = 0;
+			byte[] last = null;
+			byte[] a = existing.hasNext() ? existing.next() : null;
+			byte[] b = additions.hasNext() ? additions.next() : null;
+			while (a != null || b != null) {
+				byte[] key;
+				if (b == null || (a != null && comparator.compare(a, b) <= 0)) {
+					key = a;
+					a = existing.hasNext() ? existing.next() : null;
+				} else {
+					key = b;
+					b = additions.hasNext() ? additions.next() : null;
+					if (key.length != keyLength) {
+						throw new IllegalArgumentException("Longitud de clave no valida: " + key.length);
+					}
+				}
+				if (last != null) {
+					int c = comparator.compare(last, key);
+					if (c == 0) {
+						continue;
+					} else if (c > 0) {
+						throw new IllegalArgumentException("Las claves nuevas no estan ordenadas");
+					}
+				}
+				System.arraycopy(key, 0, chunk, inChunk * keyLength, keyLength);
+				last = key;
+				written++;
+				if (++inChunk == KEYS_PER_CHUNK) {
+					sos.write(chunk);
+					sos.endChunk();
+					inChunk = 0;
+				}
+			}
+			if (inChunk > 0) {
+				sos.write(chunk, 0, inChunk * keyLength);
+			}
+			sos.close();
+			sos = null;
+
+			FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+
+			this.size = written;
+			this.checkpoint = checkpoint;
+			this.firstKeys = new byte[chunksFor(written)][];
+
+		} finally {
+			try {
+				if (sos != null) {
+					sos.close();
+				}
+			} finally {
+				existing.close();
+				if (!moved) {
+					Files.deleteIfExists(tmp.toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Abre un cursor que recorre las claves en orden. Lee el fichero que
+	 * existe al abrirlo aunque despues se sustituya.
+	 *
+	 * @return el cursor, que se ha de cerrar
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	public synchronized Cursor scan() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+
+		SegmentedReader reader = size > 0 ? SegmentedEncryption.openReader(file, keyAlias) : null;
+		return new Cursor(reader, chunksFor(size));
+	}
+
+	/**
+	 * Gets the size, el número de claves.
+	 *
+	 * @return the size
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Gets the checkpoint, el punto de control guardado en la última mezcla.
+	 *
+	 * @return the checkpoint
+	 */
+	public synchronized long getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Lee el punto de control y calcula el número de claves a partir del
+	 * tamaño del fichero. Se ha de llamar con el lock.
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 */
+	private void load() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException {
+
+		size = 0;
+		checkpoint = 0;
+		firstKeys = new byte[0][];
+		if (!file.exists()) {
+			return;
+		}
+		SegmentedReader reader = SegmentedEncryption.openReader(file, keyAlias);
+		try {
+			byte[] meta = reader.readChunkAt(SegmentedEncryption.HEADER_LENGTH, 0);
+			if (meta.length != CHECKPOINT_LENGTH) {
+				throw new IOException(file.getName() + " no es un conjunto ordenado");
+			}
+			long keysBytes = file.length() - chunkPosition(1);
+			long fullChunk = (long) KEYS_PER_CHUNK * keyLength + SegmentedEncryption.CHUNK_OVERHEAD;
+			long full = keysBytes / fullChunk;
+			long rest = keysBytes % fullChunk;
+			if (rest > 0) {
+				rest -= SegmentedEncryption.CHUNK_OVERHEAD;
+				if (rest <= 0 || rest % keyLength != 0) {
+					throw new IOException(file.getName() + " tiene un fragmento incompleto");
+				}
+			}
+			size = full * KEYS_PER_CHUNK + rest / keyLength;
+			checkpoint = ByteBuffer.wrap(meta).getLong();
+			firstKeys = new byte[chunksFor(size)][];
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Gets the first key, la primera clave de un fragmento de claves,
+	 * leyéndola si aún no está en memoria.
+	 *
+	 * @param reader el lector del fichero
+	 * @param chunk el número de fragmento de claves, desde 0
+	 * @return la clave
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private byte[] getFirstKey(SegmentedReader reader, int chunk) throws IOException {
+
+		if (firstKeys[chunk] == null) {
+			firstKeys[chunk] = Arrays.copyOf(readKeys(reader, chunk), keyLength);
+		}
+		return firstKeys[chunk];
+	}
+
+	/**
+	 * Lee un fragmento de claves.
+	 *
+	 * @param reader el lector del fichero
+	 * @param chunk el número de fragmento de claves, desde 0
+	 * @return las claves concatenadas
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private byte[] readKeys(SegmentedReader reader, long chunk) throws IOException {
+		return reader.readChunkAt(chunkPosition(chunk + 1), chunk + 1);
+	}
+
+	/**
+	 * Posición de un fragmento del fichero.
+	 *
+	 * @param index el índice del fragmento, 0 el del punto de control
+	 * @return la posición
+	 */
+	private long chunkPosition(long index) {
+
+		long position = SegmentedEncryption.HEADER_LENGTH;
+		if (index > 0) {
+			position += CHECKPOINT_LENGTH + SegmentedEncryption.CHUNK_OVERHEAD;
+			position += (index - 1) * ((long) KEYS_PER_CHUNK * keyLength + SegmentedEncryption.CHUNK_OVERHEAD);
+		}
+		return position;
+	}
+
+	/**
+	 * Número de fragmentos de claves necesarios para un número de claves.
+	 *
+	 * @param keys las claves
+	 * @return los fragmentos
+	 */
+	private static int chunksFor(long keys) {
+		return (int) ((keys + KEYS_PER_CHUNK - 1) / KEYS_PER_CHUNK);
+	}
+
+	/**
+	 * Cursor que recorre las claves en orden, se ha de cerrar. No es
+	 * thread-safe.
+	 */
+	public class Cursor implements Closeable {
+
+		/** Lector del fichero, null si el conjunto está vacío. */
+		private final SegmentedReader reader;
+
+		/** Número de fragmentos de claves. */
+		private final int chunks;
+
+		/** Siguiente fragmento a leer. */
+		private int nextChunk;
+
+		/** Fragmento actual. */
+		private byte[] current;
+
+		/** Posición en el fragmento actual. */
+		private int offset;
+
+		/**
+		 * Instantiates a new cursor.
+		 *
+		 * @param reader el lector
+		 * @param chunks los fragmentos de claves
+		 */
+		private Cursor(SegmentedReader reader, int chunks) {
+			this.reader = reader;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Checks for next.
+		 *
+		 * @return true, si quedan claves
+		 */
+		public boolean hasNext() {
+			return (current != null && offset < current.length) || nextChunk < chunks;
+		}
+
+		/**
+		 * Lee la siguiente clave.
+		 *
+		 * @return la clave
+		 * @throws IOException si no quedan claves o el fichero no es auténtico
+		 */
+		public byte[] next() throws IOException {
+
+			if (current == null || offset >= current.length) {
+				if (nextChunk >= chunks) {
+					throw new IOException("No quedan claves");
+				}
+				current = readKeys(reader, nextChunk++);
+				offset = 0;
+			}
+			byte[] key = Arrays.copyOfRange(current, offset, offset + keyLength);
+			offset += keyLength;
+			return key;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+}
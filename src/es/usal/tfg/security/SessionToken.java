@@ -0,0 +1,377 @@
+/*
+ * Archivo: SessionToken.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Clase SessionToken que genera y verifica los tokens de sesión de campaña.
+ * <p>
+ * Un token es "payload.firma", ambas partes en Base64 URL sin relleno. El
+ * payload contiene el formato, la versión de la clave de firma, la fecha de
+ * emisión, la fecha de caducidad, el registration id de la campaña y su
+ * nombre; la firma son los primeros {@link SessionToken#TAG_LENGTH} bytes de
+ * su HMAC-SHA256. El registration id se genera al registrar la campaña, y al
+ * comprobar el token se compara con el de la campaña existente, de modo que
+ * los tokens de una campaña borrada o caducada no valen para otra registrada
+ * después con el mismo nombre. Los tokens del formato anterior, sin él, se
+ * leen con un registration id vacío, que solo tienen las campañas antiguas.
+ * <p>
+ * La clave HMAC se deriva de "master_key" con
+ * {@link KeyDerivation#deriveTokenKey(SecretKey, int)} y se guarda en memoria,
+ * por lo que verificar un token no accede al keystore ni a ningún estado
+ * compartido mutable, y todos los nodos que comparten keystore dan la misma
+ * respuesta. La versión de la clave se registra en {@link KeyMetadata} bajo
+ * {@link SessionToken#TOKEN_KEY_ALIAS} al emitir el primer token y no se
+ * rota: solo se aceptan los tokens de esa versión, que va en el payload para
+ * poder distinguir los de una clave futura.
+ */
+public class SessionToken {
+
+	/**
+	 * The Constant TOKEN_KEY_ALIAS con el que se registra la versión de la
+	 * clave en {@link KeyMetadata}. Contiene "/" para que no pueda coincidir
+	 * con el nombre de una campaña, que se usa como nombre de directorio.
+	 */
+	public static final String TOKEN_KEY_ALIAS = "/session_token";
+
+	/** The Constant VALIDITY, duración en milisegundos de un token. */
+	public static final long VALIDITY = TimeUnit.DAYS.toMillis(30);
+
+	/** The Constant FORMAT, versión del formato del payload. */
+	private static final byte FORMAT = 2;
+
+	/**
+	 * The Constant FORMAT_V1, formato anterior sin registration id, que se
+	 * sigue aceptando hasta que caduquen sus tokens.
+	 */
+	private static final byte FORMAT_V1 = 1;
+
+	/** The Constant HMAC_ALGORITHM. */
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	/** The Constant TAG_LENGTH, bytes de la firma HMAC que se conservan. */
+	private static final int TAG_LENGTH = 16;
+
+	/**
+	 * The Constant HEADER_LENGTH, bytes del payload antes del registration id
+	 * (antes del nombre en el formato anterior).
+	 */
+	private static final int HEADER_LENGTH = 1 + 4 + 8 + 8;
+
+	/** The Constant SEPARATOR entre payload y firma. */
+	private static final char SEPARATOR = '.';
+
+	/** Claves HMAC ya derivadas, por versión. */
+	private static final ConcurrentHashMap<Integer, SecretKey> tokenKeys = new ConcurrentHashMap<>();
+
+	/** Instancia de {@link Mac} de cada hilo. */
+	private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(HMAC_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/** Lock para crear la primera versión de la clave. */
+	private static final Object lockVersion = new Object();
+
+	/**
+	 * Genera un token de sesión para una campaña firmado con la versión
+	 * actual de la clave.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 * @param registrationId el registration id de la campaña, null o vacío si
+	 *        no tiene
+	 * @return el token
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no se puede recuperar la clave maestra
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	public static String issue(String campaignName, String registrationId) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, InvalidKeyException {
+
+		int keyVersion = getCurrentVersion();
+		long issuedAt = System.currentTimeMillis();
+		byte[] name = campaignName.getBytes(StandardCharsets.UTF_8);
+		byte[] id = (registrationId == null ? "" : registrationId).getBytes(StandardCharsets.UTF_8);
+		if (id.length > 0xFF) {
+			throw new IllegalArgumentException("Registration id demasiado largo");
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(HEADER_LENGTH + 1 + id.length + name.length);
+		payload.put(FORMAT);
+		payload.putInt(keyVersion);
+		payload.putLong(issuedAt);
+		payload.putLong(issuedAt + VALIDITY);
+		payload.put((byte) id.length);
+		payload.put(id);
+		payload.put(name);
+
+		byte[] tag = sign(payload.array(), getTokenKey(keyVersion));
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(payload.array()) + SEPARATOR + encoder.encodeToString(tag);
+	}
+
+	/**
+	 * Verifica la firma y la caducidad de un token.
+	 *
+	 * @param token el token
+	 * @return los datos del token, o null si no está bien formado, la firma no
+	 *         es válida, no es de la versión actual de la clave o ha caducado
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no se puede recuperar la clave maestra
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	public static Claims verify(String token) throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException, InvalidKeyException {
+
+		if (token == null) {
+			return null;
+		}
+		int separator = token.indexOf(SEPARATOR);
+		if (separator < 0 || separator != token.lastIndexOf(SEPARATOR)) {
+			return null;
+		}
+
+		byte[] payload, tag;
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			payload = decoder.decode(token.substring(0, separator));
+			tag = decoder.decode(token.substring(separator + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (payload.length < HEADER_LENGTH || (payload[0] != FORMAT && payload[0] != FORMAT_V1)
+				|| tag.length != TAG_LENGTH) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		buffer.get();
+		int keyVersion = buffer.getInt();
+		long issuedAt = buffer.getLong();
+		long expiresAt = buffer.getLong();
+
+		int currentVersion = getCurrentVersion();
+		if (keyVersion != currentVersion) {
+			return null;
+		}
+		if (!MessageDigest.isEqual(tag, sign(payload, getTokenKey(keyVersion)))) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= expiresAt) {
+			return null;
+		}
+
+		String registrationId = "";
+		int nameStart = HEADER_LENGTH;
+		if (payload[0] == FORMAT) {
+			if (payload.length < HEADER_LENGTH + 1) {
+				return null;
+			}
+			int idLength = payload[HEADER_LENGTH] & 0xFF;
+			nameStart = HEADER_LENGTH + 1 + idLength;
+			if (payload.length < nameStart) {
+				return null;
+			}
+			registrationId = new String(payload, HEADER_LENGTH + 1, idLength, StandardCharsets.UTF_8);
+		}
+		String campaignName = new String(payload, nameStart, payload.length - nameStart, StandardCharsets.UTF_8);
+		return new Claims(campaignName, registrationId, issuedAt, expiresAt, keyVersion);
+	}
+
+	/**
+	 * Indica si un token tiene el formato de esta clase, para distinguirlo de
+	 * los tokens antiguos que eran el nombre de la campaña encriptado.
+	 *
+	 * @param token el token
+	 * @return true, si es un token firmado
+	 */
+	public static boolean isSessionToken(String token) {
+		return token != null && token.indexOf(SEPARATOR) >= 0;
+	}
+
+	/**
+	 * Obtiene la versión actual de la clave de firma, creando la primera si no
+	 * existe.
+	 *
+	 * @return la versión
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static int getCurrentVersion() throws IOException {
+
+		int version = KeyMetadata.getCurrentVersion(TOKEN_KEY_ALIAS);
+		if (version != KeyMetadata.LEGACY_VERSION) {
+			return version;
+		}
+		synchronized (lockVersion) {
+			version = KeyMetadata.getCurrentVersion(TOKEN_KEY_ALIAS);
+			if (version == KeyMetadata.LEGACY_VERSION) {
+				version = KeyMetadata.nextVersion(TOKEN_KEY_ALIAS);
+			}
+			return version;
+		}
+	}
+
+	/**
+	 * Obtiene la clave HMAC de una versión, derivándola la primera vez.
+	 *
+	 * @param version la versión
+	 * @return la clave
+	 *
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no se puede recuperar la clave maestra
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	private static SecretKey getTokenKey(int version) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, InvalidKeyException {
+
+		SecretKey key = tokenKeys.get(version);
+		if (key == null) {
+			key = KeyDerivation.deriveTokenKey(SymmetricEncryption.getMasterKey(), version);
+			SecretKey previous = tokenKeys.putIfAbsent(version, key);
+			if (previous != null) {
+				key = previous;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Calcula la firma truncada de un payload.
+	 *
+	 * @param payload el payload
+	 * @param key la clave HMAC
+	 * @return los primeros {@link SessionToken#TAG_LENGTH} bytes del HMAC
+	 *
+	 * @throws InvalidKeyException the invalid key exception
+	 */
+	private static byte[] sign(byte[] payload, SecretKey key) throws InvalidKeyException {
+
+		Mac mac = macs.get();
+		mac.init(key);
+		return Arrays.copyOf(mac.doFinal(payload), TAG_LENGTH);
+	}
+
+	/**
+	 * Datos contenidos en un token verificado.
+	 */
+	public static class Claims {
+
+		/** The campaign name. */
+		private final String campaignName;
+
+		/** The registration id, cadena vacía en los tokens del formato anterior. */
+		private final String registrationId;
+
+		/** The issued at, fecha de emisión en milisegundos. */
+		private final long issuedAt;
+
+		/** The expires at, fecha de caducidad en milisegundos. */
+		private final long expiresAt;
+
+		/** The key version. */
+		private final int keyVersion;
+
+		/**
+		 * Instantiates new claims.
+		 *
+		 * @param campaignName the campaign name
+		 * @param registrationId the registration id
+		 * @param issuedAt the issued at
+		 * @param expiresAt the expires at
+		 * @param keyVersion the key version
+		 */
+		Claims(String campaignName, String registrationId, long issuedAt, long expiresAt, int keyVersion) {
+			this.campaignName = campaignName;
+			this.registrationId = registrationId;
+			this.issuedAt = issuedAt;
+			this.expiresAt = expiresAt;
+			this.keyVersion = keyVersion;
+		}
+
+		/**
+		 * Gets the campaign name.
+		 *
+		 * @return the campaign name
+		 */
+		public String getCampaignName() {
+			return campaignName;
+		}
+
+		/**
+		 * Gets the registration id.
+		 *
+		 * @return the registration id, cadena vacía si el token no lleva
+		 */
+		public String getRegistrationId() {
+			return registrationId;
+		}
+
+		/**
+		 * Gets the issued at.
+		 *
+		 * @return the issued at
+		 */
+		public long getIssuedAt() {
+			return issuedAt;
+		}
+
+		/**
+		 * Gets the expires at.
+		 *
+		 * @return the expires at
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * Gets the key version.
+		 *
+		 * @return the key version
+		 */
+		public int getKeyVersion() {
+			return keyVersion;
+		}
+	}
+}
@@ -9,24 +9,33 @@
  */
 package es.usal.tfg.security;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStore.SecretKeyEntry;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -53,8 +62,16 @@ import es.usal.tfg.CampaignManagement;
  *  		generando y guardando</li>
  *  	<li>Encriptar / desencriptar arrays de bytes usando una clave concreta
  *  	</li>
+ *  	<li>Migrar las claves de campaña guardadas en el keystore a claves 
+ *  		derivadas</li>
  *  </ul>  
  * 
+ * Las claves de las campañas pueden ser entradas propias del keystore (el 
+ * formato original) o derivarse de "master_key" con {@link KeyDerivation}
+ * segun la versión registrada en {@link KeyMetadata}. Con 
+ * {@link SymmetricEncryption#DERIVED_KEYS} activo (por defecto) las campañas
+ * nuevas usan claves derivadas y registrarlas no escribe en el keystore.
+ * 
  * La creación de esta clase se ha inspirado en los consejos de <a href=
  * "https://www.owasp.org/index.php/Using_the_Java_Cryptographic_Extensions">
  * OWASP</a> 
@@ -72,14 +89,20 @@ public class SymmetricEncryption {
 	 * Cada vez que se lee esta contraseña para extraer o guardar una clave del
 	 * keystore se borra de memoria nada más completar la operación para reducir
 	 * al máximo posible el tiempo que está cargada en memoria
+	 * <p>
+	 * Se puede cambiar con la propiedad del sistema
+	 * "es.usal.tfg.keystorePassFile", p.ej. para los benchmarks.
 	 */
-	private static final String KEYSTORE_PASS = "/etc/tomcat8/.DemosKey";
+	private static final String KEYSTORE_PASS = System.getProperty("es.usal.tfg.keystorePassFile",
+			"/etc/tomcat8/.DemosKey");
 	
 	/**
 	 * The Constant KEYSTORE_FILE que contiene la ruta de 
-	 * {@link SymmetricEncryption#keyStoreFile}
+	 * {@link SymmetricEncryption#keyStoreFile}. Se puede cambiar con la
+	 * propiedad del sistema "es.usal.tfg.keystoreFile".
 	 */
-	private static final String KEYSTORE_FILE = CampaignManagement.WEBSERVICE_ABSOLUTE_ROUTE + "/.keystore";
+	private static final String KEYSTORE_FILE = System.getProperty("es.usal.tfg.keystoreFile",
+			CampaignManagement.WEBSERVICE_ABSOLUTE_ROUTE + "/.keystore");
 	
 	/**
 	 * The Constant keyStoreFile que referencia al fichero donde se almacena la
@@ -87,6 +110,19 @@ public class SymmetricEncryption {
 	 */
 	private static final File keyStoreFile = new File(KEYSTORE_FILE);
 	
+	/** The Constant MASTER_KEY_ALIAS, alias de la clave maestra del keystore */
+	private static final String MASTER_KEY_ALIAS = "master_key";
+	
+	/**
+	 * The Constant DERIVED_KEYS que indica si las claves de las campañas nuevas
+	 * se derivan de la clave maestra en lugar de guardarse en el keystore. Se
+	 * puede desactivar arrancando la JVM con -Des.usal.tfg.derivedKeys=false
+	 */
+	public static final boolean DERIVED_KEYS = !"false".equalsIgnoreCase(System.getProperty("es.usal.tfg.derivedKeys"));
+	
+	/** Sufijo de los ficheros temporales creados al migrar una clave */
+	public static final String MIGRATION_SUFFIX = ".migr";
+	
 	/** The Constant keyStoreLock. */
 	/** 
 	 * The Constant keyStoreLock que actua como lock para los bloques 
@@ -96,6 +132,33 @@ public class SymmetricEncryption {
 	 */
 	private static final Object keyStoreLock = new Object();
 
+	/**
+	 * Cache concurrente de las claves ya extraidas del keystore indexadas por
+	 * su alias. Una vez que una clave se ha recuperado una vez las siguientes
+	 * peticiones la obtienen de aqui sin tomar 
+	 * {@link SymmetricEncryption#keyStoreLock} ni acceder a disco.
+	 * <p>
+	 * Solo se invalida cuando se escribe el keystore, es decir en
+	 * {@link SymmetricEncryption#configureKeyStore()} y
+	 * {@link SymmetricEncryption#encryptFileSavingKey(File, String)}
+	 */
+	private static final ConcurrentHashMap<String, SecretKey> keyCache = new ConcurrentHashMap<>();
+	
+	/**
+	 * Cache concurrente de las claves derivadas indexadas por versión y alias.
+	 * Se mantiene separada de {@link SymmetricEncryption#keyCache} para que un
+	 * alias del keystore nunca pueda coincidir con el de una clave derivada.
+	 */
+	private static final ConcurrentHashMap<String, SecretKey> derivedKeyCache = new ConcurrentHashMap<>();
+	
+	/**
+	 * Copia en memoria del {@link KeyStore} cargada la primera vez que se 
+	 * necesita una clave que no esta en {@link SymmetricEncryption#keyCache}.
+	 * Solo se accede a ella dentro de bloques synchronized sobre 
+	 * {@link SymmetricEncryption#keyStoreLock}
+	 */
+	private static KeyStore loadedKeyStore = null;
+
 	/**
 	 * Gets the keystorefile.
 	 *
@@ -105,6 +168,234 @@ public class SymmetricEncryption {
 		return keyStoreFile;
 	}
 
+	/**
+	 * Gets the key version, la versión actual de la clave de un alias tal y 
+	 * como se registra en {@link KeyMetadata}. La clave maestra y las claves
+	 * de campaña guardadas en el keystore tienen la versión
+	 * {@link KeyMetadata#LEGACY_VERSION}. Si la clave de "master_key" se ha
+	 * rotado con {@link KeyRotation} la base de datos de campañas se encripta
+	 * con una clave derivada de ella con la versión registrada.
+	 *
+	 * @param keyAlias the key alias
+	 * @return the key version
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int getKeyVersion(String keyAlias) throws IOException {
+		
+		return KeyMetadata.getCurrentVersion(keyAlias);
+	}
+	
+	/**
+	 * Gets the master key, la clave maestra del keystore de la que se derivan
+	 * el resto de claves. Tras la primera carga se sirve desde
+	 * {@link SymmetricEncryption#keyCache}.
+	 *
+	 * @return the master key
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no se puede recuperar la clave
+	 */
+	static SecretKey getMasterKey() throws KeyStoreException, IOException, NoSuchAlgorithmException,
+			CertificateException, UnrecoverableEntryException {
+		
+		return getKeyStoreKey(MASTER_KEY_ALIAS);
+	}
+	
+	/**
+	 * Obtiene la clave actual asociada a un alias, derivada o del keystore
+	 * según la versión que tenga registrada en {@link KeyMetadata}.
+	 *
+	 * @param keyAlias alias de la clave
+	 * @return la clave
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no existe una clave con ese alias
+	 * o no se puede recuperar
+	 */
+	private static SecretKey getSecretKey(String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		
+		return getSecretKey(keyAlias, getKeyVersion(keyAlias));
+	}
+	
+	/**
+	 * Obtiene la clave de un alias en una versión concreta. La versión 
+	 * {@link KeyMetadata#LEGACY_VERSION} corresponde a la entrada del keystore,
+	 * el resto se derivan de la clave maestra con {@link KeyDerivation} y se
+	 * guardan en {@link SymmetricEncryption#derivedKeyCache}.
+	 *
+	 * @param keyAlias alias de la clave
+	 * @param version versión de la clave
+	 * @return la clave
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no existe la clave o no se puede 
+	 * recuperar
+	 */
+	static SecretKey getSecretKey(String keyAlias, int version) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		
+		if (version == KeyMetadata.LEGACY_VERSION) {
+			return getKeyStoreKey(keyAlias);
+		}
+		
+		String cacheKey = version + ":" + keyAlias;
+		SecretKey secretKey = derivedKeyCache.get(cacheKey);
+		if (secretKey != null) {
+			return secretKey;
+		}
+		
+		try {
+			secretKey = KeyDerivation.deriveCampaignKey(getKeyStoreKey(MASTER_KEY_ALIAS), keyAlias, version, AES_KEYLENGTH);
+		} catch (InvalidKeyException e) {
+			throw new UnrecoverableEntryException("No se puede derivar la clave " + keyAlias + ": " + e.getMessage());
+		}
+		SecretKey previous = derivedKeyCache.putIfAbsent(cacheKey, secretKey);
+		
+		return previous != null ? previous : secretKey;
+	}
+
+	/**
+	 * Obtiene la clave HMAC-SHA256 con la que se nombran las imagenes de una
+	 * campaña, derivada con {@link KeyDerivation#deriveImageNameKey(SecretKey)}
+	 * de su clave actual y guardada en 
+	 * {@link SymmetricEncryption#derivedKeyCache}. Si se rota la clave de la
+	 * campaña cambia también esta, las imagenes ya guardadas conservan su
+	 * nombre.
+	 *
+	 * @param keyAlias alias de la clave de la campaña
+	 * @return la clave
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no existe la clave o no se puede 
+	 * recuperar
+	 */
+	public static SecretKey getImageNameKey(String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+		
+		int version = getKeyVersion(keyAlias);
+		String cacheKey = "imagenes:" + version + ":" + keyAlias;
+		SecretKey secretKey = derivedKeyCache.get(cacheKey);
+		if (secretKey != null) {
+			return secretKey;
+		}
+		
+		try {
+			secretKey = KeyDerivation.deriveImageNameKey(getSecretKey(keyAlias, version));
+		} catch (InvalidKeyException e) {
+			throw new UnrecoverableEntryException("No se puede derivar la clave de imagenes " + keyAlias + ": " + e.getMessage());
+		}
+		SecretKey previous = derivedKeyCache.putIfAbsent(cacheKey, secretKey);
+		
+		return previous != null ? previous : secretKey;
+	}
+
+	/**
+	 * Obtiene la clave asociada a un alias del keystore. Si ya esta en 
+	 * {@link SymmetricEncryption#keyCache} se devuelve directamente, en caso
+	 * contrario se carga el keystore (solo la primera vez), se extrae la clave
+	 * y se guarda en la cache para las siguientes peticiones.
+	 *
+	 * @param keyAlias alias de la clave
+	 * @return la clave
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException si no existe una clave con ese alias
+	 * o no se puede recuperar
+	 */
+	private static SecretKey getKeyStoreKey(String keyAlias) throws KeyStoreException, IOException,
+			NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException {
+
+		SecretKey secretKey = keyCache.get(keyAlias);
+		if (secretKey != null) {
+			return secretKey;
+		}
+		
+		FileInputStream fis = null;
+		char[] password = { '\0' };
+		try {
+			password = readKeyStorePassword();
+			
+			KeyStore.ProtectionParameter keyProtectionParm = new KeyStore.PasswordProtection(password);
+			
+			synchronized (keyStoreLock) {
+				
+				//Otro hilo puede haberla cargado mientras se esperaba el lock
+				secretKey = keyCache.get(keyAlias);
+				if (secretKey != null) {
+					return secretKey;
+				}
+				
+				if (loadedKeyStore == null) {
+					KeyStore keyStore = KeyStore.getInstance("JCEKS");
+					fis = new FileInputStream(keyStoreFile);
+					keyStore.load(fis, password);
+					fis.close();
+					fis = null;
+					loadedKeyStore = keyStore;
+				}
+				
+				SecretKeyEntry skEntry = (SecretKeyEntry) loadedKeyStore.getEntry(keyAlias, keyProtectionParm);
+				if (skEntry == null) {
+					throw new UnrecoverableEntryException("No existe la clave " + keyAlias);
+				}
+				secretKey = skEntry.getSecretKey();
+				keyCache.put(keyAlias, secretKey);
+			}
+			
+		} finally {
+			
+			try {
+				if (fis != null) {
+					fis.close();
+					fis = null;
+				}
+			} catch (IOException e) {
+				
+			}
+			
+			Arrays.fill(password, '\0');
+		}
+		
+		return secretKey;
+	}
+	
+	/**
+	 * Lee la contraseña del keystore del fichero 
+	 * {@link SymmetricEncryption#KEYSTORE_PASS}. Quien la invoca es 
+	 * responsable de borrarla de memoria en cuanto deje de necesitarla.
+	 *
+	 * @return la contraseña
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static char[] readKeyStorePassword() throws IOException {
+		
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(new File(KEYSTORE_PASS)));
+			return br.readLine().toCharArray();
+		} finally {
+			if (br != null) {
+				br.close();
+			}
+		}
+	}
+
 	/**
 	 * Crea el fichero {@link SymmetricEncryption#keyStoreFile} y genera la 
 	 * clave "master_key", usada para encriptar la base de datos de campañas
@@ -162,7 +453,7 @@ public class SymmetricEncryption {
 				
 				KeyStore.ProtectionParameter keyProtectionParm= new KeyStore.PasswordProtection(password);
 	            SecretKeyEntry entry = new SecretKeyEntry(secretKey);
-	            keyStore.setEntry("master_key", entry, keyProtectionParm);
+	            keyStore.setEntry(MASTER_KEY_ALIAS, entry, keyProtectionParm);
 				
 				
 				synchronized (keyStoreLock) {
@@ -171,6 +462,12 @@ public class SymmetricEncryption {
 					keyStore.store(fos, password);
 					fos.close();
 					fos = null;
+					
+					//El keystore en disco es nuevo, se descartan las claves
+					//cacheadas y se toma este como copia en memoria
+					loadedKeyStore = keyStore;
+					keyCache.clear();
+					derivedKeyCache.clear();
 				}
 				
 				
@@ -200,10 +497,14 @@ public class SymmetricEncryption {
 	}
 
 	/**
-	 * Encripta un fichero generando y guardando una clave en el Keystore 
-	 * devolviendo un {@link CipherOutputStream} en el que escribir bytes y el
-	 * cual se encarga de encriptar los bytes que recibe antes de escribirlos 
-	 * en disco
+	 * Encripta un fichero creando una clave nueva para el alias y devolviendo
+	 * un {@link CipherOutputStream} en el que escribir bytes y el cual se 
+	 * encarga de encriptar los bytes que recibe antes de escribirlos en disco.
+	 * <p>
+	 * Con {@link SymmetricEncryption#DERIVED_KEYS} activo la clave se deriva
+	 * de la clave maestra con una nueva versión registrada en 
+	 * {@link KeyMetadata}, sin escribir el keystore. En caso contrario se 
+	 * genera una clave aleatoria y se guarda en el keystore como hasta ahora.
 	 *
 	 * @param file fichero a encriptar
 	 * @param keyAlias Alias de la clave que se generará
@@ -216,11 +517,107 @@ public class SymmetricEncryption {
 	 * @throws NoSuchPaddingException the no such padding exception
 	 * @throws InvalidKeyException the invalid key exception
 	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 * @throws UnrecoverableEntryException si no se puede recuperar la clave maestra
 	 */
 	public static CipherOutputStream encryptFileSavingKey(File file, String keyAlias)
 			throws NoSuchAlgorithmException, KeyStoreException, CertificateException, IOException,
-			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, 
+			UnrecoverableEntryException {
+
+		/**
+		 * Step 1. Generate an Initialization Vector (IV) 
+		 * 		a. Use SecureRandom to generate random bits The size of the IV 
+		 * 			matches the blocksize of the cipher (128 bits for AES) 
+		 * 		b. Construct the appropriate IvParameterSpec object for the 
+		 * 			data to pass to Cipher's init() method
+		 */
+
+		byte[] iv = new byte[AES_KEYLENGTH / 8];
+		CryptoPool.getSecureRandom().nextBytes(iv);
+
+		/**
+		 * Step 2. Obtain the new key, either deriving a new version from the 
+		 * master key or generating it and storing it in the keystore
+		 */
+		
+		SecretKey secretKey = getSecretKey(keyAlias, createKey(keyAlias));
 
+		/**
+		 * Step 3. Create a Cipher by specifying the following parameters 
+		 * 		a. Algorithm name - here it is AES
+		 * 		b. Mode - here it is CBC mode 
+		 * 		c. Padding - e.g. PKCS7 or PKCS5
+		 */
+
+		Cipher aesCipherForEncryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
+
+		/**
+		 * Step 4. Initialize the Cipher for Encryption
+		 */
+
+		aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+
+		/**
+		 * Step 5. Create a CipherOutputStream with the file given by attribute
+		 * and the cipher initialized above. Before returning, write the IV at
+		 * the beginning of the file.
+		 */
+
+		FileOutputStream fos = new FileOutputStream(file);
+
+		CipherOutputStream cos = CryptoPool.newOutputStream(fos, CryptoPool.AES_CBC, aesCipherForEncryption);
+
+		fos.write(iv);
+
+		return cos;
+
+	}
+	
+	/**
+	 * Crea una clave nueva para un alias sin encriptar ningún fichero. Con 
+	 * {@link SymmetricEncryption#DERIVED_KEYS} activo registra una nueva 
+	 * versión derivada en {@link KeyMetadata}, en caso contrario genera una
+	 * clave aleatoria y la guarda en el keystore.
+	 *
+	 * @param keyAlias Alias de la clave que se generará
+	 * @return la versión de la clave creada
+	 * 
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws KeyStoreException the key store exception
+	 * @throws CertificateException the certificate exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int createKey(String keyAlias)
+			throws NoSuchAlgorithmException, KeyStoreException, CertificateException, IOException {
+		
+		if (DERIVED_KEYS) {
+			return KeyMetadata.nextVersion(keyAlias);
+		}
+		
+		//Volver a la versión del keystore no olvida las versiones derivadas
+		//anteriores, KeyMetadata#nextVersion seguirá por encima de ellas
+		generateAndStoreKey(keyAlias);
+		if (KeyMetadata.getCurrentVersion(keyAlias) != KeyMetadata.LEGACY_VERSION) {
+			KeyMetadata.setCurrentVersion(keyAlias, KeyMetadata.LEGACY_VERSION);
+		}
+		return KeyMetadata.LEGACY_VERSION;
+	}
+	
+	/**
+	 * Genera una clave AES aleatoria y la guarda en el keystore con el alias
+	 * indicado, reescribiendo el fichero del keystore.
+	 *
+	 * @param keyAlias Alias de la clave que se generará
+	 * @return la clave generada
+	 * 
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws KeyStoreException the key store exception
+	 * @throws CertificateException the certificate exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static SecretKey generateAndStoreKey(String keyAlias)
+			throws NoSuchAlgorithmException, KeyStoreException, CertificateException, IOException {
+		
 		/**
 		 * Step 1. Generate an AES key using KeyGenerator Initialize the keysize
 		 * to 128 bits (16 bytes)
@@ -233,19 +630,7 @@ public class SymmetricEncryption {
 		SecretKey secretKey = keyGen.generateKey();
 
 		/**
-		 * Step 2. Generate an Initialization Vector (IV) 
-		 * 		a. Use SecureRandom to generate random bits The size of the IV 
-		 * 			matches the blocksize of the cipher (128 bits for AES) 
-		 * 		b. Construct the appropriate IvParameterSpec object for the 
-		 * 			data to pass to Cipher's init() method
-		 */
-
-		byte[] iv = new byte[AES_KEYLENGTH / 8];
-		SecureRandom prng = new SecureRandom();
-		prng.nextBytes(iv);
-
-		/**
-		 * Step 3. Store the secret key to a keystore
+		 * Step 2. Store the secret key to a keystore
 		 * 
 		 */
 
@@ -270,18 +655,26 @@ public class SymmetricEncryption {
 			SecretKeyEntry entry = new SecretKeyEntry(secretKey);
 			
 			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
+				
+				//Solo se lee de disco si aun no se tiene la copia en memoria
+				if (loadedKeyStore != null) {
+					keyStore = loadedKeyStore;
+				} else {
+					fis = new FileInputStream(keyStoreFile);
+					keyStore.load(fis, password);
+					fis.close();
+					fis = null;
+				}
 				
 				keyStore.setEntry(keyAlias, entry, keyProtectionParm);
 				fos = new FileOutputStream(keyStoreFile);
 				keyStore.store(fos, password);
 				
-				fis.close();
-				fis = null;
-				
 				fos.close();
 				fos = null;
+				
+				loadedKeyStore = keyStore;
+				keyCache.put(keyAlias, secretKey);
 			}
 
 		} finally {
@@ -306,36 +699,8 @@ public class SymmetricEncryption {
 
 			Arrays.fill(password, '\0');
 		}
-
-		/**
-		 * Step 4. Create a Cipher by specifying the following parameters 
-		 * 		a. Algorithm name - here it is AES
-		 * 		b. Mode - here it is CBC mode 
-		 * 		c. Padding - e.g. PKCS7 or PKCS5
-		 */
-
-		Cipher aesCipherForEncryption = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-
-		/**
-		 * Step 5. Initialize the Cipher for Encryption
-		 */
-
-		aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-
-		/**
-		 * Step 6. Create a CipherOutputStream with the file given by attribute
-		 * and the cipher initialized above. Before returning, write the IV at
-		 * the beginning of the file.
-		 */
-
-		fos = new FileOutputStream(file);
-
-		CipherOutputStream cos = new CipherOutputStream(fos, aesCipherForEncryption);
-
-		fos.write(iv);
-
-		return cos;
-
+		
+		return secretKey;
 	}
 	
 	/**
@@ -366,67 +731,21 @@ public class SymmetricEncryption {
 		 * 		a. Use SecureRandom to generate random bits The size of the IV 
 		 * 			matches the blocksize of the cipher (128 bits for AES) 
 		 * 		b. Construct the appropriate IvParameterSpec object for the 
-		 * 			data to pass to Cipher's init() method
-		 */
-
-		byte[] iv = new byte[AES_KEYLENGTH / 8];
-		SecureRandom prng = new SecureRandom();
-		prng.nextBytes(iv);
-
-		/**
-		 * Step 2. Retrieve the secret key from the keystore
-		 * 
-		 */
-
-
-		KeyStore keyStore = null;
-
-		FileInputStream fis = null;
-		BufferedReader br = null;
-		SecretKey secretKey;
-		char[] password = { '\0' };
-		try {
-			keyStore = KeyStore.getInstance("JCEKS");
-			
-
-			br = new BufferedReader(new FileReader(new File(KEYSTORE_PASS)));
-
-			password = br.readLine().toCharArray();
-
-			br.close();
-			br = null;
-			
-			KeyStore.ProtectionParameter keyProtectionParm = new KeyStore.PasswordProtection(password);
-			
-			SecretKeyEntry skEntry;
-			
-			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
-				skEntry = (SecretKeyEntry) keyStore.getEntry(keyAlias, keyProtectionParm);
-				fis.close();
-				fis = null;
-			}
-			
-			secretKey = skEntry.getSecretKey();
-
-		} finally {
-
-			try {
-				if (fis != null) {
-					fis.close();
-					fis = null;
-				}
-				if (br != null) {
-					br.close();
-					br = null;
-				}
-			} catch (IOException e) {
+		 * 			data to pass to Cipher's init() method
+		 */
 
-			}
+		byte[] iv = new byte[AES_KEYLENGTH / 8];
+		CryptoPool.getSecureRandom().nextBytes(iv);
+
+		/**
+		 * Step 2. Retrieve the secret key from the key cache (the keystore
+		 * is only read the first time an alias is requested)
+		 * 
+		 */
+
+
+		SecretKey secretKey = getSecretKey(keyAlias);
 
-			Arrays.fill(password, '\0');
-		}
 
 		/**
 		 * Step 3. Create a Cipher by specifying the following parameters 
@@ -435,7 +754,7 @@ public class SymmetricEncryption {
 		 * 		c. Padding - e.g. PKCS7 or PKCS5
 		 */
 
-		Cipher aesCipherForEncryption = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		Cipher aesCipherForEncryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
 
 		/**
 		 * Step 4. Initialize the Cipher for Encryption
@@ -451,7 +770,7 @@ public class SymmetricEncryption {
 
 		FileOutputStream fos = new FileOutputStream(file);
 
-		CipherOutputStream cos = new CipherOutputStream(fos, aesCipherForEncryption);
+		CipherOutputStream cos = CryptoPool.newOutputStream(fos, CryptoPool.AES_CBC, aesCipherForEncryption);
 
 		fos.write(iv);
 
@@ -492,60 +811,16 @@ public class SymmetricEncryption {
 		 */
 
 		byte[] iv = new byte[AES_KEYLENGTH / 8];
-		SecureRandom prng = new SecureRandom();
-		prng.nextBytes(iv);
+		CryptoPool.getSecureRandom().nextBytes(iv);
 
 		/**
-		 * Step 2. Retrieve the secret key from the keystore
+		 * Step 2. Retrieve the secret key from the key cache (the keystore
+		 * is only read the first time an alias is requested)
 		 * 
 		 */
 
-		KeyStore keyStore = null;
-
-		FileInputStream fis = null;
-		BufferedReader br = null;
-		SecretKey secretKey;
-		char[] password = { '\0' };
-		try {
-			keyStore = KeyStore.getInstance("JCEKS");
-			
-
-			br = new BufferedReader(new FileReader(new File(KEYSTORE_PASS)));
-
-			password = br.readLine().toCharArray();
-
-			br.close();
-			br = null;
-			
-			KeyStore.ProtectionParameter keyProtectionParm = new KeyStore.PasswordProtection(password);
-			
-			SecretKeyEntry skEntry;
-			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
-				skEntry = (SecretKeyEntry) keyStore.getEntry(keyAlias, keyProtectionParm);
-				fis.close();
-				fis = null;
-			}
-			secretKey = skEntry.getSecretKey();
-
-		} finally {
-
-			try {
-				if (fis != null) {
-					fis.close();
-					fis = null;
-				}
-				if (br != null) {
-					br.close();
-					br = null;
-				}
-			} catch (IOException e) {
-
-			}
+		SecretKey secretKey = getSecretKey(keyAlias);
 
-			Arrays.fill(password, '\0');
-		}
 
 		/**
 		 * Step 3. Create a Cipher by specifying the following parameters 
@@ -554,7 +829,7 @@ public class SymmetricEncryption {
 		 * 		c. Padding - e.g. PKCS7 or PKCS5
 		 */
 
-		Cipher aesCipherForEncryption = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		Cipher aesCipherForEncryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
 
 		/**
 		 * Step 5. Initialize the Cipher for Encryption
@@ -572,8 +847,12 @@ public class SymmetricEncryption {
 		
 		
 		 byte[] byteDataToEncrypt = input; 
-		 byte[] byteCipherText = aesCipherForEncryption
-				 .doFinal(byteDataToEncrypt);
+		 byte[] byteCipherText;
+		 try {
+			 byteCipherText = aesCipherForEncryption.doFinal(byteDataToEncrypt);
+		 } finally {
+			 CryptoPool.releaseCipher(CryptoPool.AES_CBC, aesCipherForEncryption);
+		 }
 		  
 		 byte [] result = new byte[iv.length + byteCipherText.length];
 		 System.arraycopy(iv, 0, result, 0, iv.length);
@@ -610,57 +889,13 @@ public class SymmetricEncryption {
 		
 
 		/**
-		 * Step 1. Retrieve the secret key from the keystore
+		 * Step 1. Retrieve the secret key from the key cache (the keystore
+		 * is only read the first time an alias is requested)
 		 * 
 		 */
 
-		KeyStore keyStore = null;
-
-		FileInputStream fis = null;
-		BufferedReader br = null;
-		SecretKey secretKey;
-		char[] password = { '\0' };
-		try {
-			keyStore = KeyStore.getInstance("JCEKS");
-			
-
-			br = new BufferedReader(new FileReader(new File(KEYSTORE_PASS)));
-
-			password = br.readLine().toCharArray();
-
-			br.close();
-			br = null;
-			KeyStore.ProtectionParameter keyProtectionParm = new KeyStore.PasswordProtection(password);
-
-			
-			SecretKeyEntry skEntry;
-			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
-				skEntry = (SecretKeyEntry) keyStore.getEntry(keyAlias, keyProtectionParm);
-				fis.close();
-				fis = null;
-			}
-			
-			secretKey = skEntry.getSecretKey();
-
-		} finally {
-
-			try {
-				if (fis != null) {
-					fis.close();
-					fis = null;
-				}
-				if (br != null) {
-					br.close();
-					br = null;
-				}
-			} catch (IOException e) {
-
-			}
+		SecretKey secretKey = getSecretKey(keyAlias);
 
-			Arrays.fill(password, '\0');
-		}
 
 		/**
 		 * Step 2. Create a Cipher by specifying the following parameters 
@@ -669,46 +904,36 @@ public class SymmetricEncryption {
 		 * 		c. Padding - e.g. PKCS7 or PKCS5
 		 */
 
-		Cipher aesCipherForDecryption = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		Cipher aesCipherForDecryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
 		
 		/**
-		 * Step 3. Read the IV from the file
+		 * Step 3. Read the IV from the beginning of the file, the same stream
+		 * is then used to read the ciphertext
 		 */
 		byte [] iv = new byte [AES_KEYLENGTH/8];
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 
+				CryptoPool.BUFFER_SIZE));
+		CipherInputStream cis = null;
 		try {
-			fis = new FileInputStream(file);
-			fis.read(iv);
+			dis.readFully(iv);
+			
+			/**
+			 * Step 4. Initialize the Cipher for Decryption
+			 */
+
+			aesCipherForDecryption.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
 
-			fis.close();
+			/**
+			 * Step 5. Create a CipherInputStream with the rest of the file
+			 * and the cipher initialized above. 
+			 */
+			cis = CryptoPool.newInputStream(dis, CryptoPool.AES_CBC, aesCipherForDecryption);
 		} finally {
-			if (fis!=null) {
-				fis.close();
-				fis=null;
+			if (cis == null) {
+				dis.close();
+				CryptoPool.releaseCipher(CryptoPool.AES_CBC, aesCipherForDecryption);
 			}
 		}
-		
-		
-		/**
-		 * Step 4. Initialize the Cipher for Decryption
-		 */
-
-		aesCipherForDecryption.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
-
-		/**
-		 * Step 5. Create a CipherInputStream with the file given by attribute
-		 * and the cipher initialized above. 
-		 */
-
-		
-		CipherInputStream cis = null;
-		
-		fis = new FileInputStream(file);
-		// Necessary to avoid reading the IV which is on the beggining
-		// of the file
-		fis.read(iv);
-		
-		cis = new CipherInputStream(fis, aesCipherForDecryption);
-		
 
 		return cis;
 
@@ -738,56 +963,13 @@ public class SymmetricEncryption {
 			InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
 	
 		/**
-		 * Step 1. Retrieve the secret key from the keystore
+		 * Step 1. Retrieve the secret key from the key cache (the keystore
+		 * is only read the first time an alias is requested)
 		 * 
 		 */
 
-		KeyStore keyStore = null;
-
-		FileInputStream fis = null;
-		BufferedReader br = null;
-		SecretKey secretKey;
-		char[] password = { '\0' };
-		try {
-			keyStore = KeyStore.getInstance("JCEKS");
-			
-
-			br = new BufferedReader(new FileReader(new File(KEYSTORE_PASS)));
-
-			password = br.readLine().toCharArray();
-
-			br.close();
-			br = null;
-			
-			KeyStore.ProtectionParameter keyProtectionParm = new KeyStore.PasswordProtection(password);
-			
-			SecretKeyEntry skEntry;
-			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
-				skEntry = (SecretKeyEntry) keyStore.getEntry(keyAlias, keyProtectionParm);
-				fis.close();
-				fis = null;
-			}
-			secretKey = skEntry.getSecretKey();
-
-		} finally {
-
-			try {
-				if (fis != null) {
-					fis.close();
-					fis = null;
-				}
-				if (br != null) {
-					br.close();
-					br = null;
-				}
-			} catch (IOException e) {
-
-			}
+		SecretKey secretKey = getSecretKey(keyAlias);
 
-			Arrays.fill(password, '\0');
-		}
 		
 
 		/**
@@ -797,7 +979,7 @@ public class SymmetricEncryption {
 		 * 		c. Padding - e.g. PKCS7 or PKCS5
 		 */
 
-		Cipher aesCipherForDecryption = Cipher.getInstance("AES/CBC/PKCS5PADDING");
+		Cipher aesCipherForDecryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
 		
 		/**
 		 * Step 3. Read the IV from the byteArray
@@ -828,7 +1010,12 @@ public class SymmetricEncryption {
 		 * Step 5. Decrypt the input bytes without the IV
 		 */
 
-		byte[] output = aesCipherForDecryption.doFinal(Arrays.copyOfRange(input, iv.length, input.length)); 
+		byte[] output;
+		try {
+			output = aesCipherForDecryption.doFinal(input, iv.length, input.length - iv.length);
+		} finally {
+			CryptoPool.releaseCipher(CryptoPool.AES_CBC, aesCipherForDecryption);
+		}
 		
 		return output;
 	}
@@ -868,7 +1055,11 @@ public class SymmetricEncryption {
 	 * 
 	 * @see <a href="http://stackoverflow.com/a/4877403/6441806">http://stackoverflow.com/a/4877403/6441806</a>
 	 * @see <a href="http://stackoverflow.com/a/10291282/6441806">http://stackoverflow.com/a/10291282/6441806</a>
+	 * 
+	 * @deprecated necesita leer el final del fichero y reescribir el último 
+	 * bloque, usar {@link SegmentedEncryption#append(File, String)}
 	 */
+	@Deprecated
 	public static CipherOutputStream appendAES(File file, String keyAlias)
 			throws IllegalArgumentException, KeyStoreException, IOException, NoSuchAlgorithmException,
 			CertificateException, UnrecoverableEntryException, InvalidKeyException, InvalidAlgorithmParameterException,
@@ -876,54 +1067,8 @@ public class SymmetricEncryption {
 
 		//Recuperar la clave privada designada con keyAlias del KeyStore
 		
-		KeyStore keyStore=null;
-		SecretKey secretKey = null;
-		FileInputStream fis=null;
-		BufferedReader br = null;
-		char [] password = {'\0'};
-		try {
-			keyStore = KeyStore.getInstance("JCEKS");
-		
-			
-			br = new BufferedReader(new FileReader(new File (KEYSTORE_PASS)));
-			
-			password = br.readLine().toCharArray();
-			
-			
-			br.close();
-			br = null;
-			
-			KeyStore.ProtectionParameter keyProtectionParm= new KeyStore.PasswordProtection(password);
-			
-			
-			SecretKeyEntry skEntry;
-			synchronized (keyStoreLock) {
-				fis = new FileInputStream(keyStoreFile);
-				keyStore.load(fis, password);
-				skEntry = (SecretKeyEntry) keyStore.getEntry(keyAlias, keyProtectionParm);
-				fis.close();
-				fis=null;
-			}
-			
-			secretKey = skEntry.getSecretKey();
-			
-		} finally {
-			
-			try {
-				if (fis!= null) {
-					fis.close();
-					fis=null;
-				}
-				if (br!=null) {
-					br.close();
-					br = null;
-				}
-			} catch (IOException e) {
-				
-			}
-			
-			Arrays.fill(password, '\0');
-		}
+		SecretKey secretKey = getSecretKey(keyAlias);
+
 		
 		//Bloque de inicializacion para esta concatenacion (distinto del IV del fichero entero)
 		byte [] iv = new byte[AES_KEYLENGTH/8];
@@ -933,8 +1078,8 @@ public class SymmetricEncryption {
 		RandomAccessFile rfile;
 		
 		//Declaracion de los cifradores para encriptar y desencriptar
-		Cipher aesCipherForEncryption = Cipher.getInstance("AES/CBC/PKCS5PADDING"); // Must specify the mode explicitly as most JCE providers default to ECB mode!!
-		Cipher aesCipherForDecryption = Cipher.getInstance("AES/CBC/PKCS5PADDING"); // Must specify the mode explicitly as most JCE providers default to ECB mode!!
+		Cipher aesCipherForEncryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC); // Must specify the mode explicitly as most JCE providers default to ECB mode!!
+		Cipher aesCipherForDecryption = null;
 
 		//Apertura del fichero en modo lectura+escritura
 		rfile = new RandomAccessFile(file, "rw");
@@ -951,8 +1096,8 @@ public class SymmetricEncryption {
 			
 			aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
 			
-			CipherOutputStream cos = new CipherOutputStream(new FileOutputStream(rfile.getFD()),
-					aesCipherForEncryption);
+			CipherOutputStream cos = CryptoPool.newOutputStream(new FileOutputStream(rfile.getFD()),
+					CryptoPool.AES_CBC, aesCipherForEncryption);
 
 			return cos;
 			
@@ -967,8 +1112,13 @@ public class SymmetricEncryption {
 
 			rfile.read(lastBlockEncrypt);
 
+			aesCipherForDecryption = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
 			aesCipherForDecryption.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
-			lastBlock = aesCipherForDecryption.doFinal(lastBlockEncrypt);
+			try {
+				lastBlock = aesCipherForDecryption.doFinal(lastBlockEncrypt);
+			} finally {
+				CryptoPool.releaseCipher(CryptoPool.AES_CBC, aesCipherForDecryption);
+			}
 			rfile.seek(rfile.length() - AES_KEYLENGTH / 8);
 
 			aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
@@ -981,8 +1131,8 @@ public class SymmetricEncryption {
 				}
 			}
 
-			CipherOutputStream cos = new CipherOutputStream(new FileOutputStream(rfile.getFD()),
-					aesCipherForEncryption);
+			CipherOutputStream cos = CryptoPool.newOutputStream(new FileOutputStream(rfile.getFD()),
+					CryptoPool.AES_CBC, aesCipherForEncryption);
 
 			return cos;
 		}
@@ -994,4 +1144,165 @@ public class SymmetricEncryption {
 	
 	
 	
+	/**
+	 * Migra la clave de un alias guardada en el keystore a una clave derivada,
+	 * con la versión siguiente a la mayor que haya tenido el alias,
+	 * reencriptando los ficheros indicados.
+	 * <p>
+	 * Cada fichero se desencripta con la clave antigua y se encripta con la 
+	 * nueva en un temporal con sufijo {@link SymmetricEncryption#MIGRATION_SUFFIX}.
+	 * Solo cuando todos estan escritos se registra la nueva versión en 
+	 * {@link KeyMetadata} y despues se renombran sobre los originales. Si el 
+	 * proceso se interrumpe antes de registrar la versión los originales 
+	 * siguen intactos y basta con repetirlo; si se interrumpe despues, la 
+	 * siguiente llamada completa los renombrados pendientes.
+	 * <p>
+	 * Los ficheros con el formato de {@link SegmentedEncryption} llevan en su
+	 * cabecera la versión de la clave con la que se encriptaron, por lo que 
+	 * no necesitan reencriptarse y se omiten. La entrada antigua no se borra
+	 * del keystore. Quien la invoca ha de garantizar que no se usan esos 
+	 * ficheros mientras tanto.
+	 *
+	 * @param keyAlias the key alias
+	 * @param files los ficheros encriptados con la clave del alias
+	 * @return true si se ha migrado la clave, false si ya era derivada
+	 * 
+	 * @throws KeyStoreException the key store exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws CertificateException the certificate exception
+	 * @throws UnrecoverableEntryException the unrecoverable entry exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	public static boolean migrateToDerivedKey(String keyAlias, Collection<File> files)
+			throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException,
+			UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+		
+		if (MASTER_KEY_ALIAS.equals(keyAlias)) {
+			throw new IllegalArgumentException("La clave maestra no se puede migrar");
+		}
+		
+		boolean migrated = false;
+		if (getKeyVersion(keyAlias) == KeyMetadata.LEGACY_VERSION) {
+			
+			//La versión nueva es mayor que cualquiera usada antes por el alias,
+			//por si la campaña tuvo claves derivadas y volvió al keystore
+			int version = KeyMetadata.getHighestVersion(keyAlias) + 1;
+			SecretKey oldKey = getKeyStoreKey(keyAlias);
+			SecretKey newKey = getSecretKey(keyAlias, version);
+			
+			for (File file : files) {
+				if (file.exists() && !SegmentedEncryption.isSegmented(file)) {
+					reencryptFile(file, new File(file.getPath() + MIGRATION_SUFFIX), oldKey, newKey);
+				}
+			}
+			
+			KeyMetadata.setCurrentVersion(keyAlias, version);
+			migrated = true;
+		}
+		
+		//Renombrado de los temporales, tambien los que hubiese dejado una 
+		//migración interrumpida despues de registrar la versión
+		for (File file : files) {
+			File tmpFile = new File(file.getPath() + MIGRATION_SUFFIX);
+			if (tmpFile.exists()) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+		
+		return migrated;
+	}
+	
+	/**
+	 * Desencripta un fichero con una clave y escribe su contenido encriptado
+	 * con otra (y un IV nuevo) en el fichero destino, forzando su escritura
+	 * en disco.
+	 *
+	 * @param source fichero origen
+	 * @param destination fichero destino, se sobreescribe si existe
+	 * @param oldKey clave con la que esta encriptado el origen
+	 * @param newKey clave con la que se encriptará el destino
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws NoSuchAlgorithmException the no such algorithm exception
+	 * @throws NoSuchPaddingException the no such padding exception
+	 * @throws InvalidKeyException the invalid key exception
+	 * @throws InvalidAlgorithmParameterException the invalid algorithm parameter exception
+	 */
+	private static void reencryptFile(File source, File destination, SecretKey oldKey, SecretKey newKey)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException {
+		
+		Set<PosixFilePermission> permsRW = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+		Files.deleteIfExists(destination.toPath());
+		Files.createFile(destination.toPath(), PosixFilePermissions.asFileAttribute(permsRW));
+		
+		byte[] oldIv = new byte[AES_KEYLENGTH / 8];
+		byte[] newIv = new byte[AES_KEYLENGTH / 8];
+		CryptoPool.getSecureRandom().nextBytes(newIv);
+		
+		Cipher decryptCipher = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
+		Cipher encryptCipher = CryptoPool.acquireCipher(CryptoPool.AES_CBC);
+		
+		FileInputStream fis = null;
+		FileOutputStream fos = null;
+		CipherInputStream cis = null;
+		CipherOutputStream cos = null;
+		try {
+			fis = new FileInputStream(source);
+			if (fis.read(oldIv) != oldIv.length) {
+				throw new IOException("Fichero encriptado sin IV: " + source.getAbsolutePath());
+			}
+			decryptCipher.init(Cipher.DECRYPT_MODE, oldKey, new IvParameterSpec(oldIv));
+			encryptCipher.init(Cipher.ENCRYPT_MODE, newKey, new IvParameterSpec(newIv));
+			
+			cis = CryptoPool.newInputStream(fis, CryptoPool.AES_CBC, decryptCipher);
+			decryptCipher = null;
+			
+			fos = new FileOutputStream(destination);
+			fos.write(newIv);
+			cos = CryptoPool.newOutputStream(fos, CryptoPool.AES_CBC, encryptCipher);
+			encryptCipher = null;
+			
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = cis.read(buffer)) != -1) {
+				cos.write(buffer, 0, read);
+			}
+			cos.flush();
+			cos.close();
+			cos = null;
+			
+		} finally {
+			//Los cipher que no se han llegado a asociar a un stream se 
+			//devuelven directamente al pool
+			CryptoPool.releaseCipher(CryptoPool.AES_CBC, decryptCipher);
+			CryptoPool.releaseCipher(CryptoPool.AES_CBC, encryptCipher);
+			try {
+				if (cos != null) {
+					cos.close();
+				}
+				if (cis != null) {
+					cis.close();
+				} else if (fis != null) {
+					fis.close();
+				}
+			} catch (IOException e) {
+				
+			}
+		}
+		
+		//El contenido ha de estar en disco antes de registrar la nueva versión
+		RandomAccessFile raf = new RandomAccessFile(destination, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+	
 }
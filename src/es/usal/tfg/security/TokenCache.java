@@ -0,0 +1,100 @@
+/*
+ * Archivo: TokenCache.java
+ * Proyecto: Demos_Rest
+ *
+ * Autor: Aythami Estévez Olivas
+ * Email: aythae@gmail.com
+ * Fecha: 04-jul-2016
+ * Repositorio GitHub: https://github.com/AythaE/Demos_Rest
+ */
+package es.usal.tfg.security;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Clase TokenCache, guarda los tokens de sesión con el formato antiguo (el
+ * nombre de la campaña encriptado) ya comprobados, con la campaña a la que
+ * pertenecen, para no desencriptarlos cada vez que llegan.
+ * <p>
+ * Cada token caduca {@link TokenCache#TTL_MINUTES} minutos después de
+ * comprobarlo, por lo que no caducan todos a la vez, y como mucho se guardan
+ * {@link TokenCache#MAX_TOKENS}, descartando los menos usados
+ * recientemente. Al borrar una campaña se quitan sus tokens con
+ * {@link TokenCache#invalidateCampaign(String)}. Las estadísticas se
+ * obtienen con {@link TokenCache#getStats()}.
+ */
+public class TokenCache {
+
+	/** The Constant MAX_TOKENS, número máximo de tokens guardados. */
+	public static final long MAX_TOKENS = Long.getLong("es.usal.tfg.tokenCacheSize", 10000L);
+
+	/** The Constant TTL_MINUTES, minutos que se guarda cada token. */
+	public static final long TTL_MINUTES = Long.getLong("es.usal.tfg.tokenCacheTtlMinutes", 24L * 60);
+
+	/** Los tokens, con el nombre de su campaña. */
+	private static final Cache<String, String> tokens = CacheBuilder.newBuilder().maximumSize(MAX_TOKENS)
+			.expireAfterWrite(TTL_MINUTES, TimeUnit.MINUTES).recordStats().build();
+
+	/**
+	 * Instantiates a new token cache, no se instancia.
+	 */
+	private TokenCache() {
+	}
+
+	/**
+	 * Comprueba si un token ya se ha comprobado para una campaña.
+	 *
+	 * @param token el token
+	 * @param campaignName el nombre de la campaña
+	 * @return true, si esta guardado y es de esa campaña
+	 */
+	public static boolean contains(String token, String campaignName) {
+
+		String campaña = tokens.getIfPresent(token);
+		return campaña != null && campaña.equals(campaignName);
+	}
+
+	/**
+	 * Guarda un token ya comprobado.
+	 *
+	 * @param token el token
+	 * @param campaignName el nombre de su campaña
+	 */
+	public static void put(String token, String campaignName) {
+		tokens.put(token, campaignName);
+	}
+
+	/**
+	 * Quita los tokens de una campaña, se invoca al borrarla.
+	 *
+	 * @param campaignName el nombre de la campaña
+	 */
+	public static void invalidateCampaign(String campaignName) {
+		tokens.asMap().values().removeAll(Collections.singleton(campaignName));
+	}
+
+	/**
+	 * Quita los tokens caducados, se invoca desde el mantenimiento.
+	 */
+	public static void cleanUp() {
+		tokens.cleanUp();
+	}
+
+	/**
+	 * Gets the stats de aciertos, fallos y descartes.
+	 *
+	 * @return the stats
+	 */
+	public static String getStats() {
+
+		CacheStats stats = tokens.stats();
+		return String.format("Tokens guardados: %d de %d, aciertos: %d, fallos: %d, tasa de aciertos: %.2f%%, "
+				+ "descartados: %d", tokens.size(), MAX_TOKENS, stats.hitCount(), stats.missCount(),
+				100.0 * stats.hitRate(), stats.evictionCount());
+	}
+}